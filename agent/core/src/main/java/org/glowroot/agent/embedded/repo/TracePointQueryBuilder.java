@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -71,6 +71,7 @@ class TracePointQueryBuilder {
         appendTraceKindCriteria(builder);
         appendTransactionTypeCriteria(builder);
         appendTransactionNameCriteria(builder);
+        appendDurationCriteria(builder);
         appendHeadlineCriteria(builder);
         appendErrorCriteria(builder);
         appendUserCriteria(builder);
@@ -123,6 +124,19 @@ class TracePointQueryBuilder {
         }
     }
 
+    private void appendDurationCriteria(ParameterizedSqlBuilder builder) {
+        long durationNanosLow = filter.durationNanosLow();
+        if (durationNanosLow != 0) {
+            builder.appendText(" and trace.duration_nanos >= ?");
+            builder.addArg(durationNanosLow);
+        }
+        Long durationNanosHigh = filter.durationNanosHigh();
+        if (durationNanosHigh != null) {
+            builder.appendText(" and trace.duration_nanos <= ?");
+            builder.addArg(durationNanosHigh);
+        }
+    }
+
     private void appendHeadlineCriteria(ParameterizedSqlBuilder builder) {
         StringComparator headlineComparator = filter.headlineComparator();
         String headline = filter.headline();
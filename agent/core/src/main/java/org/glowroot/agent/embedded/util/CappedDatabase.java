@@ -26,8 +26,10 @@ import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.Nullable;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
@@ -54,12 +56,15 @@ public class CappedDatabase {
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
     private final File file;
+    // lock is only held by writers, readers never wait for appends (which include an fsync) to
+    // complete, instead they validate after reading that the bytes they read were not overwritten
     private final Object lock = new Object();
-    @GuardedBy("lock")
+    // fileLock is shared by readers and only held exclusively (in addition to lock) when the
+    // underlying file is replaced or closed, i.e. during resize and close
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+    // writes are guarded by lock, see CappedDatabaseOutputStream for what readers can call
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
@@ -69,7 +74,6 @@ public class CappedDatabase {
         this.file = file;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -140,81 +144,63 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
-            return null;
-        }
-        if (inTheFuture) {
-            // this can happen when the glowroot folder is copied for analysis without shutting down
-            // the JVM and glowroot.capped.db is copied first, then new data is written to
-            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
-            // glowroot.h2.db is copied with capped ids that do not exist in the copied
-            // glowroot.capped.db
-            return null;
-        }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        fileLock.readLock().lock();
         try {
-            return parser.parseFrom(input);
-        } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
-                logger.error(e.getMessage(), e);
+            if (closed || !isReadable(cappedId)) {
+                return null;
+            }
+            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+            // lots of small reads from the underlying RandomAccessFile
+            final int bufferSize = 32768;
+            InputStream input = new LZFInputStream(
+                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+            try {
+                return parser.parseFrom(input);
+            } catch (Exception e) {
+                if (!out.isOverwritten(cappedId)) {
+                    logger.error(e.getMessage(), e);
+                }
+                return null;
+            } finally {
+                input.close();
             }
-            return null;
         } finally {
-            input.close();
+            fileLock.readLock().unlock();
         }
     }
 
     public <T extends /*@NonNull*/MessageLite> List<T> readMessages(long cappedId, Parser<T> parser)
             throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
-            return ImmutableList.of();
-        }
-        if (inTheFuture) {
-            // this can happen when the glowroot folder is copied for analysis without shutting down
-            // the JVM and glowroot.capped.db is copied first, then new data is written to
-            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
-            // glowroot.h2.db is copied with capped ids that do not exist in the copied
-            // glowroot.capped.db
-            return ImmutableList.of();
-        }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
-        SizeLimitBypassingParser<T> sizeLimitBypassingParser =
-                new SizeLimitBypassingParser<T>(parser);
-        List<T> messages = Lists.newArrayList();
+        fileLock.readLock().lock();
         try {
-            T message;
-            while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
-                messages.add(message);
+            if (closed || !isReadable(cappedId)) {
+                return ImmutableList.of();
             }
-        } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
-                logger.error(e.getMessage(), e);
+            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+            // lots of small reads from the underlying RandomAccessFile
+            final int bufferSize = 32768;
+            InputStream input = new LZFInputStream(
+                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+            SizeLimitBypassingParser<T> sizeLimitBypassingParser =
+                    new SizeLimitBypassingParser<T>(parser);
+            List<T> messages = Lists.newArrayList();
+            try {
+                T message;
+                while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
+                    messages.add(message);
+                }
+            } catch (Exception e) {
+                if (!out.isOverwritten(cappedId)) {
+                    logger.error(e.getMessage(), e);
+                }
+                return ImmutableList.of();
+            } finally {
+                input.close();
             }
-            return ImmutableList.of();
+            return messages;
         } finally {
-            input.close();
+            fileLock.readLock().unlock();
         }
-        return messages;
     }
 
     @OnlyUsedByTests
@@ -223,14 +209,20 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
+        fileLock.readLock().lock();
+        try {
             return out.isOverwritten(cappedId);
+        } finally {
+            fileLock.readLock().unlock();
         }
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
+        fileLock.readLock().lock();
+        try {
             return out.getSmallestNonOverwrittenId();
+        } finally {
+            fileLock.readLock().unlock();
         }
     }
 
@@ -239,20 +231,47 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            fileLock.writeLock().lock();
+            try {
+                out.resize(newSizeKb);
+            } finally {
+                fileLock.writeLock().unlock();
+            }
         }
     }
 
     @OnlyUsedByTests
     public void close() throws IOException {
+        closeInternal();
+        Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
+    }
+
+    // must be called while holding fileLock read lock
+    private boolean isReadable(long cappedId) {
+        if (out.isOverwritten(cappedId)) {
+            return false;
+        }
+        // cappedId >= currIndex can happen when the glowroot folder is copied for analysis
+        // without shutting down the JVM and glowroot.capped.db is copied first, then new data is
+        // written to glowroot.capped.db and the new capped ids are written to glowroot.h2.db and
+        // then glowroot.h2.db is copied with capped ids that do not exist in the copied
+        // glowroot.capped.db
+        return cappedId < out.getCurrIndex();
+    }
+
+    private void closeInternal() throws IOException {
+        // update flag outside of lock in case there is a backlog of threads already waiting on the
+        // lock (once the flag is set, any threads in the backlog that haven't acquired the lock
+        // will abort quickly once they do obtain the lock)
+        closed = true;
         synchronized (lock) {
-            closed = true;
-            out.close();
-            inFile.close();
+            fileLock.writeLock().lock();
+            try {
+                out.close();
+            } finally {
+                fileLock.writeLock().unlock();
+            }
         }
-        Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
     @OnlyUsedByTests
@@ -275,12 +294,17 @@ public class CappedDatabase {
         }
     }
 
+    // each stream reads through its own file handle, so reads don't contend with each other or
+    // with the writer, and must be used while holding fileLock read lock (CappedBlockCharSource is
+    // the exception, which is ok since it is only used by tests)
     private class CappedBlockInputStream extends InputStream {
 
         private final long cappedId;
         private long blockLength = -1;
         private long blockIndex;
 
+        private @Nullable RandomAccessFile inFile;
+
         private CappedBlockInputStream(long cappedId) {
             this.cappedId = cappedId;
         }
@@ -290,25 +314,31 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
-                }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            RandomAccessFile inFile = this.inFile;
+            if (inFile == null) {
+                inFile = new RandomAccessFile(file, "r");
+                this.inFile = inFile;
+            }
+            if (blockLength == -1) {
+                long filePosition = out.convertToFilePosition(cappedId);
                 inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+                long blockLength = inFile.readLong();
+                checkNotOverwritten();
+                this.blockLength = blockLength;
             }
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            inFile.readFully(bytes, off, numToRead);
+            checkNotOverwritten();
+            blockIndex += numToRead;
+            return numToRead;
         }
 
         @Override
@@ -323,20 +353,28 @@ public class CappedDatabase {
             throw new UnsupportedOperationException(
                     "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
         }
+
+        @Override
+        public void close() throws IOException {
+            if (inFile != null) {
+                inFile.close();
+            }
+        }
+
+        // the writer advances currIndex before writing, so if the block is still not overwritten
+        // after reading, then the bytes that were read are valid
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+        }
     }
 
     private class ShutdownHookThread extends Thread {
         @Override
         public void run() {
             try {
-                // update flag outside of lock in case there is a backlog of threads already
-                // waiting on the lock (once the flag is set, any threads in the backlog that
-                // haven't acquired the lock will abort quickly once they do obtain the lock)
-                closed = true;
-                synchronized (lock) {
-                    out.close();
-                    inFile.close();
-                }
+                closeInternal();
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
             }
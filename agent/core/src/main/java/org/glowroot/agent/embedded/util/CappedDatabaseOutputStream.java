@@ -23,6 +23,9 @@ import java.io.RandomAccessFile;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
+//
+// isOverwritten(), getSmallestNonOverwrittenId(), getCurrIndex() and convertToFilePosition() can
+// be called concurrently with writing, as long as they are externally excluded from resize().
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -35,8 +38,13 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    //
+    // currIndex is volatile and is advanced before the corresponding bytes are written, so that
+    // readers (which do not synchronize with the writer) can validate after reading that the bytes
+    // they read were not overwritten in the meantime
+    private volatile long currIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
+    // (only changed during resize which excludes readers)
     private long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
     // startBlock()/write()/endBlock()
@@ -173,6 +181,9 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
+        // advance currIndex before writing so that concurrent readers of the bytes being
+        // overwritten will see them as overwritten
+        currIndex += len;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
         if (len >= remaining) {
@@ -183,7 +194,6 @@ class CappedDatabaseOutputStream extends OutputStream {
         } else {
             out.write(b, off, len);
         }
-        currIndex += len;
         out.seek(HEADER_CURR_INDEX_POS);
         out.writeLong(currIndex);
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -51,6 +51,7 @@ import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -64,6 +65,13 @@ class AggregateCollector {
     // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
     private double totalDurationNanos;
     private long transactionCount;
+    // transactions without full capture (see TransactionServiceImpl) only contribute to the totals,
+    // histogram and root timers, so the rest of the detail is scaled up when it is read in order to
+    // represent all of the transactions
+    //
+    // profiles are not scaled, since stack traces are sampled from all transactions regardless of
+    // full capture, so profile sample counts already represent all of the transactions
+    private long fullCaptureCount;
     private long errorCount;
     private boolean asyncTransactions;
     private final RootTimerCollectorImpl mainThreadRootTimers = new RootTimerCollectorImpl();
@@ -100,11 +108,68 @@ class AggregateCollector {
         if (transaction.isAsync()) {
             asyncTransactions = true;
         }
-        mainThreadStats.mergeThreadStats(transaction.getMainThreadStats());
-        transaction.mergeAuxThreadStatsInto(auxThreadStats);
+        if (transaction.isFullCapture()) {
+            fullCaptureCount++;
+            mainThreadStats.mergeThreadStats(transaction.getMainThreadStats());
+            transaction.mergeAuxThreadStatsInto(auxThreadStats);
+        }
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to combine the partial aggregates from each processing shard, the collector passed in
+    // is not modified
+    void merge(AggregateCollector collector) {
+        mergeOverview(collector);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+        if (collector.queries != null) {
+            collector.queries.mergeInto(getQueryCollector());
+        }
+        if (collector.serviceCalls != null) {
+            ServiceCallCollector serviceCallCollector = getServiceCallCollector();
+            for (Aggregate.ServiceCallsByType serviceCallsByType : collector.serviceCalls
+                    .toProto()) {
+                for (Aggregate.ServiceCall serviceCall : serviceCallsByType
+                        .getServiceCallList()) {
+                    serviceCallCollector.mergeServiceCall(serviceCallsByType.getType(),
+                            serviceCall.getText(), serviceCall.getTotalDurationNanos(),
+                            serviceCall.getExecutionCount());
+                }
+            }
+        }
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MutableProfile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MutableProfile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
+    // only merges what is needed by getOverviewAggregate()
+    void mergeOverview(AggregateCollector collector) {
+        mergeTotals(collector);
+        mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+        auxThreadRootTimers.merge(collector.auxThreadRootTimers);
+        asyncTimers.merge(collector.asyncTimers);
+        mainThreadStats.merge(collector.mainThreadStats);
+        auxThreadStats.merge(collector.auxThreadStats);
+    }
+
+    // only merges what is needed by getPercentileAggregate()
+    void mergePercentile(AggregateCollector collector) {
+        mergeTotals(collector);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+    }
+
+    long getTransactionCount() {
+        return transactionCount;
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -155,26 +220,31 @@ class AggregateCollector {
 
     Aggregate build(SharedQueryTextCollector sharedQueryTextCollector,
             ScratchBuffer scratchBuffer) {
+        double detailScale = getDetailScale();
         Aggregate.Builder builder = Aggregate.newBuilder()
                 .setTotalDurationNanos(totalDurationNanos)
                 .setTransactionCount(transactionCount)
                 .setErrorCount(errorCount)
                 .setAsyncTransactions(asyncTransactions)
-                .addAllMainThreadRootTimer(mainThreadRootTimers.toProto())
-                .addAllAuxThreadRootTimer(auxThreadRootTimers.toProto())
-                .addAllAsyncTimer(asyncTimers.toProto())
+                .addAllMainThreadRootTimer(
+                        scaleChildTimers(mainThreadRootTimers.toProto(), detailScale))
+                .addAllAuxThreadRootTimer(
+                        scaleChildTimers(auxThreadRootTimers.toProto(), detailScale))
+                .addAllAsyncTimer(scaleTimers(asyncTimers.toProto(), detailScale))
                 .setDurationNanosHistogram(durationNanosHistogram.toProto(scratchBuffer));
         if (!mainThreadStats.isNA()) {
-            builder.setMainThreadStats(mainThreadStats.toProto());
+            builder.setMainThreadStats(mainThreadStats.toScaledProto(detailScale));
         }
         if (!auxThreadStats.isNA()) {
-            builder.setAuxThreadStats(auxThreadStats.toProto());
+            builder.setAuxThreadStats(auxThreadStats.toScaledProto(detailScale));
         }
         if (queries != null) {
-            builder.addAllQueriesByType(queries.toAggregateProto(sharedQueryTextCollector));
+            builder.addAllQueriesByType(scaleQueries(
+                    queries.toAggregateProto(sharedQueryTextCollector), detailScale));
         }
         if (serviceCalls != null) {
-            builder.addAllServiceCallsByType(serviceCalls.toProto());
+            builder.addAllServiceCallsByType(
+                    scaleServiceCalls(serviceCalls.toProto(), detailScale));
         }
         if (mainThreadProfile != null) {
             builder.setMainThreadProfile(mainThreadProfile.toProto());
@@ -206,19 +276,20 @@ class AggregateCollector {
     }
 
     OverviewAggregate getOverviewAggregate(long captureTime) {
+        double detailScale = getDetailScale();
         ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
                 .captureTime(captureTime)
                 .totalDurationNanos(totalDurationNanos)
                 .transactionCount(transactionCount)
                 .asyncTransactions(asyncTransactions)
-                .mainThreadRootTimers(mainThreadRootTimers.toProto())
-                .auxThreadRootTimers(auxThreadRootTimers.toProto())
-                .asyncTimers(asyncTimers.toProto());
+                .mainThreadRootTimers(scaleChildTimers(mainThreadRootTimers.toProto(), detailScale))
+                .auxThreadRootTimers(scaleChildTimers(auxThreadRootTimers.toProto(), detailScale))
+                .asyncTimers(scaleTimers(asyncTimers.toProto(), detailScale));
         if (!mainThreadStats.isNA()) {
-            builder.mainThreadStats(mainThreadStats.toProto());
+            builder.mainThreadStats(mainThreadStats.toScaledProto(detailScale));
         }
         if (!auxThreadStats.isNA()) {
-            builder.auxThreadStats(auxThreadStats.toProto());
+            builder.auxThreadStats(auxThreadStats.toScaledProto(detailScale));
         }
         return builder.build();
     }
@@ -246,13 +317,14 @@ class AggregateCollector {
 
     void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) throws IOException {
         if (queries != null) {
-            queries.mergeQueriesInto(collector);
+            queries.mergeQueriesInto(collector, getDetailScale());
         }
     }
 
     void mergeServiceCallsInto(ServiceCallCollector collector) throws IOException {
         if (serviceCalls != null) {
-            collector.mergeServiceCalls(serviceCalls.toProto());
+            collector.mergeServiceCalls(
+                    scaleServiceCalls(serviceCalls.toProto(), getDetailScale()));
         }
     }
 
@@ -268,6 +340,98 @@ class AggregateCollector {
         }
     }
 
+    private void mergeTotals(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        fullCaptureCount += collector.fullCaptureCount;
+        errorCount += collector.errorCount;
+        if (collector.asyncTransactions) {
+            asyncTransactions = true;
+        }
+    }
+
+    private double getDetailScale() {
+        if (fullCaptureCount == 0 || fullCaptureCount == transactionCount) {
+            return 1;
+        }
+        return transactionCount / (double) fullCaptureCount;
+    }
+
+    // root timers are captured for all transactions, so only their child timers are scaled
+    private static List<Aggregate.Timer> scaleChildTimers(List<Aggregate.Timer> rootTimers,
+            double scale) {
+        if (scale == 1) {
+            return rootTimers;
+        }
+        List<Aggregate.Timer> scaledRootTimers = Lists.newArrayList();
+        for (Aggregate.Timer rootTimer : rootTimers) {
+            scaledRootTimers.add(rootTimer.toBuilder()
+                    .clearChildTimer()
+                    .addAllChildTimer(scaleTimers(rootTimer.getChildTimerList(), scale))
+                    .build());
+        }
+        return scaledRootTimers;
+    }
+
+    private static List<Aggregate.Timer> scaleTimers(List<Aggregate.Timer> timers, double scale) {
+        if (scale == 1) {
+            return timers;
+        }
+        List<Aggregate.Timer> scaledTimers = Lists.newArrayList();
+        for (Aggregate.Timer timer : timers) {
+            scaledTimers.add(timer.toBuilder()
+                    .setTotalNanos(timer.getTotalNanos() * scale)
+                    .setCount(Math.round(timer.getCount() * scale))
+                    .clearChildTimer()
+                    .addAllChildTimer(scaleTimers(timer.getChildTimerList(), scale))
+                    .build());
+        }
+        return scaledTimers;
+    }
+
+    private static List<Aggregate.QueriesByType> scaleQueries(
+            List<Aggregate.QueriesByType> queriesByTypes, double scale) {
+        if (scale == 1) {
+            return queriesByTypes;
+        }
+        List<Aggregate.QueriesByType> scaledQueriesByTypes = Lists.newArrayList();
+        for (Aggregate.QueriesByType queriesByType : queriesByTypes) {
+            Aggregate.QueriesByType.Builder builder = queriesByType.toBuilder()
+                    .clearQuery();
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                Aggregate.Query.Builder queryBuilder = query.toBuilder()
+                        .setTotalDurationNanos(query.getTotalDurationNanos() * scale)
+                        .setExecutionCount(Math.round(query.getExecutionCount() * scale));
+                if (query.hasTotalRows()) {
+                    queryBuilder.setTotalRows(OptionalInt64.newBuilder()
+                            .setValue(Math.round(query.getTotalRows().getValue() * scale)));
+                }
+                builder.addQuery(queryBuilder);
+            }
+            scaledQueriesByTypes.add(builder.build());
+        }
+        return scaledQueriesByTypes;
+    }
+
+    private static List<Aggregate.ServiceCallsByType> scaleServiceCalls(
+            List<Aggregate.ServiceCallsByType> serviceCallsByTypes, double scale) {
+        if (scale == 1) {
+            return serviceCallsByTypes;
+        }
+        List<Aggregate.ServiceCallsByType> scaledServiceCallsByTypes = Lists.newArrayList();
+        for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypes) {
+            Aggregate.ServiceCallsByType.Builder builder = serviceCallsByType.toBuilder()
+                    .clearServiceCall();
+            for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
+                builder.addServiceCall(serviceCall.toBuilder()
+                        .setTotalDurationNanos(serviceCall.getTotalDurationNanos() * scale)
+                        .setExecutionCount(Math.round(serviceCall.getExecutionCount() * scale)));
+            }
+            scaledServiceCallsByTypes.add(builder.build());
+        }
+        return scaledServiceCallsByTypes;
+    }
+
     private static class RootTimerCollectorImpl implements RootTimerCollector {
 
         List<MutableAggregateTimer> rootMutableTimers = Lists.newArrayList();
@@ -277,6 +441,25 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer matchingRootTimer = null;
+                for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                        matchingRootTimer = rootTimer;
+                        break;
+                    }
+                }
+                if (matchingRootTimer == null) {
+                    matchingRootTimer = MutableAggregateTimer.createRootTimer(
+                            toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(matchingRootTimer);
+                }
+                matchingRootTimer.merge(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -323,6 +506,20 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            if (collector.empty) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
@@ -333,21 +530,21 @@ class AggregateCollector {
                     && NotAvailableAware.isNA(totalAllocatedBytes);
         }
 
-        public Aggregate.ThreadStats toProto() {
+        public Aggregate.ThreadStats toScaledProto(double scale) {
             Aggregate.ThreadStats.Builder builder = Aggregate.ThreadStats.newBuilder();
             if (!NotAvailableAware.isNA(totalCpuNanos)) {
-                builder.setTotalCpuNanos(toProto(totalCpuNanos));
+                builder.setTotalCpuNanos(toProto(totalCpuNanos * scale));
             }
             if (!NotAvailableAware.isNA(totalBlockedMillis)) {
                 builder.setTotalBlockedNanos(
-                        toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND));
+                        toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND * scale));
             }
             if (!NotAvailableAware.isNA(totalWaitedMillis)) {
                 builder.setTotalWaitedNanos(
-                        toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND));
+                        toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND * scale));
             }
             if (!NotAvailableAware.isNA(totalAllocatedBytes)) {
-                builder.setTotalAllocatedBytes(toProto(totalAllocatedBytes));
+                builder.setTotalAllocatedBytes(toProto(totalAllocatedBytes * scale));
             }
             return builder.build();
         }
@@ -18,12 +18,16 @@ package org.glowroot.agent.impl;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +36,7 @@ import org.glowroot.agent.collector.Collector.AggregateVisitor;
 import org.glowroot.agent.collector.Collector.Aggregates;
 import org.glowroot.agent.model.Profile;
 import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
@@ -47,6 +52,9 @@ import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+// the interval is split into shards (partitioned by transaction type and transaction name) so that
+// each aggregate processing thread only ever takes the lock of its own shard, the per transaction
+// type overall aggregates are kept per shard and only merged on read and on flush
 public class AggregateIntervalCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(AggregateIntervalCollector.class);
@@ -59,12 +67,16 @@ public class AggregateIntervalCollector {
     private final int maxAggregateServiceCallsPerType;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    private final IntervalShard[] shards;
 
-    private final Object lock = new Object();
+    // transaction name limit is per transaction type across all shards
+    private final ConcurrentMap<String, AtomicInteger> transactionNameCounts =
+            Maps.newConcurrentMap();
 
-    AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
+    // number of processing shards that have not yet moved on to a later interval
+    private final AtomicInteger remainingShardCount;
+
+    AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis, int shardCount,
             int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
             int maxAggregateServiceCallsPerType, Clock clock) {
         captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
@@ -73,208 +85,357 @@ public class AggregateIntervalCollector {
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
         this.clock = clock;
+        shards = new IntervalShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new IntervalShard();
+        }
+        remainingShardCount = new AtomicInteger(shardCount);
     }
 
     public long getCaptureTime() {
         return captureTime;
     }
 
-    public void add(Transaction transaction) {
-        synchronized (lock) {
+    void add(Transaction transaction, int shardIndex) {
+        IntervalShard shard = shards[shardIndex];
+        synchronized (shard.lock) {
             IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+                    shard.getTypeCollector(transaction.getTransactionType());
             typeCollector.add(transaction);
         }
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector != null) {
+                    typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector != null) {
+                    typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (transactionName == null) {
+            AggregateCollector overallAggregateCollector =
+                    getMergedOverallAggregateCollector(transactionType, MergeType.OVERVIEW);
+            if (overallAggregateCollector == null) {
+                return null;
+            }
+            return overallAggregateCollector.getOverviewAggregate(liveCaptureTime);
+        }
+        IntervalShard shard = getShard(transactionType, transactionName);
+        synchronized (shard.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    shard.getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
             return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (transactionName == null) {
+            AggregateCollector overallAggregateCollector =
+                    getMergedOverallAggregateCollector(transactionType, MergeType.PERCENTILE);
+            if (overallAggregateCollector == null) {
+                return null;
+            }
+            return overallAggregateCollector.getPercentileAggregate(liveCaptureTime);
+        }
+        IntervalShard shard = getShard(transactionType, transactionName);
+        synchronized (shard.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    shard.getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
             return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (transactionName == null) {
+            long transactionCount = 0;
+            boolean found = false;
+            for (IntervalShard shard : shards) {
+                synchronized (shard.lock) {
+                    IntervalTypeCollector typeCollector =
+                            shard.typeCollectors.get(transactionType);
+                    if (typeCollector != null) {
+                        transactionCount +=
+                                typeCollector.overallAggregateCollector.getTransactionCount();
+                        found = true;
+                    }
+                }
+            }
+            if (!found) {
+                return null;
+            }
+            return ImmutableThroughputAggregate.of(liveCaptureTime, transactionCount);
+        }
+        IntervalShard shard = getShard(transactionType, transactionName);
+        synchronized (shard.lock) {
             AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
+                    shard.getAggregateCollector(transactionType, transactionName);
             if (aggregateCollector == null) {
                 return null;
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
             return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                for (IntervalTypeCollector typeCollector : shard.typeCollectors.values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeQueriesInto(collector);
+                }
             }
-            aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeServiceCallsInto(collector);
+                }
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeMainThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : getShards(transactionType, transactionName)) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeAuxThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
+    static int getShardIndex(String transactionType, String transactionName, int shardCount) {
+        int hash = 31 * transactionType.hashCode() + transactionName.hashCode();
+        // spread the high bits since shard count is small
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    // returns true if this was the last shard to complete the interval
+    boolean markShardCompleted() {
+        return remainingShardCount.decrementAndGet() == 0;
+    }
+
     void flush(Collector collector) throws Exception {
         collector.collectAggregates(captureTime, new AggregatesImpl());
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                shard.typeCollectors.clear();
+            }
         }
+        transactionNameCounts.clear();
     }
 
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+    private IntervalShard getShard(String transactionType, String transactionName) {
+        return shards[getShardIndex(transactionType, transactionName, shards.length)];
+    }
+
+    private IntervalShard[] getShards(String transactionType, @Nullable String transactionName) {
+        if (transactionName == null) {
+            return shards;
         }
-        return typeCollector;
+        return new IntervalShard[] {getShard(transactionType, transactionName)};
     }
 
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
+    // live reads only merge the parts of the per shard overall aggregates that they use, since
+    // merging queries and profiles across shards is comparatively expensive
+    private @Nullable AggregateCollector getMergedOverallAggregateCollector(
+            String transactionType, MergeType mergeType) {
+        AggregateCollector mergedAggregateCollector = null;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(null,
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                }
+                AggregateCollector overallAggregateCollector =
+                        typeCollector.overallAggregateCollector;
+                switch (mergeType) {
+                    case OVERVIEW:
+                        mergedAggregateCollector.mergeOverview(overallAggregateCollector);
+                        break;
+                    case PERCENTILE:
+                        mergedAggregateCollector.mergePercentile(overallAggregateCollector);
+                        break;
+                    default:
+                        mergedAggregateCollector.merge(overallAggregateCollector);
+                }
+            }
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        return mergedAggregateCollector;
+    }
+
+    private boolean tryReserveTransactionName(String transactionType) {
+        AtomicInteger transactionNameCount = transactionNameCounts.get(transactionType);
+        if (transactionNameCount == null) {
+            transactionNameCount = new AtomicInteger();
+            AtomicInteger existing =
+                    transactionNameCounts.putIfAbsent(transactionType, transactionNameCount);
+            if (existing != null) {
+                transactionNameCount = existing;
+            }
+        }
+        while (true) {
+            int count = transactionNameCount.get();
+            if (count >= maxAggregateTransactionsPerTransactionType) {
+                return false;
+            }
+            if (transactionNameCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private enum MergeType {
+        OVERVIEW, PERCENTILE, ALL
+    }
+
+    private class IntervalShard {
+
+        @GuardedBy("lock")
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private final Object lock = new Object();
+
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector = new IntervalTypeCollector(transactionType);
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
+        }
+
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
         }
     }
 
     private class IntervalTypeCollector {
 
+        private final String transactionType;
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
-                Maps.newConcurrentMap();
+                Maps.newHashMap();
 
-        private IntervalTypeCollector() {
+        private IntervalTypeCollector(String transactionType) {
+            this.transactionType = transactionType;
             overallAggregateCollector = new AggregateCollector(null, maxAggregateQueriesPerType,
                     maxAggregateServiceCallsPerType);
         }
@@ -283,8 +444,8 @@ public class AggregateIntervalCollector {
             merge(transaction, overallAggregateCollector);
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
-            if (transactionAggregateCollector == null && transactionAggregateCollectors
-                    .size() < maxAggregateTransactionsPerTransactionType) {
+            if (transactionAggregateCollector == null
+                    && tryReserveTransactionName(transactionType)) {
                 transactionAggregateCollector =
                         new AggregateCollector(transaction.getTransactionName(),
                                 maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
@@ -340,24 +501,42 @@ public class AggregateIntervalCollector {
     private class AggregatesImpl implements Aggregates {
         @Override
         public <T extends Exception> void accept(AggregateVisitor<T> aggregateVisitor) throws T {
-            synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            Set<String> transactionTypes = Sets.newLinkedHashSet();
+            for (IntervalShard shard : shards) {
+                synchronized (shard.lock) {
+                    transactionTypes.addAll(shard.typeCollectors.keySet());
+                }
+            }
+            for (String transactionType : transactionTypes) {
+                AggregateCollector overallAggregateCollector =
+                        getMergedOverallAggregateCollector(transactionType, MergeType.ALL);
+                if (overallAggregateCollector == null) {
+                    // cleared in the meantime
+                    continue;
+                }
+                Aggregate overallAggregate =
+                        overallAggregateCollector.build(sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (IntervalShard shard : shards) {
+                    synchronized (shard.lock) {
+                        IntervalTypeCollector intervalTypeCollector =
+                                shard.typeCollectors.get(transactionType);
+                        if (intervalTypeCollector == null) {
+                            continue;
+                        }
+                        for (Entry<String, AggregateCollector> e : intervalTypeCollector
+                                .transactionAggregateCollectors.entrySet()) {
+                            Aggregate transactionAggregate =
+                                    e.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                            aggregateVisitor.visitTransactionAggregate(transactionType,
+                                    e.getKey(),
+                                    sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                                    transactionAggregate);
+                        }
                     }
                 }
             }
@@ -15,15 +15,20 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,24 +36,50 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+// transactions are partitioned by transaction type and transaction name across a number of
+// processing shards, each with its own lock-free queue and processing thread, and each writing
+// only to its own shard of the interval collectors, so that aggregation scales with cores
+//
+// an idle shard thread parks until either a transaction is handed off (and the handing off thread
+// unparks it) or its current interval ends, so idle shards do not wake up the monitored jvm
 public class Aggregator {
 
-    private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
+    private static final Logger logger = LoggerFactory.getLogger(Aggregator.class);
 
-    // back pressure on transaction collection
+    private static final int SHARD_COUNT = Integer.getInteger("glowroot.aggregate.shards",
+            Math.min(Runtime.getRuntime().availableProcessors(), 8));
+
+    // back pressure on transaction collection (across all shards)
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
+    private static final Comparator<AggregateIntervalCollector> byCaptureTime =
+            new Comparator<AggregateIntervalCollector>() {
+                @Override
+                public int compare(AggregateIntervalCollector left,
+                        AggregateIntervalCollector right) {
+                    return Longs.compare(left.getCaptureTime(), right.getCaptureTime());
+                }
+            };
+
+    // intervals that at least one shard is still collecting into, ordered by capture time
+    // (all structural changes are made under intervalLock, but it is read without locking)
+    private final List<AggregateIntervalCollector> activeIntervalCollectors =
+            Lists.newCopyOnWriteArrayList();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
+    private final Object intervalLock = new Object();
+
+    private final ProcessingShard[] shards;
+    private final AtomicInteger pendingTransactionCount = new AtomicInteger();
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
@@ -58,42 +89,41 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
-
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
     private volatile boolean closed;
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, clock, SHARD_COUNT);
+    }
+
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            Clock clock, int shardCount) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors.newSingleThreadExecutor(
+        processingExecutor = Executors.newFixedThreadPool(shardCount,
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
-                        .setNameFormat("Glowroot-Aggregate-Processing")
+                        .setNameFormat("Glowroot-Aggregate-Processing-%d")
                         .build());
         flushingExecutor = Executors.newSingleThreadExecutor(
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
                         .setNameFormat("Glowroot-Aggregate-Flushing")
                         .build());
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        AggregateIntervalCollector intervalCollector =
+                createIntervalCollector(clock.currentTimeMillis(), shardCount);
+        activeIntervalCollectors.add(intervalCollector);
+        shards = new ProcessingShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ProcessingShard(i, intervalCollector);
+        }
+        for (ProcessingShard shard : shards) {
+            processingExecutor.execute(shard);
+        }
     }
 
     // from is non-inclusive
@@ -110,52 +140,117 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+            intervalCollector.clear();
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-                return captureTime;
-            }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+        ProcessingShard shard = shards[AggregateIntervalCollector.getShardIndex(
+                transaction.getTransactionType(), transaction.getTransactionName(),
+                shards.length)];
+        long captureTime = clock.currentTimeMillis();
+        if (pendingTransactionCount.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+            pendingTransactionCount.decrementAndGet();
+            backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                    + " backlog of {} transactions already waiting to be aggregated",
+                    TRANSACTION_PENDING_LIMIT);
+            transaction.removeFromActiveTransactions();
+            return captureTime;
         }
+        shard.handOff(new PendingTransaction(transaction, captureTime));
         return captureTime;
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        // (intervals are added to pending before they are removed from active)
         List<AggregateIntervalCollector> intervalCollectors =
-                Lists.newArrayList(pendingIntervalCollectors);
-        if (intervalCollectors.isEmpty()) {
-            // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
+                Lists.newArrayList(activeIntervalCollectors);
+        for (AggregateIntervalCollector intervalCollector : pendingIntervalCollectors) {
+            if (!intervalCollectors.contains(intervalCollector)) {
+                intervalCollectors.add(intervalCollector);
+            }
         }
+        if (intervalCollectors.size() > 1) {
+            Collections.sort(intervalCollectors, byCaptureTime);
+        }
+        return intervalCollectors;
+    }
+
+    // called by a shard when it sees a transaction (or the current time) past the end of its
+    // current interval, this completes the shard's participation in all intervals prior to the
+    // returned interval
+    private AggregateIntervalCollector moveToLaterInterval(
+            AggregateIntervalCollector currentIntervalCollector, long captureTime) {
+        long targetCaptureTime = Utils.getRollupCaptureTime(captureTime, aggregateIntervalMillis);
+        List<AggregateIntervalCollector> completedIntervalCollectors = Lists.newArrayList();
+        AggregateIntervalCollector targetIntervalCollector = null;
+        synchronized (intervalLock) {
+            for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+                if (intervalCollector.getCaptureTime() < currentIntervalCollector
+                        .getCaptureTime()) {
+                    // this shard has already completed this interval
+                    continue;
+                }
+                if (intervalCollector.getCaptureTime() >= targetCaptureTime) {
+                    // if there is no interval yet for the exact target capture time, but there is
+                    // a later one (this can only happen for a transaction that was handed off just
+                    // as the interval ended), then it is ok to aggregate into the later one
+                    targetIntervalCollector = intervalCollector;
+                    break;
+                }
+                if (intervalCollector.markShardCompleted()) {
+                    completedIntervalCollectors.add(intervalCollector);
+                }
+            }
+            if (targetIntervalCollector == null) {
+                targetIntervalCollector = createIntervalCollector(captureTime, shards.length);
+                activeIntervalCollectors.add(targetIntervalCollector);
+            }
+            for (AggregateIntervalCollector intervalCollector : completedIntervalCollectors) {
+                if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
+                    logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                            + " aggregates already waiting to be stored",
+                            AGGREGATE_PENDING_LIMIT);
+                } else {
+                    pendingIntervalCollectors.add(intervalCollector);
+                    flush(intervalCollector);
+                }
+                activeIntervalCollectors.remove(intervalCollector);
+            }
+        }
+        return targetIntervalCollector;
+    }
+
+    private void flush(final AggregateIntervalCollector intervalCollector) {
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    intervalCollector.flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    pendingIntervalCollectors.remove(intervalCollector);
+                }
+            }
+        });
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime, int shardCount) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis, shardCount,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
-        processingExecutor.shutdown();
+        // shard threads may be parked waiting for the end of the current interval
+        processingExecutor.shutdownNow();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
@@ -165,13 +260,48 @@ public class Aggregator {
         }
     }
 
-    private class TransactionProcessor implements Runnable {
+    private class ProcessingShard implements Runnable {
+
+        private final int shardIndex;
+
+        // multiple producers (transaction threads), single consumer (this shard's thread)
+        private final Queue<PendingTransaction> queue =
+                new ConcurrentLinkedQueue<PendingTransaction>();
+
+        private volatile @Nullable Thread processingThread;
+        // set by the processing thread before it re-checks the queue and parks, so that a producer
+        // either sees this flag and unparks it, or the processing thread sees the new transaction
+        private volatile boolean parked;
+
+        // only accessed by this shard's processing thread
+        private AggregateIntervalCollector currentIntervalCollector;
+
+        private ProcessingShard(int shardIndex,
+                AggregateIntervalCollector currentIntervalCollector) {
+            this.shardIndex = shardIndex;
+            this.currentIntervalCollector = currentIntervalCollector;
+        }
+
+        private void handOff(PendingTransaction pendingTransaction) {
+            queue.offer(pendingTransaction);
+            if (parked) {
+                Thread thread = processingThread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
 
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
             while (!closed) {
                 try {
                     processOne();
+                } catch (InterruptedException e) {
+                    // shutdownNow() was called
+                    Thread.currentThread().interrupt();
+                    return;
                 } catch (Throwable e) {
                     // log and continue processing
                     logger.error(e.getMessage(), e);
@@ -180,99 +310,61 @@ public class Aggregator {
         }
 
         private void processOne() throws InterruptedException {
-            PendingTransaction pendingTransaction = head.next;
+            PendingTransaction pendingTransaction = queue.poll();
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
-                } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                long currentTime = clock.currentTimeMillis();
+                long intervalCaptureTime = currentIntervalCollector.getCaptureTime();
+                if (currentTime > intervalCaptureTime) {
+                    // a transaction that captured its time just before this point but has not
+                    // been handed off yet will be aggregated into the next interval, which is
+                    // preferable to locking every hand off
+                    currentIntervalCollector =
+                            moveToLaterInterval(currentIntervalCollector, currentTime);
+                    return;
+                }
+                // park until a transaction is handed off or the current interval ends
+                parked = true;
+                try {
+                    pendingTransaction = queue.poll();
+                    if (pendingTransaction == null) {
+                        LockSupport.parkNanos(this,
+                                MILLISECONDS.toNanos(intervalCaptureTime - currentTime + 1));
+                    }
+                } finally {
+                    parked = false;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (pendingTransaction == null) {
+                    // either unparked by a hand off or the current interval ended, in both cases
+                    // the loop in run() will come back around
+                    return;
                 }
-                return;
             }
+            pendingTransactionCount.decrementAndGet();
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
+            Transaction transaction = pendingTransaction.transaction;
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+            if (pendingTransaction.captureTime > currentIntervalCollector.getCaptureTime()) {
+                currentIntervalCollector = moveToLaterInterval(currentIntervalCollector,
+                        pendingTransaction.captureTime);
             }
-            activeIntervalCollector.add(transaction);
-        }
-
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-            }
-        }
-
-        private void flushActiveIntervalCollector() {
-            if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
-                return;
-            }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        intervalCollector.flush(collector);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
-                    }
-                }
-            });
+            currentIntervalCollector.add(transaction, shardIndex);
         }
     }
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
-        private volatile @Nullable PendingTransaction next;
+        private final Transaction transaction;
+        private final long captureTime;
 
-        private PendingTransaction(@Nullable Transaction transaction) {
+        private PendingTransaction(Transaction transaction, long captureTime) {
             this.transaction = transaction;
+            this.captureTime = captureTime;
         }
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+// bounded queue of completed transactions whose traces are waiting to be stored, filled by
+// transaction threads and drained in batches by the single trace collector thread
+//
+// when full, instead of dropping whichever trace arrives last, the lowest priority trace is
+// dropped, where error traces have priority over non-error traces, and then slower traces have
+// priority over faster traces, so that during an incident (when everything is slow) the most
+// interesting traces are the ones that get stored
+//
+// transactions that were already partially stored are never dropped, to make sure they don't get
+// left out in case they cause an avalanche of slowness
+public class PendingTraceQueue implements PendingTraceQueueMXBean {
+
+    private final int capacity;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final List<PendingTrace> queue = Lists.newArrayList();
+    // traces that have been handed to the trace collector thread but are not stored yet, these
+    // count against the capacity but cannot be dropped anymore
+    @GuardedBy("lock")
+    private final List<PendingTrace> inProgress = Lists.newArrayList();
+    @GuardedBy("lock")
+    private boolean closed;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    PendingTraceQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getPendingTraceCount() {
+        synchronized (lock) {
+            return queue.size() + inProgress.size();
+        }
+    }
+
+    @Override
+    public long getDroppedTraceCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public long getEvictedTraceCount() {
+        return evictedCount.get();
+    }
+
+    // the trace is dropped if the queue is full of higher priority traces, otherwise it is added,
+    // possibly evicting a lower priority trace to make room for it
+    OfferResult offer(Transaction transaction, boolean slow) {
+        PendingTrace pendingTrace = new PendingTrace(transaction, slow);
+        synchronized (lock) {
+            if (queue.size() + inProgress.size() < capacity) {
+                queue.add(pendingTrace);
+                lock.notifyAll();
+                return OfferResult.ADDED;
+            }
+            int lowestPriorityIndex = getLowestPriorityIndex();
+            if (lowestPriorityIndex != -1
+                    && queue.get(lowestPriorityIndex).hasLowerPriorityThan(pendingTrace)) {
+                // replacing in place keeps the rest of the queue in order
+                queue.set(lowestPriorityIndex, pendingTrace);
+                evictedCount.getAndIncrement();
+                return OfferResult.ADDED_AFTER_EVICTING;
+            }
+            if (pendingTrace.partiallyStored) {
+                // capacity doesn't apply (see class comment)
+                queue.add(pendingTrace);
+                lock.notifyAll();
+                return OfferResult.ADDED;
+            }
+        }
+        droppedCount.getAndIncrement();
+        return OfferResult.DROPPED;
+    }
+
+    // blocks until there is at least one pending trace, returns empty list only after close()
+    // has been called and there are no more pending traces
+    List<PendingTrace> takeBatch(int maxBatchSize) throws InterruptedException {
+        synchronized (lock) {
+            while (queue.isEmpty()) {
+                if (closed) {
+                    return ImmutableList.of();
+                }
+                lock.wait();
+            }
+            List<PendingTrace> head = queue.subList(0, Math.min(maxBatchSize, queue.size()));
+            List<PendingTrace> batch = ImmutableList.copyOf(head);
+            head.clear();
+            inProgress.addAll(batch);
+            return batch;
+        }
+    }
+
+    void onStored(PendingTrace pendingTrace) {
+        synchronized (lock) {
+            inProgress.remove(pendingTrace);
+        }
+    }
+
+    List<Transaction> getPendingTransactions() {
+        synchronized (lock) {
+            List<Transaction> transactions =
+                    Lists.newArrayListWithCapacity(inProgress.size() + queue.size());
+            for (PendingTrace pendingTrace : inProgress) {
+                transactions.add(pendingTrace.transaction);
+            }
+            for (PendingTrace pendingTrace : queue) {
+                transactions.add(pendingTrace.transaction);
+            }
+            return transactions;
+        }
+    }
+
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @GuardedBy("lock")
+    private int getLowestPriorityIndex() {
+        // linear scan is fine since this is only needed when the queue is full, and the capacity
+        // is small (each pending transaction can retain a lot of memory)
+        int lowestPriorityIndex = -1;
+        for (int i = 0; i < queue.size(); i++) {
+            PendingTrace pendingTrace = queue.get(i);
+            if (pendingTrace.partiallyStored) {
+                continue;
+            }
+            if (lowestPriorityIndex == -1
+                    || pendingTrace.hasLowerPriorityThan(queue.get(lowestPriorityIndex))) {
+                lowestPriorityIndex = i;
+            }
+        }
+        return lowestPriorityIndex;
+    }
+
+    enum OfferResult {
+        ADDED, ADDED_AFTER_EVICTING, DROPPED
+    }
+
+    static class PendingTrace {
+
+        private final Transaction transaction;
+        private final boolean slow;
+        private final boolean error;
+        private final boolean partiallyStored;
+        private final long durationNanos;
+
+        private PendingTrace(Transaction transaction, boolean slow) {
+            this.transaction = transaction;
+            this.slow = slow;
+            error = transaction.getErrorMessage() != null;
+            partiallyStored = transaction.isPartiallyStored();
+            durationNanos = transaction.getDurationNanos();
+        }
+
+        Transaction getTransaction() {
+            return transaction;
+        }
+
+        boolean isSlow() {
+            return slow;
+        }
+
+        private boolean hasLowerPriorityThan(PendingTrace other) {
+            if (partiallyStored != other.partiallyStored) {
+                return other.partiallyStored;
+            }
+            if (error != other.error) {
+                return other.error;
+            }
+            return durationNanos < other.durationNanos;
+        }
+    }
+}
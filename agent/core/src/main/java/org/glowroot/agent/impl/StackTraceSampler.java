@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.Thread.State;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.config.ConfigService;
+
+// captures stack traces for all active thread contexts in a single batched
+// ThreadMXBean.getThreadInfo() call (which brings the jvm to a safepoint), skipping threads that
+// are still blocked/waiting in the same place as they were during the previous sample and reusing
+// the previous stack trace for those instead
+//
+// this is only ever called from the single stack trace collector thread
+public class StackTraceSampler implements StackTraceSamplerMXBean {
+
+    // no limit by default, since getThreadInfo() keeps the innermost frames, so a limited stack
+    // trace would be merged into the profile tree under the wrong root
+    private static final int STACK_TRACE_FRAME_LIMIT = Integer
+            .getInteger("glowroot.profiling.stack.trace.frame.limit", Integer.MAX_VALUE);
+
+    // force a fresh stack trace periodically, e.g. in case a thread sleeps repeatedly at
+    // different call sites (which does not necessarily change the waited count)
+    private static final int MAX_CONSECUTIVE_REUSE = 10;
+
+    private final ConfigService configService;
+    private final ThreadMXBean threadMXBean;
+
+    private Map<ThreadContextImpl, PreviousSample> previousSamples =
+            new IdentityHashMap<ThreadContextImpl, PreviousSample>();
+
+    private volatile long lastStackCaptureNanos;
+    private volatile int lastCapturedThreadCount;
+    private volatile int lastSkippedThreadCount;
+
+    public StackTraceSampler(ConfigService configService) {
+        this.configService = configService;
+        threadMXBean = ManagementFactory.getThreadMXBean();
+    }
+
+    @Override
+    public double getLastStackCaptureMillis() {
+        return lastStackCaptureNanos / 1000000.0;
+    }
+
+    @Override
+    public int getLastCapturedThreadCount() {
+        return lastCapturedThreadCount;
+    }
+
+    @Override
+    public int getLastSkippedThreadCount() {
+        return lastSkippedThreadCount;
+    }
+
+    public void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+        if (threadContexts.isEmpty()) {
+            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+            // see https://bugs.openjdk.java.net/browse/JDK-8074368
+            previousSamples = new IdentityHashMap<ThreadContextImpl, PreviousSample>();
+            lastStackCaptureNanos = 0;
+            lastCapturedThreadCount = 0;
+            lastSkippedThreadCount = 0;
+            return;
+        }
+        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        long[] threadIds = new long[threadContexts.size()];
+        for (int i = 0; i < threadContexts.size(); i++) {
+            threadIds[i] = threadContexts.get(i).getThreadId();
+        }
+        // maxDepth 0 does not require a safepoint (no stack walking)
+        @Nullable
+        ThreadInfo[] stateInfos = threadMXBean.getThreadInfo(threadIds, 0);
+        Map<ThreadContextImpl, PreviousSample> currentSamples =
+                new IdentityHashMap<ThreadContextImpl, PreviousSample>(threadContexts.size());
+        List<ThreadContextImpl> toBeCapturedThreadContexts =
+                Lists.newArrayListWithCapacity(threadContexts.size());
+        for (int i = 0; i < threadContexts.size(); i++) {
+            ThreadContextImpl threadContext = threadContexts.get(i);
+            ThreadInfo stateInfo = stateInfos[i];
+            if (stateInfo == null) {
+                // thread is no longer alive
+                continue;
+            }
+            PreviousSample previousSample = previousSamples.get(threadContext);
+            if (previousSample != null
+                    && previousSample.consecutiveReuseCount < MAX_CONSECUTIVE_REUSE
+                    && isStillWaitingAtSamePlace(previousSample.threadInfo, stateInfo)) {
+                threadContext.captureStackTrace(previousSample.threadInfo, limit);
+                currentSamples.put(threadContext, new PreviousSample(previousSample.threadInfo,
+                        previousSample.consecutiveReuseCount + 1));
+            } else {
+                toBeCapturedThreadContexts.add(threadContext);
+            }
+        }
+        int capturedCount = toBeCapturedThreadContexts.size();
+        if (capturedCount == 0) {
+            lastStackCaptureNanos = 0;
+        } else {
+            long[] toBeCapturedThreadIds = new long[capturedCount];
+            for (int i = 0; i < capturedCount; i++) {
+                toBeCapturedThreadIds[i] = toBeCapturedThreadContexts.get(i).getThreadId();
+            }
+            long startNanos = System.nanoTime();
+            @Nullable
+            ThreadInfo[] threadInfos =
+                    threadMXBean.getThreadInfo(toBeCapturedThreadIds, STACK_TRACE_FRAME_LIMIT);
+            lastStackCaptureNanos = System.nanoTime() - startNanos;
+            for (int i = 0; i < capturedCount; i++) {
+                ThreadContextImpl threadContext = toBeCapturedThreadContexts.get(i);
+                ThreadInfo threadInfo = threadInfos[i];
+                if (threadInfo != null) {
+                    threadContext.captureStackTrace(threadInfo, limit);
+                    currentSamples.put(threadContext, new PreviousSample(threadInfo, 0));
+                }
+            }
+        }
+        lastCapturedThreadCount = capturedCount;
+        lastSkippedThreadCount = threadContexts.size() - capturedCount;
+        // only retain samples for thread contexts that are still active
+        previousSamples = currentSamples;
+    }
+
+    private static boolean isStillWaitingAtSamePlace(ThreadInfo previous, ThreadInfo current) {
+        State state = current.getThreadState();
+        if (state != State.BLOCKED && state != State.WAITING && state != State.TIMED_WAITING) {
+            return false;
+        }
+        // blocked count and waited count are incremented each time a thread enters the blocked or
+        // waiting state, so if they are unchanged then the thread has not left that state since
+        // the previous sample and so its stack trace has not changed either
+        return state == previous.getThreadState()
+                && current.getBlockedCount() == previous.getBlockedCount()
+                && current.getWaitedCount() == previous.getWaitedCount()
+                && Objects.equal(current.getLockName(), previous.getLockName());
+    }
+
+    private static class PreviousSample {
+
+        private final ThreadInfo threadInfo;
+        private final int consecutiveReuseCount;
+
+        private PreviousSample(ThreadInfo threadInfo, int consecutiveReuseCount) {
+            this.threadInfo = threadInfo;
+            this.consecutiveReuseCount = consecutiveReuseCount;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public interface StackTraceSamplerMXBean {
+
+    // wall clock time spent capturing stack traces during the last sampling round, i.e. the batched
+    // ThreadMXBean.getThreadInfo() call with stack depth (this is not the time spent at safepoints,
+    // which is available from the HotspotRuntime SafepointSyncTime and TotalSafepointTime gauges)
+    double getLastStackCaptureMillis();
+
+    int getLastCapturedThreadCount();
+
+    int getLastSkippedThreadCount();
+}
@@ -51,6 +51,7 @@ import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.Timer;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.internal.DummyTraceEntry;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTimer;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
@@ -103,6 +104,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private final long threadId;
 
+    // when false, trace entries, queries, service calls and nested timers are not captured, only
+    // the root timer (see TransactionServiceImpl)
+    private final boolean fullCapture;
+
     private final boolean limitExceededAuxThreadContext;
 
     private final Ticker ticker;
@@ -139,6 +144,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
         threadId = Thread.currentThread().getId();
+        fullCapture = transaction.isFullCapture();
         threadStatsComponent =
                 captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
@@ -495,6 +501,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             innerTransactionThreadContext = checkNotNull(threadContextHolder.get());
             return traceEntry;
         }
+        if (!fullCapture) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
@@ -514,6 +523,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.error("startTraceEntry(): argument 'timerName' must be non-null");
             return NopTransactionService.TRACE_ENTRY;
         }
+        if (!fullCapture) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
@@ -534,6 +546,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.error("startAsyncTraceEntry(): argument 'timerName' must be non-null");
             return NopTransactionService.ASYNC_TRACE_ENTRY;
         }
+        if (!fullCapture) {
+            return NopTransactionService.ASYNC_TRACE_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl syncTimer = startTimer(timerName, startTick);
         AsyncTimerImpl asyncTimer = startAsyncTimer(timerName, startTick);
@@ -564,6 +579,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.error("startQueryEntry(): argument 'timerName' must be non-null");
             return NopTransactionService.QUERY_ENTRY;
         }
+        if (!fullCapture) {
+            return NopTransactionService.QUERY_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
@@ -596,6 +614,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.error("startQueryEntry(): argument 'timerName' must be non-null");
             return NopTransactionService.QUERY_ENTRY;
         }
+        if (!fullCapture) {
+            return NopTransactionService.QUERY_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
@@ -629,6 +650,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.error("startAsyncQueryEntry(): argument 'timerName' must be non-null");
             return NopTransactionService.ASYNC_QUERY_ENTRY;
         }
+        if (!fullCapture) {
+            return NopTransactionService.ASYNC_QUERY_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl syncTimer = startTimer(timerName, startTick);
         AsyncTimerImpl asyncTimer = startAsyncTimer(timerName, startTick);
@@ -662,6 +686,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.error("startServiceCallEntry(): argument 'timerName' must be non-null");
             return NopTransactionService.TRACE_ENTRY;
         }
+        if (!fullCapture) {
+            return NopTransactionService.TRACE_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         QueryData queryData = getOrCreateServiceCallDataIfPossible(type, text);
@@ -694,6 +721,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.error("startAsyncServiceCallEntry(): argument 'timerName' must be non-null");
             return NopTransactionService.ASYNC_TRACE_ENTRY;
         }
+        if (!fullCapture) {
+            return NopTransactionService.ASYNC_TRACE_ENTRY;
+        }
         long startTick = ticker.read();
         TimerImpl syncTimer = startTimer(timerName, startTick);
         AsyncTimerImpl asyncTimer = startAsyncTimer(timerName, startTick);
@@ -717,6 +747,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.warn("startTimer(): called on completed thread context");
             return NopTimer.INSTANCE;
         }
+        if (!fullCapture) {
+            return NopTimer.INSTANCE;
+        }
         return currentTimer.startNestedTimer(timerName);
     }
 
@@ -897,6 +930,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     private void addErrorEntryInternal(@Nullable String message, @Nullable Throwable t) {
+        if (!fullCapture) {
+            return;
+        }
         // use higher entry limit when adding errors, but still need some kind of cap
         if (transaction.allowAnotherErrorEntry()) {
             long currTick = ticker.read();
@@ -974,7 +1010,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     // this does not include the root trace entry
-    private class DummyTraceEntryOrQuery extends QueryEntryBase implements AsyncQueryEntry, Timer {
+    private class DummyTraceEntryOrQuery extends QueryEntryBase
+            implements AsyncQueryEntry, Timer, DummyTraceEntry {
 
         private final TimerImpl syncTimer;
         private final @Nullable AsyncTimerImpl asyncTimer;
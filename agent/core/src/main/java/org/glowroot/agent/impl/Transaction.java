@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -126,6 +126,9 @@ public class Transaction {
     // trace-level error
     private volatile @Nullable ErrorMessage errorMessage;
 
+    // see TransactionServiceImpl
+    private final boolean fullCapture;
+
     private final int maxTraceEntriesPerTransaction;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
@@ -205,7 +208,7 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
+            boolean fullCapture, int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
             int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
@@ -216,6 +219,7 @@ public class Transaction {
         this.startTick = startTick;
         this.transactionType = transactionType;
         this.transactionName = transactionName;
+        this.fullCapture = fullCapture;
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
@@ -281,6 +285,11 @@ public class Transaction {
         return ((ReadableMessage) ((MessageSupplier) messageSupplier).get()).getText();
     }
 
+    // when false, only the root timers, duration and error are captured, see TransactionServiceImpl
+    public boolean isFullCapture() {
+        return fullCapture;
+    }
+
     public String getUser() {
         return Strings.nullToEmpty(user);
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,74 +15,142 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.annotations.VisibleForTesting;
 
+// the collection is striped into segments (selected by the adding thread) so that transaction
+// start and end scale with cores, each segment is a singly linked list with lock free (CAS) insert
+// at the head, removal only marks the entry, and marked entries are unlinked lazily by a single
+// sweeping thread per segment once they outnumber the live entries
 class TransactionCollection implements Iterable<Transaction> {
 
-    private final ReferenceQueue<Transaction> queue = new ReferenceQueue<Transaction>();
+    private static final int SEGMENT_COUNT = getSegmentCount();
 
-    private final TransactionEntry headEntry = new TransactionEntry(null, queue);
+    private static final int MIN_SWEEP_THRESHOLD = 32;
 
-    // tail is non-volatile since only accessed under lock
-    private TransactionEntry tailEntry = headEntry;
+    private static final AtomicIntegerFieldUpdater<TransactionEntry> removedUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(TransactionEntry.class, "removed");
 
-    // all structural changes are made under lock for simplicity
-    // TODO implement lock free structure
-    private final Object lock = new Object();
+    private final Segment[] segments;
+    private final int segmentMask;
 
-    TransactionEntry add(Transaction transaction) {
-        TransactionEntry newTailEntry = new TransactionEntry(transaction, queue);
-        synchronized (lock) {
-            expungeStaleEntries();
-            tailEntry.nextEntry = newTailEntry;
-            newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
+    TransactionCollection() {
+        this(SEGMENT_COUNT);
+    }
+
+    @VisibleForTesting
+    TransactionCollection(int segmentCount) {
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
         }
-        return newTailEntry;
+        segmentMask = segmentCount - 1;
+    }
+
+    TransactionEntry add(Transaction transaction) {
+        Segment segment = segments[(int) Thread.currentThread().getId() & segmentMask];
+        return segment.add(transaction);
     }
 
     @Override
     public Iterator<Transaction> iterator() {
-        synchronized (lock) {
-            expungeStaleEntries();
-        }
         return new TransactionIterator();
     }
 
-    // requires lock
-    private void expungeStaleEntries() {
-        Reference<? extends Transaction> ref = queue.poll();
-        if (ref == null) {
-            return;
+    private static int getSegmentCount() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        // round up to power of 2 (at least 2x the number of processors to reduce CAS contention)
+        int segmentCount = 1;
+        while (segmentCount < processors * 2) {
+            segmentCount <<= 1;
         }
-        // drain the queue, since going to loop over and clean up everything anyways
-        while (queue.poll() != null) {
+        return segmentCount;
+    }
+
+    private static class Segment {
+
+        private final AtomicReference</*@Nullable*/ TransactionEntry> head =
+                new AtomicReference</*@Nullable*/ TransactionEntry>();
+
+        private final AtomicInteger liveCount = new AtomicInteger();
+        private final AtomicInteger removedCount = new AtomicInteger();
+
+        // ensures only a single thread unlinks entries at a time, concurrent inserts only ever
+        // touch the head and so do not interfere with unlinking entries behind the head
+        private final AtomicBoolean sweeping = new AtomicBoolean();
+
+        private TransactionEntry add(Transaction transaction) {
+            TransactionEntry entry = new TransactionEntry(transaction, this);
+            while (true) {
+                TransactionEntry currHead = head.get();
+                entry.nextEntry = currHead;
+                if (head.compareAndSet(currHead, entry)) {
+                    break;
+                }
+            }
+            liveCount.incrementAndGet();
+            return entry;
+        }
+
+        private void onRemove() {
+            liveCount.decrementAndGet();
+            int removed = removedCount.incrementAndGet();
+            if (removed >= Math.max(MIN_SWEEP_THRESHOLD, liveCount.get())
+                    && sweeping.compareAndSet(false, true)) {
+                try {
+                    sweep();
+                } finally {
+                    sweeping.set(false);
+                }
+            }
         }
-        TransactionEntry currEntry = headEntry.nextEntry;
-        while (currEntry != null) {
-            if (currEntry.getTransaction() == null) {
-                currEntry.remove();
+
+        private void sweep() {
+            // the head entry is never unlinked here (since that would race with inserts), it will
+            // be unlinked by a later sweep once it is no longer the head
+            TransactionEntry prevEntry = head.get();
+            if (prevEntry == null) {
+                return;
+            }
+            int unlinkedCount = 0;
+            TransactionEntry currEntry = prevEntry.nextEntry;
+            while (currEntry != null) {
+                TransactionEntry nextEntry = currEntry.nextEntry;
+                if (currEntry.removed != 0) {
+                    // iterators positioned on currEntry can still follow its next pointer
+                    prevEntry.nextEntry = nextEntry;
+                    unlinkedCount++;
+                } else if (currEntry.transactionRef.get() == null
+                        && removedUpdater.compareAndSet(currEntry, 0, 1)) {
+                    // transaction was collected without ever being removed
+                    liveCount.decrementAndGet();
+                    prevEntry.nextEntry = nextEntry;
+                } else {
+                    prevEntry = currEntry;
+                }
+                currEntry = nextEntry;
             }
-            currEntry = currEntry.nextEntry;
+            removedCount.addAndGet(-unlinkedCount);
         }
     }
 
     private class TransactionIterator implements Iterator<Transaction> {
 
+        private int segmentIndex = -1;
         private @Nullable TransactionEntry nextEntry;
         private @Nullable Transaction nextTransaction;
 
         @SuppressWarnings("method.invocation.invalid")
         private TransactionIterator() {
-            nextEntry = headEntry;
             advance();
         }
 
@@ -107,61 +175,47 @@ class TransactionCollection implements Iterable<Transaction> {
         }
 
         private void advance() {
-            advanceOne();
-            while (nextTransaction == null && nextEntry != null) {
-                advanceOne();
+            nextTransaction = null;
+            while (nextTransaction == null) {
+                if (nextEntry == null) {
+                    if (++segmentIndex == segments.length) {
+                        return;
+                    }
+                    nextEntry = segments[segmentIndex].head.get();
+                } else {
+                    nextEntry = nextEntry.nextEntry;
+                }
+                if (nextEntry != null && nextEntry.removed == 0) {
+                    nextTransaction = nextEntry.transactionRef.get();
+                }
             }
         }
-
-        private void advanceOne() {
-            checkNotNull(nextEntry);
-            nextEntry = nextEntry.nextEntry;
-            nextTransaction = nextEntry == null ? null : nextEntry.getTransaction();
-        }
     }
 
-    class TransactionEntry {
+    static class TransactionEntry {
 
-        private final @Nullable WeakReference<Transaction> transactionRef; // only null for head
+        private final WeakReference<Transaction> transactionRef;
 
-        // prev is non-volatile since only accessed under lock
-        private @Nullable TransactionEntry prevEntry; // only null for head and removed
+        private final Segment segment;
 
-        // next is volatile since accessed by iterator outside of lock
+        // next is volatile since accessed by iterators and by the sweeping thread
         private volatile @Nullable TransactionEntry nextEntry;
 
-        private TransactionEntry(@Nullable Transaction transaction,
-                ReferenceQueue<Transaction> queue) {
-            if (transaction == null) {
-                transactionRef = null;
-            } else {
-                transactionRef = new WeakReference<Transaction>(transaction, queue);
-            }
-        }
+        // not private since accessed via field updater from outer class
+        volatile int removed;
 
-        void remove() {
-            synchronized (lock) {
-                if (prevEntry == null) {
-                    // already removed
-                    return;
-                }
-                TransactionEntry localPrevEntry = checkNotNull(prevEntry);
-                localPrevEntry.nextEntry = nextEntry;
-                if (nextEntry != null) {
-                    nextEntry.prevEntry = localPrevEntry;
-                }
-                if (this == tailEntry) {
-                    tailEntry = localPrevEntry;
-                }
-                prevEntry = null;
-            }
+        private TransactionEntry(Transaction transaction, Segment segment) {
+            transactionRef = new WeakReference<Transaction>(transaction);
+            this.segment = segment;
         }
 
-        private @Nullable Transaction getTransaction() {
-            if (transactionRef == null) {
-                return null;
+        void remove() {
+            if (removedUpdater.compareAndSet(this, 0, 1)) {
+                // the increment happens after the mark, so a concurrent sweep may briefly drive
+                // removedCount below the actual number of marked entries, which only delays the
+                // next sweep
+                segment.onRemove();
             }
-            return transactionRef.get();
         }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,18 +17,18 @@ package org.glowroot.agent.impl;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import com.google.common.base.Ticker;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.PendingTraceQueue.OfferResult;
+import org.glowroot.agent.impl.PendingTraceQueue.PendingTrace;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.Clock;
@@ -43,14 +43,17 @@ public class TransactionCollector {
     private static final Logger logger = LoggerFactory.getLogger(TransactionCollector.class);
 
     // back pressure on trace collection
-    private static final int PENDING_LIMIT = 100;
+    private static final int PENDING_LIMIT =
+            Integer.getInteger("glowroot.trace.pending.limit", 100);
+
+    private static final int BATCH_SIZE = 10;
 
     private final ExecutorService dedicatedExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    private final PendingTraceQueue pendingTraceQueue = new PendingTraceQueue(PENDING_LIMIT);
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
@@ -68,6 +71,17 @@ public class TransactionCollector {
                         .setDaemon(true)
                         .setNameFormat("Glowroot-Trace-Collector")
                         .build());
+        dedicatedExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storePendingTraces();
+                } catch (InterruptedException e) {
+                    // only happens on shutdown
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+        });
         configService.addConfigListener(new ConfigListener() {
             @Override
             public void onChange() {
@@ -98,53 +112,69 @@ public class TransactionCollector {
     }
 
     public Collection<Transaction> getPendingTransactions() {
-        return pendingTransactions;
+        return pendingTraceQueue.getPendingTransactions();
+    }
+
+    public PendingTraceQueue getPendingTraceQueue() {
+        return pendingTraceQueue;
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        // pending traces are still stored before the trace collector thread exits
+        pendingTraceQueue.close();
         dedicatedExecutor.shutdown();
         if (!dedicatedExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
     }
 
-    void onCompletedTransaction(final Transaction transaction) {
+    void onCompletedTransaction(Transaction transaction) {
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
-        final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        if (!transaction.isFullCapture()) {
+            // there is nothing to store beyond the aggregate, see TransactionServiceImpl
             return;
         }
-        // limit doesn't apply to transactions that were already (partially) stored to make sure
-        // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT);
+        boolean slow = shouldStoreSlow(transaction);
+        if (!slow && !shouldStoreError(transaction)) {
             return;
         }
-        pendingTransactions.add(transaction);
-
         // this need to be called inside the transaction thread
         transaction.onCompleteWillStoreTrace(captureTime);
 
-        // transaction is ended, so Executor Plugin won't tie this async work to the transaction
-        // (which is good)
-        dedicatedExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
+        // when the backlog is full, the lowest priority trace is the one that is not stored (see
+        // PendingTraceQueue)
+        OfferResult offerResult = pendingTraceQueue.offer(transaction, slow);
+        if (offerResult != OfferResult.ADDED) {
+            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
+                    + " traces already waiting to be stored", PENDING_LIMIT);
+        }
+    }
+
+    // transactions are ended, so Executor Plugin won't tie this async work to the transactions
+    // (which is good)
+    private void storePendingTraces() throws InterruptedException {
+        while (true) {
+            List<PendingTrace> batch = pendingTraceQueue.takeBatch(BATCH_SIZE);
+            if (batch.isEmpty()) {
+                // closed
+                return;
+            }
+            for (PendingTrace pendingTrace : batch) {
                 try {
-                    Trace trace = TraceCreator.createCompletedTrace(transaction, slow);
+                    Trace trace = TraceCreator.createCompletedTrace(pendingTrace.getTransaction(),
+                            pendingTrace.isSlow());
                     collector.collectTrace(trace);
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 } finally {
-                    pendingTransactions.remove(transaction);
+                    pendingTraceQueue.onStored(pendingTrace);
                 }
             }
-        });
+        }
     }
 
     // no need to throttle partial trace storage since throttling is handled upstream by using a
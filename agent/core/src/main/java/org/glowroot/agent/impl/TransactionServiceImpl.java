@@ -17,7 +17,10 @@ package org.glowroot.agent.impl;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
@@ -33,6 +36,20 @@ import org.glowroot.common.util.UsedByGeneratedBytecode;
 
 public class TransactionServiceImpl implements ConfigListener {
 
+    private static final Logger logger = LoggerFactory.getLogger(TransactionServiceImpl.class);
+
+    // fraction of transactions that get full capture (trace entries, queries, service calls, nested
+    // timers and thread stats), the rest only record their root timers, duration and error into the
+    // aggregates, and are never stored as traces (see AggregateCollector for how the aggregate
+    // detail is scaled to account for these)
+    //
+    // stack trace sampling (profiles) is not affected, since it applies to all transactions
+    //
+    // this is meant for very high throughput services where the per-transaction capture overhead
+    // is significant
+    private static final double FULL_CAPTURE_RATE =
+            getFullCaptureRate(System.getProperty("glowroot.transaction.fullCaptureRate"));
+
     private final TransactionRegistry transactionRegistry;
     private final TransactionCollector transactionCollector;
     private final ConfigService configService;
@@ -45,6 +62,16 @@ public class TransactionServiceImpl implements ConfigListener {
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
 
+    // per thread counter to avoid contention on a shared counter at transaction start, seeded with
+    // the thread id so that threads that only ever start one or a few transactions still get their
+    // share of full capture
+    private final ThreadLocal<long[]> fullCaptureCounter = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] {Thread.currentThread().getId()};
+        }
+    };
+
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
@@ -84,10 +111,11 @@ public class TransactionServiceImpl implements ConfigListener {
         // ensure visibility of recent configuration updates
         configService.readMemoryBarrier();
         long startTick = ticker.read();
+        boolean fullCapture = isFullCapture();
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
-                transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
-                maxAggregateServiceCallsPerType, threadAllocatedBytes,
+                transactionType, transactionName, messageSupplier, timerName,
+                captureThreadStats && fullCapture, fullCapture, maxTraceEntriesPerTransaction,
+                maxAggregateQueriesPerType, maxAggregateServiceCallsPerType, threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
         TransactionEntry transactionEntry = transactionRegistry.addTransaction(transaction);
@@ -118,6 +146,37 @@ public class TransactionServiceImpl implements ConfigListener {
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
     }
 
+    private boolean isFullCapture() {
+        if (FULL_CAPTURE_RATE >= 1) {
+            return true;
+        }
+        // spreads the fully captured transactions evenly, e.g. with a rate of 0.25 every 4th
+        // transaction (on a given thread) is fully captured
+        long[] counter = fullCaptureCounter.get();
+        long count = counter[0]++;
+        return (long) ((count + 1) * FULL_CAPTURE_RATE) != (long) (count * FULL_CAPTURE_RATE);
+    }
+
+    @VisibleForTesting
+    static double getFullCaptureRate(@Nullable String property) {
+        if (property == null) {
+            return 1;
+        }
+        double rate;
+        try {
+            rate = Double.parseDouble(property);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid glowroot.transaction.fullCaptureRate: {}", property);
+            return 1;
+        }
+        if (rate <= 0 || rate > 1) {
+            logger.warn("glowroot.transaction.fullCaptureRate must be greater than 0 and less than"
+                    + " or equal to 1: {}", property);
+            return 1;
+        }
+        return rate;
+    }
+
     private class TransactionCompletionCallback implements CompletionCallback {
 
         @Override
@@ -44,6 +44,7 @@ import org.glowroot.agent.impl.ConfigServiceImpl;
 import org.glowroot.agent.impl.GlowrootServiceImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl.ConfigServiceFactory;
+import org.glowroot.agent.impl.StackTraceSampler;
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
@@ -61,6 +62,7 @@ import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -80,6 +82,9 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    private static final boolean PERSISTENT_WEAVING_CACHE =
+            Boolean.getBoolean("glowroot.weaving.persistentCache");
+
     @OnlyUsedByTests
     public static final ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader> isolatedWeavingClassLoader =
             new ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader>();
@@ -127,9 +132,15 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = null;
+        if (PERSISTENT_WEAVING_CACHE) {
+            weavingCache = WeavingCache.create(baseDir, pluginCache.pluginJars(),
+                    adviceCache.getAdvisorsSupplier().get(), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                configService, weavingCache);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -195,7 +206,15 @@ public class AgentModule {
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        lazyPlatformMBeanServer.lazyRegisterMBean(gaugeCollector,
+                "org.glowroot:type=GaugeCollector");
+        StackTraceSampler stackTraceSampler = new StackTraceSampler(configService);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceSampler,
+                "org.glowroot:type=StackTraceSampler");
+        lazyPlatformMBeanServer.lazyRegisterMBean(transactionCollector.getPendingTraceQueue(),
+                "org.glowroot:type=PendingTraceQueue");
+        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService,
+                stackTraceSampler, random);
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -16,24 +16,35 @@
 package org.glowroot.agent.init;
 
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -58,7 +69,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class GaugeCollector extends ScheduledRunnable {
+class GaugeCollector extends ScheduledRunnable implements GaugeCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
@@ -81,6 +92,20 @@ class GaugeCollector extends ScheduledRunnable {
     // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
     private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
+    // the object names matching each gauge object name pattern are cached (instead of querying the
+    // mbean server every collection), and are re-queried after an mbean matching that pattern is
+    // registered or unregistered
+    //
+    // caching is only used once the registration notification listener has been added
+    private final Map<ObjectName, MatchingObjectNames> matchingObjectNamesCache =
+            Maps.newConcurrentMap();
+    private volatile @Nullable MBeanServer registrationNotificationMBeanServer;
+    private final NotificationListener registrationNotificationListener =
+            new RegistrationNotificationListener();
+
+    private volatile double lastCollectionMillis;
+    private volatile ImmutableMap<String, Double> lastCollectionMillisByGauge = ImmutableMap.of();
+
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer, Clock clock, Ticker ticker) {
         this.configService = configService;
@@ -112,6 +137,14 @@ class GaugeCollector extends ScheduledRunnable {
                 } catch (Exception e) {
                     logger.debug(e.getMessage(), e);
                 }
+                try {
+                    mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                            registrationNotificationListener, null, null);
+                    registrationNotificationMBeanServer = mbeanServer;
+                } catch (Exception e) {
+                    // object name pattern matches will not be cached
+                    logger.debug(e.getMessage(), e);
+                }
             }
         });
     }
@@ -123,9 +156,24 @@ class GaugeCollector extends ScheduledRunnable {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
             priorRawCounterValues = Maps.newHashMap();
         }
-        for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
+        long startTick = ticker.read();
+        List<GaugeConfig> gaugeConfigs = configService.getGaugeConfigs();
+        pruneMatchingObjectNamesCache(gaugeConfigs);
+        Map<String, Double> collectionMillisByGauge = Maps.newLinkedHashMap();
+        for (GaugeConfig gaugeConfig : gaugeConfigs) {
+            long gaugeStartTick = ticker.read();
             gaugeValues.addAll(collectGaugeValues(gaugeConfig));
+            double collectionMillis = (ticker.read() - gaugeStartTick) / 1000000.0;
+            Double priorCollectionMillis =
+                    collectionMillisByGauge.get(gaugeConfig.mbeanObjectName());
+            if (priorCollectionMillis != null) {
+                // same mbean object name configured more than once
+                collectionMillis += priorCollectionMillis;
+            }
+            collectionMillisByGauge.put(gaugeConfig.mbeanObjectName(), collectionMillis);
         }
+        lastCollectionMillis = (ticker.read() - startTick) / 1000000.0;
+        lastCollectionMillisByGauge = ImmutableMap.copyOf(collectionMillisByGauge);
         flushingExecutor.execute(new Runnable() {
             @Override
             public void run() {
@@ -143,7 +191,22 @@ class GaugeCollector extends ScheduledRunnable {
         scheduleWithFixedDelay(collectionExecutor, period, unit);
     }
 
-    void close() throws InterruptedException {
+    @Override
+    public double getLastCollectionMillis() {
+        return lastCollectionMillis;
+    }
+
+    @Override
+    public Map<String, Double> getLastCollectionMillisByGauge() {
+        return lastCollectionMillisByGauge;
+    }
+
+    void close() throws Exception {
+        MBeanServer mbeanServer = registrationNotificationMBeanServer;
+        if (mbeanServer != null) {
+            mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                    registrationNotificationListener);
+        }
         collectionExecutor.shutdown();
         if (!collectionExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -169,7 +232,7 @@ class GaugeCollector extends ScheduledRunnable {
         if (!objectName.isPattern()) {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = getMatchingObjectNames(objectName);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
@@ -183,10 +246,59 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    private Set<ObjectName> getMatchingObjectNames(ObjectName pattern)
+            throws InterruptedException {
+        if (registrationNotificationMBeanServer == null) {
+            // without registration notifications there is no way to know when the cached object
+            // names are stale
+            return lazyPlatformMBeanServer.queryNames(pattern, null);
+        }
+        MatchingObjectNames matchingObjectNames = matchingObjectNamesCache.get(pattern);
+        if (matchingObjectNames != null && !matchingObjectNames.stale) {
+            return matchingObjectNames.objectNames;
+        }
+        // the cache entry is added prior to querying, so that a matching registration that occurs
+        // during the query will mark it stale and cause it to be re-queried next time
+        matchingObjectNames = new MatchingObjectNames();
+        matchingObjectNamesCache.put(pattern, matchingObjectNames);
+        Set<ObjectName> objectNames = lazyPlatformMBeanServer.queryNames(pattern, null);
+        matchingObjectNames.objectNames = objectNames;
+        return objectNames;
+    }
+
+    // removes cached object names for patterns that are no longer used by any gauge config
+    private void pruneMatchingObjectNamesCache(List<GaugeConfig> gaugeConfigs) {
+        if (matchingObjectNamesCache.isEmpty()) {
+            return;
+        }
+        Set<ObjectName> patterns = Sets.newHashSet();
+        for (GaugeConfig gaugeConfig : gaugeConfigs) {
+            try {
+                patterns.add(ObjectName.getInstance(gaugeConfig.mbeanObjectName()));
+            } catch (MalformedObjectNameException e) {
+                // this is logged during collection
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        matchingObjectNamesCache.keySet().retainAll(patterns);
+    }
+
     @RequiresNonNull("priorRawCounterValues")
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
             List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
         long captureTime = clock.currentTimeMillis();
+        Map<String, /*@Nullable*/ Object> attributeValues;
+        try {
+            attributeValues = getAttributes(objectName, mbeanAttributes);
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            return ImmutableList.of();
+        } catch (Exception e) {
+            // attributes will be read one at a time below, which reports errors per attribute
+            logger.debug(e.getMessage(), e);
+            attributeValues = Collections.emptyMap();
+        }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
             String mbeanAttributeName = mbeanAttribute.name();
@@ -194,7 +306,7 @@ class GaugeCollector extends ScheduledRunnable {
             try {
                 if (mbeanAttributeName.contains(".")) {
                     String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
+                    attributeValue = getAttribute(objectName, path[0], attributeValues);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     if (compositeData == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
@@ -204,8 +316,7 @@ class GaugeCollector extends ScheduledRunnable {
                     }
                     attributeValue = compositeData.get(path[1]);
                 } else {
-                    attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                    attributeValue = getAttribute(objectName, mbeanAttributeName, attributeValues);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -278,6 +389,43 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    // reads all of the attributes with a single getAttributes() call, attributes that could not be
+    // read are omitted from the result (getAttributes() does not report why)
+    private Map<String, /*@Nullable*/ Object> getAttributes(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes) throws Exception {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            int index = mbeanAttributeName.indexOf('.');
+            if (index == -1) {
+                attributeNames.add(mbeanAttributeName);
+            } else {
+                attributeNames.add(mbeanAttributeName.substring(0, index));
+            }
+        }
+        AttributeList attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                attributeNames.toArray(new String[attributeNames.size()]));
+        if (attributeList == null) {
+            return Collections.emptyMap();
+        }
+        // not using ImmutableMap since attribute values can be null
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        for (Attribute attribute : attributeList.asList()) {
+            attributeValues.put(attribute.getName(), attribute.getValue());
+        }
+        return attributeValues;
+    }
+
+    // attributes that were not returned by getAttributes() are read individually so that the
+    // reason can be reported (e.g. AttributeNotFoundException)
+    private @Nullable Object getAttribute(ObjectName objectName, String attributeName,
+            Map<String, /*@Nullable*/ Object> attributeValues) throws Exception {
+        if (attributeValues.containsKey(attributeName)) {
+            return attributeValues.get(attributeName);
+        }
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -333,4 +481,29 @@ class GaugeCollector extends ScheduledRunnable {
         double value();
         long captureTick();
     }
+
+    private static class MatchingObjectNames {
+
+        // only accessed by the dedicated gauge collection thread
+        private Set<ObjectName> objectNames = ImmutableSet.of();
+
+        // set by the registration notification listener
+        private volatile boolean stale;
+    }
+
+    private class RegistrationNotificationListener implements NotificationListener {
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            if (!(notification instanceof MBeanServerNotification)) {
+                return;
+            }
+            ObjectName mbeanName = ((MBeanServerNotification) notification).getMBeanName();
+            for (Entry<ObjectName, MatchingObjectNames> entry : matchingObjectNamesCache
+                    .entrySet()) {
+                if (entry.getKey().apply(mbeanName)) {
+                    entry.getValue().stale = true;
+                }
+            }
+        }
+    }
 }
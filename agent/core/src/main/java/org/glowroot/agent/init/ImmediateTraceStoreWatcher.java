@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -70,7 +70,10 @@ class ImmediateTraceStoreWatcher extends ScheduledRunnable {
         for (Transaction transaction : transactionRegistry.getTransactions()) {
             // if the transaction is within PERIOD_MILLIS from hitting the partial trace store
             // threshold and the partial trace store hasn't already been scheduled then schedule it
-            if (Tickers.lessThanOrEqual(transaction.getStartTick(), immediatePartialStoreTick)
+            // (transactions without full capture are never stored as traces)
+            if (transaction.isFullCapture()
+                    && Tickers.lessThanOrEqual(transaction.getStartTick(),
+                            immediatePartialStoreTick)
                     && transaction.getImmedateTraceStoreRunnable() == null) {
                 // schedule partial trace storage
                 long initialDelayMillis =
@@ -24,10 +24,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.StackTraceSampler;
 import org.glowroot.agent.impl.ThreadContextImpl;
 import org.glowroot.agent.impl.Transaction;
 import org.glowroot.agent.impl.TransactionRegistry;
-import org.glowroot.agent.impl.UserProfileScheduler;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
@@ -39,15 +39,17 @@ class StackTraceCollector {
 
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
+    private final StackTraceSampler stackTraceSampler;
     private final Random random;
 
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     StackTraceCollector(TransactionRegistry transactionRegistry, final ConfigService configService,
-            Random random) {
+            StackTraceSampler stackTraceSampler, Random random) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
+        this.stackTraceSampler = stackTraceSampler;
         this.random = random;
 
         runnable = new InternalRunnable();
@@ -121,6 +123,7 @@ class StackTraceCollector {
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
+                stackTraceSampler.captureStackTraces(ImmutableList.<ThreadContextImpl>of());
                 return;
             }
             List<ThreadContextImpl> activeThreadContexts =
@@ -133,7 +136,7 @@ class StackTraceCollector {
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
-            UserProfileScheduler.captureStackTraces(activeThreadContexts, configService);
+            stackTraceSampler.captureStackTraces(activeThreadContexts);
         }
     }
 }
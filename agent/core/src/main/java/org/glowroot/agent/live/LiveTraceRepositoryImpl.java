@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -238,6 +238,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         return matchesKind(transaction, traceKind)
                 && matchesTransactionType(transaction, transactionType)
                 && matchesTransactionName(transaction, transactionName)
+                && filter.matchesDuration(transaction.getDurationNanos())
                 && filter.matchesHeadline(transaction.getHeadline())
                 && filter.matchesError(errorMessage == null ? "" : errorMessage.message())
                 && filter.matchesUser(transaction.getUser())
@@ -16,26 +16,21 @@
 package org.glowroot.agent.model;
 
 import java.lang.management.ThreadInfo;
-import java.util.Arrays;
-import java.util.List;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.ProfileTree;
 
 public class Profile {
 
     private final Object lock = new Object();
+    // frames are interned in a dictionary shared across all profiles and the tree is stored in
+    // primitive arrays, so no need to buffer unmerged stack traces first
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
-    @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
-    @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private final ProfileTree profileTree = new ProfileTree();
     @GuardedBy("lock")
     private long sampleCount;
 
@@ -44,23 +39,13 @@ public class Profile {
 
     public void mergeInto(MutableProfile profile) {
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
-            }
+            profile.merge(profileTree);
         }
     }
 
     public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
-            }
-            return profile.toProto();
+            return profileTree.toProto();
         }
     }
 
@@ -78,30 +63,8 @@ public class Profile {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
-                }
-            } else {
-                profile.merge(stackTrace, threadState);
-            }
+            profileTree.add(threadInfo.getStackTrace(), threadInfo.getThreadState());
             sampleCount++;
         }
     }
-
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
-        }
-    }
 }
@@ -100,7 +100,10 @@ public class QueryCollector {
                 hasTotalRows, queriesForType);
     }
 
-    public void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
+    // scale is used to account for transactions that did not capture queries, see
+    // AggregateCollector
+    public void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector,
+            double scale) {
         for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
             for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
                 String fullQueryText = entry.getKey();
@@ -117,7 +120,20 @@ public class QueryCollector {
                 }
                 MutableQuery query = entry.getValue();
                 collector.mergeQuery(outerEntry.getKey(), truncatedQueryText, fullQueryTextSha1,
-                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.getTotalDurationNanos() * scale,
+                        Math.round(query.getExecutionCount() * scale), query.hasTotalRows(),
+                        Math.round(query.getTotalRows() * scale));
+            }
+        }
+    }
+
+    public void mergeInto(QueryCollector collector) {
+        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
+            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
+                MutableQuery query = entry.getValue();
+                // aggregate level total duration is a sum of long values so ok to convert back
+                collector.mergeQuery(outerEntry.getKey(), entry.getKey(),
+                        (long) query.getTotalDurationNanos(), query.getExecutionCount(),
                         query.hasTotalRows(), query.getTotalRows());
             }
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2016 the original author or authors.
+ * Copyright 2012-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,13 +20,12 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -70,21 +69,29 @@ public class AnalyzedWorld {
     // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
     // while their associated class loaders are still being used
     //
-    // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
-    // additional classes that must then be pre-initialized since this is called from inside
-    // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    // this is looked up for every class that is loaded (and for every type that it references), so
+    // it needs to be concurrent in order to not serialize parallel class loading
+    private final ConcurrentWeakKeyMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world =
+            new ConcurrentWeakKeyMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
-    // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
-    // the weakness on the Optional instance which is not strongly referenced from anywhere and
-    // therefore the keys will most likely be cleared while their class loaders are still being used
+    // ConcurrentWeakKeyMap doesn't accept null keys, and using an Optional<ClassLoader> for the key
+    // makes the weakness on the Optional instance which is not strongly referenced from anywhere
+    // and therefore the keys will most likely be cleared while their class loaders are still being
+    // used
     //
     // intentionally avoiding Maps.newConcurrentMap() for the same reason as above
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    // these only count lookups of super types and other referenced types (not the classes being
+    // woven), a miss means the class bytes had to be read and parsed
+    //
+    // only counted when Weaver.COUNTERS_ENABLED, to avoid contended atomic increments on every
+    // class load
+    private final AtomicLong analyzedClassCacheHitCount = new AtomicLong();
+    private final AtomicLong analyzedClassCacheMissCount = new AtomicLong();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -117,9 +124,7 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
-        }
+        return ImmutableList.copyOf(world.getKeys());
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
@@ -143,6 +148,14 @@ public class AnalyzedWorld {
         return getOrCreateAnalyzedClass(className, loader);
     }
 
+    long getAnalyzedClassCacheHitCount() {
+        return analyzedClassCacheHitCount.get();
+    }
+
+    long getAnalyzedClassCacheMissCount() {
+        return analyzedClassCacheMissCount.get();
+    }
+
     List<Advice> mergeInstrumentationAnnotations(List<Advice> advisors, byte[] classBytes,
             @Nullable ClassLoader loader, String className) {
         // TODO after removing deprecated @Instrument, change marker to
@@ -221,6 +234,9 @@ public class AnalyzedWorld {
                         getAnalyzedClasses(loader);
                 analyzedClass = currLoaderAnalyzedClasses.get(className);
                 if (analyzedClass != null) {
+                    if (Weaver.COUNTERS_ENABLED) {
+                        analyzedClassCacheHitCount.incrementAndGet();
+                    }
                     analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
                     // remove it from the "incorrect" class loader
                     currLoaderAnalyzedClasses.remove(className);
@@ -230,6 +246,8 @@ public class AnalyzedWorld {
             }
             analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
             analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+        } else if (Weaver.COUNTERS_ENABLED) {
+            analyzedClassCacheHitCount.incrementAndGet();
         }
         return analyzedClass;
     }
@@ -306,10 +324,16 @@ public class AnalyzedWorld {
                 AnalyzedClass parentLoaderAnalyzedClass =
                         tryToReuseFromParentLoader(className, loader, path, url);
                 if (parentLoaderAnalyzedClass != null) {
+                    if (Weaver.COUNTERS_ENABLED) {
+                        analyzedClassCacheHitCount.incrementAndGet();
+                    }
                     return parentLoaderAnalyzedClass;
                 }
             }
         }
+        if (Weaver.COUNTERS_ENABLED) {
+            analyzedClassCacheMissCount.incrementAndGet();
+        }
         if (url == null) {
             // what follows is just a best attempt in the sort-of-rare case when a custom class
             // loader does not expose .class file contents via getResource(), e.g.
@@ -401,22 +425,20 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
+            ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            if (map == null) {
+                map = new ConcurrentHashMap<String, AnalyzedClass>();
+                ConcurrentMap<String, AnalyzedClass> existingMap = world.putIfAbsent(loader, map);
+                if (existingMap != null) {
+                    map = existingMap;
                 }
-                return map;
             }
+            return map;
         }
     }
 
     private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
-        }
+        return ImmutableList.copyOf(world.getValues());
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
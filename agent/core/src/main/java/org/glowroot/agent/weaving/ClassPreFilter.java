@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.objectweb.asm.ClassReader;
+
+// combined index over the class name patterns of all advice, shims and mixins, used to reject
+// classes that cannot match any of them based on their own class name (and class annotations),
+// without visiting the class with ASM
+//
+// a class that is rejected here still needs weaving if anything in its super type hierarchy
+// has advice, shims or mixins, which is checked separately (see Weaver)
+class ClassPreFilter {
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private final List<Advice> advisors;
+
+    // true if any advice, shim or mixin can match any class name, in which case nothing can be
+    // rejected
+    private final boolean matchAll;
+
+    private final ImmutableSet<String> exactNames;
+
+    // sorted, with no element being a prefix of another element, so that binary search finds the
+    // only possible matching prefix
+    private final String[] prefixes;
+
+    // full regex patterns can't be indexed so are matched directly
+    private final ImmutableList<Pattern> patterns;
+
+    // advice that is only constrained by class annotation is matched by scanning the constant pool
+    // for the annotation descriptor(s), each marker is either an exact descriptor (ending with
+    // ';') or a descriptor prefix
+    private final ImmutableList<byte[]> annotationMarkers;
+
+    private ClassPreFilter(List<Advice> advisors, boolean matchAll, Set<String> exactNames,
+            List<String> prefixes, List<Pattern> patterns, List<byte[]> annotationMarkers) {
+        this.advisors = advisors;
+        this.matchAll = matchAll;
+        this.exactNames = ImmutableSet.copyOf(exactNames);
+        this.prefixes = removeRedundantPrefixes(prefixes);
+        this.patterns = ImmutableList.copyOf(patterns);
+        this.annotationMarkers = ImmutableList.copyOf(annotationMarkers);
+    }
+
+    static ClassPreFilter create(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        Builder builder = new Builder();
+        for (Advice advice : advisors) {
+            String methodDeclaringClassName = advice.pointcutMethodDeclaringClassName();
+            String classAnnotation = advice.pointcut().classAnnotation();
+            if (methodDeclaringClassName.isEmpty() && !classAnnotation.isEmpty()) {
+                builder.addAnnotation(classAnnotation);
+            } else {
+                builder.addClassName(methodDeclaringClassName);
+            }
+        }
+        for (ShimType shimType : shimTypes) {
+            Pattern targetPattern = shimType.targetPattern();
+            if (targetPattern != null && shimType.target().isEmpty()) {
+                builder.patterns.add(targetPattern);
+            } else {
+                builder.addClassName(shimType.target());
+            }
+        }
+        for (MixinType mixinType : mixinTypes) {
+            // currently only exact matching is supported for mixins
+            builder.exactNames.addAll(mixinType.targets());
+        }
+        return new ClassPreFilter(advisors, builder.matchAll, builder.exactNames,
+                builder.prefixes, builder.patterns, builder.annotationMarkers);
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // className is the dotted class name, and classReader is only used to scan the constant pool
+    boolean isMatchPossible(String className, ClassReader classReader) {
+        if (matchAll || exactNames.contains(className)) {
+            return true;
+        }
+        if (prefixes.length > 0) {
+            int index = Arrays.binarySearch(prefixes, className);
+            if (index >= 0) {
+                return true;
+            }
+            // binary search returns (-(insertion point) - 1), and the only prefix that can match
+            // is the one just before the insertion point
+            int prefixIndex = -index - 2;
+            if (prefixIndex >= 0 && className.startsWith(prefixes[prefixIndex])) {
+                return true;
+            }
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return !annotationMarkers.isEmpty() && hasAnnotationMarker(classReader);
+    }
+
+    private boolean hasAnnotationMarker(ClassReader classReader) {
+        byte[] bytes = classReader.b;
+        int itemCount = classReader.getItemCount();
+        for (int i = 1; i < itemCount; i++) {
+            int offset = classReader.getItem(i);
+            // the item offset is zero for the unusable slot following long and double constants
+            if (offset == 0 || bytes[offset - 1] != CONSTANT_UTF8) {
+                continue;
+            }
+            int length = classReader.readUnsignedShort(offset);
+            for (byte[] marker : annotationMarkers) {
+                if (startsWith(bytes, offset + 2, length, marker)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int length, byte[] marker) {
+        if (length < marker.length) {
+            return false;
+        }
+        for (int i = 0; i < marker.length; i++) {
+            if (bytes[offset + i] != marker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] removeRedundantPrefixes(List<String> prefixes) {
+        String[] sortedPrefixes = prefixes.toArray(new String[prefixes.size()]);
+        Arrays.sort(sortedPrefixes);
+        List<String> nonRedundantPrefixes = Lists.newArrayList();
+        String lastPrefix = null;
+        for (String prefix : sortedPrefixes) {
+            // after sorting, any prefix that is covered by a shorter prefix immediately follows
+            // that shorter prefix (or another prefix that is covered by it)
+            if (lastPrefix == null || !prefix.startsWith(lastPrefix)) {
+                nonRedundantPrefixes.add(prefix);
+                lastPrefix = prefix;
+            }
+        }
+        return nonRedundantPrefixes.toArray(new String[nonRedundantPrefixes.size()]);
+    }
+
+    private static class Builder {
+
+        private boolean matchAll;
+        private final Set<String> exactNames = Sets.newHashSet();
+        private final List<String> prefixes = Lists.newArrayList();
+        private final List<Pattern> patterns = Lists.newArrayList();
+        private final List<byte[]> annotationMarkers = Lists.newArrayList();
+
+        // same pattern syntax as AdviceBuilder.buildPattern()
+        private void addClassName(String maybePattern) {
+            if (maybePattern.isEmpty()) {
+                matchAll = true;
+                return;
+            }
+            if (isFullRegex(maybePattern)) {
+                patterns.add(Pattern.compile(maybePattern.substring(1, maybePattern.length() - 1)));
+                return;
+            }
+            for (String part : maybePattern.split("\\|")) {
+                int index = part.indexOf('*');
+                if (index == -1) {
+                    exactNames.add(part);
+                } else if (index == 0) {
+                    matchAll = true;
+                } else {
+                    prefixes.add(part.substring(0, index));
+                }
+            }
+        }
+
+        private void addAnnotation(String maybePattern) {
+            if (isFullRegex(maybePattern)) {
+                matchAll = true;
+                return;
+            }
+            for (String part : maybePattern.split("\\|")) {
+                int index = part.indexOf('*');
+                String marker;
+                if (index == -1) {
+                    marker = "L" + ClassNames.toInternalName(part) + ";";
+                } else {
+                    marker = "L" + ClassNames.toInternalName(part.substring(0, index));
+                }
+                annotationMarkers.add(marker.getBytes(Charsets.UTF_8));
+            }
+        }
+
+        private static boolean isFullRegex(String maybePattern) {
+            return maybePattern.startsWith("/") && maybePattern.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+// concurrent map with weak keys that are compared by identity (similar to guava's
+// MapMaker().weakKeys(), but without the many additional classes that would need to be
+// pre-initialized since this is called from inside ClassFileTransformer.transform(), see
+// PreInitializeWeavingClasses)
+//
+// lookups do not create any weak references, and entries whose keys have been collected are
+// removed on the next put
+class ConcurrentWeakKeyMap<K, V> {
+
+    // keys are either WeakKey (stored) or LookupKey (transient, only used for lookups)
+    private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+    @Nullable
+    V get(K key) {
+        return map.get(new LookupKey(key));
+    }
+
+    @Nullable
+    V putIfAbsent(K key, V value) {
+        expungeStaleEntries();
+        return map.putIfAbsent(new WeakKey<K>(key, queue), value);
+    }
+
+    List<K> getKeys() {
+        expungeStaleEntries();
+        List<K> keys = Lists.newArrayList();
+        for (Object weakKey : map.keySet()) {
+            @SuppressWarnings("unchecked")
+            K key = ((WeakKey<K>) weakKey).get();
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    Collection<V> getValues() {
+        expungeStaleEntries();
+        return map.values();
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends K> ref;
+        while ((ref = queue.poll()) != null) {
+            // cleared weak keys are still equal to themselves
+            map.remove(ref);
+        }
+    }
+
+    private static class WeakKey<K> extends WeakReference<K> {
+
+        private final int hashCode;
+
+        WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            hashCode = System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            Object key = get();
+            if (key == null) {
+                return false;
+            }
+            if (obj instanceof LookupKey) {
+                return key == ((LookupKey) obj).key;
+            }
+            if (obj instanceof WeakKey) {
+                return key == ((WeakKey<?>) obj).get();
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class LookupKey {
+
+        private final Object key;
+
+        LookupKey(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj instanceof WeakKey) {
+                return key == ((WeakKey<?>) obj).get();
+            }
+            if (obj instanceof LookupKey) {
+                return key == ((LookupKey) obj).key;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+    }
+}
@@ -19,8 +19,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.Modifier;
 import java.security.CodeSource;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -28,6 +31,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -60,24 +64,36 @@ public class Weaver {
     // useful for debugging java.lang.VerifyErrors
     private static final boolean VERIFY_WEAVING = Boolean.getBoolean("glowroot.weaving.verify");
 
+    // useful for benchmarking, see WeavingBenchmark
+    static final boolean COUNTERS_ENABLED = Boolean.getBoolean("glowroot.weaving.counters");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
+    private final @Nullable WeavingCache weavingCache;
     private final TimerName timerName;
 
+    // only counted when COUNTERS_ENABLED
+    private final AtomicLong preFilterRejectedClassCount = new AtomicLong();
+    private final AtomicLong analyzedClassCount = new AtomicLong();
+
     private volatile boolean enabled;
 
+    // rebuilt whenever the advisors change (e.g. on reweaving)
+    private volatile @Nullable ClassPreFilter classPreFilter;
+
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
         this.transactionRegistry = transactionRegistry;
+        this.weavingCache = weavingCache;
         configService.addConfigListener(new ConfigListener() {
             @Override
             public void onChange() {
@@ -87,6 +103,16 @@ public class Weaver {
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
     }
 
+    // number of classes that were found to not need weaving without visiting them with ASM
+    public long getPreFilterRejectedClassCount() {
+        return preFilterRejectedClassCount.get();
+    }
+
+    // number of classes that were visited with ASM and analyzed against each advice
+    public long getAnalyzedClassCount() {
+        return analyzedClassCount.get();
+    }
+
     byte /*@Nullable*/[] weave(byte[] classBytes, String className, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
         TimerImpl weavingTimer = startWeavingTimer();
@@ -121,12 +147,42 @@ public class Weaver {
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> unmergedAdvisors = this.advisors.get();
+        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(unmergedAdvisors,
                 classBytes, loader, className);
+        ClassReader classReader = new ClassReader(classBytes);
+        boolean felixHack = className.equals("org/apache/felix/framework/BundleWiringImpl");
+        // the pre-filter is only built for the plugin and instrumentation config advisors, not
+        // for advisors merged in from @Instrumentation annotations
+        if (advisors == unmergedAdvisors && !felixHack) {
+            AnalyzedClass analyzedClass = tryPreFilter(classReader, advisors, loader, codeSource);
+            if (analyzedClass != null) {
+                if (COUNTERS_ENABLED) {
+                    preFilterRejectedClassCount.getAndIncrement();
+                }
+                analyzedWorld.add(analyzedClass, loader);
+                return null;
+            }
+        }
+        WeavingCache.Key weavingCacheKey = null;
+        // classes with @Instrumentation annotations are not cached since their advice is defined
+        // in the class loader as a side effect of weaving
+        if (weavingCache != null && advisors == unmergedAdvisors && !felixHack) {
+            weavingCacheKey = weavingCache.getKey(classBytes,
+                    getSuperAnalyzedClasses(classReader, loader, codeSource), loader == null);
+            WeavingCache.CachedClass cachedClass = weavingCache.get(weavingCacheKey, advisors);
+            if (cachedClass != null) {
+                analyzedWorld.add(cachedClass.getAnalyzedClass(), loader);
+                return cachedClass.getWovenBytes();
+            }
+        }
+        if (COUNTERS_ENABLED) {
+            analyzedClassCount.getAndIncrement();
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        classReader.accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         byte[] maybeFelixBytes = null;
-        if (className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+        if (felixHack) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                     loader, codeSource, className);
             ClassVisitor cv = new FelixOsgiHackClassVisitor(cw);
@@ -138,11 +194,19 @@ public class Weaver {
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes);
         if (classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (weavingCacheKey != null) {
+                checkNotNull(weavingCache).put(weavingCacheKey, advisors,
+                        classAnalyzer.getAnalyzedClass(), null);
+            }
             return maybeFelixBytes;
         }
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (weavingCacheKey != null) {
+                checkNotNull(weavingCache).put(weavingCacheKey, advisors,
+                        classAnalyzer.getAnalyzedClass(), null);
+            }
             return maybeFelixBytes;
         }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
@@ -182,9 +246,83 @@ public class Weaver {
         if (VERIFY_WEAVING) {
             verify(transformedBytes, loader, classBytes, className);
         }
+        if (weavingCacheKey != null && !cv.hasMetaHolder()) {
+            // classes with meta holders are not cached since the meta holder class is defined in
+            // the class loader as a side effect of weaving
+            checkNotNull(weavingCache).put(weavingCacheKey, advisors,
+                    classAnalyzer.getAnalyzedClass(), transformedBytes);
+        }
         return transformedBytes;
     }
 
+    // same super type resolution as ClassAnalyzer, the super types are normally already in the
+    // analyzed world since they are loaded before their sub types
+    private List<AnalyzedClass> getSuperAnalyzedClasses(ClassReader classReader,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        if (Modifier.isInterface(classReader.getAccess())) {
+            return ImmutableList.of();
+        }
+        String className = ClassNames.fromInternalName(classReader.getClassName());
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        superAnalyzedClasses.addAll(analyzedWorld.getAnalyzedHierarchy(
+                ClassNames.fromInternalName(classReader.getSuperName()), loader, parseContext));
+        for (String interfaceName : classReader.getInterfaces()) {
+            superAnalyzedClasses.addAll(analyzedWorld.getAnalyzedHierarchy(
+                    ClassNames.fromInternalName(interfaceName), loader, parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
+    // returns the (method-less) analyzed class if neither the class itself nor anything in its
+    // super type hierarchy can match any advice, shim or mixin, which is the same analyzed class
+    // that ClassAnalyzer would produce when short circuiting before analyzing methods
+    private @Nullable AnalyzedClass tryPreFilter(ClassReader classReader, List<Advice> advisors,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        ClassPreFilter classPreFilter = this.classPreFilter;
+        if (classPreFilter == null || classPreFilter.advisors() != advisors) {
+            classPreFilter = ClassPreFilter.create(advisors, shimTypes, mixinTypes);
+            this.classPreFilter = classPreFilter;
+        }
+        String className = ClassNames.fromInternalName(classReader.getClassName());
+        if (classPreFilter.isMatchPossible(className, classReader)) {
+            return null;
+        }
+        int access = classReader.getAccess();
+        String superClassName = ClassNames.fromInternalName(classReader.getSuperName());
+        ImmutableList<String> interfaceNames =
+                ClassNames.fromInternalNames(Arrays.asList(classReader.getInterfaces()));
+        if (!Modifier.isInterface(access)) {
+            ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+            if (hasWeavingInHierarchy(
+                    analyzedWorld.getAnalyzedHierarchy(superClassName, loader, parseContext))) {
+                return null;
+            }
+            for (String interfaceName : interfaceNames) {
+                if (hasWeavingInHierarchy(
+                        analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext))) {
+                    return null;
+                }
+            }
+        }
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(access)
+                .name(className)
+                .superName(superClassName)
+                .addAllInterfaceNames(interfaceNames)
+                .build();
+    }
+
+    private static boolean hasWeavingInHierarchy(List<AnalyzedClass> analyzedHierarchy) {
+        for (AnalyzedClass analyzedClass : analyzedHierarchy) {
+            if (!analyzedClass.analyzedMethods().isEmpty() || !analyzedClass.shimTypes().isEmpty()
+                    || !analyzedClass.mixinTypes().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// optional persistent cache of weaving results, so that subsequent JVM starts (or other JVMs
+// sharing identical deployment artifacts) can skip ASM analysis of unchanged classes
+//
+// entries are keyed by the SHA-1 of the class bytes together with its resolved super type
+// hierarchy (names, and the advice, shim and mixin types of each super type), since the weaving
+// result also depends on the hierarchy that the class loader resolves, and the cache file itself is
+// named by a fingerprint of the glowroot jar, the plugin jars and all advice, shim and mixin types,
+// so any change to instrumentation config or to plugins starts a new cache file (and old cache
+// files are deleted)
+//
+// only an index of file offsets is kept in memory (the heap belongs to the monitored application),
+// and the entry itself is read back from the cache file on a hit
+//
+// only weaving results that have no side effects are cached, i.e. classes that need a meta holder
+// class and classes with @Instrumentation annotations are always woven from scratch
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final long MAX_FILE_SIZE_BYTES =
+            Long.getLong("glowroot.weaving.persistentCache.maxSizeMb", 100) * 1024 * 1024;
+
+    private static final int NONE = -1;
+
+    private final File file;
+
+    private final List<Advice> advisors;
+    private final ImmutableList<Advice> sortedAdvisors;
+    private final ImmutableList<ShimType> sortedShimTypes;
+    private final ImmutableList<MixinType> sortedMixinTypes;
+    private final Map<Advice, Integer> adviceIndexes;
+    private final Map<ShimType, Integer> shimTypeIndexes;
+    private final Map<MixinType, Integer> mixinTypeIndexes;
+
+    private final MessageDigest messageDigestPrototype;
+
+    // file offset of each entry (pointing to the entry length that precedes the entry)
+    // intentionally avoiding Maps.newConcurrentMap() for the same reason as in AnalyzedWorld
+    private final ConcurrentMap<Key, Long> entryOffsets = new ConcurrentHashMap<Key, Long>();
+
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private @Nullable DataOutputStream out;
+    @GuardedBy("lock")
+    private long fileSize;
+
+    private final Object readLock = new Object();
+    @GuardedBy("readLock")
+    private @Nullable RandomAccessFile in;
+
+    private WeavingCache(File file, List<Advice> advisors, List<Advice> sortedAdvisors,
+            List<ShimType> sortedShimTypes, List<MixinType> sortedMixinTypes,
+            MessageDigest messageDigestPrototype) {
+        this.file = file;
+        this.advisors = advisors;
+        this.sortedAdvisors = ImmutableList.copyOf(sortedAdvisors);
+        this.sortedShimTypes = ImmutableList.copyOf(sortedShimTypes);
+        this.sortedMixinTypes = ImmutableList.copyOf(sortedMixinTypes);
+        adviceIndexes = indexes(sortedAdvisors);
+        shimTypeIndexes = indexes(sortedShimTypes);
+        mixinTypeIndexes = indexes(sortedMixinTypes);
+        this.messageDigestPrototype = messageDigestPrototype;
+    }
+
+    public static @Nullable WeavingCache create(File baseDir, List<File> pluginJars,
+            List<Advice> advisors, List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        try {
+            return createInternal(baseDir, pluginJars, advisors, shimTypes, mixinTypes);
+        } catch (Exception e) {
+            logger.error("unable to create persistent weaving cache: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // superAnalyzedClasses is the class's super type hierarchy as resolved by its class loader (see
+    // ClassAnalyzer)
+    Key getKey(byte[] classBytes, List<AnalyzedClass> superAnalyzedClasses,
+            boolean bootstrapLoader) {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = (MessageDigest) messageDigestPrototype.clone();
+        } catch (CloneNotSupportedException e) {
+            // checked in createInternal()
+            throw new IllegalStateException(e);
+        }
+        messageDigest.update(classBytes);
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            update(messageDigest, superAnalyzedClass.name());
+            for (AnalyzedMethod analyzedMethod : superAnalyzedClass.analyzedMethods()) {
+                if (analyzedMethod.advisors().isEmpty()) {
+                    continue;
+                }
+                update(messageDigest, analyzedMethod.name());
+                for (String parameterType : analyzedMethod.parameterTypes()) {
+                    update(messageDigest, parameterType);
+                }
+                updateIndexed(messageDigest, analyzedMethod.advisors(), adviceIndexes);
+            }
+            updateIndexed(messageDigest, superAnalyzedClass.shimTypes(), shimTypeIndexes);
+            updateIndexed(messageDigest, superAnalyzedClass.mixinTypes(), mixinTypeIndexes);
+        }
+        return new Key(messageDigest.digest(), bootstrapLoader);
+    }
+
+    // advisors is passed in to check that the advice has not changed since the cache was created
+    // (e.g. instrumentation config was changed and classes are being re-woven)
+    @Nullable CachedClass get(Key key, List<Advice> advisors) {
+        if (advisors != this.advisors) {
+            return null;
+        }
+        Long entryOffset = entryOffsets.get(key);
+        if (entryOffset == null) {
+            return null;
+        }
+        try {
+            byte[] entry;
+            synchronized (readLock) {
+                if (in == null) {
+                    return null;
+                }
+                in.seek(entryOffset);
+                entry = new byte[in.readInt()];
+                in.readFully(entry);
+            }
+            return readEntry(entry);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    void put(Key key, List<Advice> advisors, AnalyzedClass analyzedClass,
+            byte /*@Nullable*/ [] wovenBytes) {
+        if (advisors != this.advisors || entryOffsets.containsKey(key)) {
+            return;
+        }
+        byte[] entry;
+        try {
+            entry = writeEntry(analyzedClass, wovenBytes);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return;
+        }
+        synchronized (lock) {
+            if (out == null || entryOffsets.containsKey(key)) {
+                return;
+            }
+            if (fileSize + entry.length > MAX_FILE_SIZE_BYTES) {
+                logger.warn("persistent weaving cache has reached its maximum size, new entries"
+                        + " will no longer be stored: {}", file.getAbsolutePath());
+                closeQuietly();
+                return;
+            }
+            try {
+                out.write(key.digest);
+                out.writeBoolean(key.bootstrapLoader);
+                out.writeInt(entry.length);
+                out.write(entry);
+                // flushed before being added to the index so that it can be read back
+                out.flush();
+                entryOffsets.put(key, fileSize + key.digest.length + 1);
+                fileSize += key.digest.length + 5 + entry.length;
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                closeQuietly();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+        synchronized (readLock) {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    // only stops writing new entries, existing entries can still be read
+    @GuardedBy("lock")
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        out = null;
+    }
+
+    private CachedClass readEntry(byte[] entry) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        AnalyzedClass analyzedClass = readAnalyzedClass(in);
+        int wovenLength = in.readInt();
+        if (wovenLength == NONE) {
+            return new CachedClass(analyzedClass, null);
+        }
+        byte[] wovenBytes = new byte[wovenLength];
+        in.readFully(wovenBytes);
+        return new CachedClass(analyzedClass, wovenBytes);
+    }
+
+    private byte[] writeEntry(AnalyzedClass analyzedClass, byte /*@Nullable*/ [] wovenBytes)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        writeAnalyzedClass(analyzedClass, out);
+        if (wovenBytes == null) {
+            out.writeInt(NONE);
+        } else {
+            out.writeInt(wovenBytes.length);
+            out.write(wovenBytes);
+        }
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private AnalyzedClass readAnalyzedClass(DataInputStream in) throws IOException {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in));
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            builder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in))
+                    .addAllAdvisors(readIndexed(in, sortedAdvisors))
+                    .addAllDeclaredOnlyAdvisors(readIndexed(in, sortedAdvisors))
+                    .build());
+        }
+        return builder.addAllShimTypes(readIndexed(in, sortedShimTypes))
+                .addAllMixinTypes(readIndexed(in, sortedMixinTypes))
+                .build();
+    }
+
+    private void writeAnalyzedClass(AnalyzedClass analyzedClass, DataOutputStream out)
+            throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(analyzedClass.superName(), out);
+        writeStrings(analyzedClass.interfaceNames(), out);
+        List<AnalyzedMethod> analyzedMethods = analyzedClass.analyzedMethods();
+        out.writeInt(analyzedMethods.size());
+        for (AnalyzedMethod analyzedMethod : analyzedMethods) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(analyzedMethod.parameterTypes(), out);
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(analyzedMethod.signature(), out);
+            writeStrings(analyzedMethod.exceptions(), out);
+            writeIndexed(analyzedMethod.advisors(), adviceIndexes, out);
+            writeIndexed(analyzedMethod.declaredOnlyAdvisors(), adviceIndexes, out);
+        }
+        writeIndexed(analyzedClass.shimTypes(), shimTypeIndexes, out);
+        writeIndexed(analyzedClass.mixinTypes(), mixinTypeIndexes, out);
+    }
+
+    private static @Nullable WeavingCache createInternal(File baseDir, List<File> pluginJars,
+            List<Advice> advisors, List<ShimType> shimTypes, List<MixinType> mixinTypes)
+            throws Exception {
+        MessageDigest messageDigestPrototype = MessageDigest.getInstance("SHA-1");
+        // fail fast if the digest cannot be cloned (it can in all known JVMs)
+        messageDigestPrototype.clone();
+        // sorting by string representation since the order of plugin advisors is not stable
+        // across JVM starts, and the sorted order is also used to refer to advice from the cache
+        // file
+        List<Advice> sortedAdvisors = sortByToString(advisors);
+        List<ShimType> sortedShimTypes = sortByToString(shimTypes);
+        List<MixinType> sortedMixinTypes = sortByToString(mixinTypes);
+        String fingerprint = getFingerprint(pluginJars, sortedAdvisors, sortedShimTypes,
+                sortedMixinTypes, (MessageDigest) messageDigestPrototype.clone());
+        File cacheDir = new File(baseDir, "weaving-cache");
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create directory: " + cacheDir.getAbsolutePath());
+        }
+        File file = new File(cacheDir, fingerprint + ".cache");
+        deleteOtherCacheFiles(cacheDir, file);
+        WeavingCache weavingCache = new WeavingCache(file, advisors, sortedAdvisors,
+                sortedShimTypes, sortedMixinTypes, messageDigestPrototype);
+        weavingCache.load();
+        return weavingCache;
+    }
+
+    private void load() throws IOException {
+        long validLength = 0;
+        if (file.exists()) {
+            validLength = readEntries();
+            if (validLength < file.length()) {
+                // partially written entry, e.g. from JVM being killed in the middle of a write
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        synchronized (lock) {
+            FileOutputStream fileOut = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            if (validLength == 0) {
+                out.writeInt(FORMAT_VERSION);
+                out.flush();
+                validLength = 4;
+            }
+            fileSize = validLength;
+        }
+        synchronized (readLock) {
+            in = new RandomAccessFile(file, "r");
+        }
+        logger.debug("loaded {} entries from persistent weaving cache: {}", entryOffsets.size(),
+                file.getAbsolutePath());
+    }
+
+    // returns the length of the valid portion of the file
+    private long readEntries() throws IOException {
+        long fileLength = file.length();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        long validLength = 0;
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return 0;
+            }
+            validLength = 4;
+            while (true) {
+                byte[] digest = new byte[20];
+                in.readFully(digest);
+                boolean bootstrapLoader = in.readBoolean();
+                int length = in.readInt();
+                if (length < 0) {
+                    return validLength;
+                }
+                if (validLength + digest.length + 5 + length > fileLength) {
+                    // partially written entry
+                    return validLength;
+                }
+                // entry itself is read back from the file on a hit
+                skipFully(in, length);
+                entryOffsets.put(new Key(digest, bootstrapLoader), validLength + digest.length + 1);
+                validLength += digest.length + 5 + length;
+            }
+        } catch (EOFException e) {
+            // end of file, possibly in the middle of a partially written entry
+            logger.debug(e.getMessage(), e);
+            return validLength;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static String getFingerprint(List<File> pluginJars, List<Advice> sortedAdvisors,
+            List<ShimType> sortedShimTypes, List<MixinType> sortedMixinTypes,
+            MessageDigest messageDigest) throws IOException {
+        update(messageDigest, Integer.toString(FORMAT_VERSION));
+        // weaving output depends on the glowroot version itself
+        CodeSource codeSource = WeavingCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            update(messageDigest, codeSource.getLocation().toExternalForm());
+            File glowrootJarFile = new File(codeSource.getLocation().getPath());
+            if (glowrootJarFile.isFile()) {
+                update(messageDigest, Long.toString(glowrootJarFile.length()));
+                update(messageDigest, Long.toString(glowrootJarFile.lastModified()));
+            }
+        }
+        for (File pluginJar : pluginJars) {
+            update(messageDigest, pluginJar.getName());
+            messageDigest.update(Files.toByteArray(pluginJar));
+        }
+        for (Advice advice : sortedAdvisors) {
+            update(messageDigest, advice.toString());
+        }
+        for (ShimType shimType : sortedShimTypes) {
+            update(messageDigest, shimType.toString());
+        }
+        for (MixinType mixinType : sortedMixinTypes) {
+            update(messageDigest, mixinType.toString());
+        }
+        return BaseEncoding.base16().lowerCase().encode(messageDigest.digest());
+    }
+
+    private static void update(MessageDigest messageDigest, String value) {
+        messageDigest.update(value.getBytes(Charsets.UTF_8));
+        messageDigest.update((byte) 0);
+    }
+
+    private static <T> void updateIndexed(MessageDigest messageDigest, List<T> values,
+            Map<T, Integer> indexes) {
+        messageDigest.update(Ints.toByteArray(values.size()));
+        for (T value : values) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                // e.g. advice from @Instrumentation annotations
+                update(messageDigest, value.toString());
+            } else {
+                messageDigest.update(Ints.toByteArray(index));
+            }
+        }
+    }
+
+    private static void deleteOtherCacheFiles(File cacheDir, File file) {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            logger.warn("listFiles() returned null on directory: {}", cacheDir.getAbsolutePath());
+            return;
+        }
+        for (File other : files) {
+            if (!other.equals(file) && other.getName().endsWith(".cache") && !other.delete()) {
+                logger.warn("unable to delete old persistent weaving cache file: {}",
+                        other.getAbsolutePath());
+            }
+        }
+    }
+
+    private static <T> List<T> sortByToString(List<T> list) {
+        List<T> sorted = Lists.newArrayList(list);
+        Collections.sort(sorted, new Comparator<T>() {
+            @Override
+            public int compare(T left, T right) {
+                return left.toString().compareTo(right.toString());
+            }
+        });
+        return sorted;
+    }
+
+    private static <T> Map<T, Integer> indexes(List<T> list) {
+        Map<T, Integer> indexes = new IdentityHashMap<T, Integer>();
+        for (int i = 0; i < list.size(); i++) {
+            indexes.put(list.get(i), i);
+        }
+        return indexes;
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableString(@Nullable String value, DataOutputStream out)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> values = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+
+    private static void writeStrings(List<String> values, DataOutputStream out)
+            throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static <T> List<T> readIndexed(DataInputStream in, List<T> sortedValues)
+            throws IOException {
+        int size = in.readInt();
+        List<T> values = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= sortedValues.size()) {
+                throw new IOException("Invalid index in persistent weaving cache: " + index);
+            }
+            values.add(sortedValues.get(index));
+        }
+        return values;
+    }
+
+    private static <T> void writeIndexed(List<T> values, Map<T, Integer> indexes,
+            DataOutputStream out) throws IOException {
+        out.writeInt(values.size());
+        for (T value : values) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                // e.g. advice from @Instrumentation annotations, which are never cached
+                throw new IOException("Unexpected value: " + value);
+            }
+            out.writeInt(index);
+        }
+    }
+
+    static class Key {
+
+        private final byte[] digest;
+        private final boolean bootstrapLoader;
+
+        private Key(byte[] digest, boolean bootstrapLoader) {
+            this.digest = digest;
+            this.bootstrapLoader = bootstrapLoader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return Arrays.equals(digest, that.digest) && bootstrapLoader == that.bootstrapLoader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(digest) + (bootstrapLoader ? 1 : 0);
+        }
+    }
+
+    static class CachedClass {
+
+        private final AnalyzedClass analyzedClass;
+        private final byte /*@Nullable*/ [] wovenBytes;
+
+        private CachedClass(AnalyzedClass analyzedClass, byte /*@Nullable*/ [] wovenBytes) {
+            this.analyzedClass = analyzedClass;
+            this.wovenBytes = wovenBytes;
+        }
+
+        AnalyzedClass getAnalyzedClass() {
+            return analyzedClass;
+        }
+
+        byte /*@Nullable*/ [] getWovenBytes() {
+            return wovenBytes;
+        }
+    }
+}
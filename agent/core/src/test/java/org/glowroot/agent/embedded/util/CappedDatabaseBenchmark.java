@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// measures trace entry reads from the capped database while it is concurrently being appended to,
+// which is what the UI does while the agent is storing traces
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CappedDatabaseBenchmark {
+
+    private static final int PRELOADED_BLOCK_COUNT = 1000;
+
+    private File file;
+    private CappedDatabase cappedDatabase;
+    private List<Trace.Entry> entries;
+    private long[] cappedIds;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        cappedDatabase = new CappedDatabase(file, 10 * 1024, Ticker.systemTicker());
+        entries = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 10)
+                    .setStartOffsetNanos(i * 1000)
+                    .setDurationNanos(500)
+                    .setMessage("select * from employee where name = ? and id = " + i)
+                    .build());
+        }
+        cappedIds = new long[PRELOADED_BLOCK_COUNT];
+        for (int i = 0; i < PRELOADED_BLOCK_COUNT; i++) {
+            cappedIds[i] = cappedDatabase.writeMessages(entries, "trace entries");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cappedDatabase.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public List<Trace.Entry> readWhileWritingReader(ReaderState readerState) throws IOException {
+        return read(readerState);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public long readWhileWritingWriter() throws IOException {
+        return write();
+    }
+
+    @Benchmark
+    @Group("readOnly")
+    @GroupThreads(4)
+    public List<Trace.Entry> readOnly(ReaderState readerState) throws IOException {
+        return read(readerState);
+    }
+
+    @Benchmark
+    @Group("writeOnly")
+    @GroupThreads(1)
+    public long writeOnly() throws IOException {
+        return write();
+    }
+
+    private List<Trace.Entry> read(ReaderState readerState) throws IOException {
+        long cappedId = cappedIds[readerState.random.nextInt(PRELOADED_BLOCK_COUNT)];
+        return cappedDatabase.readMessages(cappedId, Trace.Entry.parser());
+    }
+
+    private long write() throws IOException {
+        return cappedDatabase.writeMessages(entries, "trace entries");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CappedDatabaseBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @State(Scope.Thread)
+    public static class ReaderState {
+        private final Random random = new Random();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateCollectorTest {
+
+    @Test
+    public void shouldScaleDetailFromFullCaptureTransactions() {
+        // given
+        AggregateCollector collector = new AggregateCollector("a name", 100, 100);
+        collector.add(buildTransaction(true));
+        for (int i = 0; i < 3; i++) {
+            collector.add(buildTransaction(false));
+        }
+        collector.getQueryCollector().mergeQuery("SQL", "select 1", 1000, 2, true, 10);
+        collector.getServiceCallCollector().mergeServiceCall("HTTP", "GET /a", 500, 1);
+        // when
+        Aggregate aggregate = collector.build(new SharedQueryTextCollector(), new ScratchBuffer());
+        // then
+        assertThat(aggregate.getTransactionCount()).isEqualTo(4);
+        assertThat(aggregate.getTotalDurationNanos()).isEqualTo(4 * MILLISECONDS.toNanos(123));
+        Aggregate.Query query = aggregate.getQueriesByType(0).getQuery(0);
+        assertThat(query.getTotalDurationNanos()).isEqualTo(4000);
+        assertThat(query.getExecutionCount()).isEqualTo(8);
+        assertThat(query.getTotalRows().getValue()).isEqualTo(40);
+        Aggregate.ServiceCall serviceCall = aggregate.getServiceCallsByType(0).getServiceCall(0);
+        assertThat(serviceCall.getTotalDurationNanos()).isEqualTo(2000);
+        assertThat(serviceCall.getExecutionCount()).isEqualTo(4);
+        assertThat(aggregate.getMainThreadStats().getTotalCpuNanos().getValue()).isEqualTo(400);
+    }
+
+    @Test
+    public void shouldNotScaleWhenAllTransactionsAreFullCapture() {
+        // given
+        AggregateCollector collector = new AggregateCollector("a name", 100, 100);
+        collector.add(buildTransaction(true));
+        collector.add(buildTransaction(true));
+        collector.getServiceCallCollector().mergeServiceCall("HTTP", "GET /a", 500, 1);
+        // when
+        Aggregate aggregate = collector.build(new SharedQueryTextCollector(), new ScratchBuffer());
+        // then
+        Aggregate.ServiceCall serviceCall = aggregate.getServiceCallsByType(0).getServiceCall(0);
+        assertThat(serviceCall.getTotalDurationNanos()).isEqualTo(500);
+        assertThat(serviceCall.getExecutionCount()).isEqualTo(1);
+        assertThat(aggregate.getMainThreadStats().getTotalCpuNanos().getValue()).isEqualTo(200);
+    }
+
+    private static Transaction buildTransaction(boolean fullCapture) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
+        when(transaction.isFullCapture()).thenReturn(fullCapture);
+        if (fullCapture) {
+            when(transaction.getMainThreadStats()).thenReturn(new ThreadStats(100, 0, 0, 0));
+        }
+        return transaction;
+    }
+}
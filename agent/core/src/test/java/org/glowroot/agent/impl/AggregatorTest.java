@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -74,14 +74,56 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldMergeOverallAggregateAcrossShards() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock(), 4);
+
+        // when
+        int count = 0;
+        long firstCaptureTime = aggregator.add(buildTransaction("name0"));
+        long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
+        while (true) {
+            long captureTime = aggregator.add(buildTransaction("name" + (count % 10)));
+            count++;
+            if (captureTime > aggregateCaptureTime) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+
+        // then
+        // aggregation is done in a separate thread, so give it a little time to complete
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalDurationNanos() > 0) {
+                break;
+            }
+        }
+        assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(count * 123 * 1000000.0);
+        assertThat(aggregateCollector.getTransactionTotalDurationNanos())
+                .isEqualTo(count * 123 * 1000000.0);
+        aggregator.close();
+    }
+
     private static Transaction buildTransaction() {
+        return buildTransaction("a name");
+    }
+
+    private static Transaction buildTransaction(String transactionName) {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
         when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
+        when(transaction.isFullCapture()).thenReturn(true);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
         return transaction;
     }
@@ -90,31 +132,41 @@ public class AggregatorTest {
 
         // volatile needed for visibility from other thread
         private volatile double totalDurationNanos;
+        private volatile double transactionTotalDurationNanos;
 
         private double getTotalDurationNanos() {
             return totalDurationNanos;
         }
 
+        private double getTransactionTotalDurationNanos() {
+            return transactionTotalDurationNanos;
+        }
+
         @Override
         public void init(File glowrootBaseDir, Environment environment, AgentConfig agentConfig,
                 AgentConfigUpdater agentConfigUpdater) {}
 
         @Override
         public void collectAggregates(long captureTime, Aggregates aggregates) {
+            final double[] totals = new double[2];
             aggregates.accept(new AggregateVisitor<RuntimeException>() {
                 @Override
                 public void visitOverallAggregate(String transactionType,
                         List<String> sharedQueryTexts, Aggregate overallAggregate) {
-                    // only capture first non-zero value
-                    if (totalDurationNanos == 0) {
-                        totalDurationNanos = overallAggregate.getTotalDurationNanos();
-                    }
+                    totals[0] += overallAggregate.getTotalDurationNanos();
                 }
                 @Override
                 public void visitTransactionAggregate(String transactionType,
                         String transactionName, List<String> sharedQueryTexts,
-                        Aggregate transactionAggregate) {}
+                        Aggregate transactionAggregate) {
+                    totals[1] += transactionAggregate.getTotalDurationNanos();
+                }
             });
+            // only capture first non-zero value
+            if (totalDurationNanos == 0 && totals[0] != 0) {
+                transactionTotalDurationNanos = totals[1];
+                totalDurationNanos = totals[0];
+            }
         }
 
         @Override
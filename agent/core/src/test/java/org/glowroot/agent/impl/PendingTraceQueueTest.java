@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.PendingTraceQueue.OfferResult;
+import org.glowroot.agent.impl.PendingTraceQueue.PendingTrace;
+import org.glowroot.agent.model.ErrorMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PendingTraceQueueTest {
+
+    @Test
+    public void shouldKeepSlowestWhenFull() throws Exception {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(2);
+        Transaction slow = mockTransaction(200, false, false);
+        Transaction slower = mockTransaction(300, false, false);
+        Transaction slowest = mockTransaction(400, false, false);
+        Transaction fast = mockTransaction(100, false, false);
+        // when
+        queue.offer(slow, true);
+        queue.offer(slower, true);
+        OfferResult slowestResult = queue.offer(slowest, true);
+        OfferResult fastResult = queue.offer(fast, true);
+        // then
+        assertThat(slowestResult).isEqualTo(OfferResult.ADDED_AFTER_EVICTING);
+        assertThat(fastResult).isEqualTo(OfferResult.DROPPED);
+        assertThat(queue.getPendingTransactions()).containsExactly(slowest, slower);
+        assertThat(queue.getEvictedTraceCount()).isEqualTo(1);
+        assertThat(queue.getDroppedTraceCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepErrorsOverSlowestWhenFull() throws Exception {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(1);
+        Transaction slow = mockTransaction(400, false, false);
+        Transaction error = mockTransaction(100, true, false);
+        // when
+        queue.offer(slow, true);
+        queue.offer(error, false);
+        // then
+        assertThat(queue.getPendingTransactions()).containsExactly(error);
+    }
+
+    @Test
+    public void shouldNeverDropPartiallyStored() throws Exception {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(1);
+        Transaction partiallyStored1 = mockTransaction(100, false, true);
+        Transaction partiallyStored2 = mockTransaction(100, false, true);
+        Transaction error = mockTransaction(400, true, false);
+        // when
+        queue.offer(partiallyStored1, true);
+        queue.offer(partiallyStored2, true);
+        OfferResult errorResult = queue.offer(error, false);
+        // then
+        assertThat(errorResult).isEqualTo(OfferResult.DROPPED);
+        assertThat(queue.getPendingTransactions()).containsExactly(partiallyStored1,
+                partiallyStored2);
+    }
+
+    @Test
+    public void shouldCountInProgressAgainstCapacity() throws Exception {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(2);
+        Transaction first = mockTransaction(400, false, false);
+        Transaction second = mockTransaction(400, false, false);
+        Transaction third = mockTransaction(500, false, false);
+        queue.offer(first, true);
+        queue.offer(second, true);
+        // when
+        List<PendingTrace> batch = queue.takeBatch(1);
+        OfferResult thirdResult = queue.offer(third, true);
+        queue.onStored(batch.get(0));
+        // then
+        assertThat(batch).hasSize(1);
+        assertThat(batch.get(0).getTransaction()).isSameAs(first);
+        // first is in progress so cannot be evicted
+        assertThat(thirdResult).isEqualTo(OfferResult.ADDED_AFTER_EVICTING);
+        assertThat(queue.getPendingTransactions()).containsExactly(third);
+    }
+
+    @Test
+    public void shouldReturnEmptyBatchAfterClose() throws Exception {
+        // given
+        PendingTraceQueue queue = new PendingTraceQueue(2);
+        Transaction transaction = mockTransaction(100, false, false);
+        queue.offer(transaction, true);
+        // when
+        queue.close();
+        List<PendingTrace> batch = queue.takeBatch(10);
+        List<PendingTrace> emptyBatch = queue.takeBatch(10);
+        // then
+        assertThat(batch).hasSize(1);
+        assertThat(emptyBatch).isEmpty();
+    }
+
+    private static Transaction mockTransaction(long durationNanos, boolean error,
+            boolean partiallyStored) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        if (error) {
+            ErrorMessage errorMessage = mock(ErrorMessage.class);
+            when(transaction.getErrorMessage()).thenReturn(errorMessage);
+        }
+        when(transaction.isPartiallyStored()).thenReturn(partiallyStored);
+        return transaction;
+    }
+}
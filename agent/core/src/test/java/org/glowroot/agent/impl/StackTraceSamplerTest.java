@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableAdvancedConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StackTraceSamplerTest {
+
+    @Test
+    public void shouldReuseStackTraceOfThreadStillWaiting() throws Exception {
+        // given
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        StackTraceSampler stackTraceSampler = new StackTraceSampler(configService);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        thread.start();
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(thread.getId());
+        List<ThreadContextImpl> threadContexts = ImmutableList.of(threadContext);
+
+        // when
+        stackTraceSampler.captureStackTraces(threadContexts);
+        int firstCapturedThreadCount = stackTraceSampler.getLastCapturedThreadCount();
+        stackTraceSampler.captureStackTraces(threadContexts);
+        latch.countDown();
+        thread.join();
+
+        // then
+        assertThat(firstCapturedThreadCount).isEqualTo(1);
+        assertThat(stackTraceSampler.getLastCapturedThreadCount()).isEqualTo(0);
+        assertThat(stackTraceSampler.getLastSkippedThreadCount()).isEqualTo(1);
+        verify(threadContext, times(2)).captureStackTrace(any(ThreadInfo.class), anyInt());
+    }
+
+    @Test
+    public void shouldCaptureRunnableThreadEveryTime() throws Exception {
+        // given
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        StackTraceSampler stackTraceSampler = new StackTraceSampler(configService);
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(Thread.currentThread().getId());
+        List<ThreadContextImpl> threadContexts = ImmutableList.of(threadContext);
+
+        // when
+        stackTraceSampler.captureStackTraces(threadContexts);
+        stackTraceSampler.captureStackTraces(threadContexts);
+
+        // then
+        assertThat(stackTraceSampler.getLastCapturedThreadCount()).isEqualTo(1);
+        assertThat(stackTraceSampler.getLastSkippedThreadCount()).isEqualTo(0);
+        verify(threadContext, times(2)).captureStackTrace(any(ThreadInfo.class), anyInt());
+    }
+}
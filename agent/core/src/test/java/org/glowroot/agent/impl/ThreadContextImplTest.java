@@ -29,6 +29,7 @@ import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class ThreadContextImplTest {
 
@@ -41,6 +42,7 @@ public class ThreadContextImplTest {
     @Before
     public void beforeEachTest() {
         Transaction transaction = mock(Transaction.class);
+        when(transaction.isFullCapture()).thenReturn(true);
         MessageSupplier messageSupplier = mock(MessageSupplier.class);
         TimerNameImpl rootTimerName = mock(TimerNameImpl.class);
         Ticker ticker = mock(Ticker.class);
@@ -39,4 +39,27 @@ public class TransactionCollectionTest {
         }
         assertThat(collection.iterator().hasNext()).isFalse();
     }
+
+    @Test
+    public void shouldSkipRemovedEntries() {
+        TransactionCollection collection = new TransactionCollection(1);
+        List<Transaction> transactions = Lists.newArrayList();
+        List<TransactionEntry> entries = Lists.newArrayList();
+        for (int i = 0; i < 200; i++) {
+            Transaction transaction = mock(Transaction.class);
+            transactions.add(transaction);
+            entries.add(collection.add(transaction));
+        }
+        // enough removals to trigger unlinking
+        for (int i = 0; i < 200; i += 2) {
+            entries.get(i).remove();
+            // removing twice should be harmless
+            entries.get(i).remove();
+        }
+        List<Transaction> remaining = Lists.newArrayList(collection);
+        assertThat(remaining).hasSize(100);
+        for (int i = 1; i < 200; i += 2) {
+            assertThat(remaining).contains(transactions.get(i));
+        }
+    }
 }
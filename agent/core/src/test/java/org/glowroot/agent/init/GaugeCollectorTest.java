@@ -19,15 +19,22 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.collector.Collector;
@@ -38,6 +45,7 @@ import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.config.ImmutableGaugeConfig;
 import org.glowroot.agent.config.ImmutableMBeanAttribute;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
@@ -46,7 +54,9 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -55,6 +65,7 @@ import static org.mockito.Mockito.when;
 public class GaugeCollectorTest {
 
     private GaugeCollector gaugeCollector;
+    private ConfigService configService;
     private LazyPlatformMBeanServer lazyPlatformMBeanServer;
     private Clock clock;
     private Ticker ticker;
@@ -62,7 +73,7 @@ public class GaugeCollectorTest {
 
     @Before
     public void beforeEachTest() throws Exception {
-        ConfigService configService = mock(ConfigService.class);
+        configService = mock(ConfigService.class);
         AdvancedConfig advancedConfig =
                 ImmutableAdvancedConfig.builder().mbeanGaugeNotFoundDelaySeconds(60).build();
         when(configService.getAdvancedConfig()).thenReturn(advancedConfig);
@@ -267,6 +278,132 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    @Test
+    public void shouldReadAllAttributesWithOneCall() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        attributeList.add(new Attribute("ddd", "2.5"));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("xyz:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(1);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("xyz:aaa=bbb:ddd");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(2.5);
+        verify(lazyPlatformMBeanServer).getAttributes(ObjectName.getInstance("xyz:aaa=bbb"),
+                new String[] {"ccc", "ddd"});
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class),
+                anyString());
+    }
+
+    @Test
+    public void shouldReadMissingAttributeIndividually() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), eq("ddd")))
+                .thenThrow(AttributeNotFoundException.class);
+
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(1);
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class), eq("ccc"));
+        verify(logger).debug(nullable(String.class), any(Exception.class));
+        verify(logger).warn("mbean attribute {} not found in {}", "ddd", "xyz:aaa=bbb");
+    }
+
+    @Test
+    public void shouldCacheMatchingObjectNamesUntilMatchingRegistration() throws Exception {
+        // given
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer).addInitListener(initListenerCaptor.capture());
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        initListenerCaptor.getValue().postInit(mbeanServer);
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        ObjectName pattern = ObjectName.getInstance("xyz:aaa=*");
+        when(lazyPlatformMBeanServer.queryNames(pattern, null))
+                .thenReturn(ImmutableSet.of(ObjectName.getInstance("xyz:aaa=bbb")));
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+
+        // when
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        mbeanServer.registerMBean(new Some(), ObjectName.getInstance("xyz:bbb=new"));
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        mbeanServer.registerMBean(new Some(), ObjectName.getInstance("xyz:aaa=new"));
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(pattern, null);
+        // registering the internal hotspot mbeans is not possible on all jvms
+        verify(logger, atMost(1)).debug(nullable(String.class), any(Exception.class));
+        gaugeCollector.close();
+    }
+
+    @Test
+    public void shouldPruneMatchingObjectNamesWhenGaugeConfigRemoved() throws Exception {
+        // given
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer).addInitListener(initListenerCaptor.capture());
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        initListenerCaptor.getValue().postInit(mbeanServer);
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        ObjectName pattern = ObjectName.getInstance("xyz:aaa=*");
+        when(lazyPlatformMBeanServer.queryNames(pattern, null))
+                .thenReturn(ImmutableSet.of(ObjectName.getInstance("xyz:aaa=bbb")));
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+
+        // when
+        when(configService.getGaugeConfigs()).thenReturn(ImmutableList.of(gaugeConfig));
+        gaugeCollector.runInternal();
+        gaugeCollector.runInternal();
+        when(configService.getGaugeConfigs()).thenReturn(ImmutableList.<GaugeConfig>of());
+        gaugeCollector.runInternal();
+        when(configService.getGaugeConfigs()).thenReturn(ImmutableList.of(gaugeConfig));
+        gaugeCollector.runInternal();
+
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(pattern, null);
+        // registering the internal hotspot mbeans is not possible on all jvms
+        verify(logger, atMost(1)).debug(nullable(String.class), any(Exception.class));
+        gaugeCollector.close();
+    }
+
     private static void setLogger(Class<?> clazz, Logger logger) throws Exception {
         Field loggerField = clazz.getDeclaredField("logger");
         loggerField.setAccessible(true);
@@ -275,4 +412,8 @@ public class GaugeCollectorTest {
         modifiersField.setInt(loggerField, loggerField.getModifiers() & ~Modifier.FINAL);
         loggerField.set(null, logger);
     }
+
+    public interface SomeMBean {}
+
+    public static class Some implements SomeMBean {}
 }
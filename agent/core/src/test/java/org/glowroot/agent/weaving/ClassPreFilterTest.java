@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+import org.glowroot.agent.weaving.targets.Misc2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassPreFilterTest {
+
+    @Test
+    public void shouldMatchExactClassName() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = createClassPreFilter(SomeAspect.BasicAdvice.class);
+        // when
+        boolean misc = isMatchPossible(classPreFilter, Misc.class);
+        boolean basicMisc = isMatchPossible(classPreFilter, BasicMisc.class);
+        // then
+        assertThat(misc).isTrue();
+        assertThat(basicMisc).isFalse();
+    }
+
+    @Test
+    public void shouldMatchClassNamePattern() throws Exception {
+        // given
+        ClassPreFilter classPreFilter = createClassPreFilter(SomeAspect.BasicAdvice.class,
+                SomeAspect.ClassNamePatternAdvice.class);
+        // when
+        boolean misc = isMatchPossible(classPreFilter, Misc.class);
+        boolean misc2 = isMatchPossible(classPreFilter, Misc2.class);
+        boolean basicMisc = isMatchPossible(classPreFilter, BasicMisc.class);
+        // then
+        assertThat(misc).isTrue();
+        assertThat(misc2).isTrue();
+        assertThat(basicMisc).isFalse();
+    }
+
+    @Test
+    public void shouldMatchClassAnnotation() throws Exception {
+        // given
+        ClassPreFilter classPreFilter =
+                createClassPreFilter(SomeAspect.BasicAnnotationBasedAdvice.class);
+        // when
+        boolean misc = isMatchPossible(classPreFilter, Misc.class);
+        boolean basicMisc = isMatchPossible(classPreFilter, BasicMisc.class);
+        // then
+        assertThat(misc).isFalse();
+        assertThat(basicMisc).isTrue();
+    }
+
+    private static ClassPreFilter createClassPreFilter(Class<?>... adviceClasses)
+            throws Exception {
+        List<Advice> advisors = Lists.newArrayList();
+        for (Class<?> adviceClass : adviceClasses) {
+            advisors.add(new AdviceBuilder(adviceClass).build());
+        }
+        return ClassPreFilter.create(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private static boolean isMatchPossible(ClassPreFilter classPreFilter, Class<?> clazz)
+            throws Exception {
+        return classPreFilter.isMatchPossible(clazz.getName(), new ClassReader(clazz.getName()));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentWeakKeyMapTest {
+
+    @Test
+    public void shouldPutIfAbsent() {
+        // given
+        ConcurrentWeakKeyMap<Object, String> map = new ConcurrentWeakKeyMap<Object, String>();
+        Object key = new Object();
+        // when
+        String first = map.putIfAbsent(key, "a");
+        String second = map.putIfAbsent(key, "b");
+        // then
+        assertThat(first).isNull();
+        assertThat(second).isEqualTo("a");
+        assertThat(map.get(key)).isEqualTo("a");
+        assertThat(map.getKeys()).containsExactly(key);
+        assertThat(map.getValues()).containsExactly("a");
+    }
+
+    @Test
+    public void shouldCompareKeysByIdentity() {
+        // given
+        ConcurrentWeakKeyMap<List<String>, String> map =
+                new ConcurrentWeakKeyMap<List<String>, String>();
+        List<String> key = Lists.newArrayList();
+        List<String> equalKey = Lists.newArrayList();
+        // when
+        map.putIfAbsent(key, "a");
+        map.putIfAbsent(equalKey, "b");
+        // then
+        assertThat(map.get(key)).isEqualTo("a");
+        assertThat(map.get(equalKey)).isEqualTo("b");
+        assertThat(map.getKeys()).hasSize(2);
+    }
+}
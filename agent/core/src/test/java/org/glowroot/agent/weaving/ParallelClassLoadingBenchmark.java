@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.InstrumentationConfig;
+import org.glowroot.agent.config.PluginCache;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.weaving.WeavingBenchmark.ClassFile;
+
+// simulates 16 class loaders loading classes in parallel (e.g. an application server deploying
+// several applications at startup), each thread replays the classes from a jar file through a
+// single shared Weaver (and therefore a single shared AnalyzedWorld) using its own class loader
+//
+// the world* benchmarks isolate the per class loader lookup that AnalyzedWorld performs for every
+// class that is woven and for every type that it references, comparing the previous
+// synchronized WeakHashMap with ConcurrentWeakKeyMap
+//
+// the jar file defaults to the guava jar, and can be set using -Dglowroot.benchmark.jar=...
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ParallelClassLoadingBenchmark {
+
+    private File baseDir;
+    private List<ClassFile> classFiles;
+    private URL jarURL;
+    private CodeSource codeSource;
+    private Weaver weaver;
+
+    private Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> synchronizedWorld;
+    private ConcurrentWeakKeyMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>> concurrentWorld;
+
+    @Setup
+    public void setup() throws Exception {
+        File jarFile = WeavingBenchmark.getJarFile();
+        classFiles = WeavingBenchmark.readClassFiles(jarFile);
+        jarURL = jarFile.toURI().toURL();
+        codeSource = new CodeSource(jarURL, (Certificate[]) null);
+        baseDir = Files.createTempDir();
+        PluginCache pluginCache = PluginCache.create(null, false);
+        ConfigService configService =
+                ConfigService.create(baseDir, pluginCache.pluginDescriptors());
+        AdviceCache adviceCache = new AdviceCache(pluginCache.pluginDescriptors(),
+                pluginCache.pluginJars(), ImmutableList.<InstrumentationConfig>of(), null,
+                baseDir);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(adviceCache.getAdvisorsSupplier(),
+                adviceCache.getShimTypes(), adviceCache.getMixinTypes());
+        weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
+                adviceCache.getMixinTypes(), analyzedWorld, new TransactionRegistry(),
+                new TimerNameCache(), configService, null);
+        synchronizedWorld = Collections.synchronizedMap(
+                new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+        concurrentWorld =
+                new ConcurrentWeakKeyMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        WeavingBenchmark.deleteRecursively(baseDir);
+    }
+
+    @Benchmark
+    public byte /*@Nullable*/ [] weave(LoaderState loaderState) {
+        ClassFile classFile = classFiles.get(loaderState.nextIndex++ % classFiles.size());
+        return weaver.weave(classFile.bytes, classFile.internalName, codeSource,
+                loaderState.loader);
+    }
+
+    @Benchmark
+    public ConcurrentMap<String, AnalyzedClass> worldSynchronizedWeakHashMap(
+            LoaderState loaderState) {
+        // this synchronization is for atomicity of get/put (same as AnalyzedWorld previously)
+        synchronized (synchronizedWorld) {
+            ConcurrentMap<String, AnalyzedClass> map = synchronizedWorld.get(loaderState.loader);
+            if (map == null) {
+                map = new ConcurrentHashMap<String, AnalyzedClass>();
+                synchronizedWorld.put(loaderState.loader, map);
+            }
+            return map;
+        }
+    }
+
+    @Benchmark
+    public ConcurrentMap<String, AnalyzedClass> worldConcurrentWeakKeyMap(
+            LoaderState loaderState) {
+        ConcurrentMap<String, AnalyzedClass> map = concurrentWorld.get(loaderState.loader);
+        if (map == null) {
+            map = new ConcurrentHashMap<String, AnalyzedClass>();
+            ConcurrentMap<String, AnalyzedClass> existingMap =
+                    concurrentWorld.putIfAbsent(loaderState.loader, map);
+            if (existingMap != null) {
+                map = existingMap;
+            }
+        }
+        return map;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ParallelClassLoadingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @State(Scope.Thread)
+    public static class LoaderState {
+
+        private URLClassLoader loader;
+        private int nextIndex;
+
+        @Setup
+        public void setup(ParallelClassLoadingBenchmark benchmark) {
+            // null parent so that classes from the jar file are only resolved through this loader
+            loader = new URLClassLoader(new URL[] {benchmark.jarURL}, null);
+        }
+    }
+}
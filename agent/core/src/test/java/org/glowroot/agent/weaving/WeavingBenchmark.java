@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.InstrumentationConfig;
+import org.glowroot.agent.config.PluginCache;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+
+// replays the classes from a jar file through Weaver.weave() the same way they would be passed in
+// from WeavingClassFileTransformer during startup, with the advice from all plugins that are on
+// the class path
+//
+// each pass over the jar file starts with an empty AnalyzedWorld so that the reported time per
+// class (and allocation per class when run with -prof gc) reflects a cold start, and the aux
+// counters report how often AnalyzedWorld found referenced types already analyzed, and how many
+// classes were rejected by the class pre-filter vs fully analyzed (these counters are only
+// maintained when -Dglowroot.weaving.counters=true, which is set on the forked jvm below)
+//
+// with persistentCache=true, the persistent weaving cache is filled during the first pass, so
+// subsequent passes measure a restart with identical deployment artifacts
+//
+// the jar file defaults to the guava jar, and can be set using -Dglowroot.benchmark.jar=...
+//
+// plugin jars need to be added to the class path to benchmark with bundled plugin advice, e.g.
+// -cp ...:agent/plugins/servlet-plugin/target/glowroot-agent-servlet-plugin-<version>.jar
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dglowroot.weaving.counters=true")
+@State(Scope.Thread)
+public class WeavingBenchmark {
+
+    @Param({"false", "true"})
+    private boolean persistentCache;
+
+    private File baseDir;
+    private List<ClassFile> classFiles;
+    private CodeSource codeSource;
+    private URLClassLoader loader;
+    private AdviceCache adviceCache;
+    private ConfigService configService;
+    private @Nullable WeavingCache weavingCache;
+
+    private AnalyzedWorld analyzedWorld;
+    private Weaver weaver;
+    private int nextIndex;
+
+    @Setup
+    public void setup() throws Exception {
+        File jarFile = getJarFile();
+        classFiles = readClassFiles(jarFile);
+        URL jarURL = jarFile.toURI().toURL();
+        codeSource = new CodeSource(jarURL, (Certificate[]) null);
+        // null parent so that classes from the jar file are only resolved through this loader
+        loader = new URLClassLoader(new URL[] {jarURL}, null);
+        baseDir = Files.createTempDir();
+        PluginCache pluginCache = PluginCache.create(null, false);
+        configService = ConfigService.create(baseDir, pluginCache.pluginDescriptors());
+        adviceCache = new AdviceCache(pluginCache.pluginDescriptors(), pluginCache.pluginJars(),
+                ImmutableList.<InstrumentationConfig>of(), null, baseDir);
+        if (persistentCache) {
+            weavingCache = WeavingCache.create(baseDir, pluginCache.pluginJars(),
+                    adviceCache.getAdvisorsSupplier().get(), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
+        resetWorld();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (weavingCache != null) {
+            weavingCache.close();
+        }
+        deleteRecursively(baseDir);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        resetWorld();
+    }
+
+    @Benchmark
+    public byte /*@Nullable*/ [] weave(WeavingCounters weavingCounters) {
+        if (nextIndex == classFiles.size()) {
+            resetWorld();
+        }
+        ClassFile classFile = classFiles.get(nextIndex++);
+        long hitCount = analyzedWorld.getAnalyzedClassCacheHitCount();
+        long missCount = analyzedWorld.getAnalyzedClassCacheMissCount();
+        long preFilterRejectedCount = weaver.getPreFilterRejectedClassCount();
+        long analyzedCount = weaver.getAnalyzedClassCount();
+        byte[] wovenBytes =
+                weaver.weave(classFile.bytes, classFile.internalName, codeSource, loader);
+        weavingCounters.analyzedClassCacheHits +=
+                analyzedWorld.getAnalyzedClassCacheHitCount() - hitCount;
+        weavingCounters.analyzedClassCacheMisses +=
+                analyzedWorld.getAnalyzedClassCacheMissCount() - missCount;
+        weavingCounters.preFilterRejectedClasses +=
+                weaver.getPreFilterRejectedClassCount() - preFilterRejectedCount;
+        weavingCounters.analyzedClasses += weaver.getAnalyzedClassCount() - analyzedCount;
+        return wovenBytes;
+    }
+
+    private void resetWorld() {
+        analyzedWorld = new AnalyzedWorld(adviceCache.getAdvisorsSupplier(),
+                adviceCache.getShimTypes(), adviceCache.getMixinTypes());
+        weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
+                adviceCache.getMixinTypes(), analyzedWorld, new TransactionRegistry(),
+                new TimerNameCache(), configService, weavingCache);
+        nextIndex = 0;
+    }
+
+    static File getJarFile() throws Exception {
+        String jarPath = System.getProperty("glowroot.benchmark.jar");
+        if (jarPath != null) {
+            return new File(jarPath);
+        }
+        return new File(ImmutableList.class.getProtectionDomain().getCodeSource().getLocation()
+                .toURI());
+    }
+
+    static List<ClassFile> readClassFiles(File file) throws IOException {
+        List<ClassFile> classFiles = Lists.newArrayList();
+        JarFile jarFile = new JarFile(file);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || name.equals("module-info.class")) {
+                    continue;
+                }
+                byte[] bytes = ByteStreams.toByteArray(jarFile.getInputStream(entry));
+                classFiles.add(new ClassFile(name.substring(0, name.length() - 6), bytes));
+            }
+        } finally {
+            jarFile.close();
+        }
+        return classFiles;
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Could not delete: " + file.getAbsolutePath());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(WeavingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+    // public fields are reported by jmh alongside the primary result
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class WeavingCounters {
+
+        public long analyzedClassCacheHits;
+        public long analyzedClassCacheMisses;
+        public long preFilterRejectedClasses;
+        public long analyzedClasses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            analyzedClassCacheHits = 0;
+            analyzedClassCacheMisses = 0;
+            preFilterRejectedClasses = 0;
+            analyzedClasses = 0;
+        }
+    }
+
+    static class ClassFile {
+
+        final String internalName;
+        final byte[] bytes;
+
+        private ClassFile(String internalName, byte[] bytes) {
+            this.internalName = internalName;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final byte[] CLASS_BYTES = new byte[] {1, 2, 3};
+    private static final byte[] WOVEN_BYTES = new byte[] {4, 5, 6};
+    private static final List<AnalyzedClass> NO_SUPER_CLASSES = ImmutableList.of();
+
+    private File baseDir;
+
+    @Before
+    public void beforeEachTest() {
+        baseDir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        File cacheDir = new File(baseDir, "weaving-cache");
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+        baseDir.delete();
+    }
+
+    @Test
+    public void shouldReadAcrossRestarts() throws Exception {
+        // given
+        List<Advice> advisors = createAdvisors(SomeAspect.BasicAdvice.class);
+        WeavingCache weavingCache = createWeavingCache(advisors);
+        weavingCache.put(weavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, false), advisors,
+                createAnalyzedClass(advisors.get(0)), WOVEN_BYTES);
+        weavingCache.close();
+        // when
+        List<Advice> restartAdvisors = createAdvisors(SomeAspect.BasicAdvice.class);
+        WeavingCache restartWeavingCache = createWeavingCache(restartAdvisors);
+        WeavingCache.CachedClass cachedClass = restartWeavingCache.get(
+                restartWeavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, false), restartAdvisors);
+        WeavingCache.CachedClass bootstrapCachedClass = restartWeavingCache.get(
+                restartWeavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, true), restartAdvisors);
+        restartWeavingCache.close();
+        // then
+        assertThat(cachedClass).isNotNull();
+        assertThat(cachedClass.getWovenBytes()).isEqualTo(WOVEN_BYTES);
+        AnalyzedClass analyzedClass = cachedClass.getAnalyzedClass();
+        assertThat(analyzedClass).isEqualTo(createAnalyzedClass(restartAdvisors.get(0)));
+        assertThat(analyzedClass.analyzedMethods().get(0).advisors().get(0))
+                .isSameAs(restartAdvisors.get(0));
+        assertThat(bootstrapCachedClass).isNull();
+    }
+
+    @Test
+    public void shouldInvalidateOnAdviceChange() throws Exception {
+        // given
+        List<Advice> advisors = createAdvisors(SomeAspect.BasicAdvice.class);
+        WeavingCache weavingCache = createWeavingCache(advisors);
+        weavingCache.put(weavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, false), advisors,
+                createAnalyzedClass(advisors.get(0)), null);
+        weavingCache.close();
+        // when
+        List<Advice> otherAdvisors = createAdvisors(SomeAspect.SuperBasicAdvice.class);
+        WeavingCache otherWeavingCache = createWeavingCache(otherAdvisors);
+        WeavingCache.CachedClass cachedClass = otherWeavingCache
+                .get(otherWeavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, false), otherAdvisors);
+        otherWeavingCache.close();
+        // then
+        assertThat(cachedClass).isNull();
+        assertThat(new File(baseDir, "weaving-cache").list()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotUseCacheAfterReweaving() throws Exception {
+        // given
+        List<Advice> advisors = createAdvisors(SomeAspect.BasicAdvice.class);
+        WeavingCache weavingCache = createWeavingCache(advisors);
+        WeavingCache.Key key = weavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, false);
+        weavingCache.put(key, advisors, createAnalyzedClass(advisors.get(0)), null);
+        // when
+        List<Advice> reweavingAdvisors = Lists.newArrayList(advisors);
+        WeavingCache.CachedClass cachedClass = weavingCache.get(key, reweavingAdvisors);
+        weavingCache.close();
+        // then
+        assertThat(cachedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotMatchDifferentSuperTypeHierarchy() throws Exception {
+        // given
+        List<Advice> advisors = createAdvisors(SomeAspect.BasicAdvice.class);
+        WeavingCache weavingCache = createWeavingCache(advisors);
+        weavingCache.put(weavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, false), advisors,
+                createAnalyzedClass(advisors.get(0)), null);
+        // when
+        List<AnalyzedClass> superAnalyzedClasses =
+                ImmutableList.of(createAnalyzedClass(advisors.get(0)));
+        WeavingCache.CachedClass cachedClass = weavingCache
+                .get(weavingCache.getKey(CLASS_BYTES, superAnalyzedClasses, false), advisors);
+        WeavingCache.CachedClass sameCachedClass = weavingCache
+                .get(weavingCache.getKey(CLASS_BYTES, NO_SUPER_CLASSES, false), advisors);
+        weavingCache.close();
+        // then
+        assertThat(cachedClass).isNull();
+        assertThat(sameCachedClass).isNotNull();
+    }
+
+    private WeavingCache createWeavingCache(List<Advice> advisors) {
+        WeavingCache weavingCache = WeavingCache.create(baseDir, ImmutableList.<File>of(),
+                advisors, ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        assertThat(weavingCache).isNotNull();
+        return weavingCache;
+    }
+
+    private static List<Advice> createAdvisors(Class<?> adviceClass) throws Exception {
+        return ImmutableList.of(new AdviceBuilder(adviceClass).build());
+    }
+
+    private static AnalyzedClass createAnalyzedClass(Advice advice) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("org.glowroot.agent.weaving.targets.BasicMisc")
+                .superName("java.lang.Object")
+                .addInterfaceNames("org.glowroot.agent.weaving.targets.Misc")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("execute1")
+                        .returnType("void")
+                        .modifiers(1)
+                        .addAdvisors(advice)
+                        .build())
+                .build();
+    }
+}
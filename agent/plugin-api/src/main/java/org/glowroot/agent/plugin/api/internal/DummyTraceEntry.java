@@ -0,0 +1,24 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.api.internal;
+
+// this interface exists to let bundled plugins recognize the dummy trace entries that are created
+// once the trace has accumulated maxTraceEntriesPerTransaction entries, without adding a method to
+// the TraceEntry interface (which would need to be implemented by every TraceEntry implementation)
+//
+// a dummy trace entry is not stored in the trace, unless it is escalated into a real entry because
+// it ends with an error
+public interface DummyTraceEntry {}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessage;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.internal.DummyTraceEntry;
+import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
+import org.glowroot.agent.plugin.jdbc.message.PreparedStatementMessageSupplier;
+
+// reusable bind parameter storage for a single prepared statement, used instead of copying
+// BindParameterList on each execution when the "lazyBindParameterCapture" property is enabled
+//
+// bind parameters (including batched bind parameters) are written directly into one of a small
+// ring of reusable slots, and the message supplier for an execution is handed the slot itself
+// instead of a copy of its values
+//
+// a slot that has been handed to a message supplier is not written to again until the ring wraps
+// around, at which point the supplier first materializes its own copy of the values (unless it has
+// already done so because the trace was stored in the meantime), and a slot whose query entry was
+// not captured at all (e.g. transaction is not fully captured) is immediately reused in place
+//
+// a slot whose query entry is a dummy entry (trace entry limit exceeded) is not reused in place,
+// since the entry is escalated into a real entry if it ends with an error (see
+// onQueryEntryEndWithError()), but its supplier is not materialized when the ring wraps around
+//
+// NOTE this only partially defers the copy: the plugin cannot know whether a captured transaction
+// will end up being stored, so when a statement is executed repeatedly in a captured transaction
+// (below the trace entry limit), every execution except the last SLOT_COUNT still has its bind
+// parameters copied when the ring wraps around, and the copy is only avoided altogether for
+// transactions that are not captured and for dummy entries
+//
+// all methods other than LazyMessageSupplier.get() are only called by the monitored thread
+class BindParameterRing {
+
+    private static final int SLOT_COUNT = 4;
+
+    private static final int PARAMETERS_INITIAL_CAPACITY = 4;
+
+    private Slot curr = new Slot();
+    // lazy instantiated since many prepared statements are only executed once
+    private Slot /*@Nullable*/ [] slots;
+    private int currIndex;
+
+    // remember parameterIndex starts at 1 not 0
+    void setParameterValue(int parameterIndex, @Nullable Object object) {
+        if (curr.owner != null) {
+            advance(true, true);
+        }
+        curr.setParameterValue(parameterIndex - 1, object);
+    }
+
+    void clearParameters() {
+        if (curr.owner != null) {
+            advance(false, true);
+        } else {
+            curr.clearParameters();
+        }
+    }
+
+    void addBatch() {
+        if (curr.owner != null) {
+            advance(true, true);
+        }
+        curr.addBatch();
+    }
+
+    void clearBatch() {
+        // consistent with PreparedStatementMirror.clearBatch(), this clears parameters also
+        if (curr.owner != null) {
+            advance(false, false);
+        } else {
+            curr.clearParameters();
+            curr.clearBatch();
+        }
+    }
+
+    int getBatchSize() {
+        return curr.batchRowCount;
+    }
+
+    QueryMessageSupplier createMessageSupplier(boolean batch) {
+        if (curr.owner != null) {
+            // same parameters are being executed again
+            advance(true, true);
+        }
+        LazyMessageSupplier messageSupplier = new LazyMessageSupplier(curr, batch);
+        curr.owner = messageSupplier;
+        return messageSupplier;
+    }
+
+    void onQueryEntryStarted(QueryEntry queryEntry) {
+        Object messageSupplier = queryEntry.getMessageSupplier();
+        if (messageSupplier == null) {
+            // query entry was not captured, so the message supplier will never be read and the
+            // slot can be reused in place
+            curr.owner = null;
+        } else if (messageSupplier == curr.owner && queryEntry instanceof DummyTraceEntry) {
+            // query entry will not be stored, so the message supplier will only be read if the
+            // entry ends with an error, in which case it is materialized at that time
+            ((LazyMessageSupplier) messageSupplier).storedInTrace = false;
+        }
+    }
+
+    void onQueryEntryEndWithError(QueryEntry queryEntry) {
+        Object messageSupplier = queryEntry.getMessageSupplier();
+        if (messageSupplier instanceof LazyMessageSupplier) {
+            // this may be a dummy entry that is about to be escalated into a real entry, so
+            // materialize now while the slot still holds the values from this execution
+            ((LazyMessageSupplier) messageSupplier).materialize();
+        }
+    }
+
+    private void advance(boolean carryOverParameters, boolean carryOverBatch) {
+        if (slots == null) {
+            slots = new Slot[SLOT_COUNT];
+            slots[0] = curr;
+        }
+        currIndex = (currIndex + 1) % SLOT_COUNT;
+        Slot next = slots[currIndex];
+        if (next == null) {
+            next = new Slot();
+            slots[currIndex] = next;
+        } else {
+            next.release();
+        }
+        if (carryOverParameters) {
+            next.copyParametersFrom(curr);
+        }
+        if (carryOverBatch) {
+            next.copyBatchFrom(curr);
+        }
+        curr = next;
+    }
+
+    private static class Slot {
+
+        private @Nullable Object[] parameters = new Object[PARAMETERS_INITIAL_CAPACITY];
+        private int size;
+
+        // batched parameters are stored flattened, along with the number of parameters per row
+        private @Nullable Object /*@Nullable*/ [] batchParameters;
+        private int /*@Nullable*/ [] batchRowSizes;
+        private int batchParameterCount;
+        private int batchRowCount;
+
+        private @Nullable LazyMessageSupplier owner;
+
+        private void setParameterValue(int i, @Nullable Object object) {
+            if (i >= parameters.length) {
+                parameters = Arrays.copyOf(parameters, grow(parameters.length, i + 1));
+            }
+            parameters[i] = object;
+            if (i >= size) {
+                size = i + 1;
+            }
+        }
+
+        private void clearParameters() {
+            Arrays.fill(parameters, 0, size, null);
+            size = 0;
+        }
+
+        private void addBatch() {
+            int newBatchParameterCount = batchParameterCount + size;
+            if (batchParameters == null) {
+                batchParameters =
+                        new Object[Math.max(newBatchParameterCount, PARAMETERS_INITIAL_CAPACITY)];
+                batchRowSizes = new int[PARAMETERS_INITIAL_CAPACITY];
+            } else if (newBatchParameterCount > batchParameters.length) {
+                batchParameters = Arrays.copyOf(batchParameters,
+                        grow(batchParameters.length, newBatchParameterCount));
+            }
+            if (batchRowCount == batchRowSizes.length) {
+                batchRowSizes = Arrays.copyOf(batchRowSizes,
+                        grow(batchRowSizes.length, batchRowCount + 1));
+            }
+            System.arraycopy(parameters, 0, batchParameters, batchParameterCount, size);
+            batchParameterCount = newBatchParameterCount;
+            batchRowSizes[batchRowCount++] = size;
+        }
+
+        private void clearBatch() {
+            if (batchParameters != null) {
+                Arrays.fill(batchParameters, 0, batchParameterCount, null);
+            }
+            batchParameterCount = 0;
+            batchRowCount = 0;
+        }
+
+        private void copyParametersFrom(Slot slot) {
+            if (slot.size > parameters.length) {
+                parameters = new Object[slot.size];
+            }
+            System.arraycopy(slot.parameters, 0, parameters, 0, slot.size);
+            size = slot.size;
+        }
+
+        private void copyBatchFrom(Slot slot) {
+            if (slot.batchRowCount == 0) {
+                return;
+            }
+            if (batchParameters == null || slot.batchParameterCount > batchParameters.length) {
+                batchParameters = new Object[Math.max(slot.batchParameterCount,
+                        PARAMETERS_INITIAL_CAPACITY)];
+            }
+            if (batchRowSizes == null || slot.batchRowCount > batchRowSizes.length) {
+                batchRowSizes = new int[Math.max(slot.batchRowCount, PARAMETERS_INITIAL_CAPACITY)];
+            }
+            System.arraycopy(slot.batchParameters, 0, batchParameters, 0,
+                    slot.batchParameterCount);
+            System.arraycopy(slot.batchRowSizes, 0, batchRowSizes, 0, slot.batchRowCount);
+            batchParameterCount = slot.batchParameterCount;
+            batchRowCount = slot.batchRowCount;
+        }
+
+        private void release() {
+            if (owner != null) {
+                if (owner.storedInTrace) {
+                    owner.materialize();
+                }
+                owner = null;
+            }
+            clearParameters();
+            clearBatch();
+        }
+
+        private static int grow(int capacity, int minCapacity) {
+            // using same capacity increase formula as ArrayList
+            int newCapacity = capacity + (capacity >> 1);
+            return newCapacity < minCapacity ? minCapacity : newCapacity;
+        }
+    }
+
+    private static class LazyMessageSupplier extends QueryMessageSupplier {
+
+        private final boolean batch;
+
+        // only accessed by the monitored thread
+        private boolean storedInTrace = true;
+
+        // these are guarded by "this" since get() is called from a different thread than the
+        // monitored thread (e.g. when storing a partial trace, or viewing an active trace)
+        private @Nullable Slot slot;
+        private @Nullable QueryMessageSupplier materialized;
+
+        private LazyMessageSupplier(Slot slot, boolean batch) {
+            this.slot = slot;
+            this.batch = batch;
+        }
+
+        @Override
+        public QueryMessage get() {
+            return getMaterialized().get();
+        }
+
+        private synchronized QueryMessageSupplier getMaterialized() {
+            if (materialized == null) {
+                materialize();
+            }
+            return materialized;
+        }
+
+        private synchronized void materialize() {
+            Slot slot = this.slot;
+            if (slot == null) {
+                return;
+            }
+            if (batch) {
+                List<BindParameterList> batchedParameters = Lists.newArrayList();
+                for (int i = 0, offset = 0; i < slot.batchRowCount; i++) {
+                    int rowSize = slot.batchRowSizes[i];
+                    batchedParameters.add(copyOf(slot.batchParameters, offset, rowSize));
+                    offset += rowSize;
+                }
+                materialized = new BatchPreparedStatementMessageSupplier(batchedParameters);
+            } else {
+                materialized = new PreparedStatementMessageSupplier(
+                        copyOf(slot.parameters, 0, slot.size));
+            }
+            this.slot = null;
+        }
+
+        private static BindParameterList copyOf(@Nullable Object[] values, int offset,
+                int length) {
+            BindParameterList parameters = new BindParameterList(length);
+            for (int i = 0; i < length; i++) {
+                parameters.set(i, values[offset + i]);
+            }
+            return parameters;
+        }
+    }
+}
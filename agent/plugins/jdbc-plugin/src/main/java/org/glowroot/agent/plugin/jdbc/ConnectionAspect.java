@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -45,6 +45,8 @@ public class ConnectionAspect {
 
     private static final BooleanProperty capturePreparedStatementCreation =
             configService.getBooleanProperty("capturePreparedStatementCreation");
+    private static final BooleanProperty lazyBindParameterCapture =
+            configService.getBooleanProperty("lazyBindParameterCapture");
     private static final BooleanProperty captureConnectionClose =
             configService.getBooleanProperty("captureConnectionClose");
     private static final BooleanProperty captureConnectionLifecycleTraceEntries =
@@ -75,7 +77,8 @@ public class ConnectionAspect {
                 // seems nothing sensible to do here other than ignore
                 return;
             }
-            preparedStatement.glowroot$setStatementMirror(new PreparedStatementMirror(sql));
+            preparedStatement.glowroot$setStatementMirror(new PreparedStatementMirror(sql,
+                    lazyBindParameterCapture.value()));
         }
         @OnAfter
         public static void onAfter(@BindTraveler @Nullable Timer timer) {
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.plugin.api.QueryMessage;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+
+// the literals that were replaced by SqlNormalizer are displayed the same way as bind parameters,
+// and are only extracted (by re-lexing the original sql) if the trace entry is actually read
+class NormalizedStatementMessageSupplier extends QueryMessageSupplier {
+
+    private final String sql;
+
+    NormalizedStatementMessageSupplier(String sql) {
+        this.sql = sql;
+    }
+
+    @Override
+    public QueryMessage get() {
+        List<String> literals = Lists.newArrayList();
+        SqlNormalizer.normalize(sql, literals);
+        if (literals.isEmpty()) {
+            return QueryMessage.create("jdbc execution: ");
+        }
+        StringBuilder sb = new StringBuilder(" [");
+        boolean first = true;
+        for (String literal : literals) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(literal);
+            first = false;
+        }
+        sb.append("]");
+        return QueryMessage.create("jdbc execution: ", sb.toString());
+    }
+}
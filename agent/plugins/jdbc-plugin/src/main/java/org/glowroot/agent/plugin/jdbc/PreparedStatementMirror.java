@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,7 +23,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Queues;
 import com.google.common.hash.HashCode;
 
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier;
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
+import org.glowroot.agent.plugin.jdbc.message.PreparedStatementMessageSupplier;
 
 // used to capture and mirror the state of prepared statements since the underlying
 // PreparedStatement values cannot be inspected after they have been set
@@ -39,14 +43,21 @@ class PreparedStatementMirror extends StatementMirror {
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
     private @Nullable Collection<BindParameterList> batchedParameters;
+    // non-null when bind parameters are captured lazily, in which case the fields above are unused
+    private final @Nullable BindParameterRing bindParameterRing;
 
-    public PreparedStatementMirror(String sql) {
+    public PreparedStatementMirror(String sql, boolean lazyBindParameterCapture) {
         this.sql = sql;
         // TODO delay creation to optimize case when bind parameter capture is disabled
         parameters = new BindParameterList(PARAMETERS_INITIAL_CAPACITY);
+        bindParameterRing = lazyBindParameterCapture ? new BindParameterRing() : null;
     }
 
     public void addBatch() {
+        if (bindParameterRing != null) {
+            bindParameterRing.addBatch();
+            return;
+        }
         // synchronization isn't an issue here as this method is called only by the monitored thread
         if (batchedParameters == null) {
             batchedParameters = Queues.newConcurrentLinkedQueue();
@@ -68,16 +79,49 @@ class PreparedStatementMirror extends StatementMirror {
         return parameters;
     }
 
+    QueryMessageSupplier createMessageSupplier() {
+        if (bindParameterRing != null) {
+            return bindParameterRing.createMessageSupplier(false);
+        }
+        return new PreparedStatementMessageSupplier(getParametersCopy());
+    }
+
+    QueryMessageSupplier createBatchMessageSupplier() {
+        if (bindParameterRing != null) {
+            return bindParameterRing.createMessageSupplier(true);
+        }
+        return new BatchPreparedStatementMessageSupplier(getBatchedParameters());
+    }
+
+    void onQueryEntryStarted(QueryEntry queryEntry) {
+        if (bindParameterRing != null) {
+            bindParameterRing.onQueryEntryStarted(queryEntry);
+        }
+    }
+
+    void onQueryEntryEndWithError(QueryEntry queryEntry) {
+        if (bindParameterRing != null) {
+            bindParameterRing.onQueryEntryEndWithError(queryEntry);
+        }
+    }
+
     public String getSql() {
         return sql;
     }
 
     int getBatchSize() {
+        if (bindParameterRing != null) {
+            return bindParameterRing.getBatchSize();
+        }
         return batchedParameters == null ? 0 : batchedParameters.size();
     }
 
     // remember parameterIndex starts at 1 not 0
     public void setParameterValue(int parameterIndex, @Nullable Object object) {
+        if (bindParameterRing != null) {
+            bindParameterRing.setParameterValue(parameterIndex, object);
+            return;
+        }
         if (parametersCopied) {
             // separate method for less common path to not impact inlining budget of fast(er) path
             copyParameters();
@@ -91,6 +135,10 @@ class PreparedStatementMirror extends StatementMirror {
     }
 
     public void clearParameters() {
+        if (bindParameterRing != null) {
+            bindParameterRing.clearParameters();
+            return;
+        }
         if (parametersCopied) {
             parameters = new BindParameterList(parameters.size());
             parametersCopied = false;
@@ -101,6 +149,10 @@ class PreparedStatementMirror extends StatementMirror {
 
     @Override
     public void clearBatch() {
+        if (bindParameterRing != null) {
+            bindParameterRing.clearBatch();
+            return;
+        }
         if (parametersCopied) {
             parameters = new BindParameterList(parameters.size());
             parametersCopied = false;
@@ -115,8 +167,9 @@ class PreparedStatementMirror extends StatementMirror {
         private final byte /*@Nullable*/[] bytes;
         public ByteArrayParameterValue(byte[] bytes, boolean displayAsHex) {
             length = bytes.length;
-            // only retain bytes if needed for displaying as hex
-            this.bytes = displayAsHex ? bytes : null;
+            // only retain bytes if needed for displaying as hex, and copy them since the array can
+            // be modified by the application after it is bound
+            this.bytes = displayAsHex ? bytes.clone() : null;
         }
         @Override
         public String toString() {
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+// single pass lexer that replaces numeric and string literals with '?', and lists of literals
+// following IN with '(?)', so that non-prepared statements that only differ by their inlined
+// literals are aggregated as a single query
+//
+// quoted identifiers and comments are copied as is, and the original string is returned (without
+// any allocation) when there is nothing to replace
+//
+// backslash is an escape character inside escape strings (E'...'), but whether it is an escape
+// character inside standard strings depends on the database (e.g. it is by default in mysql), so
+// the original string is also returned when a quote inside a standard string follows a backslash,
+// instead of guessing where that string ends
+class SqlNormalizer {
+
+    private SqlNormalizer() {}
+
+    static String normalize(String sql) {
+        return normalize(sql, null);
+    }
+
+    // if literals is non-null, the replaced literals are added to it (as they appear in the sql)
+    static String normalize(String sql, @Nullable List<String> literals) {
+        int length = sql.length();
+        int literalCount = literals == null ? 0 : literals.size();
+        StringBuilder sb = null;
+        int copiedUpTo = 0;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                int end = skipString(sql, i, false);
+                if (end == -1) {
+                    return ambiguous(sql, literals, literalCount);
+                }
+                sb = replace(sb, sql, copiedUpTo, i, end, "?", literals);
+                copiedUpTo = end;
+                i = end;
+            } else if (c == '"' || c == '`') {
+                i = skipQuotedIdentifier(sql, i, c);
+            } else if (c == '-' && startsWith(sql, i, '-', '-')) {
+                i = skipLineComment(sql, i);
+            } else if (c == '/' && startsWith(sql, i, '/', '*')) {
+                i = skipBlockComment(sql, i);
+            } else if (isNumberStart(sql, i)) {
+                int end = skipNumber(sql, i);
+                if (end == -1) {
+                    // e.g. mysql allows identifiers that start with a digit
+                    i = skipIdentifier(sql, i);
+                } else {
+                    sb = replace(sb, sql, copiedUpTo, i, end, "?", literals);
+                    copiedUpTo = end;
+                    i = end;
+                }
+            } else if (isIdentifierPart(c)) {
+                int end = skipIdentifier(sql, i);
+                if (end == i + 1 && end < length && sql.charAt(end) == '\''
+                        && isStringPrefix(c)) {
+                    // e.g. N'...' or X'...'
+                    end = skipString(sql, end, c == 'E' || c == 'e');
+                    if (end == -1) {
+                        return ambiguous(sql, literals, literalCount);
+                    }
+                    sb = replace(sb, sql, copiedUpTo, i, end, "?", literals);
+                    copiedUpTo = end;
+                } else if (end == i + 2 && sql.regionMatches(true, i, "in", 0, 2)) {
+                    int listStart = skipWhitespace(sql, end);
+                    int listEnd = skipInList(sql, listStart);
+                    if (listEnd != -1) {
+                        sb = replace(sb, sql, copiedUpTo, listStart, listEnd, "(?)", null);
+                        if (literals != null) {
+                            addInListLiterals(sql, listStart, listEnd, literals);
+                        }
+                        copiedUpTo = listEnd;
+                        end = listEnd;
+                    }
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        if (sb == null) {
+            return sql;
+        }
+        sb.append(sql, copiedUpTo, length);
+        return sb.toString();
+    }
+
+    private static String ambiguous(String sql, @Nullable List<String> literals,
+            int literalCount) {
+        if (literals != null) {
+            literals.subList(literalCount, literals.size()).clear();
+        }
+        return sql;
+    }
+
+    private static StringBuilder replace(@Nullable StringBuilder sb, String sql, int copiedUpTo,
+            int start, int end, String replacement, @Nullable List<String> literals) {
+        if (sb == null) {
+            sb = new StringBuilder(sql.length());
+        }
+        sb.append(sql, copiedUpTo, start);
+        sb.append(replacement);
+        if (literals != null) {
+            literals.add(sql.substring(start, end));
+        }
+        return sb;
+    }
+
+    // returns -1 if not a list of literals, e.g. a sub-query
+    private static int skipInList(String sql, int i) {
+        int length = sql.length();
+        if (i == length || sql.charAt(i) != '(') {
+            return -1;
+        }
+        i++;
+        while (true) {
+            i = skipWhitespace(sql, i);
+            int end = skipInListElement(sql, i);
+            if (end == -1) {
+                return -1;
+            }
+            i = skipWhitespace(sql, end);
+            if (i == length) {
+                return -1;
+            }
+            char c = sql.charAt(i);
+            if (c == ')') {
+                return i + 1;
+            }
+            if (c != ',') {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    private static void addInListLiterals(String sql, int listStart, int listEnd,
+            List<String> literals) {
+        // list has already been validated by skipInList()
+        int i = listStart + 1;
+        while (i < listEnd - 1) {
+            i = skipWhitespace(sql, i);
+            int end = skipInListElement(sql, i);
+            if (sql.charAt(i) != '?') {
+                literals.add(sql.substring(i, end));
+            }
+            i = skipWhitespace(sql, end) + 1;
+        }
+    }
+
+    // returns -1 if not a literal or bind parameter
+    private static int skipInListElement(String sql, int i) {
+        int length = sql.length();
+        if (i == length) {
+            return -1;
+        }
+        char c = sql.charAt(i);
+        if (c == '?') {
+            return i + 1;
+        }
+        if (c == '\'') {
+            return skipString(sql, i, false);
+        }
+        if (isStringPrefix(c) && i + 1 < length && sql.charAt(i + 1) == '\'') {
+            return skipString(sql, i + 1, c == 'E' || c == 'e');
+        }
+        if ((c == '-' || c == '+') && isNumberStart(sql, i + 1)) {
+            return skipNumber(sql, i + 1);
+        }
+        if (isNumberStart(sql, i)) {
+            return skipNumber(sql, i);
+        }
+        return -1;
+    }
+
+    // i is the index of the opening quote
+    //
+    // returns -1 if not backslashEscapes and a quote follows a backslash, since then the end of the
+    // string depends on the database
+    private static int skipString(String sql, int i, boolean backslashEscapes) {
+        int length = sql.length();
+        int j = i + 1;
+        while (j < length) {
+            char c = sql.charAt(j);
+            if (c == '\\') {
+                if (backslashEscapes) {
+                    j += 2;
+                    continue;
+                }
+                if (j + 1 < length && sql.charAt(j + 1) == '\'') {
+                    return -1;
+                }
+            } else if (c == '\'') {
+                if (j + 1 < length && sql.charAt(j + 1) == '\'') {
+                    // escaped quote
+                    j += 2;
+                    continue;
+                }
+                return j + 1;
+            }
+            j++;
+        }
+        return length;
+    }
+
+    private static int skipQuotedIdentifier(String sql, int i, char quote) {
+        int end = sql.indexOf(quote, i + 1);
+        return end == -1 ? sql.length() : end + 1;
+    }
+
+    private static int skipLineComment(String sql, int i) {
+        int end = sql.indexOf('\n', i + 2);
+        return end == -1 ? sql.length() : end + 1;
+    }
+
+    private static int skipBlockComment(String sql, int i) {
+        int end = sql.indexOf("*/", i + 2);
+        return end == -1 ? sql.length() : end + 2;
+    }
+
+    // returns -1 if the number runs into identifier characters
+    private static int skipNumber(String sql, int i) {
+        int length = sql.length();
+        int j = i;
+        if (sql.charAt(j) == '0' && j + 2 < length && (sql.charAt(j + 1) == 'x'
+                || sql.charAt(j + 1) == 'X') && isHexDigit(sql.charAt(j + 2))) {
+            j += 2;
+            while (j < length && isHexDigit(sql.charAt(j))) {
+                j++;
+            }
+        } else {
+            j = skipDigits(sql, j);
+            if (j < length && sql.charAt(j) == '.') {
+                j = skipDigits(sql, j + 1);
+            }
+            if (j + 1 < length && (sql.charAt(j) == 'e' || sql.charAt(j) == 'E')) {
+                int k = j + 1;
+                if (sql.charAt(k) == '-' || sql.charAt(k) == '+') {
+                    k++;
+                }
+                if (k < length && isDigit(sql.charAt(k))) {
+                    j = skipDigits(sql, k);
+                }
+            }
+        }
+        if (j < length && isIdentifierPart(sql.charAt(j))) {
+            return -1;
+        }
+        return j;
+    }
+
+    private static int skipDigits(String sql, int i) {
+        int length = sql.length();
+        while (i < length && isDigit(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipIdentifier(String sql, int i) {
+        int length = sql.length();
+        while (i < length && isIdentifierPart(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipWhitespace(String sql, int i) {
+        int length = sql.length();
+        while (i < length && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWith(String sql, int i, char c1, char c2) {
+        return i + 1 < sql.length() && sql.charAt(i) == c1 && sql.charAt(i + 1) == c2;
+    }
+
+    private static boolean isNumberStart(String sql, int i) {
+        if (i >= sql.length()) {
+            return false;
+        }
+        char c = sql.charAt(i);
+        return isDigit(c) || c == '.' && i + 1 < sql.length() && isDigit(sql.charAt(i + 1));
+    }
+
+    private static boolean isStringPrefix(char c) {
+        // national character (N'...'), hex (X'...'), bit (B'...') and escape (E'...') strings
+        return c == 'N' || c == 'n' || c == 'X' || c == 'x' || c == 'B' || c == 'b' || c == 'E'
+                || c == 'e';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+}
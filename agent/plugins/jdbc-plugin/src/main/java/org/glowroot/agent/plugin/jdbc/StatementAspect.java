@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -43,9 +43,7 @@ import org.glowroot.agent.plugin.api.weaving.OnThrow;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.plugin.jdbc.PreparedStatementMirror.ByteArrayParameterValue;
 import org.glowroot.agent.plugin.jdbc.PreparedStatementMirror.StreamingParameterValue;
-import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier;
 import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier2;
-import org.glowroot.agent.plugin.jdbc.message.PreparedStatementMessageSupplier;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -59,6 +57,8 @@ public class StatementAspect {
 
     private static final BooleanProperty captureBindParameters =
             configService.getBooleanProperty("captureBindParameters");
+    private static final BooleanProperty normalizeStatementLiterals =
+            configService.getBooleanProperty("normalizeStatementLiterals");
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
 
@@ -297,8 +297,15 @@ public class StatementAspect {
                 // this shouldn't happen since just checked hasGlowrootStatementMirror() above
                 return null;
             }
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql,
-                    QueryMessageSupplier.create("jdbc execution: "), timerName);
+            QueryEntry query;
+            if (normalizeStatementLiterals.value()) {
+                // the literals are then displayed in the trace entry instead of in the query text
+                query = context.startQueryEntry(QUERY_TYPE, SqlNormalizer.normalize(sql),
+                        new NormalizedStatementMessageSupplier(sql), timerName);
+            } else {
+                query = context.startQueryEntry(QUERY_TYPE, sql,
+                        QueryMessageSupplier.create("jdbc execution: "), timerName);
+            }
             mirror.setLastQuery(query);
             return query;
         }
@@ -407,13 +414,13 @@ public class StatementAspect {
             QueryMessageSupplier queryMessageSupplier;
             String queryText = mirror.getSql();
             if (captureBindParameters.value()) {
-                queryMessageSupplier =
-                        new PreparedStatementMessageSupplier(mirror.getParametersCopy());
+                queryMessageSupplier = mirror.createMessageSupplier();
             } else {
                 queryMessageSupplier = QueryMessageSupplier.create("jdbc execution: ");
             }
             QueryEntry queryEntry =
                     context.startQueryEntry(QUERY_TYPE, queryText, queryMessageSupplier, timerName);
+            mirror.onQueryEntryStarted(queryEntry);
             mirror.setLastQuery(queryEntry);
             return queryEntry;
         }
@@ -424,7 +431,14 @@ public class StatementAspect {
         }
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
+                @BindReceiver HasStatementMirror preparedStatement,
                 @BindTraveler QueryEntry queryEntry) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                // this should always be true since checked in isEnabled()
+                mirror.onQueryEntryEndWithError(queryEntry);
+            }
             queryEntry.endWithError(t);
         }
     }
@@ -459,8 +473,9 @@ public class StatementAspect {
         }
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
+                @BindReceiver HasStatementMirror preparedStatement,
                 @BindTraveler QueryEntry queryEntry) {
-            queryEntry.endWithError(t);
+            PreparedStatementExecuteAdvice.onThrow(t, preparedStatement, queryEntry);
         }
     }
 
@@ -486,8 +501,9 @@ public class StatementAspect {
         }
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
+                @BindReceiver HasStatementMirror preparedStatement,
                 @BindTraveler QueryEntry queryEntry) {
-            queryEntry.endWithError(t);
+            PreparedStatementExecuteAdvice.onThrow(t, preparedStatement, queryEntry);
         }
     }
 
@@ -525,8 +541,13 @@ public class StatementAspect {
         }
         @OnThrow
         public static void onThrow(@BindThrowable Throwable t,
+                @BindReceiver HasStatementMirror statement,
                 @BindTraveler QueryEntry queryEntry) {
-            queryEntry.endWithError(t);
+            if (statement instanceof PreparedStatement) {
+                PreparedStatementExecuteAdvice.onThrow(t, statement, queryEntry);
+            } else {
+                queryEntry.endWithError(t);
+            }
         }
         private static QueryEntry onBeforePreparedStatement(ThreadContext context,
                 PreparedStatementMirror mirror) {
@@ -534,13 +555,13 @@ public class StatementAspect {
             String queryText = mirror.getSql();
             int batchSize = mirror.getBatchSize();
             if (captureBindParameters.value()) {
-                queryMessageSupplier =
-                        new BatchPreparedStatementMessageSupplier(mirror.getBatchedParameters());
+                queryMessageSupplier = mirror.createBatchMessageSupplier();
             } else {
                 queryMessageSupplier = new BatchPreparedStatementMessageSupplier2(batchSize);
             }
             QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE, queryText, batchSize,
                     queryMessageSupplier, timerName);
+            mirror.onQueryEntryStarted(queryEntry);
             mirror.setLastQuery(queryEntry);
             mirror.clearBatch();
             return queryEntry;
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -149,6 +149,57 @@ public class BatchIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testBatchPreparedStatementWithLazyBindParameterCapture() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lazyBindParameterCapture",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecuteBatchPreparedStatement.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: 3 x ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['huckle'] ['sally'] ['sally'] => 3 rows");
+
+        entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: 2 x ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['lowly'] ['pig will'] => 2 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
+    @Test
+    public void testBatchPreparedStatementWithoutClearWithLazyBindParameterCapture()
+            throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lazyBindParameterCapture",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecuteBatchPreparedStatementWithoutClear.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: 2 x ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['huckle'] ['sally'] => 2 rows");
+
+        entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: 2 x ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['lowly'] ['pig will'] => 2 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testBatchPreparedStatementWithoutClearWithoutCaptureBindParams() throws Exception {
         // given
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,6 +17,7 @@ package org.glowroot.agent.plugin.jdbc;
 
 import java.io.ByteArrayInputStream;
 import java.io.StringReader;
+import java.lang.reflect.Field;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -25,6 +26,7 @@ import java.sql.Types;
 import java.util.Iterator;
 import java.util.List;
 
+import com.google.common.collect.Lists;
 import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.dbcp.DelegatingPreparedStatement;
 import org.junit.After;
@@ -36,6 +38,9 @@ import org.glowroot.agent.it.harness.AppUnderTest;
 import org.glowroot.agent.it.harness.Container;
 import org.glowroot.agent.it.harness.Containers;
 import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.agent.plugin.jdbc.StatementAspect.HasStatementMirror;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.Proto.OptionalInt32;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -292,6 +297,117 @@ public class PreparedStatementIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testPreparedStatementWithBinaryAndLazyBindParameterCapture() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lazyBindParameterCapture",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementWithBinary.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("insert into employee (name, misc) values (?, ?)");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['jane', 0x00010203040506070809]");
+
+        entry = i.next();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("insert /**/ into employee (name, misc) values (?, ?)");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" ['jane', {10 bytes}]");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
+    @Test
+    public void testPreparedStatementReusedWithLazyBindParameterCapture() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lazyBindParameterCapture",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementMultipleTimes.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        // more executions than there are slots in BindParameterRing, plus one execution without
+        // re-setting parameters and one after clearing parameters
+        for (int j = 0; j < 6; j++) {
+            Trace.Entry entry = i.next();
+            assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                    .getFullText()).isEqualTo("insert into employee (name) values (?)");
+            assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: ");
+            assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" ['name" + j + "']");
+        }
+        Trace.Entry entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" ['name5']");
+        entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" [NULL]");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
+    @Test
+    public void testPreparedStatementPastEntryLimitWithLazyBindParameterCapture()
+            throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lazyBindParameterCapture",
+                true);
+        container.getConfigService().updateAdvancedConfig(AdvancedConfig.newBuilder()
+                .setMaxTraceEntriesPerTransaction(OptionalInt32.newBuilder().setValue(10))
+                .build());
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementPastEntryLimit.class);
+
+        // then
+        // the app under test throws if any message supplier past the limit was materialized
+        assertThat(trace.getHeader().hasError()).isFalse();
+        assertThat(trace.getHeader().getEntryCount()).isEqualTo(10);
+        assertThat(trace.getHeader().getEntryLimitExceeded()).isTrue();
+
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(10);
+        for (int j = 0; j < 10; j++) {
+            assertThat(entries.get(j).getQueryEntryMessage().getSuffix())
+                    .isEqualTo(" ['name" + j + "']");
+        }
+    }
+
+    @Test
+    public void testPreparedStatementThrowingPastEntryLimitWithLazyBindParameterCapture()
+            throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lazyBindParameterCapture",
+                true);
+        container.getConfigService().updateAdvancedConfig(AdvancedConfig.newBuilder()
+                .setMaxTraceEntriesPerTransaction(OptionalInt32.newBuilder().setValue(10))
+                .build());
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementThrowingPastEntryLimit.class);
+
+        // then
+        assertThat(trace.getHeader().getEntryCount()).isEqualTo(11);
+        assertThat(trace.getHeader().getEntryLimitExceeded()).isTrue();
+
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(11);
+        // the escalated entry must not see parameters bound after it was executed
+        Trace.Entry entry = entries.get(10);
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" ['name14']");
+        assertThat(entry.getError().getMessage()).isEqualTo("An execute failure");
+    }
+
     @Test
     public void testPreparedStatementWithBinaryUsingSetObject() throws Exception {
         // given
@@ -690,6 +806,8 @@ public class PreparedStatementIT {
                 preparedStatement2.setString(1, "jane");
                 preparedStatement2.setBytes(2, bytes);
                 preparedStatement2.execute();
+                // modifying the array after it is bound should not affect captured parameter
+                bytes[0] = (byte) 10;
             } finally {
                 preparedStatement.close();
                 preparedStatement2.close();
@@ -697,6 +815,139 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementMultipleTimes
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement("insert into employee (name) values (?)");
+            try {
+                for (int i = 0; i < 6; i++) {
+                    preparedStatement.setString(1, "name" + i);
+                    preparedStatement.execute();
+                }
+                preparedStatement.execute();
+                preparedStatement.clearParameters();
+                preparedStatement.setNull(1, Types.VARCHAR);
+                preparedStatement.execute();
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
+    public static class ExecutePreparedStatementPastEntryLimit
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement("insert into employee (name) values (?)");
+            List<Object> messageSuppliers = Lists.newArrayList();
+            try {
+                // many more executions than there are slots in BindParameterRing
+                for (int i = 0; i < 100; i++) {
+                    preparedStatement.setString(1, "name" + i);
+                    preparedStatement.execute();
+                    messageSuppliers.add(getLastMessageSupplier(preparedStatement));
+                }
+            } finally {
+                preparedStatement.close();
+            }
+            for (int i = 0; i < messageSuppliers.size(); i++) {
+                boolean materialized =
+                        getFieldValue(messageSuppliers.get(i), "materialized") != null;
+                // the first 10 entries are stored and their slots have since been reused
+                if (materialized != i < 10) {
+                    throw new IllegalStateException("Unexpected materialized state for message"
+                            + " supplier of execution " + i + ": " + materialized);
+                }
+            }
+        }
+        private static Object getLastMessageSupplier(PreparedStatement preparedStatement)
+                throws Exception {
+            Object mirror =
+                    ((HasStatementMirror) preparedStatement).glowroot$getStatementMirror();
+            Object bindParameterRing = getFieldValue(mirror, "bindParameterRing");
+            Object slot = getFieldValue(bindParameterRing, "curr");
+            Object messageSupplier = getFieldValue(slot, "owner");
+            if (messageSupplier == null) {
+                throw new IllegalStateException("Message supplier was released from its slot");
+            }
+            return messageSupplier;
+        }
+        private static Object getFieldValue(Object obj, String fieldName)
+                throws Exception {
+            Field field = obj.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field.get(obj);
+        }
+    }
+
+    public static class ExecutePreparedStatementThrowingPastEntryLimit
+            implements AppUnderTest, TransactionMarker {
+        private Connection delegatingConnection;
+        @Override
+        public void executeApp() throws Exception {
+            Connection connection = Connections.createConnection();
+            delegatingConnection = new DelegatingConnection(connection) {
+                @Override
+                public PreparedStatement prepareStatement(String sql) throws SQLException {
+                    return new DelegatingPreparedStatement(this, super.prepareStatement(sql)) {
+                        private int executionCount;
+                        @Override
+                        public boolean execute() throws SQLException {
+                            if (executionCount++ == 14) {
+                                throw new SQLException("An execute failure");
+                            }
+                            return super.execute();
+                        }
+                    };
+                }
+            };
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement =
+                    delegatingConnection.prepareStatement("insert into employee (name) values (?)");
+            try {
+                for (int i = 0; i < 20; i++) {
+                    preparedStatement.setString(1, "name" + i);
+                    try {
+                        preparedStatement.execute();
+                    } catch (SQLException e) {
+                    }
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementWithBinaryUsingSetObject
             implements AppUnderTest, TransactionMarker {
         static {
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.glowroot.agent.config.AdvancedConfig;
+import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.QueryData;
+import org.glowroot.agent.model.QueryDataMap;
+
+// each transaction* benchmark invocation simulates the query aggregation of one transaction that
+// executes non-prepared statements with inlined literals: per-transaction QueryDataMap lookups
+// (see ThreadContextImpl), merging into the per-interval QueryCollector (see AggregateCollector),
+// and every INTERVAL_TRANSACTIONS transactions, the sha1 hashing of long query texts that
+// QueryCollector.mergeQueriesInto() performs when the interval is stored (this is replicated here
+// since glowroot-common is shaded inside the agent jar on this classpath)
+//
+// the normalize benchmark isolates the cost of the lexer itself
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SqlNormalizerBenchmark {
+
+    private static final int DISTINCT_STATEMENTS = 100000;
+    private static final int QUERIES_PER_TRANSACTION = 20;
+    private static final int INTERVAL_TRANSACTIONS = 1000;
+    // same as the default maxAggregateQueriesPerType
+    private static final int MAX_AGGREGATE_QUERIES_PER_TYPE = 500;
+    // same as StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE
+    private static final int AGGREGATE_QUERY_TEXT_TRUNCATE = 120;
+
+    private String[] sqls;
+    private int nextIndex;
+    private int transactionCount;
+
+    private QueryCollector intervalQueries;
+    private Set<String> intervalQueryTexts;
+
+    @Setup
+    public void setup() {
+        sqls = new String[DISTINCT_STATEMENTS];
+        for (int i = 0; i < DISTINCT_STATEMENTS; i++) {
+            // long enough to exceed StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE
+            sqls[i] = "select e.id, e.name, e.email, e.department_id, e.manager_id, e.created_at"
+                    + " from employee e where e.id = " + (100000 + i)
+                    + " and e.status = 'active-" + (i % 7) + "' and e.department_id in ("
+                    + (i % 13) + ", " + (i % 17) + ", " + (i % 19) + ")";
+        }
+        intervalQueries = newIntervalQueryCollector();
+        intervalQueryTexts = Sets.newHashSet();
+    }
+
+    @Benchmark
+    public String normalize() {
+        return SqlNormalizer.normalize(nextSql());
+    }
+
+    @Benchmark
+    public Object transactionWithoutNormalization() {
+        return transaction(false);
+    }
+
+    @Benchmark
+    public Object transactionWithNormalization() {
+        return transaction(true);
+    }
+
+    private Object transaction(boolean normalize) {
+        QueryDataMap queriesForType = new QueryDataMap("SQL");
+        QueryData headQueryData = null;
+        for (int i = 0; i < QUERIES_PER_TRANSACTION; i++) {
+            String sql = nextSql();
+            String queryText = normalize ? SqlNormalizer.normalize(sql) : sql;
+            QueryData queryData = queriesForType.get(queryText);
+            if (queryData == null) {
+                queryData = new QueryData("SQL", queryText, headQueryData);
+                queriesForType.put(queryText, queryData);
+                headQueryData = queryData;
+            }
+            queryData.start(0, 1);
+        }
+        QueryData curr = headQueryData;
+        while (curr != null) {
+            intervalQueries.mergeQuery(curr.getQueryType(), curr.getQueryText(),
+                    curr.getTotalDurationNanos(), curr.getExecutionCount(), curr.hasTotalRows(),
+                    curr.getTotalRows());
+            intervalQueryTexts.add(curr.getQueryText());
+            curr = curr.getNextQueryData();
+        }
+        if (++transactionCount == INTERVAL_TRANSACTIONS) {
+            long hashes = 0;
+            // QueryCollector retains at most this many queries per type
+            int remaining = MAX_AGGREGATE_QUERIES_PER_TYPE
+                    * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
+            for (String queryText : intervalQueryTexts) {
+                if (remaining-- == 0) {
+                    break;
+                }
+                if (queryText.length() > AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                    hashes += Hashing.sha1().hashString(queryText, Charsets.UTF_8).asLong();
+                }
+            }
+            intervalQueries = newIntervalQueryCollector();
+            intervalQueryTexts = Sets.newHashSet();
+            transactionCount = 0;
+            return hashes;
+        }
+        return queriesForType;
+    }
+
+    private String nextSql() {
+        String sql = sqls[nextIndex++];
+        if (nextIndex == sqls.length) {
+            nextIndex = 0;
+        }
+        return sql;
+    }
+
+    private static QueryCollector newIntervalQueryCollector() {
+        return new QueryCollector(MAX_AGGREGATE_QUERIES_PER_TYPE,
+                AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER, false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SqlNormalizerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizerTest {
+
+    @Test
+    public void shouldReturnSameInstanceWhenNothingToReplace() {
+        // given
+        String sql = "select * from employee where name = ? and \"col 1\" = t.col2";
+        // when
+        String normalized = SqlNormalizer.normalize(sql);
+        // then
+        assertThat(normalized).isSameAs(sql);
+    }
+
+    @Test
+    public void shouldReplaceNumbers() {
+        assertThat(SqlNormalizer.normalize("select * from t where a = 12345 and b > 1.5e-3"))
+                .isEqualTo("select * from t where a = ? and b > ?");
+        assertThat(SqlNormalizer.normalize("select * from t where a = .5 or b = 0x1F"))
+                .isEqualTo("select * from t where a = ? or b = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where a = -1"))
+                .isEqualTo("select * from t where a = -?");
+    }
+
+    @Test
+    public void shouldNotReplaceDigitsInIdentifiers() {
+        assertThat(SqlNormalizer.normalize("select col1, 2col from table2 t2"))
+                .isEqualTo("select col1, 2col from table2 t2");
+    }
+
+    @Test
+    public void shouldReplaceStrings() {
+        assertThat(SqlNormalizer.normalize("select * from t where a = 'it''s' and b = N'x'"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(SqlNormalizer.normalize("update t set a = 'unterminated"))
+                .isEqualTo("update t set a = ?");
+    }
+
+    @Test
+    public void shouldReplaceEscapeStrings() {
+        assertThat(SqlNormalizer.normalize("select * from t where a = E'it\\'s' and b = 5"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where a = e'x\\\\' and b = 'y'"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where a in (E'\\'', 'y')"))
+                .isEqualTo("select * from t where a in (?)");
+    }
+
+    @Test
+    public void shouldNotNormalizeWhenStringEndsAfterBackslash() {
+        // given
+        String sql = "select * from t where a = 'it\\'s' and b = 5";
+        String sql2 = "select * from t where c = 1 and a in ('x', N'\\'') and b = 5";
+        List<String> literals = Lists.newArrayList();
+        // when
+        String normalized = SqlNormalizer.normalize(sql);
+        String normalized2 = SqlNormalizer.normalize(sql2, literals);
+        // then
+        assertThat(normalized).isSameAs(sql);
+        assertThat(normalized2).isSameAs(sql2);
+        assertThat(literals).isEmpty();
+    }
+
+    @Test
+    public void shouldReplaceStringsContainingBackslash() {
+        assertThat(SqlNormalizer.normalize("select * from t where a = 'c:\\dir' and b = 5"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+    }
+
+    @Test
+    public void shouldNotReplaceInsideQuotedIdentifiersAndComments() {
+        assertThat(SqlNormalizer.normalize(
+                "select \"a'1\", `b 2` from t /* 'x' 3 */ where a = 4 -- 'y' 5\nand b = 6"))
+                .isEqualTo("select \"a'1\", `b 2` from t /* 'x' 3 */ where a = ? -- 'y' 5\n"
+                        + "and b = ?");
+    }
+
+    @Test
+    public void shouldReplaceInLists() {
+        assertThat(SqlNormalizer.normalize("select * from t where a in (1, 2, 3)"))
+                .isEqualTo("select * from t where a in (?)");
+        assertThat(SqlNormalizer.normalize("select * from t where a not IN('x','y') and b = 1"))
+                .isEqualTo("select * from t where a not IN(?) and b = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where a in (-1, ?, +2.5)"))
+                .isEqualTo("select * from t where a in (?)");
+    }
+
+    @Test
+    public void shouldNotReplaceInSubQuery() {
+        assertThat(SqlNormalizer.normalize(
+                "select * from t where a in (select b from u where c = 1)"))
+                .isEqualTo("select * from t where a in (select b from u where c = ?)");
+        assertThat(SqlNormalizer.normalize("select * from t where a in (1, b)"))
+                .isEqualTo("select * from t where a in (?, b)");
+    }
+
+    @Test
+    public void shouldCollectLiterals() {
+        // given
+        List<String> literals = Lists.newArrayList();
+        // when
+        SqlNormalizer.normalize("select * from t where a = 'x' and b in (1, ?, 'y') and c = 2.5",
+                literals);
+        // then
+        assertThat(literals).containsExactly("'x'", "1", "'y'", "2.5");
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -39,6 +39,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class StatementIT {
 
+    private static final String PLUGIN_ID = "jdbc";
+
     private static Container container;
 
     @BeforeClass
@@ -76,6 +78,38 @@ public class StatementIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testStatementWithNormalizedLiterals() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeStatementLiterals",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecuteStatementsWithLiterals.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        assertThat(sharedQueryTexts).hasSize(1);
+        assertThat(sharedQueryTexts.get(0).getFullText())
+                .isEqualTo("select * from employee where name like ? or name in (?)");
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getSharedQueryTextIndex()).isEqualTo(0);
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['john%', 'x', 'y'] => 1 row");
+
+        entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getSharedQueryTextIndex()).isEqualTo(0);
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execution: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['%doe', 'x', 'y', 'z'] => 3 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testStatementQuery() throws Exception {
         // when
@@ -297,6 +331,36 @@ public class StatementIT {
         }
     }
 
+    public static class ExecuteStatementsWithLiterals implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                iterateOverResults(statement.executeQuery(
+                        "select * from employee where name like 'john%' or name in ('x', 'y')"));
+                iterateOverResults(statement.executeQuery("select * from employee"
+                        + " where name like '%doe' or name in ('x', 'y', 'z')"));
+            } finally {
+                statement.close();
+            }
+        }
+        private static void iterateOverResults(ResultSet rs) throws SQLException {
+            while (rs.next()) {
+                rs.getString(1);
+            }
+        }
+    }
+
     public static class ExecuteStatementQueryAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
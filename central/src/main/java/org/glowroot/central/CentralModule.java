@@ -17,6 +17,7 @@ package org.glowroot.central;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import java.nio.file.Paths;
 import java.security.CodeSource;
@@ -24,6 +25,7 @@ import java.util.List;
 import java.util.Properties;
 
 import javax.annotation.Nullable;
+import javax.management.ObjectName;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
@@ -45,6 +47,8 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.AggregateDao.AggregateListener;
+import org.glowroot.central.repo.CentralNodeDao;
 import org.glowroot.central.repo.CentralConfigDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.ConfigRepositoryImpl.ConfigListener;
@@ -59,6 +63,7 @@ import org.glowroot.central.repo.TransactionTypeDao;
 import org.glowroot.central.repo.TriggeredAlertDao;
 import org.glowroot.central.repo.UserDao;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteBatcher;
 import org.glowroot.common.config.ImmutableWebConfig;
 import org.glowroot.common.config.WebConfig;
 import org.glowroot.common.live.LiveAggregateRepository.LiveAggregateRepositoryNop;
@@ -66,6 +71,7 @@ import org.glowroot.common.repo.RepoAdmin;
 import org.glowroot.common.repo.util.AlertingService;
 import org.glowroot.common.repo.util.MailService;
 import org.glowroot.common.repo.util.RollupLevelService;
+import org.glowroot.common.repo.util.StreamingAlertWindows;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.common.util.Version;
@@ -77,6 +83,11 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CentralModule {
 
+    private static final String WRITE_BATCHER_OBJECT_NAME =
+            "org.glowroot.central:type=WriteBatcher";
+    private static final String SEALED_AGGREGATE_CACHE_OBJECT_NAME =
+            "org.glowroot.central:type=SealedAggregateCache";
+
     private static final Logger startupLogger;
 
     static {
@@ -170,8 +181,10 @@ class CentralModule {
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository);
             FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
-            AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
+            WriteBatcher writeBatcher = new WriteBatcher(session);
+            registerMBean(writeBatcher, WRITE_BATCHER_OBJECT_NAME);
+            AggregateDao aggregateDao = new AggregateDao(session, writeBatcher, agentDao,
+                    transactionTypeDao, fullQueryTextDao, configRepository, clock);
             TraceAttributeNameDao traceAttributeNameDao =
                     new TraceAttributeNameDao(session, configRepository);
             TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
@@ -179,11 +192,13 @@ class CentralModule {
             GaugeValueDao gaugeValueDao =
                     new GaugeValueDao(session, agentDao, configRepository, clock);
             HeartbeatDao heartbeatDao = new HeartbeatDao(session, clock);
+            CentralNodeDao centralNodeDao = new CentralNodeDao(session, clock);
             TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(session, configRepository);
             RollupLevelService rollupLevelService = new RollupLevelService(configRepository, clock);
+            StreamingAlertWindows streamingAlertWindows = new StreamingAlertWindows();
             AlertingService alertingService = new AlertingService(configRepository,
                     triggeredAlertDao, aggregateDao, gaugeValueDao, rollupLevelService,
-                    new MailService());
+                    new MailService(), streamingAlertWindows);
 
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
@@ -192,7 +207,7 @@ class CentralModule {
 
             server = new GrpcServer(centralConfig.grpcBindAddress(), centralConfig.grpcPort(),
                     agentDao, aggregateDao, gaugeValueDao, heartbeatDao, traceDao, configRepository,
-                    alertingService, clock, version);
+                    alertingService, streamingAlertWindows, writeBatcher, clock, version);
             DownstreamServiceImpl downstreamService = server.getDownstreamService();
             configRepository.addConfigListener(new ConfigListener() {
                 @Override
@@ -202,7 +217,9 @@ class CentralModule {
                 }
             });
             rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao, heartbeatDao,
-                    configRepository, alertingService, downstreamService, clock);
+                    centralNodeDao, configRepository, alertingService, downstreamService,
+                    centralConfig.rollupNodes(), centralConfig.rollupNodeName(),
+                    centralConfig.rollupThreads(), clock);
 
             uiModule = new CreateUiModuleBuilder()
                     .central(true)
@@ -226,6 +243,17 @@ class CentralModule {
                     .numWorkerThreads(50)
                     .version(version)
                     .build();
+            UiModule centralUiModule = uiModule;
+            aggregateDao.addAggregateListener(new AggregateListener() {
+                @Override
+                public void onStore(String agentRollupId, int rollupLevel, long intervalMillis,
+                        long captureTime) {
+                    centralUiModule.invalidateSealedAggregates(agentRollupId, rollupLevel,
+                            intervalMillis, captureTime);
+                }
+            });
+            registerMBean(checkNotNull(uiModule.getSealedAggregateCache()),
+                    SEALED_AGGREGATE_CACHE_OBJECT_NAME);
         } catch (Throwable t) {
             startupLogger.error(t.getMessage(), t);
             // try to shut down cleanly, otherwise apache commons daemon (via Bootstrap) doesn't
@@ -262,12 +290,33 @@ class CentralModule {
             rollupService.close();
             session.close();
             cluster.close();
+            unregisterMBean(WRITE_BATCHER_OBJECT_NAME);
+            unregisterMBean(SEALED_AGGREGATE_CACHE_OBJECT_NAME);
             startupLogger.info("shutdown complete");
         } catch (Throwable t) {
             startupLogger.error("error during shutdown: {}", t.getMessage(), t);
         }
     }
 
+    private static void registerMBean(Object mbean, String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                    ObjectName.getInstance(objectName));
+        } catch (Exception e) {
+            // not critical, only used for monitoring
+            startupLogger.warn("could not register mbean {}: {}", objectName, e.getMessage(), e);
+        }
+    }
+
+    private static void unregisterMBean(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(ObjectName.getInstance(objectName));
+        } catch (Exception e) {
+            startupLogger.debug(e.getMessage(), e);
+        }
+    }
+
     private static CentralConfiguration getCentralConfiguration() throws IOException {
         ImmutableCentralConfiguration.Builder builder = ImmutableCentralConfiguration.builder();
         File propFile = new File("glowroot-central.properties");
@@ -310,6 +359,19 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(uiPortText)) {
             builder.uiPortOverride(Integer.parseInt(uiPortText));
         }
+        String rollupNodes = props.getProperty("rollup.nodes");
+        if (!Strings.isNullOrEmpty(rollupNodes)) {
+            builder.rollupNodes(Splitter.on(',').trimResults().omitEmptyStrings()
+                    .splitToList(rollupNodes));
+        }
+        String rollupNodeName = props.getProperty("rollup.nodeName");
+        if (!Strings.isNullOrEmpty(rollupNodeName)) {
+            builder.rollupNodeName(rollupNodeName);
+        }
+        String rollupThreadsText = props.getProperty("rollup.threads");
+        if (!Strings.isNullOrEmpty(rollupThreadsText)) {
+            builder.rollupThreads(Integer.parseInt(rollupThreadsText));
+        }
         return builder.build();
     }
 
@@ -381,6 +443,19 @@ class CentralModule {
         }
         abstract @Nullable String uiBindAddressOverride();
         abstract @Nullable Integer uiPortOverride();
+        @Value.Default
+        @SuppressWarnings("immutables")
+        List<String> rollupNodes() {
+            return ImmutableList.of();
+        }
+        @Value.Default
+        String rollupNodeName() {
+            return "";
+        }
+        @Value.Default
+        int rollupThreads() {
+            return 8;
+        }
     }
 
     private static class NopRepoAdmin implements RepoAdmin {
@@ -17,18 +17,24 @@ package org.glowroot.central;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.datastax.driver.core.ResultSetFuture;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
@@ -41,15 +47,17 @@ import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.WriteBatcher;
 import org.glowroot.common.config.SmtpConfig;
 import org.glowroot.common.repo.util.AlertingService;
+import org.glowroot.common.repo.util.StreamingAlertWindows;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
-import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
@@ -80,6 +88,10 @@ class GrpcServer {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // maximum number of aggregate stream messages (per stream) with cassandra writes in flight
+    // before further messages are no longer requested from the agent
+    private static final int MAX_PENDING_AGGREGATE_WRITES = 16;
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
@@ -87,6 +99,8 @@ class GrpcServer {
     private final TraceDao traceDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
+    private final StreamingAlertWindows streamingAlertWindows;
+    private final WriteBatcher writeBatcher;
     private final Clock clock;
     private final String version;
 
@@ -101,7 +115,8 @@ class GrpcServer {
 
     GrpcServer(String bindAddress, int port, AgentDao agentDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, HeartbeatDao heartbeatDao, TraceDao traceDao,
-            ConfigRepositoryImpl configRepository, AlertingService alertingService, Clock clock,
+            ConfigRepositoryImpl configRepository, AlertingService alertingService,
+            StreamingAlertWindows streamingAlertWindows, WriteBatcher writeBatcher, Clock clock,
             String version) throws IOException {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
@@ -110,6 +125,8 @@ class GrpcServer {
         this.traceDao = traceDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
+        this.streamingAlertWindows = streamingAlertWindows;
+        this.writeBatcher = writeBatcher;
         this.clock = clock;
         this.version = version;
 
@@ -181,72 +198,12 @@ class GrpcServer {
         @Override
         public StreamObserver<AggregateStreamMessage> collectAggregateStream(
                 final StreamObserver<AggregateResponseMessage> responseObserver) {
-            return new StreamObserver<AggregateStreamMessage>() {
-
-                private @MonotonicNonNull AggregateStreamHeader header;
-                private List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
-                private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap =
-                        Maps.newHashMap();
-
-                @Override
-                public void onNext(AggregateStreamMessage value) {
-                    switch (value.getMessageCase()) {
-                        case HEADER:
-                            header = value.getHeader();
-                            break;
-                        case SHARED_QUERY_TEXT:
-                            sharedQueryTexts.add(value.getSharedQueryText());
-                            break;
-                        case OVERALL_AGGREGATE:
-                            OverallAggregate overallAggregate = value.getOverallAggregate();
-                            String transactionType = overallAggregate.getTransactionType();
-                            aggregatesByTypeMap.put(transactionType,
-                                    OldAggregatesByType.newBuilder()
-                                            .setTransactionType(transactionType)
-                                            .setOverallAggregate(overallAggregate.getAggregate()));
-                            break;
-                        case TRANSACTION_AGGREGATE:
-                            TransactionAggregate transactionAggregate =
-                                    value.getTransactionAggregate();
-                            OldAggregatesByType.Builder builder = checkNotNull(aggregatesByTypeMap
-                                    .get(transactionAggregate.getTransactionType()));
-                            builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
-                                    .setTransactionName(transactionAggregate.getTransactionName())
-                                    .setAggregate(transactionAggregate.getAggregate())
-                                    .build());
-                            break;
-                        default:
-                            throw new RuntimeException(
-                                    "Unexpected message: " + value.getMessageCase());
-                    }
-                }
-
-                @Override
-                public void onError(Throwable t) {
-                    if (header == null) {
-                        logger.error(t.getMessage(), t);
-                    } else {
-                        logger.error("{} - {}", getAgentRollupDisplay(header.getAgentId()),
-                                t.getMessage(), t);
-                    }
-                }
-
-                @Instrumentation.Transaction(transactionType = "gRPC",
-                        transactionName = "Aggregates",
-                        traceHeadline = "Collect aggregates: {{this.header.agentId}}",
-                        timer = "aggregates")
-                @Override
-                public void onCompleted() {
-                    checkNotNull(header);
-                    List<OldAggregatesByType> aggregatesByTypeList = Lists.newArrayList();
-                    for (OldAggregatesByType.Builder aggregatesByType : aggregatesByTypeMap
-                            .values()) {
-                        aggregatesByTypeList.add(aggregatesByType.build());
-                    }
-                    collectAggregatesInternal(header.getAgentId(), header.getCaptureTime(),
-                            sharedQueryTexts, aggregatesByTypeList, responseObserver);
-                }
-            };
+            ServerCallStreamObserver<AggregateResponseMessage> serverCallStreamObserver =
+                    (ServerCallStreamObserver<AggregateResponseMessage>) responseObserver;
+            // messages are requested by AggregateStreamObserver as cassandra keeps up with them
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            serverCallStreamObserver.request(1);
+            return new AggregateStreamObserver(serverCallStreamObserver);
         }
 
         @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Aggregates",
@@ -286,6 +243,13 @@ class GrpcServer {
                     return;
                 }
             }
+            onAggregatesStored(agentId, captureTime, aggregatesByTypeList, responseObserver);
+        }
+
+        private void onAggregatesStored(String agentId, long captureTime,
+                List<OldAggregatesByType> aggregatesByTypeList,
+                StreamObserver<AggregateResponseMessage> responseObserver) {
+            streamingAlertWindows.addAggregates(agentId, captureTime, aggregatesByTypeList);
             String agentDisplay = getAgentRollupDisplay(agentId);
             checkAlerts(agentId, agentDisplay, AlertKind.TRANSACTION,
                     (alertConfig, smtpConfig) -> checkTransactionAlert(agentId, agentDisplay,
@@ -304,7 +268,13 @@ class GrpcServer {
                 currentMinute = (long) Math.ceil(currentishTimeMillis / 60000.0) * 60000;
             }
             // spread out aggregate collections 100 milliseconds a part, rolling over at 10 seconds
-            return nextDelay.getAndAdd(100) % 10000;
+            int nextDelayMillis = nextDelay.getAndAdd(100) % 10000;
+            if (writeBatcher.isBackedUp()) {
+                // cassandra writes are backing up, so push the agent's next collection further out
+                // (agent caps the delay at 30 seconds)
+                nextDelayMillis += 20000;
+            }
+            return nextDelayMillis;
         }
 
         @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Gauges",
@@ -331,6 +301,7 @@ class GrpcServer {
                 responseObserver.onError(t);
                 return;
             }
+            streamingAlertWindows.addGaugeValues(agentId, request.getGaugeValuesList());
             String agentDisplay = agentDao.readAgentRollupDisplay(agentId);
             final long captureTime = maxCaptureTime;
             checkAlerts(agentId, agentDisplay, AlertKind.GAUGE,
@@ -527,5 +498,187 @@ class GrpcServer {
                     break;
             }
         }
+
+        // stores each aggregate as soon as it arrives instead of buffering the whole stream until
+        // onCompleted(), so that central heap usage does not depend on the number of transaction
+        // names that agents report
+        //
+        // inbound flow control is manual, and the next message is only requested right away if
+        // fewer than MAX_PENDING_AGGREGATE_WRITES messages still have cassandra writes in flight,
+        // otherwise it is requested once one of them completes, so when cassandra falls behind,
+        // the backpressure propagates through gRPC flow control all the way back to the agent
+        private class AggregateStreamObserver implements StreamObserver<AggregateStreamMessage> {
+
+            private final ServerCallStreamObserver<AggregateResponseMessage> responseObserver;
+
+            private @MonotonicNonNull AggregateStreamHeader header;
+            private final List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+            // full query text writes that must complete before writing any aggregate that could
+            // reference them
+            private final List<ResultSetFuture> sharedQueryTextFutures = Lists.newArrayList();
+            // only transaction count and duration histogram are retained from the overall
+            // aggregates (needed for the streaming alert windows)
+            private final List<OldAggregatesByType> overallAggregates = Lists.newArrayList();
+            private final List<ResultSetFuture> pendingWrites = Lists.newArrayList();
+
+            // this is decremented by cassandra driver threads
+            private final AtomicInteger pendingWriteMessageCount = new AtomicInteger();
+            private volatile boolean failed;
+
+            private AggregateStreamObserver(
+                    ServerCallStreamObserver<AggregateResponseMessage> responseObserver) {
+                this.responseObserver = responseObserver;
+            }
+
+            @Override
+            public void onNext(AggregateStreamMessage value) {
+                if (failed) {
+                    return;
+                }
+                List<ResultSetFuture> futures;
+                try {
+                    checkPendingWrites();
+                    futures = store(value);
+                } catch (Throwable t) {
+                    onStoreError(t);
+                    return;
+                }
+                pendingWrites.addAll(futures);
+                requestNextMessage(futures);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (header == null) {
+                    logger.error(t.getMessage(), t);
+                } else {
+                    logger.error("{} - {}", getAgentRollupDisplay(header.getAgentId()),
+                            t.getMessage(), t);
+                }
+            }
+
+            @Instrumentation.Transaction(transactionType = "gRPC",
+                    transactionName = "Aggregates",
+                    traceHeadline = "Collect aggregates: {{this.header.agentId}}",
+                    timer = "aggregates")
+            @Override
+            public void onCompleted() {
+                if (failed) {
+                    return;
+                }
+                checkNotNull(header);
+                String agentId = header.getAgentId();
+                long captureTime = header.getCaptureTime();
+                Set<String> transactionTypes = Sets.newHashSet();
+                for (OldAggregatesByType overallAggregate : overallAggregates) {
+                    transactionTypes.add(overallAggregate.getTransactionType());
+                }
+                try {
+                    MoreFutures.waitForAll(pendingWrites);
+                    aggregateDao.completeStore(agentId, captureTime, transactionTypes);
+                } catch (Throwable t) {
+                    onStoreError(t);
+                    return;
+                }
+                onAggregatesStored(agentId, captureTime, overallAggregates, responseObserver);
+            }
+
+            private List<ResultSetFuture> store(AggregateStreamMessage value) throws Exception {
+                switch (value.getMessageCase()) {
+                    case HEADER:
+                        header = value.getHeader();
+                        return ImmutableList.of();
+                    case SHARED_QUERY_TEXT:
+                        List<ResultSetFuture> futures = Lists.newArrayList();
+                        sharedQueryTexts.add(aggregateDao.storeSharedQueryText(
+                                checkNotNull(header).getAgentId(), value.getSharedQueryText(),
+                                futures));
+                        sharedQueryTextFutures.addAll(futures);
+                        return futures;
+                    case OVERALL_AGGREGATE:
+                        return storeOverallAggregate(value.getOverallAggregate());
+                    case TRANSACTION_AGGREGATE:
+                        return storeTransactionAggregate(value.getTransactionAggregate());
+                    default:
+                        throw new RuntimeException(
+                                "Unexpected message: " + value.getMessageCase());
+                }
+            }
+
+            private List<ResultSetFuture> storeOverallAggregate(OverallAggregate overallAggregate)
+                    throws Exception {
+                checkNotNull(header);
+                waitForSharedQueryTexts();
+                String transactionType = overallAggregate.getTransactionType();
+                Aggregate aggregate = overallAggregate.getAggregate();
+                overallAggregates.add(OldAggregatesByType.newBuilder()
+                        .setTransactionType(transactionType)
+                        .setOverallAggregate(Aggregate.newBuilder()
+                                .setTransactionCount(aggregate.getTransactionCount())
+                                .setDurationNanosHistogram(aggregate.getDurationNanosHistogram()))
+                        .build());
+                return aggregateDao.storeOverallAggregateAsync(header.getAgentId(),
+                        transactionType, header.getCaptureTime(), aggregate, sharedQueryTexts);
+            }
+
+            private List<ResultSetFuture> storeTransactionAggregate(
+                    TransactionAggregate transactionAggregate) throws Exception {
+                checkNotNull(header);
+                waitForSharedQueryTexts();
+                return aggregateDao.storeTransactionAggregateAsync(header.getAgentId(),
+                        transactionAggregate.getTransactionType(),
+                        transactionAggregate.getTransactionName(), header.getCaptureTime(),
+                        transactionAggregate.getAggregate(), sharedQueryTexts);
+            }
+
+            private void waitForSharedQueryTexts() throws Exception {
+                // wait for success before proceeding in order to ensure cannot end up with
+                // orphaned fullTextSha1
+                MoreFutures.waitForAll(sharedQueryTextFutures);
+                sharedQueryTextFutures.clear();
+            }
+
+            // surfaces failures of earlier writes, and keeps the list of pending writes bounded
+            private void checkPendingWrites() throws Exception {
+                Iterator<ResultSetFuture> i = pendingWrites.iterator();
+                while (i.hasNext()) {
+                    ResultSetFuture future = i.next();
+                    if (future.isDone()) {
+                        future.get();
+                        i.remove();
+                    }
+                }
+            }
+
+            private void requestNextMessage(List<ResultSetFuture> futures) {
+                if (futures.isEmpty()) {
+                    responseObserver.request(1);
+                    return;
+                }
+                // exactly one message is requested per message received, either here or when a
+                // pending message's writes complete
+                if (pendingWriteMessageCount.incrementAndGet() < MAX_PENDING_AGGREGATE_WRITES) {
+                    responseObserver.request(1);
+                }
+                Futures.successfulAsList(futures).addListener(() -> {
+                    if (pendingWriteMessageCount.getAndDecrement() >= MAX_PENDING_AGGREGATE_WRITES
+                            && !failed) {
+                        // request() is safe to call from any thread
+                        responseObserver.request(1);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+
+            private void onStoreError(Throwable t) {
+                failed = true;
+                if (header == null) {
+                    logger.error(t.getMessage(), t);
+                } else {
+                    logger.error("{} - {}", getAgentRollupDisplay(header.getAgentId()),
+                            t.getMessage(), t);
+                }
+                responseObserver.onError(t);
+            }
+        }
     }
 }
@@ -17,13 +17,20 @@ package org.glowroot.central;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,9 +38,11 @@ import org.glowroot.agent.api.Glowroot;
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.CentralNodeDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.util.ConsistentHashRing;
 import org.glowroot.common.config.SmtpConfig;
 import org.glowroot.common.repo.AgentRepository.AgentRollup;
 import org.glowroot.common.repo.util.AlertingService;
@@ -52,28 +61,77 @@ class RollupService implements Runnable {
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final HeartbeatDao heartbeatDao;
+    private final CentralNodeDao centralNodeDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
     private final DownstreamServiceImpl downstreamService;
     private final Clock clock;
 
+    // only non-empty when rollups are split across multiple central nodes
+    private final List<String> rollupNodes;
+    private final String rollupNodeName;
+
+    // ring is rebuilt from the live subset of rollupNodes at the start of each rollup loop, so that
+    // the work owned by a central node that goes down is taken over by the remaining nodes
+    // (these are only accessed by the rollup loop thread)
+    private List<String> liveRollupNodes;
+    private @Nullable ConsistentHashRing rollupNodeRing;
+
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+    // only non-null when rollups are split across multiple central nodes
+    private final @Nullable ScheduledExecutorService heartbeatExecutor;
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
 
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            HeartbeatDao heartbeatDao, ConfigRepositoryImpl configRepository,
-            AlertingService alertingService, DownstreamServiceImpl downstreamService, Clock clock) {
+            HeartbeatDao heartbeatDao, CentralNodeDao centralNodeDao,
+            ConfigRepositoryImpl configRepository,
+            AlertingService alertingService, DownstreamServiceImpl downstreamService,
+            List<String> rollupNodes, String rollupNodeName, int rollupThreads, Clock clock) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.heartbeatDao = heartbeatDao;
+        this.centralNodeDao = centralNodeDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.downstreamService = downstreamService;
         this.clock = clock;
+        if (rollupNodes.size() > 1) {
+            if (!rollupNodes.contains(rollupNodeName)) {
+                throw new IllegalStateException("rollup.nodeName (" + rollupNodeName
+                        + ") must be one of rollup.nodes (" + rollupNodes + ")");
+            }
+            this.rollupNodes = ImmutableList.copyOf(rollupNodes);
+            // all nodes are assumed live until the first membership read
+            liveRollupNodes = this.rollupNodes;
+            rollupNodeRing = new ConsistentHashRing(liveRollupNodes);
+        } else {
+            this.rollupNodes = ImmutableList.of();
+            liveRollupNodes = ImmutableList.of();
+            rollupNodeRing = null;
+        }
+        this.rollupNodeName = rollupNodeName;
+        if (this.rollupNodes.isEmpty()) {
+            heartbeatExecutor = null;
+        } else {
+            // heartbeat is stored from its own thread so that a rollup loop that runs longer than
+            // the heartbeat ttl does not make this node look down to the other nodes
+            heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-Central-Node-Heartbeat")
+                            .build());
+            heartbeatExecutor.scheduleWithFixedDelay(castInitialized(this)::storeHeartbeat, 0,
+                    CentralNodeDao.HEARTBEAT_INTERVAL_SECONDS, SECONDS);
+        }
+        workerExecutor = Executors.newFixedThreadPool(rollupThreads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Rollup-Worker-%d")
+                .build());
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
@@ -96,9 +154,19 @@ class RollupService implements Runnable {
         closed = true;
         // shutdownNow() is needed here to send interrupt to RollupService thread
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        if (heartbeatExecutor != null && !heartbeatExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -106,27 +174,128 @@ class RollupService implements Runnable {
             timer = "outer rollup loop")
     private void runInternal() throws InterruptedException {
         Glowroot.setTransactionOuter();
-        for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
-            checkHierarchy(agentRollup, AlertKind.TRANSACTION, this::checkTransactionAlerts);
-            checkHierarchy(agentRollup, AlertKind.GAUGE, this::checkGaugeAlerts);
-            if (stopwatch.elapsed(MINUTES) >= 4) {
-                // give agents plenty of time to re-connect after central start-up
-                // needs to be at least enough time for grpc max reconnect backoff
-                // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
-                // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
-                checkHierarchy(agentRollup, AlertKind.HEARTBEAT, this::checkHeartbeatAlerts);
+        // give agents plenty of time to re-connect after central start-up
+        // needs to be at least enough time for grpc max reconnect backoff
+        // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
+        // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
+        boolean checkHeartbeatAlerts = stopwatch.elapsed(MINUTES) >= 4;
+        if (!rollupNodes.isEmpty()) {
+            updateRollupNodeRing();
+        }
+        List<AgentRollup> agentRollups = agentDao.readAgentRollups();
+        // each top level agent rollup is owned by a single central node so that the whole
+        // hierarchy is rolled up in order on that node
+        List<CompletableFuture<Boolean>> futures = Lists.newArrayList();
+        for (AgentRollup agentRollup : agentRollups) {
+            if (isOwnedByThisNode(agentRollup)) {
+                futures.add(rollupHierarchy(agentRollup, null, checkHeartbeatAlerts));
+            }
+        }
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                logger.error(e.getMessage(), e);
             }
+        }
+        // agent config updates are only sent to agents connected to this node, so not split up
+        for (AgentRollup agentRollup : agentRollups) {
             updateAgentConfigIfConnectedAndNeeded(agentRollup);
         }
     }
 
-    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
-            throws InterruptedException {
+    // rollups are driven by the needs rollup tables, so any rollups that were missed while a node
+    // was down (before its heartbeat expired) are performed by the node that takes them over
+    private void updateRollupNodeRing() {
+        Set<String> liveNodeNames;
+        try {
+            liveNodeNames = centralNodeDao.readLiveNodeNames();
+        } catch (Exception e) {
+            // keep using the last known membership
+            logger.error(e.getMessage(), e);
+            return;
+        }
+        List<String> liveRollupNodes =
+                getLiveRollupNodes(rollupNodes, rollupNodeName, liveNodeNames);
+        if (liveRollupNodes.equals(this.liveRollupNodes)) {
+            return;
+        }
+        List<String> downRollupNodes = Lists.newArrayList(rollupNodes);
+        downRollupNodes.removeAll(liveRollupNodes);
+        if (downRollupNodes.isEmpty()) {
+            logger.info("all central nodes are live, rollups are split across: {}",
+                    liveRollupNodes);
+        } else {
+            logger.warn("no heartbeat in the last {} seconds from central node(s): {}, their"
+                    + " rollups and alert checks are being taken over by: {}",
+                    CentralNodeDao.HEARTBEAT_TTL_SECONDS, downRollupNodes, liveRollupNodes);
+        }
+        this.liveRollupNodes = liveRollupNodes;
+        rollupNodeRing = new ConsistentHashRing(liveRollupNodes);
+    }
+
+    private void storeHeartbeat() {
+        try {
+            centralNodeDao.storeHeartbeat(rollupNodeName);
+        } catch (Throwable t) {
+            // log and return successfully so it will continue to run
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private boolean isOwnedByThisNode(AgentRollup agentRollup) {
+        return rollupNodeRing == null
+                || rollupNodeRing.getNode(agentRollup.id()).equals(rollupNodeName);
+    }
+
+    // children are rolled up in parallel on the worker pool, and the parent is only rolled up
+    // once all of its children have completed, since the parent's initial roll up is done from the
+    // 1-min aggregates and gauge values of its children
+    //
+    // the returned future completes with false if gauge roll up failed for the agent rollup or any
+    // of its descendants
+    private CompletableFuture<Boolean> rollupHierarchy(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId, boolean checkHeartbeatAlerts) {
+        List<CompletableFuture<Boolean>> childFutures = Lists.newArrayList();
         for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupAggregates(childAgentRollup, agentRollup.id());
+            childFutures.add(
+                    rollupHierarchy(childAgentRollup, agentRollup.id(), checkHeartbeatAlerts));
         }
+        return CompletableFuture.allOf(childFutures.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> {
+                    boolean childGaugesSuccess = true;
+                    for (CompletableFuture<Boolean> childFuture : childFutures) {
+                        childGaugesSuccess = childGaugesSuccess && childFuture.join();
+                    }
+                    return rollupOne(agentRollup, parentAgentRollupId, childGaugesSuccess,
+                            checkHeartbeatAlerts);
+                }, workerExecutor);
+    }
+
+    private boolean rollupOne(AgentRollup agentRollup, @Nullable String parentAgentRollupId,
+            boolean childGaugesSuccess, boolean checkHeartbeatAlerts) {
+        try {
+            rollupAggregates(agentRollup, parentAgentRollupId);
+            // important to not roll up parent gauges if exception occurs while rolling up a child,
+            // since gauge values initial roll up from children is done on the 1-min aggregates of
+            // the children
+            boolean gaugesSuccess =
+                    childGaugesSuccess && rollupGauges(agentRollup, parentAgentRollupId);
+            checkTransactionAlerts(agentRollup);
+            checkGaugeAlerts(agentRollup);
+            if (checkHeartbeatAlerts) {
+                checkHeartbeatAlerts(agentRollup);
+            }
+            return gaugesSuccess;
+        } catch (InterruptedException e) {
+            // shutdown requested
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
+            throws InterruptedException {
         try {
             aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -141,19 +310,6 @@ class RollupService implements Runnable {
     // returns true on success, false on failure
     private boolean rollupGauges(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
             throws InterruptedException {
-        // important to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup, agentRollup.id());
-            success = success && childSuccess;
-        }
-        if (!success) {
-            // also important to not roll up parent if exception occurs while rolling up a child,
-            // since gauge values initial roll up from children is done on the 1-min aggregates of
-            // the children
-            return false;
-        }
         try {
             gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -167,36 +323,19 @@ class RollupService implements Runnable {
         }
     }
 
-    private void checkHierarchy(AgentRollup agentRollup, AlertKind alertKind, Consumer check)
-            throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkHierarchy(childAgentRollup, alertKind, check);
-        }
-        check.accept(agentRollup);
-    }
-
     private void checkTransactionAlerts(AgentRollup agentRollup) throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkTransactionAlerts(childAgentRollup);
-        }
         checkAlerts(agentRollup.id(), agentRollup.display(), AlertKind.TRANSACTION,
                 (alertConfig, smtpConfig) -> checkTransactionAlert(agentRollup.id(),
                         agentRollup.display(), alertConfig, clock.currentTimeMillis(), smtpConfig));
     }
 
     private void checkGaugeAlerts(AgentRollup agentRollup) throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkGaugeAlerts(childAgentRollup);
-        }
         checkAlerts(agentRollup.id(), agentRollup.display(), AlertKind.GAUGE,
                 (alertConfig, smtpConfig) -> checkGaugeAlert(agentRollup.id(),
                         agentRollup.display(), alertConfig, clock.currentTimeMillis(), smtpConfig));
     }
 
     private void checkHeartbeatAlerts(AgentRollup agentRollup) throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkHeartbeatAlerts(childAgentRollup);
-        }
         checkAlerts(agentRollup.id(), agentRollup.display(), AlertKind.HEARTBEAT,
                 (alertConfig, smtpConfig) -> checkHeartbeatAlert(agentRollup.id(),
                         agentRollup.display(), alertConfig, clock.currentTimeMillis(), smtpConfig));
@@ -275,6 +414,19 @@ class RollupService implements Runnable {
                 smtpConfig);
     }
 
+    // this node is always included, since it is storing its own heartbeat
+    @VisibleForTesting
+    static List<String> getLiveRollupNodes(List<String> rollupNodes, String rollupNodeName,
+            Set<String> liveNodeNames) {
+        List<String> liveRollupNodes = Lists.newArrayList();
+        for (String rollupNode : rollupNodes) {
+            if (rollupNode.equals(rollupNodeName) || liveNodeNames.contains(rollupNode)) {
+                liveRollupNodes.add(rollupNode);
+            }
+        }
+        return liveRollupNodes;
+    }
+
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
@@ -285,11 +437,6 @@ class RollupService implements Runnable {
         return obj;
     }
 
-    @FunctionalInterface
-    interface Consumer {
-        void accept(AgentRollup agentRollup) throws InterruptedException;
-    }
-
     @FunctionalInterface
     interface BiConsumer {
         void accept(AlertConfig alertConfig, SmtpConfig smtpConfig) throws Exception;
@@ -57,6 +57,7 @@ import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteBatcher;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -204,6 +205,7 @@ public class AggregateDao implements AggregateRepository {
             .build();
 
     private final Session session;
+    private final WriteBatcher writeBatcher;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -235,9 +237,15 @@ public class AggregateDao implements AggregateRepository {
 
     private final ImmutableList<Table> allTables;
 
-    public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock) {
+    private final TransactionSummaryPeriods transactionSummaryPeriods;
+
+    private final Set<AggregateListener> aggregateListeners = Sets.newCopyOnWriteArraySet();
+
+    public AggregateDao(Session session, WriteBatcher writeBatcher, AgentDao agentDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            ConfigRepository configRepository, Clock clock) {
         this.session = session;
+        this.writeBatcher = writeBatcher;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -393,6 +401,9 @@ public class AggregateDao implements AggregateRepository {
                 + " where agent_rollup = ?");
         deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
+
+        transactionSummaryPeriods =
+                new TransactionSummaryPeriods(session, writeBatcher, configRepository, clock);
     }
 
     public void store(String agentId, long captureTime,
@@ -407,25 +418,7 @@ public class AggregateDao implements AggregateRepository {
         List<ResultSetFuture> futures = Lists.newArrayList();
         List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
         for (Aggregate.SharedQueryText sharedQueryText : initialSharedQueryTexts) {
-            String fullTextSha1 = sharedQueryText.getFullTextSha1();
-            if (fullTextSha1.isEmpty()) {
-                String fullText = sharedQueryText.getFullText();
-                if (fullText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
-                    fullTextSha1 =
-                            Hashing.sha1().hashString(fullText, Charsets.UTF_8).toString();
-                    futures.addAll(fullQueryTextDao.store(agentId, fullTextSha1, fullText));
-                    sharedQueryTexts.add(Aggregate.SharedQueryText.newBuilder()
-                            .setTruncatedText(fullText.substring(0,
-                                    StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE))
-                            .setFullTextSha1(fullTextSha1)
-                            .build());
-                } else {
-                    sharedQueryTexts.add(sharedQueryText);
-                }
-            } else {
-                futures.addAll(fullQueryTextDao.updateTTL(agentId, fullTextSha1));
-                sharedQueryTexts.add(sharedQueryText);
-            }
+            sharedQueryTexts.add(storeSharedQueryText(agentId, sharedQueryText, futures));
         }
 
         // wait for success before proceeding in order to ensure cannot end up with orphaned
@@ -433,31 +426,117 @@ public class AggregateDao implements AggregateRepository {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        // statements are collected first so that rows belonging to the same partition (e.g. all
+        // transaction summaries for a transaction type) can be written together in a single batch
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
+            boundStatements.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
                     overallAggregate, sharedQueryTexts, adjustedTTL));
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                boundStatements.addAll(storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
             }
             futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
         }
+        futures.addAll(writeBatcher.executeAsync(boundStatements));
         futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
         // wait for success before inserting "needs rollup" records
         MoreFutures.waitForAll(futures);
-        futures.clear();
 
-        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         // TODO report checker framework issue that occurs without this suppression
         @SuppressWarnings("assignment.type.incompatible")
         Set<String> transactionTypes = aggregatesByTypeList.stream()
                 .map(OldAggregatesByType::getTransactionType).collect(Collectors.toSet());
+        insertNeedsRollup(agentId, captureTime, agentRollupIds, transactionTypes, adjustedTTL);
+        notifyAggregateListeners(agentId, 0, captureTime);
+    }
+
+    // the following methods store an aggregate stream incrementally as each message arrives (see
+    // GrpcServer.collectAggregateStream()), so that the transaction aggregates for an agent never
+    // need to be held in memory all at the same time
+    //
+    // the returned shared query text is the one that should be referenced by the aggregates, and
+    // the futures must complete successfully before writing any aggregate that references it in
+    // order to ensure cannot end up with orphaned fullTextSha1
+    public Aggregate.SharedQueryText storeSharedQueryText(String agentId,
+            Aggregate.SharedQueryText sharedQueryText, List<ResultSetFuture> futures) {
+        String fullTextSha1 = sharedQueryText.getFullTextSha1();
+        if (!fullTextSha1.isEmpty()) {
+            futures.addAll(fullQueryTextDao.updateTTL(agentId, fullTextSha1));
+            return sharedQueryText;
+        }
+        String fullText = sharedQueryText.getFullText();
+        if (fullText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+            return sharedQueryText;
+        }
+        fullTextSha1 = Hashing.sha1().hashString(fullText, Charsets.UTF_8).toString();
+        futures.addAll(fullQueryTextDao.store(agentId, fullTextSha1, fullText));
+        return Aggregate.SharedQueryText.newBuilder()
+                .setTruncatedText(
+                        fullText.substring(0, StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE))
+                .setFullTextSha1(fullTextSha1)
+                .build();
+    }
+
+    // blocks while cassandra writes are backed up (see WriteBatcher)
+    public List<ResultSetFuture> storeOverallAggregateAsync(String agentId,
+            String transactionType, long captureTime, Aggregate overallAggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) throws Exception {
+        int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        futures.addAll(writeBatcher.executeAsync(storeOverallAggregate(agentId, transactionType,
+                captureTime, overallAggregate, sharedQueryTexts, adjustedTTL)));
+        futures.addAll(
+                transactionTypeDao.store(agentDao.readAgentRollupIds(agentId), transactionType));
+        return futures;
+    }
+
+    // blocks while cassandra writes are backed up (see WriteBatcher)
+    public List<ResultSetFuture> storeTransactionAggregateAsync(String agentId,
+            String transactionType, String transactionName, long captureTime,
+            Aggregate transactionAggregate, List<Aggregate.SharedQueryText> sharedQueryTexts)
+            throws Exception {
+        int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
+        return writeBatcher.executeAsync(storeTransactionAggregate(agentId, transactionType,
+                transactionName, captureTime, transactionAggregate, sharedQueryTexts,
+                adjustedTTL));
+    }
 
+    // must only be called after all of the aggregate writes have completed successfully, since
+    // the rollups will only see aggregates that are already stored
+    public void completeStore(String agentId, long captureTime, Set<String> transactionTypes)
+            throws Exception {
+        agentDao.updateLastCaptureTime(agentId, captureTime).get();
+        if (transactionTypes.isEmpty()) {
+            return;
+        }
+        List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
+        int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
+        insertNeedsRollup(agentId, captureTime, agentRollupIds, transactionTypes, adjustedTTL);
+        notifyAggregateListeners(agentId, 0, captureTime);
+    }
+
+    public void addAggregateListener(AggregateListener listener) {
+        aggregateListeners.add(listener);
+    }
+
+    private void notifyAggregateListeners(String agentRollupId, int rollupLevel,
+            long captureTime) {
+        long intervalMillis = configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        for (AggregateListener aggregateListener : aggregateListeners) {
+            aggregateListener.onStore(agentRollupId, rollupLevel, intervalMillis, captureTime);
+        }
+    }
+
+    private void insertNeedsRollup(String agentId, long captureTime, List<String> agentRollupIds,
+            Set<String> transactionTypes, int adjustedTTL) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+        List<ResultSetFuture> futures = Lists.newArrayList();
         if (agentRollupIds.size() > 1) {
             BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
             int i = 0;
@@ -498,14 +577,19 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    // sortOrder and limit are only used by embedded H2 repository, while the central cassandra
-    // repository which currently has to pull in all records anyways just delegates ordering and
-    // limit to TransactionSummaryCollector
+    // sortOrder and limit are only used when reading materialized day and week summaries,
+    // otherwise the central cassandra repository which currently has to pull in all records
+    // anyways just delegates ordering and limit to TransactionSummaryCollector
     //
     // query.from() is non-inclusive
     @Override
     public void mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
-            SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector) {
+            SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
+            throws Exception {
+        if (transactionSummaryPeriods.mergeTransactionSummariesInto(agentRollupId, query,
+                sortOrder, limit, collector)) {
+            return;
+        }
         // currently have to do group by / sort / limit client-side
         BoundStatement boundStatement =
                 checkNotNull(readTransactionPS.get(summaryTable)).get(query.rollupLevel()).bind();
@@ -776,6 +860,7 @@ public class AggregateDao implements AggregateRepository {
             session.execute("truncate aggregate_needs_rollup_" + i);
         }
         session.execute("truncate aggregate_needs_rollup_from_child");
+        transactionSummaryPeriods.truncateAll();
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -831,6 +916,7 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setInt(i++, needsRollupAdjustedTTL);
                 session.execute(boundStatement);
             }
+            notifyAggregateListeners(agentRollupId, rollupLevel, captureTime);
             postRollup(agentRollupId, needsRollupFromChildren.getCaptureTime(),
                     needsRollupFromChildren.getKeys().keySet(),
                     needsRollupFromChildren.getUniquenessKeysForDeletion(),
@@ -871,6 +957,11 @@ public class AggregateDao implements AggregateRepository {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            // failures are logged (not thrown) so they don't hold up the rollup, and completed
+            // periods that failed are retried by the next rollup
+            transactionSummaryPeriods.materializeIfComplete(agentRollupId, rollupLevel,
+                    captureTime, transactionTypes, ttl);
+            notifyAggregateListeners(agentRollupId, rollupLevel, captureTime);
 
             PreparedStatement insertNeedsRollup = nextRollupIntervalMillis == null ? null
                     : this.insertNeedsRollup.get(rollupLevel);
@@ -1442,8 +1533,13 @@ public class AggregateDao implements AggregateRepository {
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
                     executionCount);
         }
-        return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
-                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (BoundStatement boundStatement : insertServiceCalls(collector.toProto(),
+                rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                query.transactionName(), query.to(), rollup.adjustedTTL())) {
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
     }
 
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
@@ -1514,13 +1610,13 @@ public class AggregateDao implements AggregateRepository {
         return rows;
     }
 
-    private List<ResultSetFuture> storeOverallAggregate(String agentRollupId,
+    private List<BoundStatement> storeOverallAggregate(String agentRollupId,
             String transactionType, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1529,7 +1625,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1540,7 +1636,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1549,7 +1645,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1560,7 +1656,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1569,7 +1665,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1580,7 +1676,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1591,22 +1687,22 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
+        boundStatements.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
                 rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        boundStatements.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(),
+                rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
+        return boundStatements;
     }
 
-    private List<ResultSetFuture> storeTransactionAggregate(String agentRollupId,
+    private List<BoundStatement> storeTransactionAggregate(String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws IOException {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1616,7 +1712,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1628,7 +1724,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
@@ -1638,7 +1734,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1650,7 +1746,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1660,7 +1756,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1672,7 +1768,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1684,21 +1780,22 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(
+        boundStatements.addAll(
                 insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
                         agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        boundStatements.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(),
+                rollupLevel, agentRollupId, transactionType, transactionName, captureTime,
+                adjustedTTL));
+        return boundStatements;
     }
 
-    private List<ResultSetFuture> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
+    private List<BoundStatement> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
             int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.QueriesByType queriesByType : queriesByTypeList) {
             for (Aggregate.Query query : queriesByType.getQueryList()) {
                 Aggregate.SharedQueryText sharedQueryText =
@@ -1734,10 +1831,10 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
     }
 
     private List<ResultSetFuture> insertQueries(Map<String, List<MutableQuery>> map,
@@ -1782,11 +1879,11 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
-    private List<ResultSetFuture> insertServiceCalls(
+    private List<BoundStatement> insertServiceCalls(
             List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
             long captureTime, int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypeList) {
             for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
                 BoundStatement boundStatement;
@@ -1807,10 +1904,10 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
     }
 
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
@@ -2465,4 +2562,13 @@ public class AggregateDao implements AggregateRepository {
         private long errorCount;
         private long transactionCount;
     }
+
+    public interface AggregateListener {
+
+        // called after aggregates for the capture time have been stored or rolled up, which can
+        // also happen well after the fact, e.g. when an agent reports late after a network
+        // interruption
+        void onStore(String agentRollupId, int rollupLevel, long intervalMillis,
+                long captureTime);
+    }
 }
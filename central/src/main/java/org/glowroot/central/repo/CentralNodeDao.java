@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Date;
+import java.util.Set;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.collect.Sets;
+
+import org.glowroot.common.util.Clock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// live membership of the central nodes that split up rollup work, each node stores a heartbeat
+// every HEARTBEAT_INTERVAL_SECONDS from its own scheduled task (so it does not depend on how long a
+// rollup loop takes), and a node whose heartbeat has expired is considered down
+public class CentralNodeDao {
+
+    private static final String WITH_LCS =
+            "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    public static final int HEARTBEAT_INTERVAL_SECONDS = 30;
+
+    // this tolerates several missed heartbeats, e.g. due to long gc pauses or cassandra timeouts
+    public static final int HEARTBEAT_TTL_SECONDS = (int) MINUTES.toSeconds(3);
+
+    private final Session session;
+    private final Clock clock;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement readPS;
+
+    public CentralNodeDao(Session session, Clock clock) {
+        this.session = session;
+        this.clock = clock;
+
+        session.execute("create table if not exists central_node (node_name varchar,"
+                + " last_heartbeat timestamp, primary key (node_name)) " + WITH_LCS);
+
+        insertPS = session.prepare("insert into central_node (node_name, last_heartbeat)"
+                + " values (?, ?) using ttl ?");
+        readPS = session.prepare("select node_name from central_node");
+    }
+
+    public void storeHeartbeat(String nodeName) throws Exception {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, nodeName);
+        boundStatement.setTimestamp(i++, new Date(clock.currentTimeMillis()));
+        boundStatement.setInt(i++, HEARTBEAT_TTL_SECONDS);
+        session.execute(boundStatement);
+    }
+
+    public Set<String> readLiveNodeNames() throws Exception {
+        ResultSet results = session.execute(readPS.bind());
+        Set<String> nodeNames = Sets.newHashSet();
+        for (Row row : results) {
+            nodeNames.add(checkNotNull(row.getString(0)));
+        }
+        return nodeNames;
+    }
+}
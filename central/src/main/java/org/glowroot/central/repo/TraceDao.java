@@ -17,8 +17,10 @@ package org.glowroot.central.repo;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
@@ -61,6 +63,7 @@ import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
@@ -75,6 +78,11 @@ import static java.util.concurrent.TimeUnit.HOURS;
 
 public class TraceDao implements TraceRepository {
 
+    private static final long POINT_BUCKET_MILLIS = HOURS.toMillis(1);
+
+    // limits the number of bucket reads in flight, e.g. a 30 day time window has 720 buckets
+    private static final int MAX_CONCURRENT_POINT_BUCKET_READS = 24;
+
     private final Session session;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -97,6 +105,12 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement insertOverallErrorCount;
     private final PreparedStatement insertTransactionErrorCount;
 
+    private final PreparedStatement insertOverallSlowPointByDuration;
+    private final PreparedStatement insertTransactionSlowPointByDuration;
+
+    private final PreparedStatement insertOverallErrorPointByDuration;
+    private final PreparedStatement insertTransactionErrorPointByDuration;
+
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
@@ -113,6 +127,11 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement readOverallErrorPoint;
     private final PreparedStatement readTransactionErrorPoint;
 
+    private final PreparedStatement readOverallSlowPointByDuration;
+    private final PreparedStatement readTransactionSlowPointByDuration;
+    private final PreparedStatement readOverallErrorPointByDuration;
+    private final PreparedStatement readTransactionErrorPointByDuration;
+
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
@@ -125,9 +144,15 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowPoint;
     private final PreparedStatement deletePartialTransactionSlowPoint;
 
+    private final PreparedStatement deletePartialOverallSlowPointByDuration;
+    private final PreparedStatement deletePartialTransactionSlowPointByDuration;
+
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
+    // points captured before this time are not in the *_point_by_duration tables
+    private final long pointByDurationStartTime;
+
     public TraceDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
             ConfigRepository configRepository, Clock clock) {
@@ -174,6 +199,49 @@ public class TraceDao implements TraceRepository {
                 + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
                 expirationHours);
 
+        // the *_point_by_duration tables hold the same points as the *_point tables above, but
+        // bucketed by hour and clustered by duration, so that reading the slowest points of a large
+        // time window only needs to read a bounded number of rows per bucket, instead of reading
+        // every point in the time window
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, bucket timestamp, duration_nanos bigint,"
+                + " agent_id varchar, trace_id varchar, capture_time timestamp, partial boolean,"
+                + " error boolean, headline varchar, user varchar, attributes blob, primary key"
+                + " ((agent_rollup, transaction_type, bucket), duration_nanos, agent_id,"
+                + " trace_id))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, bucket timestamp,"
+                + " duration_nanos bigint, agent_id varchar, trace_id varchar,"
+                + " capture_time timestamp, partial boolean, error boolean, headline varchar,"
+                + " user varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, bucket), duration_nanos, agent_id, trace_id))",
+                expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_error_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, bucket timestamp, duration_nanos bigint,"
+                + " agent_id varchar, trace_id varchar, capture_time timestamp, partial boolean,"
+                + " error_message varchar, headline varchar, user varchar, attributes blob,"
+                + " primary key ((agent_rollup, transaction_type, bucket), duration_nanos,"
+                + " agent_id, trace_id))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_error_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, bucket timestamp,"
+                + " duration_nanos bigint, agent_id varchar, trace_id varchar,"
+                + " capture_time timestamp, partial boolean, error_message varchar,"
+                + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, bucket), duration_nanos, agent_id,"
+                + " trace_id))", expirationHours);
+
+        // records when the *_point_by_duration tables started being populated, since points that
+        // were stored before then (e.g. prior to upgrade) are only in the *_point tables
+        session.execute("create table if not exists trace_point_by_duration_start (one int,"
+                + " start_time timestamp, primary key (one))");
+
         Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_error_message"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, error_message varchar, primary key"
@@ -277,6 +345,29 @@ public class TraceDao implements TraceRepository {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallSlowPointByDuration = session.prepare("insert into"
+                + " trace_tt_slow_point_by_duration (agent_rollup, transaction_type, bucket,"
+                + " duration_nanos, agent_id, trace_id, capture_time, partial, error, headline,"
+                + " user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionSlowPointByDuration = session.prepare("insert into"
+                + " trace_tn_slow_point_by_duration (agent_rollup, transaction_type,"
+                + " transaction_name, bucket, duration_nanos, agent_id, trace_id, capture_time,"
+                + " partial, error, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
+                + " ?, ?, ?, ?) using ttl ?");
+
+        insertOverallErrorPointByDuration = session.prepare("insert into"
+                + " trace_tt_error_point_by_duration (agent_rollup, transaction_type, bucket,"
+                + " duration_nanos, agent_id, trace_id, capture_time, partial, error_message,"
+                + " headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                + " using ttl ?");
+
+        insertTransactionErrorPointByDuration = session.prepare("insert into"
+                + " trace_tn_error_point_by_duration (agent_rollup, transaction_type,"
+                + " transaction_name, bucket, duration_nanos, agent_id, trace_id, capture_time,"
+                + " partial, error_message, headline, user, attributes) values (?, ?, ?, ?, ?, ?,"
+                + " ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
         insertOverallErrorMessage = session.prepare("insert into trace_tt_error_message"
                 + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
                 + " error_message) values (?, ?, ?, ?, ?, ?) using ttl ?");
@@ -326,6 +417,30 @@ public class TraceDao implements TraceRepository {
                 + " from trace_tn_error_point where agent_rollup = ? and transaction_type = ?"
                 + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        readOverallSlowPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tt_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and bucket = ? and duration_nanos >= ?"
+                + " and duration_nanos <= ? order by duration_nanos desc");
+
+        readTransactionSlowPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tn_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and bucket = ?"
+                + " and duration_nanos >= ? and duration_nanos <= ? order by duration_nanos desc");
+
+        readOverallErrorPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error_message, headline, user,"
+                + " attributes from trace_tt_error_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and bucket = ? and duration_nanos >= ?"
+                + " and duration_nanos <= ? order by duration_nanos desc");
+
+        readTransactionErrorPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error_message, headline, user,"
+                + " attributes from trace_tn_error_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and bucket = ?"
+                + " and duration_nanos >= ? and duration_nanos <= ? order by duration_nanos desc");
+
         readOverallErrorMessage = session.prepare("select capture_time, error_message"
                 + " from trace_tt_error_message where agent_rollup = ? and transaction_type = ?"
                 + " and capture_time > ? and capture_time <= ?");
@@ -360,6 +475,15 @@ public class TraceDao implements TraceRepository {
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
 
+        deletePartialOverallSlowPointByDuration = session.prepare("delete from"
+                + " trace_tt_slow_point_by_duration where agent_rollup = ? and transaction_type = ?"
+                + " and bucket = ? and duration_nanos = ? and agent_id = ? and trace_id = ?");
+
+        deletePartialTransactionSlowPointByDuration = session.prepare("delete from"
+                + " trace_tn_slow_point_by_duration where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and bucket = ? and duration_nanos = ? and agent_id = ?"
+                + " and trace_id = ?");
+
         deletePartialOverallSlowCount = session.prepare("delete from trace_tt_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
                 + " and agent_id = ? and trace_id = ?");
@@ -367,6 +491,17 @@ public class TraceDao implements TraceRepository {
         deletePartialTransactionSlowCount = session.prepare("delete from trace_tn_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        // only the first central node to start up with the *_point_by_duration tables records the
+        // start time
+        BoundStatement boundStatement = session.prepare("insert into"
+                + " trace_point_by_duration_start (one, start_time) values (1, ?) if not exists")
+                .bind();
+        boundStatement.setTimestamp(0, new Date(clock.currentTimeMillis()));
+        session.execute(boundStatement);
+        Row row = checkNotNull(session.execute(
+                "select start_time from trace_point_by_duration_start where one = 1").one());
+        pointByDurationStartTime = checkNotNull(row.getTimestamp(0)).getTime();
     }
 
     public void store(String agentId, Trace trace) throws Exception {
@@ -441,6 +576,16 @@ public class TraceDao implements TraceRepository {
                         false);
                 futures.add(session.executeAsync(boundStatement));
 
+                boundStatement = insertOverallSlowPointByDuration.bind();
+                bindSlowPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionSlowPointByDuration.bind();
+                bindSlowPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, false);
+                futures.add(session.executeAsync(boundStatement));
+
                 boundStatement = insertOverallSlowCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
@@ -460,6 +605,16 @@ public class TraceDao implements TraceRepository {
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
                     futures.add(session.executeAsync(boundStatement));
 
+                    boundStatement = deletePartialOverallSlowPointByDuration.bind();
+                    bindByDuration(boundStatement, agentRollupId, agentId, traceId, priorHeader,
+                            true);
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deletePartialTransactionSlowPointByDuration.bind();
+                    bindByDuration(boundStatement, agentRollupId, agentId, traceId, priorHeader,
+                            false);
+                    futures.add(session.executeAsync(boundStatement));
+
                     boundStatement = deletePartialOverallSlowCount.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
                     futures.add(session.executeAsync(boundStatement));
@@ -492,6 +647,16 @@ public class TraceDao implements TraceRepository {
                         false);
                 futures.add(session.executeAsync(boundStatement));
 
+                boundStatement = insertOverallErrorPointByDuration.bind();
+                bindErrorPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionErrorPointByDuration.bind();
+                bindErrorPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, false);
+                futures.add(session.executeAsync(boundStatement));
+
                 boundStatement = insertOverallErrorCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
@@ -603,33 +768,13 @@ public class TraceDao implements TraceRepository {
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws IOException {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, false);
+        return readPoints(agentRollupId, query, filter, limit, false);
     }
 
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws IOException {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, true);
+        return readPoints(agentRollupId, query, filter, limit, true);
     }
 
     @Override
@@ -919,6 +1064,109 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTexts;
     }
 
+    private Result<TracePoint> readPoints(String agentRollupId, TraceQuery query,
+            TracePointFilter filter, int limit, boolean errorPoints) throws IOException {
+        List<TracePoint> tracePoints = Lists.newArrayList();
+        long from = query.from();
+        if (from < pointByDurationStartTime) {
+            TraceQuery priorQuery = ImmutableTraceQuery.copyOf(query)
+                    .withTo(Math.min(query.to(), pointByDurationStartTime));
+            BoundStatement boundStatement;
+            if (query.transactionName() == null) {
+                boundStatement = errorPoints ? readOverallErrorPoint.bind()
+                        : readOverallSlowPoint.bind();
+                bindTraceQuery(boundStatement, agentRollupId, priorQuery, true);
+            } else {
+                boundStatement = errorPoints ? readTransactionErrorPoint.bind()
+                        : readTransactionSlowPoint.bind();
+                bindTraceQuery(boundStatement, agentRollupId, priorQuery, false);
+            }
+            for (Row row : session.execute(boundStatement)) {
+                TracePoint tracePoint = readPoint(row, priorQuery.from(), priorQuery.to(), filter,
+                        errorPoints);
+                if (tracePoint != null) {
+                    tracePoints.add(tracePoint);
+                }
+            }
+            from = priorQuery.to();
+        }
+        if (from < query.to()) {
+            tracePoints.addAll(readPointsByDuration(agentRollupId, query, from, filter, limit,
+                    errorPoints));
+        }
+        return processPoints(tracePoints, limit);
+    }
+
+    // reads the slowest matching points of limit + 1 distinct traces from each bucket, which is
+    // enough to find the slowest limit points overall (after removing duplicates) and to identify
+    // if limit was exceeded
+    //
+    // at most MAX_CONCURRENT_POINT_BUCKET_READS buckets are read concurrently
+    private List<TracePoint> readPointsByDuration(String agentRollupId, TraceQuery query,
+            long from, TracePointFilter filter, int limit, boolean errorPoints)
+            throws IOException {
+        String transactionName = query.transactionName();
+        PreparedStatement readPointByDuration;
+        if (transactionName == null) {
+            readPointByDuration = errorPoints ? readOverallErrorPointByDuration
+                    : readOverallSlowPointByDuration;
+        } else {
+            readPointByDuration = errorPoints ? readTransactionErrorPointByDuration
+                    : readTransactionSlowPointByDuration;
+        }
+        Long durationNanosHigh = filter.durationNanosHigh();
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        for (long bucket = getPointBucket(from); bucket <= query.to();
+                bucket += POINT_BUCKET_MILLIS) {
+            BoundStatement boundStatement = readPointByDuration.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, query.transactionType());
+            if (transactionName != null) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(bucket));
+            boundStatement.setLong(i++, filter.durationNanosLow());
+            boundStatement.setLong(i++,
+                    durationNanosHigh == null ? Long.MAX_VALUE : durationNanosHigh);
+            // first page is all that is needed unless the first and last buckets only partially
+            // overlap the time window, or unless filtering by headline, user, etc
+            boundStatement.setFetchSize(limit + 1);
+            boundStatements.add(boundStatement);
+        }
+        Deque<ResultSetFuture> futures = new ArrayDeque<>();
+        int nextIndex = 0;
+        while (nextIndex < boundStatements.size()
+                && futures.size() < MAX_CONCURRENT_POINT_BUCKET_READS) {
+            futures.add(session.executeAsync(boundStatements.get(nextIndex++)));
+        }
+        List<TracePoint> tracePoints = Lists.newArrayList();
+        while (!futures.isEmpty()) {
+            ResultSet results = futures.remove().getUninterruptibly();
+            if (nextIndex < boundStatements.size()) {
+                futures.add(session.executeAsync(boundStatements.get(nextIndex++)));
+            }
+            Set<TraceKey> traceKeys = Sets.newHashSet();
+            for (Row row : results) {
+                TracePoint tracePoint = readPoint(row, from, query.to(), filter, errorPoints);
+                if (tracePoint == null) {
+                    continue;
+                }
+                tracePoints.add(tracePoint);
+                // duplicates (partially stored traces) are not counted, since they are removed
+                // later by processPoints()
+                if (traceKeys.add(ImmutableTraceKey.of(tracePoint.agentId(), tracePoint.traceId()))
+                        && traceKeys.size() > limit) {
+                    // rows are ordered by duration descending, so the rest are all faster
+                    break;
+                }
+            }
+        }
+        // processPoints() expects points in capture time order
+        tracePoints.sort(Comparator.comparingLong(TracePoint::captureTime));
+        return tracePoints;
+    }
+
     private int getTTL() {
         return Ints.saturatedCast(
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
@@ -942,6 +1190,24 @@ public class TraceDao implements TraceRepository {
         boundStatement.setInt(i++, adjustedTTL);
     }
 
+    private static void bindSlowPointByDuration(BoundStatement boundStatement,
+            String agentRollupId, String agentId, String traceId, Trace.Header header,
+            int adjustedTTL, boolean overall) throws IOException {
+        int i = bindByDuration(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setBool(i++, header.getPartial());
+        boundStatement.setBool(i++, header.hasError());
+        boundStatement.setString(i++, header.getHeadline());
+        boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+        List<Trace.Attribute> attributes = header.getAttributeList();
+        if (attributes.isEmpty()) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+        }
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
     private static void bindCount(BoundStatement boundStatement, String agentRollupId,
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall) {
         int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
@@ -973,6 +1239,24 @@ public class TraceDao implements TraceRepository {
         boundStatement.setInt(i++, adjustedTTL);
     }
 
+    private static void bindErrorPointByDuration(BoundStatement boundStatement,
+            String agentRollupId, String agentId, String traceId, Trace.Header header,
+            int adjustedTTL, boolean overall) throws IOException {
+        int i = bindByDuration(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setBool(i++, header.getPartial());
+        boundStatement.setString(i++, header.getError().getMessage());
+        boundStatement.setString(i++, header.getHeadline());
+        boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+        List<Trace.Attribute> attributes = header.getAttributeList();
+        if (attributes.isEmpty()) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+        }
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
     private static int bind(BoundStatement boundStatement, String agentRollupId, String agentId,
             String traceId, Trace.Header header, boolean overall) {
         int i = 0;
@@ -987,6 +1271,21 @@ public class TraceDao implements TraceRepository {
         return i;
     }
 
+    private static int bindByDuration(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, boolean overall) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setTimestamp(i++, new Date(getPointBucket(header.getCaptureTime())));
+        boundStatement.setLong(i++, header.getDurationNanos());
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        return i;
+    }
+
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
             String traceId, Profile profile, int adjustedTTL) {
         int i = 0;
@@ -1009,41 +1308,49 @@ public class TraceDao implements TraceRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
-            int limit, boolean errorPoints) throws IOException {
-        List<TracePoint> tracePoints = Lists.newArrayList();
-        for (Row row : results) {
-            int i = 0;
-            String agentId = checkNotNull(row.getString(i++));
-            String traceId = checkNotNull(row.getString(i++));
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            long durationNanos = row.getLong(i++);
-            boolean partial = row.getBool(i++);
-            boolean error = errorPoints ? true : row.getBool(i++);
-            // error points are defined by having an error message, so safe to checkNotNull
-            String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
-            // headline is null for data inserted prior to 0.9.7
-            String headline = Strings.nullToEmpty(row.getString(i++));
-            String user = Strings.nullToEmpty(row.getString(i++));
-            ByteBuffer attributeBytes = row.getBytes(i++);
-            List<Trace.Attribute> attrs =
-                    Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
-            Map<String, List<String>> attributes = attrs.stream().collect(
-                    Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
-            if (filter.matchesHeadline(headline)
-                    && filter.matchesError(errorMessage)
-                    && filter.matchesUser(user)
-                    && filter.matchesAttributes(attributes)) {
-                tracePoints.add(ImmutableTracePoint.builder()
-                        .agentId(agentId)
-                        .traceId(traceId)
-                        .captureTime(captureTime)
-                        .durationNanos(durationNanos)
-                        .partial(partial)
-                        .error(error)
-                        .build());
-            }
+    private static @Nullable TracePoint readPoint(Row row, long from, long to,
+            TracePointFilter filter, boolean errorPoints) throws IOException {
+        int i = 0;
+        String agentId = checkNotNull(row.getString(i++));
+        String traceId = checkNotNull(row.getString(i++));
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        if (captureTime <= from || captureTime > to) {
+            return null;
         }
+        long durationNanos = row.getLong(i++);
+        if (!filter.matchesDuration(durationNanos)) {
+            return null;
+        }
+        boolean partial = row.getBool(i++);
+        boolean error = errorPoints ? true : row.getBool(i++);
+        // error points are defined by having an error message, so safe to checkNotNull
+        String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
+        // headline is null for data inserted prior to 0.9.7
+        String headline = Strings.nullToEmpty(row.getString(i++));
+        String user = Strings.nullToEmpty(row.getString(i++));
+        ByteBuffer attributeBytes = row.getBytes(i++);
+        List<Trace.Attribute> attrs =
+                Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
+        Map<String, List<String>> attributes = attrs.stream().collect(
+                Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
+        if (!filter.matchesHeadline(headline)
+                || !filter.matchesError(errorMessage)
+                || !filter.matchesUser(user)
+                || !filter.matchesAttributes(attributes)) {
+            return null;
+        }
+        return ImmutableTracePoint.builder()
+                .agentId(agentId)
+                .traceId(traceId)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .partial(partial)
+                .error(error)
+                .build();
+    }
+
+    // tracePoints must be in capture time order
+    private static Result<TracePoint> processPoints(List<TracePoint> tracePoints, int limit) {
         // remove duplicates (partially stored traces) since there is (small) window between updated
         // insert (with new capture time) and the delete of prior insert (with prior capture time)
         Set<TraceKey> traceKeys = Sets.newHashSet();
@@ -1057,19 +1364,23 @@ public class TraceDao implements TraceRepository {
         }
         // apply limit and re-sort if needed
         if (tracePoints.size() > limit) {
-            tracePoints = tracePoints.stream()
+            List<TracePoint> limitedTracePoints = tracePoints.stream()
                     .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
                     .limit(limit)
                     .sorted(Comparator.comparingLong(TracePoint::captureTime))
                     // explicit type on this line is needed for Checker Framework
                     // see https://github.com/typetools/checker-framework/issues/531
                     .collect(Collectors.<TracePoint>toList());
-            return new Result<>(tracePoints, true);
+            return new Result<>(limitedTracePoints, true);
         } else {
             return new Result<>(tracePoints, false);
         }
     }
 
+    private static long getPointBucket(long captureTime) {
+        return captureTime - captureTime % POINT_BUCKET_MILLIS;
+    }
+
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
         String upper = errorMessage.toUpperCase(Locale.ENGLISH);
         for (String include : filter.includes()) {
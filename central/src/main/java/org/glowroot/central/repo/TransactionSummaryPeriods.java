@@ -0,0 +1,878 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.Sessions;
+import org.glowroot.central.util.WriteBatcher;
+import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
+import org.glowroot.common.model.ImmutableTransactionSummary;
+import org.glowroot.common.model.TransactionSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Styles;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// per-day and per-week transaction summaries that are materialized from the last (coarsest) rollup
+// level by the rollup job, so that the transaction list for a wide time range reads a handful of
+// pre-merged periods instead of every rollup interval
+//
+// for the total time and throughput sort orders, each period also stores its transactions ranked
+// by that sort order, so that only the top ranked transactions of each period need to be read
+class TransactionSummaryPeriods {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionSummaryPeriods.class);
+
+    private static final ImmutableList<SummarySortOrder> RANKED_SORT_ORDERS =
+            ImmutableList.of(SummarySortOrder.TOTAL_TIME, SummarySortOrder.THROUGHPUT);
+
+    // above this, reading the top ranked transactions is not worth the extra round trips
+    private static final int MAX_TOP_LIMIT = 1000;
+
+    // above this, looking up transactions in a period reads the whole period partition instead of
+    // using an "in" restriction (large "in" lists put pressure on the coordinator)
+    private static final int MAX_LOOKUP_IN_SIZE = 100;
+
+    private final Session session;
+    private final WriteBatcher writeBatcher;
+    private final Clock clock;
+
+    private final int rollupLevel;
+    private final boolean enabled;
+
+    private final PreparedStatement readRollupPS;
+    private final Map<Period, PeriodStatements> periodStatements;
+
+    // the most recent period end that has been completed (materialized, or checked that it is
+    // already materialized) per agent rollup, transaction type and period
+    private final ConcurrentMap<PeriodKey, Long> lastCompletedPeriodEnds =
+            Maps.newConcurrentMap();
+
+    TransactionSummaryPeriods(Session session, WriteBatcher writeBatcher,
+            ConfigRepository configRepository, Clock clock) {
+        this.session = session;
+        this.writeBatcher = writeBatcher;
+        this.clock = clock;
+
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        rollupLevel = rollupConfigs.size() - 1;
+        long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+        enabled = rollupLevel > 0 && Period.DAY.millis % rollupIntervalMillis == 0;
+        int expirationHours =
+                configRepository.getStorageConfig().rollupExpirationHours().get(rollupLevel);
+
+        readRollupPS = session.prepare("select capture_time, transaction_name,"
+                + " total_duration_nanos, transaction_count from aggregate_tn_summary_rollup_"
+                + rollupLevel + " where agent_rollup = ? and transaction_type = ? and"
+                + " capture_time > ? and capture_time <= ?");
+
+        Map<Period, PeriodStatements> periodStatements = Maps.newEnumMap(Period.class);
+        for (Period period : Period.values()) {
+            periodStatements.put(period, new PeriodStatements(session,
+                    period.name().toLowerCase(Locale.ENGLISH), expirationHours));
+        }
+        this.periodStatements = Maps.immutableEnumMap(periodStatements);
+    }
+
+    // query.from() is non-inclusive
+    //
+    // returns false if the query does not cover any materialized periods, in which case it needs
+    // to be read from the rollup level as usual
+    boolean mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
+            SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
+            throws Exception {
+        if (!enabled || query.rollupLevel() != rollupLevel
+                || query.to() - query.from() < Period.DAY.millis) {
+            return false;
+        }
+        String transactionType = query.transactionType();
+        ResultSetFuture weeksFuture =
+                readMaterialized(agentRollupId, transactionType, Period.WEEK, query);
+        ResultSetFuture daysFuture =
+                readMaterialized(agentRollupId, transactionType, Period.DAY, query);
+        List<Segment> segments = plan(query.from(), query.to(), getCaptureTimes(weeksFuture.get()),
+                getCaptureTimes(daysFuture.get()));
+        List<Source> periodSources = Lists.newArrayList();
+        List<ListenableFuture<InMemorySource>> rollupSourceFutures = Lists.newArrayList();
+        long lastCaptureTime = 0;
+        for (Segment segment : segments) {
+            Period period = segment.period();
+            if (period == null) {
+                rollupSourceFutures.add(readRollupSource(agentRollupId, transactionType,
+                        segment.from(), segment.to()));
+            } else {
+                periodSources.add(
+                        new PeriodSource(agentRollupId, transactionType, period, segment.to()));
+                lastCaptureTime = Math.max(lastCaptureTime, segment.to());
+            }
+        }
+        if (periodSources.isEmpty()) {
+            return false;
+        }
+        List<InMemorySource> rollupSources = Lists.newArrayList();
+        for (ListenableFuture<InMemorySource> rollupSourceFuture : rollupSourceFutures) {
+            InMemorySource rollupSource = rollupSourceFuture.get();
+            rollupSources.add(rollupSource);
+            lastCaptureTime = Math.max(lastCaptureTime, rollupSource.lastCaptureTime());
+        }
+        List<TransactionSummary> summaries;
+        if (RANKED_SORT_ORDERS.contains(sortOrder) && limit < MAX_TOP_LIMIT) {
+            // one extra so that the collector can still tell if there are more
+            summaries = readTop(periodSources, rollupSources, sortOrder, limit + 1);
+        } else {
+            // average time is not a sum over the periods, so all transactions need to be read
+            List<Source> sources = Lists.newArrayList(periodSources);
+            sources.addAll(rollupSources);
+            summaries = readAll(sources);
+        }
+        for (TransactionSummary summary : summaries) {
+            collector.collect(summary.transactionName(), summary.totalDurationNanos(),
+                    summary.transactionCount(), lastCaptureTime);
+        }
+        return true;
+    }
+
+    // the period is (re-)materialized when the rollup at captureTime completes the period, or when
+    // captureTime is late and belongs to a period that has already been materialized
+    //
+    // a period whose final rollup interval has no transactions is materialized by the first
+    // rollup after the period has ended
+    //
+    // failures are logged instead of thrown, so that they never hold up the rollup itself (the
+    // period is not marked as materialized, so a completed period is retried by the next rollup)
+    void materializeIfComplete(String agentRollupId, int rollupLevel, long captureTime,
+            Collection<String> transactionTypes, int ttl) throws InterruptedException {
+        if (!enabled || rollupLevel != this.rollupLevel) {
+            return;
+        }
+        for (String transactionType : transactionTypes) {
+            for (Period period : Period.values()) {
+                long periodEnd = Utils.getRollupCaptureTime(captureTime, period.millis);
+                if (captureTime == periodEnd) {
+                    if (tryMaterialize(agentRollupId, transactionType, period, periodEnd, ttl)) {
+                        lastCompletedPeriodEnds.merge(
+                                ImmutablePeriodKey.of(agentRollupId, transactionType, period),
+                                periodEnd, Math::max);
+                    }
+                    continue;
+                }
+                if (tryIsMaterialized(agentRollupId, transactionType, period, periodEnd)) {
+                    tryMaterialize(agentRollupId, transactionType, period, periodEnd, ttl);
+                }
+                // most recent period that has ended as of captureTime
+                long completedPeriodEnd = periodEnd - period.millis;
+                PeriodKey periodKey = ImmutablePeriodKey.of(agentRollupId, transactionType, period);
+                Long lastCompletedPeriodEnd = lastCompletedPeriodEnds.get(periodKey);
+                if (lastCompletedPeriodEnd == null || completedPeriodEnd > lastCompletedPeriodEnd) {
+                    // (re-)materializing is idempotent, so it is ok to materialize if the check
+                    // itself fails
+                    boolean completed = tryIsMaterialized(agentRollupId, transactionType, period,
+                            completedPeriodEnd)
+                            || tryMaterialize(agentRollupId, transactionType, period,
+                                    completedPeriodEnd, ttl);
+                    // only recorded once materialized, so that a failure is retried by the next
+                    // rollup
+                    if (completed) {
+                        lastCompletedPeriodEnds.merge(periodKey, completedPeriodEnd, Math::max);
+                    }
+                }
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    void truncateAll() {
+        for (Period period : Period.values()) {
+            String suffix = period.name().toLowerCase(Locale.ENGLISH);
+            session.execute("truncate aggregate_tt_summary_" + suffix);
+            session.execute("truncate aggregate_tn_summary_" + suffix);
+            session.execute("truncate aggregate_tn_summary_top_" + suffix);
+        }
+    }
+
+    // returns false if materializing the period failed (the failure is logged)
+    private boolean tryMaterialize(String agentRollupId, String transactionType, Period period,
+            long periodEnd, int ttl) throws InterruptedException {
+        try {
+            materialize(agentRollupId, transactionType, period, periodEnd, ttl);
+            return true;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("error materializing transaction summary period, agentRollupId={},"
+                    + " transactionType={}, period={}, periodEnd={}", agentRollupId,
+                    transactionType, period, periodEnd, e);
+            return false;
+        }
+    }
+
+    private boolean tryIsMaterialized(String agentRollupId, String transactionType, Period period,
+            long periodEnd) {
+        try {
+            return isMaterialized(agentRollupId, transactionType, period, periodEnd);
+        } catch (RuntimeException e) {
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private void materialize(String agentRollupId, String transactionType, Period period,
+            long periodEnd, int ttl) throws Exception {
+        long periodStart = periodEnd - period.millis;
+        BoundStatement boundStatement = readRollupPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        boundStatement.setTimestamp(i++, new Date(periodStart));
+        boundStatement.setTimestamp(i++, new Date(periodEnd));
+        InMemorySource source = toInMemorySource(session.execute(boundStatement));
+        if (source.summaries.isEmpty()) {
+            return;
+        }
+        // expire the period no later than the earliest rollup that it was built from
+        int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, periodStart, clock);
+        PeriodStatements statements = checkNotNull(periodStatements.get(period));
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        double totalDurationNanos = 0;
+        long transactionCount = 0;
+        for (TransactionSummary summary : source.summaries.values()) {
+            boundStatement = statements.insertTransaction.bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(periodEnd));
+            boundStatement.setString(i++, summary.transactionName());
+            boundStatement.setDouble(i++, summary.totalDurationNanos());
+            boundStatement.setLong(i++, summary.transactionCount());
+            boundStatement.setInt(i++, adjustedTTL);
+            boundStatements.add(boundStatement);
+            totalDurationNanos += summary.totalDurationNanos();
+            transactionCount += summary.transactionCount();
+        }
+        // transactions are never removed from a period when it is re-materialized (late data
+        // only adds to it), so there are never stale ranks left behind
+        for (SummarySortOrder sortOrder : RANKED_SORT_ORDERS) {
+            int rank = 0;
+            for (TransactionSummary summary : source.getRanked(sortOrder)) {
+                boundStatement = statements.insertTop.bind();
+                i = 0;
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setString(i++, transactionType);
+                boundStatement.setTimestamp(i++, new Date(periodEnd));
+                boundStatement.setString(i++, sortOrder.name());
+                boundStatement.setInt(i++, rank++);
+                boundStatement.setString(i++, summary.transactionName());
+                boundStatement.setDouble(i++, summary.totalDurationNanos());
+                boundStatement.setLong(i++, summary.transactionCount());
+                boundStatement.setInt(i++, adjustedTTL);
+                boundStatements.add(boundStatement);
+            }
+        }
+        // a period can have a large number of transactions, so these go through the write batcher
+        // (which batches rows of the same partition and caps the number of requests in flight)
+        MoreFutures.waitForAll(writeBatcher.executeAsync(boundStatements));
+        // the overall row is written last since it marks the period as materialized
+        boundStatement = statements.insertOverall.bind();
+        i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        boundStatement.setTimestamp(i++, new Date(periodEnd));
+        boundStatement.setDouble(i++, totalDurationNanos);
+        boundStatement.setLong(i++, transactionCount);
+        boundStatement.setInt(i++, adjustedTTL);
+        session.execute(boundStatement);
+    }
+
+    private boolean isMaterialized(String agentRollupId, String transactionType, Period period,
+            long periodEnd) {
+        BoundStatement boundStatement =
+                checkNotNull(periodStatements.get(period)).readOverall.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        boundStatement.setTimestamp(i++, new Date(periodEnd - 1));
+        boundStatement.setTimestamp(i++, new Date(periodEnd));
+        return !session.execute(boundStatement).isExhausted();
+    }
+
+    private ResultSetFuture readMaterialized(String agentRollupId, String transactionType,
+            Period period, OverallQuery query) {
+        BoundStatement boundStatement =
+                checkNotNull(periodStatements.get(period)).readOverall.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        boundStatement.setTimestamp(i++, new Date(query.from()));
+        boundStatement.setTimestamp(i++, new Date(query.to()));
+        return session.executeAsync(boundStatement);
+    }
+
+    private ListenableFuture<InMemorySource> readRollupSource(String agentRollupId,
+            String transactionType, long from, long to) {
+        BoundStatement boundStatement = readRollupPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        return transform(session.executeAsync(boundStatement),
+                TransactionSummaryPeriods::toInMemorySource);
+    }
+
+    // splits (from, to] into the materialized weeks and days that it fully contains, and the
+    // remaining ranges that need to be read from the rollup level
+    static List<Segment> plan(long from, long to, Set<Long> materializedWeeks,
+            Set<Long> materializedDays) {
+        List<Segment> segments = Lists.newArrayList();
+        long rollupFrom = from;
+        long curr = from;
+        while (curr < to) {
+            Period period = null;
+            if (curr % Period.WEEK.millis == 0 && curr + Period.WEEK.millis <= to
+                    && materializedWeeks.contains(curr + Period.WEEK.millis)) {
+                period = Period.WEEK;
+            } else if (curr % Period.DAY.millis == 0 && curr + Period.DAY.millis <= to
+                    && materializedDays.contains(curr + Period.DAY.millis)) {
+                period = Period.DAY;
+            }
+            if (period == null) {
+                curr = Math.min(Utils.getRollupCaptureTime(curr + 1, Period.DAY.millis), to);
+                continue;
+            }
+            if (rollupFrom < curr) {
+                segments.add(ImmutableSegment.of(null, rollupFrom, curr));
+            }
+            segments.add(ImmutableSegment.of(period, curr, curr + period.millis));
+            curr += period.millis;
+            rollupFrom = curr;
+        }
+        if (rollupFrom < to) {
+            segments.add(ImmutableSegment.of(null, rollupFrom, to));
+        }
+        return segments;
+    }
+
+    // reads the top (exact) summaries across the sources by reading each source in rank order,
+    // looking up the exact summary of each newly seen transaction in every source, and stopping
+    // once no transaction that has not been seen yet could rank above the current top summaries
+    // (Fagin's threshold algorithm)
+    static List<TransactionSummary> readTop(List<? extends Source> sources,
+            SummarySortOrder sortOrder, int limit) throws Exception {
+        Map<String, TransactionSummary> candidates = Maps.newHashMap();
+        int fromRank = 0;
+        while (true) {
+            List<ListenableFuture<List<TransactionSummary>>> pageFutures = Lists.newArrayList();
+            for (Source source : sources) {
+                pageFutures.add(source.readRanked(sortOrder, fromRank, limit));
+            }
+            double threshold = 0;
+            boolean exhausted = true;
+            Set<String> newTransactionNames = Sets.newLinkedHashSet();
+            for (ListenableFuture<List<TransactionSummary>> pageFuture : pageFutures) {
+                List<TransactionSummary> page = pageFuture.get();
+                if (page.size() == limit) {
+                    // transactions not seen yet in this source rank at or below the last one
+                    threshold += getValue(page.get(limit - 1), sortOrder);
+                    exhausted = false;
+                }
+                for (TransactionSummary summary : page) {
+                    if (!candidates.containsKey(summary.transactionName())) {
+                        newTransactionNames.add(summary.transactionName());
+                    }
+                }
+            }
+            candidates.putAll(lookupAll(sources, newTransactionNames));
+            List<TransactionSummary> ranked =
+                    getOrdering(sortOrder).sortedCopy(candidates.values());
+            if (exhausted
+                    || ranked.size() >= limit && getValue(ranked.get(limit - 1), sortOrder)
+                            >= threshold) {
+                return ranked.size() > limit ? ranked.subList(0, limit) : ranked;
+            }
+            fromRank += limit;
+        }
+    }
+
+    // the top summaries of a query that also has (non-materialized) rollup ranges, the periods'
+    // top summaries are merged with the transactions that appear in the rollup ranges
+    //
+    // a transaction outside of the periods' top summaries has a period value at or below the
+    // lowest of the periods' top summaries, so its merged value is at most that plus its rollup
+    // value, and only the rollup transactions where that bound can still reach the current top
+    // summaries need their period values looked up
+    //
+    // the threshold algorithm above is not used across both kinds of sources, so that the
+    // rollup ranges are never cut off by rank
+    static List<TransactionSummary> readTop(List<? extends Source> periodSources,
+            List<InMemorySource> rollupSources, SummarySortOrder sortOrder, int limit)
+            throws Exception {
+        List<TransactionSummary> periodTop = readTop(periodSources, sortOrder, limit);
+        if (rollupSources.isEmpty()) {
+            return periodTop;
+        }
+        Map<String, TransactionSummary> rollupSummaries =
+                lookupAll(rollupSources, getTransactionNames(rollupSources));
+        Map<String, TransactionSummary> merged = Maps.newHashMap();
+        for (TransactionSummary summary : periodTop) {
+            merged.put(summary.transactionName(),
+                    add(summary, rollupSummaries.get(summary.transactionName())));
+        }
+        // if there are fewer period top summaries than the limit, then they include every
+        // transaction in the periods, and the rest have no period values
+        boolean periodsExhausted = periodTop.size() < limit;
+        double periodBound =
+                periodsExhausted ? 0 : getValue(periodTop.get(limit - 1), sortOrder);
+        double lowerBound = getLowerBound(merged.values(), sortOrder, limit);
+        Set<String> lookupTransactionNames = Sets.newLinkedHashSet();
+        for (TransactionSummary rollupSummary : rollupSummaries.values()) {
+            String transactionName = rollupSummary.transactionName();
+            if (merged.containsKey(transactionName)) {
+                continue;
+            }
+            if (periodsExhausted) {
+                merged.put(transactionName, rollupSummary);
+            } else if (periodBound + getValue(rollupSummary, sortOrder) >= lowerBound) {
+                lookupTransactionNames.add(transactionName);
+            }
+        }
+        // the period values of these are not known yet
+        for (TransactionSummary summary : lookupAll(periodSources, lookupTransactionNames)
+                .values()) {
+            merged.put(summary.transactionName(),
+                    add(summary, rollupSummaries.get(summary.transactionName())));
+        }
+        List<TransactionSummary> ranked = getOrdering(sortOrder).sortedCopy(merged.values());
+        return ranked.size() > limit ? ranked.subList(0, limit) : ranked;
+    }
+
+    // sums up the exact summary of each transaction across all of the sources, reading each
+    // source once for all of the transaction names
+    private static Map<String, TransactionSummary> lookupAll(List<? extends Source> sources,
+            Set<String> transactionNames) throws Exception {
+        Map<String, TransactionSummary> summaries = Maps.newLinkedHashMap();
+        if (transactionNames.isEmpty()) {
+            return summaries;
+        }
+        List<ListenableFuture<Map<String, TransactionSummary>>> futures = Lists.newArrayList();
+        for (Source source : sources) {
+            futures.add(source.lookup(transactionNames));
+        }
+        for (String transactionName : transactionNames) {
+            summaries.put(transactionName, ImmutableTransactionSummary.builder()
+                    .transactionName(transactionName)
+                    .totalDurationNanos(0)
+                    .transactionCount(0)
+                    .build());
+        }
+        for (ListenableFuture<Map<String, TransactionSummary>> future : futures) {
+            for (TransactionSummary summary : future.get().values()) {
+                String transactionName = summary.transactionName();
+                summaries.put(transactionName, add(summary, summaries.get(transactionName)));
+            }
+        }
+        return summaries;
+    }
+
+    private static Set<String> getTransactionNames(List<InMemorySource> sources) {
+        Set<String> transactionNames = Sets.newLinkedHashSet();
+        for (InMemorySource source : sources) {
+            transactionNames.addAll(source.summaries.keySet());
+        }
+        return transactionNames;
+    }
+
+    // the limit-th highest value, or zero if there are fewer than limit summaries
+    private static double getLowerBound(Collection<TransactionSummary> summaries,
+            SummarySortOrder sortOrder, int limit) {
+        if (summaries.size() < limit) {
+            return 0;
+        }
+        return getValue(getOrdering(sortOrder).sortedCopy(summaries).get(limit - 1), sortOrder);
+    }
+
+    private static TransactionSummary add(TransactionSummary summary,
+            @Nullable TransactionSummary other) {
+        if (other == null) {
+            return summary;
+        }
+        return ImmutableTransactionSummary.builder()
+                .transactionName(summary.transactionName())
+                .totalDurationNanos(summary.totalDurationNanos() + other.totalDurationNanos())
+                .transactionCount(summary.transactionCount() + other.transactionCount())
+                .build();
+    }
+
+    private static List<TransactionSummary> readAll(List<Source> sources) throws Exception {
+        List<ListenableFuture<List<TransactionSummary>>> futures = Lists.newArrayList();
+        for (Source source : sources) {
+            futures.add(source.readAll());
+        }
+        List<TransactionSummary> summaries = Lists.newArrayList();
+        for (ListenableFuture<List<TransactionSummary>> future : futures) {
+            summaries.addAll(future.get());
+        }
+        return summaries;
+    }
+
+    private static Set<Long> getCaptureTimes(ResultSet results) {
+        Set<Long> captureTimes = Sets.newHashSet();
+        for (Row row : results) {
+            captureTimes.add(checkNotNull(row.getTimestamp(0)).getTime());
+        }
+        return captureTimes;
+    }
+
+    private static InMemorySource toInMemorySource(ResultSet results) {
+        Map<String, TransactionSummary> summaries = Maps.newHashMap();
+        long lastCaptureTime = 0;
+        for (Row row : results) {
+            int i = 0;
+            lastCaptureTime =
+                    Math.max(lastCaptureTime, checkNotNull(row.getTimestamp(i++)).getTime());
+            String transactionName = checkNotNull(row.getString(i++));
+            double totalDurationNanos = row.getDouble(i++);
+            long transactionCount = row.getLong(i++);
+            TransactionSummary summary = summaries.get(transactionName);
+            if (summary != null) {
+                totalDurationNanos += summary.totalDurationNanos();
+                transactionCount += summary.transactionCount();
+            }
+            summaries.put(transactionName, ImmutableTransactionSummary.builder()
+                    .transactionName(transactionName)
+                    .totalDurationNanos(totalDurationNanos)
+                    .transactionCount(transactionCount)
+                    .build());
+        }
+        return new InMemorySource(summaries, lastCaptureTime);
+    }
+
+    private static List<TransactionSummary> toSummaries(ResultSet results) {
+        List<TransactionSummary> summaries = Lists.newArrayList();
+        for (Row row : results) {
+            summaries.add(toSummary(row));
+        }
+        return summaries;
+    }
+
+    private static TransactionSummary toSummary(Row row) {
+        int i = 0;
+        return ImmutableTransactionSummary.builder()
+                .transactionName(checkNotNull(row.getString(i++)))
+                .totalDurationNanos(row.getDouble(i++))
+                .transactionCount(row.getLong(i++))
+                .build();
+    }
+
+    private static double getValue(TransactionSummary summary, SummarySortOrder sortOrder) {
+        switch (sortOrder) {
+            case TOTAL_TIME:
+                return summary.totalDurationNanos();
+            case THROUGHPUT:
+                return summary.transactionCount();
+            default:
+                throw new AssertionError("Unexpected sort order: " + sortOrder);
+        }
+    }
+
+    private static Ordering<TransactionSummary> getOrdering(SummarySortOrder sortOrder) {
+        return new Ordering<TransactionSummary>() {
+            @Override
+            public int compare(TransactionSummary left, TransactionSummary right) {
+                int compare =
+                        Double.compare(getValue(right, sortOrder), getValue(left, sortOrder));
+                if (compare != 0) {
+                    return compare;
+                }
+                // for stable ranks
+                return left.transactionName().compareTo(right.transactionName());
+            }
+        };
+    }
+
+    private static <T> ListenableFuture<T> transform(ResultSetFuture future,
+            Function<ResultSet, T> function) {
+        return Futures.transform(future, function);
+    }
+
+    enum Period {
+
+        // week boundaries are every 7 days since the epoch
+        DAY(DAYS.toMillis(1)), WEEK(DAYS.toMillis(7));
+
+        private final long millis;
+
+        private Period(long millis) {
+            this.millis = millis;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface Segment {
+        // null for ranges that need to be read from the rollup level
+        @Nullable
+        Period period();
+        long from(); // non-inclusive
+        long to();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PeriodKey {
+        String agentRollupId();
+        String transactionType();
+        Period period();
+    }
+
+    interface Source {
+
+        // summaries ordered by the sort order
+        ListenableFuture<List<TransactionSummary>> readRanked(SummarySortOrder sortOrder,
+                int fromRank, int limit);
+
+        // future value only has the transaction names that are present in this source
+        ListenableFuture<Map<String, TransactionSummary>> lookup(Set<String> transactionNames);
+
+        ListenableFuture<List<TransactionSummary>> readAll();
+
+        long lastCaptureTime();
+    }
+
+    static class InMemorySource implements Source {
+
+        private final Map<String, TransactionSummary> summaries;
+        private final long lastCaptureTime;
+
+        private final Map<SummarySortOrder, List<TransactionSummary>> ranked =
+                Maps.newEnumMap(SummarySortOrder.class);
+
+        InMemorySource(Map<String, TransactionSummary> summaries, long lastCaptureTime) {
+            this.summaries = summaries;
+            this.lastCaptureTime = lastCaptureTime;
+        }
+
+        @Override
+        public ListenableFuture<List<TransactionSummary>> readRanked(SummarySortOrder sortOrder,
+                int fromRank, int limit) {
+            List<TransactionSummary> ranked = getRanked(sortOrder);
+            int toRank = Math.min(fromRank + limit, ranked.size());
+            if (fromRank >= toRank) {
+                return Futures.<List<TransactionSummary>>immediateFuture(
+                        ImmutableList.<TransactionSummary>of());
+            }
+            return Futures.immediateFuture(ranked.subList(fromRank, toRank));
+        }
+
+        @Override
+        public ListenableFuture<Map<String, TransactionSummary>> lookup(
+                Set<String> transactionNames) {
+            Map<String, TransactionSummary> found = Maps.newHashMap();
+            for (String transactionName : transactionNames) {
+                TransactionSummary summary = summaries.get(transactionName);
+                if (summary != null) {
+                    found.put(transactionName, summary);
+                }
+            }
+            return Futures.immediateFuture(found);
+        }
+
+        @Override
+        public ListenableFuture<List<TransactionSummary>> readAll() {
+            return Futures.<List<TransactionSummary>>immediateFuture(
+                    ImmutableList.copyOf(summaries.values()));
+        }
+
+        @Override
+        public long lastCaptureTime() {
+            return lastCaptureTime;
+        }
+
+        private List<TransactionSummary> getRanked(SummarySortOrder sortOrder) {
+            List<TransactionSummary> list = ranked.get(sortOrder);
+            if (list == null) {
+                list = getOrdering(sortOrder).sortedCopy(summaries.values());
+                ranked.put(sortOrder, list);
+            }
+            return list;
+        }
+    }
+
+    private class PeriodSource implements Source {
+
+        private final String agentRollupId;
+        private final String transactionType;
+        private final PeriodStatements statements;
+        private final long periodEnd;
+
+        private PeriodSource(String agentRollupId, String transactionType, Period period,
+                long periodEnd) {
+            this.agentRollupId = agentRollupId;
+            this.transactionType = transactionType;
+            this.statements = checkNotNull(periodStatements.get(period));
+            this.periodEnd = periodEnd;
+        }
+
+        @Override
+        public ListenableFuture<List<TransactionSummary>> readRanked(SummarySortOrder sortOrder,
+                int fromRank, int limit) {
+            BoundStatement boundStatement = statements.readTop.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(periodEnd));
+            boundStatement.setString(i++, sortOrder.name());
+            boundStatement.setInt(i++, fromRank);
+            boundStatement.setInt(i++, fromRank + limit);
+            return transform(session.executeAsync(boundStatement),
+                    TransactionSummaryPeriods::toSummaries);
+        }
+
+        // one query per period regardless of the number of transaction names
+        @Override
+        public ListenableFuture<Map<String, TransactionSummary>> lookup(
+                Set<String> transactionNames) {
+            boolean inRestriction = transactionNames.size() <= MAX_LOOKUP_IN_SIZE;
+            BoundStatement boundStatement = inRestriction ? statements.readTransactionsIn.bind()
+                    : statements.readTransactions.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(periodEnd));
+            if (inRestriction) {
+                boundStatement.setList(i++, ImmutableList.copyOf(transactionNames));
+            }
+            return transform(session.executeAsync(boundStatement), results -> {
+                Map<String, TransactionSummary> found = Maps.newHashMap();
+                for (Row row : checkNotNull(results)) {
+                    TransactionSummary summary = toSummary(row);
+                    if (transactionNames.contains(summary.transactionName())) {
+                        found.put(summary.transactionName(), summary);
+                    }
+                }
+                return found;
+            });
+        }
+
+        @Override
+        public ListenableFuture<List<TransactionSummary>> readAll() {
+            BoundStatement boundStatement = statements.readTransactions.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(periodEnd));
+            return transform(session.executeAsync(boundStatement),
+                    TransactionSummaryPeriods::toSummaries);
+        }
+
+        @Override
+        public long lastCaptureTime() {
+            return periodEnd;
+        }
+    }
+
+    private static class PeriodStatements {
+
+        private final PreparedStatement insertOverall;
+        private final PreparedStatement readOverall;
+        private final PreparedStatement insertTransaction;
+        private final PreparedStatement readTransactions;
+        private final PreparedStatement readTransactionsIn;
+        private final PreparedStatement insertTop;
+        private final PreparedStatement readTop;
+
+        private PeriodStatements(Session session, String suffix, int expirationHours) {
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " aggregate_tt_summary_" + suffix + " (agent_rollup varchar,"
+                    + " transaction_type varchar, capture_time timestamp, total_duration_nanos"
+                    + " double, transaction_count bigint, primary key ((agent_rollup,"
+                    + " transaction_type), capture_time))", expirationHours);
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " aggregate_tn_summary_" + suffix + " (agent_rollup varchar,"
+                    + " transaction_type varchar, capture_time timestamp, transaction_name"
+                    + " varchar, total_duration_nanos double, transaction_count bigint, primary"
+                    + " key ((agent_rollup, transaction_type, capture_time), transaction_name))",
+                    expirationHours);
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " aggregate_tn_summary_top_" + suffix + " (agent_rollup varchar,"
+                    + " transaction_type varchar, capture_time timestamp, sort_order varchar,"
+                    + " rank int, transaction_name varchar, total_duration_nanos double,"
+                    + " transaction_count bigint, primary key ((agent_rollup, transaction_type,"
+                    + " capture_time, sort_order), rank))", expirationHours);
+            insertOverall = session.prepare("insert into aggregate_tt_summary_"
+                    + suffix + " (agent_rollup, transaction_type, capture_time,"
+                    + " total_duration_nanos, transaction_count) values (?, ?, ?, ?, ?)"
+                    + " using TTL ?");
+            readOverall = session.prepare("select capture_time from"
+                    + " aggregate_tt_summary_" + suffix + " where agent_rollup = ? and"
+                    + " transaction_type = ? and capture_time > ? and capture_time <= ?");
+            insertTransaction = session.prepare("insert into aggregate_tn_summary_"
+                    + suffix + " (agent_rollup, transaction_type, capture_time, transaction_name,"
+                    + " total_duration_nanos, transaction_count) values (?, ?, ?, ?, ?, ?)"
+                    + " using TTL ?");
+            readTransactions = session.prepare("select transaction_name,"
+                    + " total_duration_nanos, transaction_count from aggregate_tn_summary_"
+                    + suffix + " where agent_rollup = ? and transaction_type = ? and"
+                    + " capture_time = ?");
+            readTransactionsIn = session.prepare("select transaction_name,"
+                    + " total_duration_nanos, transaction_count from aggregate_tn_summary_"
+                    + suffix + " where agent_rollup = ? and transaction_type = ? and"
+                    + " capture_time = ? and transaction_name in ?");
+            insertTop = session.prepare("insert into aggregate_tn_summary_top_"
+                    + suffix + " (agent_rollup, transaction_type, capture_time, sort_order, rank,"
+                    + " transaction_name, total_duration_nanos, transaction_count) values"
+                    + " (?, ?, ?, ?, ?, ?, ?, ?) using TTL ?");
+            readTop = session.prepare("select transaction_name,"
+                    + " total_duration_nanos, transaction_count from aggregate_tn_summary_top_"
+                    + suffix + " where agent_rollup = ? and transaction_type = ? and"
+                    + " capture_time = ? and sort_order = ? and rank >= ? and rank < ?");
+        }
+    }
+}
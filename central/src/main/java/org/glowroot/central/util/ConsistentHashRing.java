@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// maps keys to nodes such that adding or removing a node only moves the keys of that node
+public class ConsistentHashRing {
+
+    // virtual nodes smooth out the distribution of keys across a small number of nodes
+    private static final int VIRTUAL_NODES_PER_NODE = 128;
+
+    private static final HashFunction hashFunction = Hashing.murmur3_32();
+
+    private final NavigableMap<Integer, String> ring = Maps.newTreeMap();
+
+    public ConsistentHashRing(List<String> nodes) {
+        checkArgument(!nodes.isEmpty(), "nodes must not be empty");
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES_PER_NODE; i++) {
+                ring.put(hash(node + '#' + i), node);
+            }
+        }
+    }
+
+    public String getNode(String key) {
+        Map.Entry<Integer, String> entry = ring.ceilingEntry(hash(key));
+        if (entry == null) {
+            // wrap around
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    private static int hash(String value) {
+        return hashFunction.hashString(value, Charsets.UTF_8).asInt();
+    }
+}
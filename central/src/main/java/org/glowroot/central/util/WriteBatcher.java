@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+
+// groups bound statements that target the same partition of the same table into UNLOGGED batches
+// (which cassandra applies as a single mutation), and caps the number of requests in flight so
+// that bursts of aggregate data (e.g. many agents reporting at the top of the minute) block the
+// collecting threads instead of overflowing the driver's request queue
+public class WriteBatcher implements WriteBatcherMXBean {
+
+    private static final int MAX_IN_FLIGHT_REQUESTS =
+            Integer.getInteger("glowroot.cassandra.maxInFlightWrites", 1024);
+
+    // keep batches small, large batches put pressure on the coordinator
+    private static final int MAX_BATCH_SIZE =
+            Integer.getInteger("glowroot.cassandra.maxWriteBatchSize", 50);
+
+    private final Session session;
+    private final int maxInFlightRequests;
+    private final int maxBatchSize;
+
+    private final Semaphore inFlightPermits;
+
+    private final AtomicInteger waitingStatementCount = new AtomicInteger();
+    private final AtomicLong completedRequestCount = new AtomicLong();
+    private final AtomicLong completedStatementCount = new AtomicLong();
+    private final AtomicLong totalRequestLatencyNanos = new AtomicLong();
+
+    public WriteBatcher(Session session) {
+        this(session, MAX_IN_FLIGHT_REQUESTS, MAX_BATCH_SIZE);
+    }
+
+    @VisibleForTesting
+    WriteBatcher(Session session, int maxInFlightRequests, int maxBatchSize) {
+        this.session = session;
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.maxBatchSize = maxBatchSize;
+        inFlightPermits = new Semaphore(maxInFlightRequests);
+    }
+
+    // blocks while the maximum number of requests are already in flight
+    public List<ResultSetFuture> executeAsync(List<BoundStatement> boundStatements)
+            throws InterruptedException {
+        List<Statement> requests = Lists.newArrayList();
+        List<Integer> requestStatementCounts = Lists.newArrayList();
+        for (List<BoundStatement> partition : groupByPartition(boundStatements)) {
+            for (List<BoundStatement> chunk : Lists.partition(partition, maxBatchSize)) {
+                if (chunk.size() == 1) {
+                    requests.add(chunk.get(0));
+                } else {
+                    BatchStatement batchStatement =
+                            new BatchStatement(BatchStatement.Type.UNLOGGED);
+                    batchStatement.addAll(chunk);
+                    requests.add(batchStatement);
+                }
+                requestStatementCounts.add(chunk.size());
+            }
+        }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        int remainingStatementCount = boundStatements.size();
+        waitingStatementCount.addAndGet(remainingStatementCount);
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                inFlightPermits.acquire();
+                int statementCount = requestStatementCounts.get(i);
+                waitingStatementCount.addAndGet(-statementCount);
+                remainingStatementCount -= statementCount;
+                futures.add(execute(requests.get(i), statementCount));
+            }
+        } finally {
+            waitingStatementCount.addAndGet(-remainingStatementCount);
+        }
+        return futures;
+    }
+
+    @Override
+    public int getInFlightRequestCount() {
+        return maxInFlightRequests - inFlightPermits.availablePermits();
+    }
+
+    @Override
+    public int getWaitingStatementCount() {
+        return waitingStatementCount.get();
+    }
+
+    @Override
+    public long getCompletedRequestCount() {
+        return completedRequestCount.get();
+    }
+
+    @Override
+    public long getCompletedStatementCount() {
+        return completedStatementCount.get();
+    }
+
+    @Override
+    public double getAverageRequestLatencyMillis() {
+        long count = completedRequestCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalRequestLatencyNanos.get() / (count * 1000000.0);
+    }
+
+    // used as a signal to agents to back off
+    @Override
+    public boolean isBackedUp() {
+        return waitingStatementCount.get() > 0 || inFlightPermits.availablePermits() == 0;
+    }
+
+    private ResultSetFuture execute(Statement statement, int statementCount) {
+        long startTick = System.nanoTime();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            throw e;
+        }
+        future.addListener(() -> {
+            inFlightPermits.release();
+            completedRequestCount.incrementAndGet();
+            completedStatementCount.addAndGet(statementCount);
+            totalRequestLatencyNanos.addAndGet(System.nanoTime() - startTick);
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private Iterable<List<BoundStatement>> groupByPartition(List<BoundStatement> boundStatements) {
+        Configuration configuration = session.getCluster().getConfiguration();
+        ProtocolVersion protocolVersion =
+                configuration.getProtocolOptions().getProtocolVersion();
+        CodecRegistry codecRegistry = configuration.getCodecRegistry();
+        Map<Object, List<BoundStatement>> partitions = Maps.newLinkedHashMap();
+        for (BoundStatement boundStatement : boundStatements) {
+            ByteBuffer routingKey = protocolVersion == null ? null
+                    : boundStatement.getRoutingKey(protocolVersion, codecRegistry);
+            Object partitionKey;
+            if (routingKey == null) {
+                // partition is unknown, so don't batch
+                partitionKey = new Object();
+            } else {
+                partitionKey = new PartitionKey(boundStatement.preparedStatement(), routingKey);
+            }
+            partitions.computeIfAbsent(partitionKey, k -> Lists.newArrayList())
+                    .add(boundStatement);
+        }
+        return partitions.values();
+    }
+
+    private static class PartitionKey {
+
+        // prepared statements are cached and reused, so identity identifies the table
+        private final PreparedStatement preparedStatement;
+        private final ByteBuffer routingKey;
+
+        private PartitionKey(PreparedStatement preparedStatement, ByteBuffer routingKey) {
+            this.preparedStatement = preparedStatement;
+            this.routingKey = routingKey;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof PartitionKey)) {
+                return false;
+            }
+            PartitionKey that = (PartitionKey) obj;
+            return preparedStatement == that.preparedStatement
+                    && routingKey.equals(that.routingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(preparedStatement) + routingKey.hashCode();
+        }
+    }
+}
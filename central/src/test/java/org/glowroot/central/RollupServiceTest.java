@@ -15,6 +15,8 @@
  */
 package org.glowroot.central;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -28,4 +30,16 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldExcludeDownRollupNodes() {
+        assertThat(RollupService.getLiveRollupNodes(ImmutableList.of("a", "b", "c"), "a",
+                ImmutableSet.of("a", "c"))).containsExactly("a", "c");
+        // this node is always live
+        assertThat(RollupService.getLiveRollupNodes(ImmutableList.of("a", "b", "c"), "b",
+                ImmutableSet.of("a"))).containsExactly("a", "b");
+        // heartbeats from nodes that are not configured are ignored
+        assertThat(RollupService.getLiveRollupNodes(ImmutableList.of("a", "b"), "a",
+                ImmutableSet.of("a", "b", "x"))).containsExactly("a", "b");
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -34,6 +34,8 @@ import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -212,4 +214,43 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadSlowestTracesInDurationRangeAcrossBuckets() throws Exception {
+        // given
+        long captureTime = System.currentTimeMillis() + HOURS.toMillis(1);
+        traceDao.store(AGENT_ID, createTrace(captureTime, 10));
+        traceDao.store(AGENT_ID, createTrace(captureTime + HOURS.toMillis(2), 30));
+        traceDao.store(AGENT_ID, createTrace(captureTime + HOURS.toMillis(4), 20));
+        traceDao.store(AGENT_ID, createTrace(captureTime + HOURS.toMillis(5), 40));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test by duration")
+                .from(captureTime - 1)
+                .to(captureTime + HOURS.toMillis(6))
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(MILLISECONDS.toNanos(15))
+                .durationNanosHigh(MILLISECONDS.toNanos(35))
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(queryResult.records().get(0).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(30));
+        assertThat(queryResult.moreAvailable()).isTrue();
+    }
+
+    private static Trace createTrace(long captureTime, long durationMillis) {
+        Trace trace = TraceTestData.createTrace();
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setTransactionType("unit test by duration")
+                        .setStartTime(captureTime - durationMillis)
+                        .setCaptureTime(captureTime)
+                        .setDurationNanos(MILLISECONDS.toNanos(durationMillis)))
+                .build();
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import org.glowroot.central.repo.TransactionSummaryPeriods.InMemorySource;
+import org.glowroot.central.repo.TransactionSummaryPeriods.Period;
+import org.glowroot.central.repo.TransactionSummaryPeriods.Segment;
+import org.glowroot.common.model.ImmutableTransactionSummary;
+import org.glowroot.common.model.TransactionSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionSummaryPeriodsTest {
+
+    private static final long DAY = DAYS.toMillis(1);
+    private static final long WEEK = DAYS.toMillis(7);
+
+    @Test
+    public void shouldPlanWeeksDaysAndRemainingRanges() {
+        // given
+        long from = 2 * WEEK - 2 * DAY - HOURS.toMillis(4);
+        long to = 3 * WEEK + 2 * DAY + HOURS.toMillis(8);
+        // when
+        List<Segment> segments = TransactionSummaryPeriods.plan(from, to,
+                ImmutableSet.of(3 * WEEK), ImmutableSet.of(2 * WEEK, 3 * WEEK + DAY,
+                        3 * WEEK + 2 * DAY));
+        // then
+        assertThat(segments).containsExactly(
+                ImmutableSegment.of(null, from, 2 * WEEK - DAY),
+                ImmutableSegment.of(Period.DAY, 2 * WEEK - DAY, 2 * WEEK),
+                ImmutableSegment.of(Period.WEEK, 2 * WEEK, 3 * WEEK),
+                ImmutableSegment.of(Period.DAY, 3 * WEEK, 3 * WEEK + DAY),
+                ImmutableSegment.of(Period.DAY, 3 * WEEK + DAY, 3 * WEEK + 2 * DAY),
+                ImmutableSegment.of(null, 3 * WEEK + 2 * DAY, to));
+    }
+
+    @Test
+    public void shouldPlanSingleRangeWhenNothingIsMaterialized() {
+        // when
+        List<Segment> segments = TransactionSummaryPeriods.plan(HOURS.toMillis(1), 10 * DAY,
+                ImmutableSet.<Long>of(), ImmutableSet.<Long>of());
+        // then
+        assertThat(segments)
+                .containsExactly(ImmutableSegment.of(null, HOURS.toMillis(1), 10 * DAY));
+    }
+
+    @Test
+    public void shouldReadSameTopSummariesAsFullMerge() throws Exception {
+        Random random = new Random(0);
+        for (int n = 0; n < 20; n++) {
+            // given
+            List<InMemorySource> sources = Lists.newArrayList();
+            TransactionSummaryCollector collector = new TransactionSummaryCollector();
+            for (int i = 0; i < 1 + random.nextInt(8); i++) {
+                Map<String, TransactionSummary> summaries = Maps.newHashMap();
+                for (int j = 0; j < random.nextInt(300); j++) {
+                    // skewed so that some transactions are much larger than others
+                    String transactionName = "t" + (int) Math.abs(random.nextGaussian() * 100);
+                    long transactionCount = 1 + random.nextInt(1000);
+                    double totalDurationNanos = transactionCount * 1000.0 * random.nextInt(1000);
+                    summaries.put(transactionName, ImmutableTransactionSummary.builder()
+                            .transactionName(transactionName)
+                            .totalDurationNanos(totalDurationNanos)
+                            .transactionCount(transactionCount)
+                            .build());
+                }
+                sources.add(new InMemorySource(summaries, 0));
+                for (TransactionSummary summary : summaries.values()) {
+                    collector.collect(summary.transactionName(), summary.totalDurationNanos(),
+                            summary.transactionCount(), 0);
+                }
+            }
+            for (SummarySortOrder sortOrder : new SummarySortOrder[] {SummarySortOrder.TOTAL_TIME,
+                    SummarySortOrder.THROUGHPUT}) {
+                int limit = 1 + random.nextInt(20);
+                // when
+                List<TransactionSummary> top =
+                        TransactionSummaryPeriods.readTop(sources, sortOrder, limit);
+                // then
+                List<TransactionSummary> expected =
+                        collector.getResult(sortOrder, limit).records();
+                assertThat(getValues(top, sortOrder))
+                        .isEqualTo(getValues(expected, sortOrder));
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadSameTopSummariesAsFullMergeWithRollupRanges() throws Exception {
+        Random random = new Random(0);
+        for (int n = 0; n < 20; n++) {
+            // given
+            List<InMemorySource> periodSources = Lists.newArrayList();
+            List<InMemorySource> rollupSources = Lists.newArrayList();
+            TransactionSummaryCollector collector = new TransactionSummaryCollector();
+            for (int i = 0; i < 2 + random.nextInt(8); i++) {
+                Map<String, TransactionSummary> summaries = Maps.newHashMap();
+                // the rollup ranges are small compared to the periods, but can still contain
+                // transactions that are not in the top of the periods
+                int max = i == 0 ? 30 : 300;
+                for (int j = 0; j < random.nextInt(max); j++) {
+                    String transactionName = "t" + (int) Math.abs(random.nextGaussian() * 100);
+                    long transactionCount = 1 + random.nextInt(1000);
+                    double totalDurationNanos = transactionCount * 1000.0 * random.nextInt(1000);
+                    summaries.put(transactionName, ImmutableTransactionSummary.builder()
+                            .transactionName(transactionName)
+                            .totalDurationNanos(totalDurationNanos)
+                            .transactionCount(transactionCount)
+                            .build());
+                }
+                InMemorySource source = new InMemorySource(summaries, 0);
+                if (i == 0) {
+                    rollupSources.add(source);
+                } else {
+                    periodSources.add(source);
+                }
+                for (TransactionSummary summary : summaries.values()) {
+                    collector.collect(summary.transactionName(), summary.totalDurationNanos(),
+                            summary.transactionCount(), 0);
+                }
+            }
+            for (SummarySortOrder sortOrder : new SummarySortOrder[] {SummarySortOrder.TOTAL_TIME,
+                    SummarySortOrder.THROUGHPUT}) {
+                int limit = 1 + random.nextInt(20);
+                // when
+                List<TransactionSummary> top = TransactionSummaryPeriods.readTop(periodSources,
+                        rollupSources, sortOrder, limit);
+                // then
+                List<TransactionSummary> expected =
+                        collector.getResult(sortOrder, limit).records();
+                assertThat(getValues(top, sortOrder))
+                        .isEqualTo(getValues(expected, sortOrder));
+            }
+        }
+    }
+
+    // ties can be ordered differently, so compare the values
+    private static List<Double> getValues(List<TransactionSummary> summaries,
+            SummarySortOrder sortOrder) {
+        List<Double> values = Lists.newArrayList();
+        for (TransactionSummary summary : summaries) {
+            if (sortOrder == SummarySortOrder.TOTAL_TIME) {
+                values.add(summary.totalDurationNanos());
+            } else {
+                values.add((double) summary.transactionCount());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void shouldSpreadKeysAcrossNodes() {
+        // given
+        ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a", "b", "c"));
+        Map<String, Integer> counts = Maps.newHashMap();
+        // when
+        for (int i = 0; i < 3000; i++) {
+            counts.merge(ring.getNode("agent-" + i), 1, Integer::sum);
+        }
+        // then
+        assertThat(counts).hasSize(3);
+        for (int count : counts.values()) {
+            assertThat(count).isBetween(700, 1300);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysOfAddedNode() {
+        // given
+        ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a", "b", "c"));
+        ConsistentHashRing biggerRing =
+                new ConsistentHashRing(ImmutableList.of("a", "b", "c", "d"));
+        // when then
+        for (int i = 0; i < 3000; i++) {
+            String key = "agent-" + i;
+            String node = biggerRing.getNode(key);
+            if (!node.equals("d")) {
+                assertThat(node).isEqualTo(ring.getNode(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WriteBatcherTest {
+
+    private Session session;
+
+    @Before
+    public void beforeEach() {
+        session = mock(Session.class);
+        Cluster cluster = mock(Cluster.class);
+        Configuration configuration = mock(Configuration.class);
+        ProtocolOptions protocolOptions = mock(ProtocolOptions.class);
+        when(session.getCluster()).thenReturn(cluster);
+        when(cluster.getConfiguration()).thenReturn(configuration);
+        when(configuration.getProtocolOptions()).thenReturn(protocolOptions);
+        when(configuration.getCodecRegistry()).thenReturn(CodecRegistry.DEFAULT_INSTANCE);
+        when(protocolOptions.getProtocolVersion()).thenReturn(ProtocolVersion.V4);
+        when(session.executeAsync(any(Statement.class))).thenReturn(mock(ResultSetFuture.class));
+    }
+
+    @Test
+    public void shouldBatchByPartition() throws Exception {
+        // given
+        WriteBatcher writeBatcher = new WriteBatcher(session, 100, 2);
+        PreparedStatement preparedStatement1 = mock(PreparedStatement.class);
+        PreparedStatement preparedStatement2 = mock(PreparedStatement.class);
+        List<BoundStatement> boundStatements = ImmutableList.of(
+                mockBoundStatement(preparedStatement1, "a"),
+                mockBoundStatement(preparedStatement1, "a"),
+                mockBoundStatement(preparedStatement1, "b"),
+                mockBoundStatement(preparedStatement2, "a"),
+                mockBoundStatement(preparedStatement1, "a"),
+                mockBoundStatement(preparedStatement1, null));
+        // when
+        writeBatcher.executeAsync(boundStatements);
+        // then
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(5)).executeAsync(captor.capture());
+        List<Statement> statements = captor.getAllValues();
+        // partition "a" of first table is split into batches of max size 2
+        assertThat(statements.get(0)).isInstanceOf(BatchStatement.class);
+        assertThat(((BatchStatement) statements.get(0)).size()).isEqualTo(2);
+        assertThat(statements.get(1)).isSameAs(boundStatements.get(4));
+        assertThat(statements.get(2)).isSameAs(boundStatements.get(2));
+        assertThat(statements.get(3)).isSameAs(boundStatements.get(3));
+        assertThat(statements.get(4)).isSameAs(boundStatements.get(5));
+    }
+
+    @Test
+    public void shouldReportBackedUp() throws Exception {
+        // given
+        WriteBatcher writeBatcher = new WriteBatcher(session, 1, 10);
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        // when
+        writeBatcher.executeAsync(
+                ImmutableList.of(mockBoundStatement(preparedStatement, "a")));
+        // then
+        assertThat(writeBatcher.getInFlightRequestCount()).isEqualTo(1);
+        assertThat(writeBatcher.getWaitingStatementCount()).isEqualTo(0);
+        assertThat(writeBatcher.isBackedUp()).isTrue();
+    }
+
+    private static BoundStatement mockBoundStatement(PreparedStatement preparedStatement,
+            @Nullable String partitionKey) {
+        BoundStatement boundStatement = mock(BoundStatement.class);
+        when(boundStatement.preparedStatement()).thenReturn(preparedStatement);
+        when(boundStatement.getRoutingKey(any(ProtocolVersion.class), any(CodecRegistry.class)))
+                .thenReturn(partitionKey == null ? null : ByteBuffer.wrap(partitionKey.getBytes()));
+        return boundStatement;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -87,6 +87,22 @@ public interface LiveTraceRepository {
         public abstract @Nullable StringComparator attributeValueComparator();
         public abstract @Nullable String attributeValue();
 
+        @Value.Default
+        public long durationNanosLow() {
+            return 0;
+        }
+
+        // null means no upper bound
+        public abstract @Nullable Long durationNanosHigh();
+
+        public boolean matchesDuration(long durationNanos) {
+            if (durationNanos < durationNanosLow()) {
+                return false;
+            }
+            Long durationNanosHigh = durationNanosHigh();
+            return durationNanosHigh == null || durationNanos <= durationNanosHigh;
+        }
+
         public boolean matchesHeadline(String headline) {
             return matchesUsingStringComparator(headline, headline(), headlineComparator());
         }
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+
+// fixed precision log-linear histogram, values below 256 are tracked exactly and larger values are
+// tracked with 8 bits of precision (relative error below 0.4%)
+//
+// this is an alternative to LazyHistogram, which stores raw values and then switches to an
+// HdrHistogram with 5 significant digits (which needs a large counts array and whose encoded form
+// is compressed), here there is only a single array of primitive counters that covers just the
+// range of buckets that have been recorded, so merging is adding counters, and the encoded form is
+// a small header followed by a direct copy of the counters, which can be merged in place without
+// first decoding into an intermediate histogram
+public class CompactHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    private static final int MAX_INDEX = getIndex(Long.MAX_VALUE);
+
+    private static final int MIN_CAPACITY = 64;
+
+    private static final byte ENCODING_VERSION = 1;
+    // version, total count, max value, first index, number of counters
+    private static final int HEADER_SIZE = 1 + 8 + 8 + 4 + 4;
+
+    // counts[i] is the count for bucket index (offset + i)
+    private long[] counts = new long[0];
+    private int offset;
+
+    private long totalCount;
+    private long maxValue;
+
+    public CompactHistogram() {}
+
+    // special constructor, decodes a histogram that was encoded using encodeIntoByteBuffer()
+    public CompactHistogram(ByteBuffer buffer) {
+        merge(buffer);
+    }
+
+    public void add(long value) {
+        int index = getIndex(value);
+        if (index < offset || index >= offset + counts.length) {
+            ensureRange(index, index);
+        }
+        counts[index - offset]++;
+        totalCount++;
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    public void merge(CompactHistogram toBeMergedHistogram) {
+        if (toBeMergedHistogram.totalCount == 0) {
+            return;
+        }
+        int from = toBeMergedHistogram.getFirstNonZero();
+        int to = toBeMergedHistogram.getLastNonZero();
+        int fromIndex = toBeMergedHistogram.offset + from;
+        ensureRange(fromIndex, toBeMergedHistogram.offset + to);
+        int delta = fromIndex - offset - from;
+        for (int i = from; i <= to; i++) {
+            counts[i + delta] += toBeMergedHistogram.counts[i];
+        }
+        totalCount += toBeMergedHistogram.totalCount;
+        maxValue = Math.max(maxValue, toBeMergedHistogram.maxValue);
+    }
+
+    // merges a histogram that was encoded using encodeIntoByteBuffer(), reading from the buffer's
+    // current position and leaving the position at the end of the encoded histogram
+    public void merge(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if (version != ENCODING_VERSION) {
+            throw new IllegalStateException("Unexpected encoding version: " + version);
+        }
+        long encodedTotalCount = buffer.getLong();
+        long encodedMaxValue = buffer.getLong();
+        int fromIndex = buffer.getInt();
+        int length = buffer.getInt();
+        if (length == 0) {
+            return;
+        }
+        if (totalCount == 0) {
+            // nothing to add to, so the counters can be copied directly
+            counts = new long[length];
+            offset = fromIndex;
+            buffer.asLongBuffer().get(counts);
+        } else {
+            ensureRange(fromIndex, fromIndex + length - 1);
+            int delta = fromIndex - offset;
+            for (int i = 0; i < length; i++) {
+                counts[i + delta] += buffer.getLong(buffer.position() + 8 * i);
+            }
+        }
+        buffer.position(buffer.position() + 8 * length);
+        totalCount += encodedTotalCount;
+        maxValue = Math.max(maxValue, encodedMaxValue);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with LazyHistogram behavior
+            return 0;
+        }
+        // this is consistent with LazyHistogram behavior for raw values, including support for
+        // "0th" percentile to mean the smallest tracked percentile
+        long countAtPercentile = Math.max((long) Math.ceil(totalCount * percentile / 100), 1);
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= countAtPercentile) {
+                return Math.min(getMedianEquivalentValue(offset + i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    public int getNeededByteBufferCapacity() {
+        if (totalCount == 0) {
+            return HEADER_SIZE;
+        }
+        return HEADER_SIZE + 8 * (getLastNonZero() - getFirstNonZero() + 1);
+    }
+
+    public void encodeIntoByteBuffer(ByteBuffer buffer) {
+        int from = 0;
+        int length = 0;
+        if (totalCount != 0) {
+            from = getFirstNonZero();
+            length = getLastNonZero() - from + 1;
+        }
+        buffer.put(ENCODING_VERSION);
+        buffer.putLong(totalCount);
+        buffer.putLong(maxValue);
+        buffer.putInt(offset + from);
+        buffer.putInt(length);
+        buffer.asLongBuffer().put(counts, from, length);
+        buffer.position(buffer.position() + 8 * length);
+    }
+
+    private void ensureRange(int fromIndex, int toIndex) {
+        int end = offset + counts.length;
+        if (counts.length != 0 && fromIndex >= offset && toIndex < end) {
+            return;
+        }
+        int newFrom;
+        int newTo;
+        if (counts.length == 0) {
+            newFrom = fromIndex;
+            newTo = toIndex + 1;
+        } else {
+            newFrom = Math.min(offset, fromIndex);
+            newTo = Math.max(end, toIndex + 1);
+        }
+        // at least double in size
+        int slack = Math.max(counts.length * 2, MIN_CAPACITY) - (newTo - newFrom);
+        if (slack > 0) {
+            if (counts.length == 0) {
+                newFrom = Math.max(0, newFrom - slack / 2);
+                newTo = Math.min(MAX_INDEX + 1, newTo + slack - (fromIndex - newFrom));
+            } else if (fromIndex < offset) {
+                newFrom = Math.max(0, newFrom - slack);
+            } else {
+                newTo = Math.min(MAX_INDEX + 1, newTo + slack);
+            }
+        }
+        long[] newCounts = new long[newTo - newFrom];
+        if (counts.length != 0) {
+            System.arraycopy(counts, 0, newCounts, offset - newFrom, counts.length);
+        }
+        counts = newCounts;
+        offset = newFrom;
+    }
+
+    private int getFirstNonZero() {
+        int i = 0;
+        while (counts[i] == 0) {
+            i++;
+        }
+        return i;
+    }
+
+    private int getLastNonZero() {
+        int i = counts.length - 1;
+        while (counts[i] == 0) {
+            i--;
+        }
+        return i;
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        // value >>> shift is between SUB_BUCKET_HALF_COUNT (inclusive) and SUB_BUCKET_COUNT
+        // (exclusive), so each shift gets its own SUB_BUCKET_HALF_COUNT buckets
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+    }
+
+    // returns the middle of the range of values that are tracked by the bucket, which halves the
+    // worst case relative error compared to returning the highest value in the range
+    private static long getMedianEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucket = index - shift * SUB_BUCKET_HALF_COUNT;
+        long lowestEquivalentValue = subBucket << shift;
+        // for the last bucket, the lowest equivalent value is already past Long.MAX_VALUE / 2 so
+        // adding half the bucket width cannot overflow
+        return lowestEquivalentValue + (1L << shift) / 2;
+    }
+}
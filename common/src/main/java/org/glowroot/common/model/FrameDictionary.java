@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+// assigns a compact int id to each distinct stack trace element, and interns the package, class,
+// method and file names so that they are shared across all profiles instead of being duplicated
+// per profile
+//
+// the shared instance is only weakly reachable from here, each ProfileTree holds a strong
+// reference to the dictionary that its frame ids refer to, so once there are no more profiles
+// referencing it, the dictionary (including frames from classes that have since been unloaded) can
+// be collected and a fresh dictionary is started on next use
+//
+// under continuous load there is always some profile referencing the shared instance, so it is
+// also replaced once it reaches MAX_SHARED_FRAMES, otherwise an unbounded number of distinct frames
+// (e.g. from generated classes, proxies and lambdas) would grow it for the life of the jvm, the old
+// instance is then only retained by the (transaction scoped) profiles that already reference it
+public class FrameDictionary {
+
+    @VisibleForTesting
+    static final int MAX_SHARED_FRAMES = 32768;
+
+    private static final Object sharedInstanceLock = new Object();
+
+    @GuardedBy("sharedInstanceLock")
+    private static WeakReference</*@Nullable*/ FrameDictionary> sharedInstanceRef =
+            new WeakReference</*@Nullable*/ FrameDictionary>(null);
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final Map<StackTraceElement, Integer> frameIds = Maps.newHashMap();
+    @GuardedBy("lock")
+    private final Map<String, String> names = Maps.newHashMap();
+    @GuardedBy("lock")
+    private Frame[] frames = new Frame[256];
+    @GuardedBy("lock")
+    private int frameCount;
+
+    @VisibleForTesting
+    FrameDictionary() {}
+
+    public static FrameDictionary getSharedInstance() {
+        synchronized (sharedInstanceLock) {
+            FrameDictionary sharedInstance = sharedInstanceRef.get();
+            if (sharedInstance == null || sharedInstance.getFrameCount() >= MAX_SHARED_FRAMES) {
+                sharedInstance = new FrameDictionary();
+                sharedInstanceRef =
+                        new WeakReference</*@Nullable*/ FrameDictionary>(sharedInstance);
+            }
+            return sharedInstance;
+        }
+    }
+
+    // returns null if any of the stack trace elements has a null method name, which can happen
+    // after hotswapping under Eclipse debugger, in which case seems best to just ignore the stack
+    // trace capture altogether
+    //
+    // single lock acquisition for the whole stack trace
+    int /*@Nullable*/ [] getFrameIds(StackTraceElement[] stackTrace) {
+        for (StackTraceElement stackTraceElement : stackTrace) {
+            if (stackTraceElement.getMethodName() == null) {
+                return null;
+            }
+        }
+        int[] ids = new int[stackTrace.length];
+        synchronized (lock) {
+            for (int i = 0; i < stackTrace.length; i++) {
+                ids[i] = getFrameId(stackTrace[i]);
+            }
+        }
+        return ids;
+    }
+
+    int getFrameCount() {
+        synchronized (lock) {
+            return frameCount;
+        }
+    }
+
+    Frame getFrame(int frameId) {
+        synchronized (lock) {
+            return frames[frameId];
+        }
+    }
+
+    @GuardedBy("lock")
+    private int getFrameId(StackTraceElement stackTraceElement) {
+        Integer frameId = frameIds.get(stackTraceElement);
+        if (frameId != null) {
+            return frameId;
+        }
+        String fullClassName = stackTraceElement.getClassName();
+        int index = fullClassName.lastIndexOf('.');
+        String packageName;
+        String className;
+        if (index == -1) {
+            packageName = "";
+            className = fullClassName;
+        } else {
+            packageName = fullClassName.substring(0, index);
+            className = fullClassName.substring(index + 1);
+        }
+        Frame frame = new Frame(intern(packageName), intern(className),
+                intern(Strings.nullToEmpty(stackTraceElement.getMethodName())),
+                intern(Strings.nullToEmpty(stackTraceElement.getFileName())),
+                stackTraceElement.getLineNumber());
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        int newFrameId = frameCount++;
+        frames[newFrameId] = frame;
+        frameIds.put(stackTraceElement, newFrameId);
+        return newFrameId;
+    }
+
+    @GuardedBy("lock")
+    private String intern(String name) {
+        String interned = names.get(name);
+        if (interned == null) {
+            names.put(name, name);
+            return name;
+        }
+        return interned;
+    }
+
+    static class Frame {
+
+        private final String packageName;
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final int lineNumber;
+
+        private Frame(String packageName, String className, String methodName, String fileName,
+                int lineNumber) {
+            this.packageName = packageName;
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+            this.lineNumber = lineNumber;
+        }
+
+        String getPackageName() {
+            return packageName;
+        }
+
+        String getClassName() {
+            return className;
+        }
+
+        String getMethodName() {
+            return methodName;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        int getLineNumber() {
+            return lineNumber;
+        }
+    }
+}
@@ -42,6 +42,12 @@ import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// used for merging profiles from protos and from other mutable profiles (aggregate merging in the
+// agent, central and the UI), and for filtering and truncating them
+//
+// NOTE this still keeps its own per-instance name interning and ProfileNode tree, the compact
+// ProfileTree (with its shared FrameDictionary) is only used on the agent's stack trace capture
+// path and is merged into this via merge(ProfileTree)
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
@@ -74,6 +80,10 @@ public class MutableProfile {
         merger.merge(profile.getNodeList(), rootNodes);
     }
 
+    public void merge(ProfileTree profileTree) {
+        profileTree.traverse(new ProfileTreeMerger());
+    }
+
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
 
         for (StackTraceElement stackTraceElement : stackTraceElements) {
@@ -262,7 +272,7 @@ public class MutableProfile {
         return index;
     }
 
-    private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
+    static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
         }
@@ -440,6 +450,53 @@ public class MutableProfile {
         }
     }
 
+    private class ProfileTreeMerger implements ProfileTree.Visitor {
+
+        // frames are shared across profile trees, so identity is enough here
+        private final Map<FrameDictionary.Frame, int[]> nameIndexes = Maps.newIdentityHashMap();
+
+        // destinations.get(depth) is the list of nodes to merge into at that depth
+        private final List<List<ProfileNode>> destinations = Lists.newArrayList();
+
+        private ProfileTreeMerger() {
+            destinations.add(rootNodes);
+        }
+
+        @Override
+        public void visit(FrameDictionary.Frame frame, Profile.LeafThreadState leafThreadState,
+                long sampleCount, int depth) {
+            int[] indexes = nameIndexes.get(frame);
+            if (indexes == null) {
+                indexes = new int[] {
+                        getNameIndex(frame.getPackageName(), packageNameIndexes, packageNames),
+                        getNameIndex(frame.getClassName(), classNameIndexes, classNames),
+                        getNameIndex(frame.getMethodName(), methodNameIndexes, methodNames),
+                        getNameIndex(frame.getFileName(), fileNameIndexes, fileNames)};
+                nameIndexes.put(frame, indexes);
+            }
+            List<ProfileNode> destinationNodes = destinations.get(depth);
+            ProfileNode node = null;
+            for (ProfileNode destinationNode : destinationNodes) {
+                if (isMatch(destinationNode, indexes[0], indexes[1], indexes[2], indexes[3],
+                        frame.getLineNumber(), leafThreadState)) {
+                    node = destinationNode;
+                    break;
+                }
+            }
+            if (node == null) {
+                node = new ProfileNode(indexes[0], indexes[1], indexes[2], indexes[3],
+                        frame.getLineNumber(), leafThreadState);
+                destinationNodes.add(node);
+            }
+            node.sampleCount += sampleCount;
+            if (destinations.size() == depth + 1) {
+                destinations.add(node.childNodes);
+            } else {
+                destinations.set(depth + 1, node.childNodes);
+            }
+        }
+    }
+
     // using Traverser to avoid StackOverflowError caused by a recursive algorithm
     private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
 
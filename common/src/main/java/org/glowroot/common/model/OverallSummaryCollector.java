@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -41,6 +41,11 @@ public class OverallSummaryCollector {
         lastCaptureTime = Math.max(lastCaptureTime, captureTime);
     }
 
+    public void merge(OverallSummaryCollector collector) {
+        mergeSummary(collector.totalDurationNanos, collector.transactionCount,
+                collector.lastCaptureTime);
+    }
+
     @Value.Immutable
     public interface OverallSummary {
         // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
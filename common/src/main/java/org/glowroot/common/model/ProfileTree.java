@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// compact profile tree stored in parallel primitive arrays (one slot per node), with frames
+// referenced by id from a shared FrameDictionary, so that memory is proportional to the number of
+// distinct stack paths as opposed to the number of samples times stack depth
+//
+// children are stored as a singly linked list (first child / next sibling) in insertion order
+//
+// this class is not thread safe
+public class ProfileTree {
+
+    static final int NO_NODE = -1;
+
+    private static final Profile.LeafThreadState[] leafThreadStates =
+            Profile.LeafThreadState.values();
+
+    private final FrameDictionary frameDictionary;
+
+    private int[] frameIds = new int[16];
+    private byte[] leafThreadStateOrdinals = new byte[16];
+    private int[] firstChildIndexes = new int[16];
+    private int[] nextSiblingIndexes = new int[16];
+    private long[] sampleCounts = new long[16];
+
+    private int nodeCount;
+    private int firstRootIndex = NO_NODE;
+
+    public ProfileTree() {
+        this(FrameDictionary.getSharedInstance());
+    }
+
+    ProfileTree(FrameDictionary frameDictionary) {
+        this.frameDictionary = frameDictionary;
+    }
+
+    public void add(StackTraceElement[] stackTrace, Thread.State threadState) {
+        int[] stackTraceFrameIds = frameDictionary.getFrameIds(stackTrace);
+        if (stackTraceFrameIds == null) {
+            return;
+        }
+        byte leafThreadStateOrdinal =
+                (byte) MutableProfile.getThreadState(threadState).ordinal();
+        byte noneOrdinal = (byte) Profile.LeafThreadState.NONE.ordinal();
+        int parentIndex = NO_NODE;
+        // stack trace is ordered from leaf to root
+        for (int i = stackTraceFrameIds.length - 1; i >= 0; i--) {
+            int nodeIndex = getOrAddChild(parentIndex, stackTraceFrameIds[i],
+                    i == 0 ? leafThreadStateOrdinal : noneOrdinal);
+            sampleCounts[nodeIndex]++;
+            parentIndex = nodeIndex;
+        }
+    }
+
+    public long getSampleCount() {
+        long sampleCount = 0;
+        for (int i = firstRootIndex; i != NO_NODE; i = nextSiblingIndexes[i]) {
+            sampleCount += sampleCounts[i];
+        }
+        return sampleCount;
+    }
+
+    public Profile toProto() {
+        MutableProfile profile = new MutableProfile();
+        profile.merge(this);
+        return profile.toProto();
+    }
+
+    // using explicit stack to avoid StackOverflowError caused by a recursive algorithm
+    void traverse(Visitor visitor) {
+        int[] parentStack = new int[16];
+        int depth = 0;
+        int nodeIndex = firstRootIndex;
+        while (nodeIndex != NO_NODE) {
+            visitor.visit(frameDictionary.getFrame(frameIds[nodeIndex]),
+                    leafThreadStates[leafThreadStateOrdinals[nodeIndex]], sampleCounts[nodeIndex],
+                    depth);
+            int firstChildIndex = firstChildIndexes[nodeIndex];
+            if (firstChildIndex != NO_NODE) {
+                if (depth == parentStack.length) {
+                    parentStack = Arrays.copyOf(parentStack, depth * 2);
+                }
+                parentStack[depth++] = nodeIndex;
+                nodeIndex = firstChildIndex;
+                continue;
+            }
+            // no children, so move to next sibling, or to next sibling of the closest ancestor
+            // that has one
+            while (nextSiblingIndexes[nodeIndex] == NO_NODE && depth > 0) {
+                nodeIndex = parentStack[--depth];
+            }
+            nodeIndex = nextSiblingIndexes[nodeIndex];
+        }
+    }
+
+    private int getOrAddChild(int parentIndex, int frameId, byte leafThreadStateOrdinal) {
+        int childIndex = parentIndex == NO_NODE ? firstRootIndex : firstChildIndexes[parentIndex];
+        int lastChildIndex = NO_NODE;
+        while (childIndex != NO_NODE) {
+            if (frameIds[childIndex] == frameId
+                    && leafThreadStateOrdinals[childIndex] == leafThreadStateOrdinal) {
+                return childIndex;
+            }
+            lastChildIndex = childIndex;
+            childIndex = nextSiblingIndexes[childIndex];
+        }
+        int nodeIndex = addNode(frameId, leafThreadStateOrdinal);
+        if (lastChildIndex != NO_NODE) {
+            nextSiblingIndexes[lastChildIndex] = nodeIndex;
+        } else if (parentIndex == NO_NODE) {
+            firstRootIndex = nodeIndex;
+        } else {
+            firstChildIndexes[parentIndex] = nodeIndex;
+        }
+        return nodeIndex;
+    }
+
+    private int addNode(int frameId, byte leafThreadStateOrdinal) {
+        if (nodeCount == frameIds.length) {
+            int newLength = nodeCount * 2;
+            frameIds = Arrays.copyOf(frameIds, newLength);
+            leafThreadStateOrdinals = Arrays.copyOf(leafThreadStateOrdinals, newLength);
+            firstChildIndexes = Arrays.copyOf(firstChildIndexes, newLength);
+            nextSiblingIndexes = Arrays.copyOf(nextSiblingIndexes, newLength);
+            sampleCounts = Arrays.copyOf(sampleCounts, newLength);
+        }
+        int nodeIndex = nodeCount++;
+        frameIds[nodeIndex] = frameId;
+        leafThreadStateOrdinals[nodeIndex] = leafThreadStateOrdinal;
+        firstChildIndexes[nodeIndex] = NO_NODE;
+        nextSiblingIndexes[nodeIndex] = NO_NODE;
+        return nodeIndex;
+    }
+
+    interface Visitor {
+        void visit(FrameDictionary.Frame frame, Profile.LeafThreadState leafThreadState,
+                long sampleCount, int depth);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -68,6 +68,14 @@ public class TransactionSummaryCollector {
         lastCaptureTime = Math.max(lastCaptureTime, captureTime);
     }
 
+    public void merge(TransactionSummaryCollector collector) {
+        for (Map.Entry<String, MutableTransactionSummary> entry : collector.transactionSummaries
+                .entrySet()) {
+            collect(entry.getKey(), entry.getValue().totalDurationNanos,
+                    entry.getValue().transactionCount, collector.lastCaptureTime);
+        }
+    }
+
     public long getLastCaptureTime() {
         return lastCaptureTime;
     }
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
 
+import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
 import javax.mail.Address;
 import javax.mail.Authenticator;
@@ -47,11 +48,12 @@ import org.glowroot.common.repo.GaugeValueRepository;
 import org.glowroot.common.repo.GaugeValueRepository.Gauge;
 import org.glowroot.common.repo.TriggeredAlertRepository;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.repo.util.StreamingAlertWindows.GaugeWindow;
+import org.glowroot.common.repo.util.StreamingAlertWindows.TransactionWindow;
 import org.glowroot.common.util.Versions;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
-import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -65,17 +67,30 @@ public class AlertingService {
     private final GaugeValueRepository gaugeValueRepository;
     private final RollupLevelService rollupLevelService;
     private final MailService mailService;
+    private final @Nullable StreamingAlertWindows streamingAlertWindows;
 
     public AlertingService(ConfigRepository configRepository,
             TriggeredAlertRepository triggeredAlertRepository,
             AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
             RollupLevelService rollupLevelService, MailService mailService) {
+        this(configRepository, triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService, null);
+    }
+
+    // streamingAlertWindows is used (by central) to avoid reading the whole alert time period
+    // back from the repository on every alert check
+    public AlertingService(ConfigRepository configRepository,
+            TriggeredAlertRepository triggeredAlertRepository,
+            AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
+            RollupLevelService rollupLevelService, MailService mailService,
+            @Nullable StreamingAlertWindows streamingAlertWindows) {
         this.configRepository = configRepository;
         this.triggeredAlertRepository = triggeredAlertRepository;
         this.aggregateRepository = aggregateRepository;
         this.gaugeValueRepository = gaugeValueRepository;
         this.rollupLevelService = rollupLevelService;
         this.mailService = mailService;
+        this.streamingAlertWindows = streamingAlertWindows;
     }
 
     public void checkTransactionAlert(String agentId, String agentDisplay, AlertConfig alertConfig,
@@ -101,29 +116,17 @@ public class AlertingService {
         int minTransactionCount = alertConfig.getMinTransactionCount().getValue();
 
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
-        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        // startTime + 1 in order to not include the gauge value at startTime
-        List<PercentileAggregate> percentileAggregates =
-                aggregateRepository.readPercentileAggregates(agentId,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(alertConfig.getTransactionType())
-                                .from(startTime + 1)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
-        long transactionCount = 0;
-        LazyHistogram durationNanosHistogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : percentileAggregates) {
-            transactionCount += aggregate.transactionCount();
-            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
-        }
+        TransactionWindow window = readTransactionWindow(agentId,
+                alertConfig.getTransactionType(), startTime, endTime);
+        long transactionCount = window.transactionCount();
         if (transactionCount < minTransactionCount) {
             // don't clear existing triggered alert
             return;
         }
         String version = Versions.getVersion(alertConfig);
         boolean previouslyTriggered = triggeredAlertRepository.exists(agentId, version);
-        long valueAtPercentile = durationNanosHistogram.getValueAtPercentile(percentile);
+        long valueAtPercentile =
+                window.durationNanosHistogram().getValueAtPercentile(percentile);
         boolean currentlyTriggered = valueAtPercentile >= MILLISECONDS.toNanos(thresholdMillis);
         if (previouslyTriggered && !currentlyTriggered) {
             triggeredAlertRepository.delete(agentId, version);
@@ -145,23 +148,14 @@ public class AlertingService {
         }
         double threshold = alertConfig.getGaugeThreshold().getValue();
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
-        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        // startTime + 1 in order to not include the gauge value at startTime
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentId,
-                alertConfig.getGaugeName(), startTime + 1, endTime, rollupLevel);
-        if (gaugeValues.isEmpty()) {
+        GaugeWindow window =
+                readGaugeWindow(agentId, alertConfig.getGaugeName(), startTime, endTime);
+        if (window.totalWeight() == 0) {
+            // individual gauge value weights cannot be zero, so this means there are no gauge
+            // values in the time period
             return;
         }
-        double totalWeightedValue = 0;
-        long totalWeight = 0;
-        for (GaugeValue gaugeValue : gaugeValues) {
-            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
-            totalWeight += gaugeValue.getWeight();
-        }
-        // individual gauge value weights cannot be zero, and gaugeValues is non-empty
-        // (see above conditional), so totalWeight is guaranteed non-zero
-        checkState(totalWeight != 0);
-        double average = totalWeightedValue / totalWeight;
+        double average = window.totalWeightedValue() / window.totalWeight();
         String version = Versions.getVersion(alertConfig);
         boolean previouslyTriggered = triggeredAlertRepository.exists(agentId, version);
         boolean currentlyTriggered = average >= threshold;
@@ -188,6 +182,62 @@ public class AlertingService {
         }
     }
 
+    private TransactionWindow readTransactionWindow(String agentId, String transactionType,
+            long startTime, long endTime) throws Exception {
+        if (streamingAlertWindows != null) {
+            TransactionWindow window = streamingAlertWindows.readTransactionWindow(agentId,
+                    transactionType, startTime, endTime);
+            if (window != null) {
+                return window;
+            }
+        }
+        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
+        // startTime + 1 in order to not include the aggregate at startTime
+        List<PercentileAggregate> percentileAggregates =
+                aggregateRepository.readPercentileAggregates(agentId,
+                        ImmutableTransactionQuery.builder()
+                                .transactionType(transactionType)
+                                .from(startTime + 1)
+                                .to(endTime)
+                                .rollupLevel(rollupLevel)
+                                .build());
+        long transactionCount = 0;
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
+        for (PercentileAggregate aggregate : percentileAggregates) {
+            transactionCount += aggregate.transactionCount();
+            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
+        }
+        return ImmutableTransactionWindow.builder()
+                .transactionCount(transactionCount)
+                .durationNanosHistogram(durationNanosHistogram)
+                .build();
+    }
+
+    private GaugeWindow readGaugeWindow(String agentId, String gaugeName, long startTime,
+            long endTime) throws Exception {
+        if (streamingAlertWindows != null) {
+            GaugeWindow window =
+                    streamingAlertWindows.readGaugeWindow(agentId, gaugeName, startTime, endTime);
+            if (window != null) {
+                return window;
+            }
+        }
+        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
+        // startTime + 1 in order to not include the gauge value at startTime
+        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentId, gaugeName,
+                startTime + 1, endTime, rollupLevel);
+        double totalWeightedValue = 0;
+        long totalWeight = 0;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
+            totalWeight += gaugeValue.getWeight();
+        }
+        return ImmutableGaugeWindow.builder()
+                .totalWeightedValue(totalWeightedValue)
+                .totalWeight(totalWeight)
+                .build();
+    }
+
     private void sendTransactionAlert(String agentDisplay, AlertConfig alertConfig,
             double percentile, long thresholdMillis, boolean ok, SmtpConfig smtpConfig)
             throws Exception {
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import org.immutables.value.Value;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// keeps recent aggregates and gauge values in memory as they are collected, but only for the
+// agents, transaction types and gauges that have alerts configured (which is learned from the
+// alert checks themselves), so that alert checks do not need to read the whole alert time period
+// back from the repository every time
+//
+// a window is only returned if it is known to be complete, which requires that data has been
+// received continuously since before the start of the window, otherwise (e.g. shortly after
+// central restarts, or after an agent reconnects to a different central node) null is returned
+// and the caller needs to fall back to reading from the repository
+//
+// windows longer than MAX_WINDOW_MILLIS are not tracked at all (the caller falls back to the
+// repository), since one bucket per minute (and one per gauge value) would otherwise be retained
+// in memory for every agent, transaction type and gauge for the whole alert time period
+public class StreamingAlertWindows {
+
+    private static final long MAX_WINDOW_MILLIS = HOURS.toMillis(1);
+
+    // aggregates are captured every minute and gauge values more often than that, so a larger gap
+    // means that either the agent had nothing to report or the data went somewhere else (e.g. to
+    // another central node), and since these cannot be distinguished, the windows start over
+    private static final long MAX_CAPTURE_TIME_GAP_MILLIS = MINUTES.toMillis(1);
+
+    // alert checks that are not triggered by the arrival of new data (e.g. from the rollup loop)
+    // use the current time as the end of the window, which can be ahead of the most recently
+    // received data by up to the collection interval plus collection delay
+    private static final long MAX_STALENESS_MILLIS = MINUTES.toMillis(2);
+
+    // series that have not been read in this long are assumed to belong to alert configs that have
+    // since been deleted
+    private static final long SERIES_EXPIRATION_MILLIS = HOURS.toMillis(1);
+
+    // idle agent streams are evicted at most this often
+    private static final long EVICTION_INTERVAL_MILLIS = MINUTES.toMillis(5);
+
+    private final ConcurrentMap<String, AgentStreams> agentStreams = Maps.newConcurrentMap();
+
+    private final AtomicLong lastEvictionTime = new AtomicLong();
+
+    public void addAggregates(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList) {
+        AgentStreams streams = agentStreams.get(agentId);
+        if (streams == null) {
+            // no alerts have been checked for this agent
+            return;
+        }
+        synchronized (streams) {
+            Stream<TransactionBucket> stream = streams.transactionStream;
+            stream.onCollect(captureTime, captureTime);
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                Series<TransactionBucket> series =
+                        stream.series.get(aggregatesByType.getTransactionType());
+                if (series != null) {
+                    Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
+                    series.buckets.put(captureTime,
+                            new TransactionBucket(overallAggregate.getTransactionCount(),
+                                    new LazyHistogram(
+                                            overallAggregate.getDurationNanosHistogram())));
+                }
+            }
+            stream.prune();
+        }
+    }
+
+    public void addGaugeValues(String agentId, List<GaugeValue> gaugeValues) {
+        if (gaugeValues.isEmpty()) {
+            return;
+        }
+        AgentStreams streams = agentStreams.get(agentId);
+        if (streams == null) {
+            // no alerts have been checked for this agent
+            return;
+        }
+        long minCaptureTime = Long.MAX_VALUE;
+        long maxCaptureTime = Long.MIN_VALUE;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            minCaptureTime = Math.min(minCaptureTime, gaugeValue.getCaptureTime());
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+        }
+        synchronized (streams) {
+            Stream<GaugeValue> stream = streams.gaugeStream;
+            stream.onCollect(minCaptureTime, maxCaptureTime);
+            for (GaugeValue gaugeValue : gaugeValues) {
+                Series<GaugeValue> series = stream.series.get(gaugeValue.getGaugeName());
+                if (series != null) {
+                    series.buckets.put(gaugeValue.getCaptureTime(), gaugeValue);
+                }
+            }
+            stream.prune();
+        }
+    }
+
+    // window is (startTime, endTime], consistent with the repository reads in AlertingService
+    public @Nullable TransactionWindow readTransactionWindow(String agentId,
+            String transactionType, long startTime, long endTime) {
+        evictIdleIfNeeded(endTime);
+        if (endTime - startTime > MAX_WINDOW_MILLIS) {
+            return null;
+        }
+        AgentStreams streams = getOrCreateAgentStreams(agentId);
+        synchronized (streams) {
+            Stream<TransactionBucket> stream = streams.transactionStream;
+            Series<TransactionBucket> series =
+                    stream.getOrCreateSeries(transactionType, startTime, endTime);
+            if (!stream.isComplete(series, startTime, endTime)) {
+                return null;
+            }
+            long transactionCount = 0;
+            LazyHistogram durationNanosHistogram = new LazyHistogram();
+            for (TransactionBucket bucket : series.read(startTime, endTime)) {
+                transactionCount += bucket.transactionCount;
+                durationNanosHistogram.merge(bucket.durationNanosHistogram);
+            }
+            return ImmutableTransactionWindow.builder()
+                    .transactionCount(transactionCount)
+                    .durationNanosHistogram(durationNanosHistogram)
+                    .build();
+        }
+    }
+
+    // window is (startTime, endTime], consistent with the repository reads in AlertingService
+    public @Nullable GaugeWindow readGaugeWindow(String agentId, String gaugeName, long startTime,
+            long endTime) {
+        evictIdleIfNeeded(endTime);
+        if (endTime - startTime > MAX_WINDOW_MILLIS) {
+            return null;
+        }
+        AgentStreams streams = getOrCreateAgentStreams(agentId);
+        synchronized (streams) {
+            Stream<GaugeValue> stream = streams.gaugeStream;
+            Series<GaugeValue> series = stream.getOrCreateSeries(gaugeName, startTime, endTime);
+            if (!stream.isComplete(series, startTime, endTime)) {
+                return null;
+            }
+            double totalWeightedValue = 0;
+            long totalWeight = 0;
+            for (GaugeValue gaugeValue : series.read(startTime, endTime)) {
+                totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
+                totalWeight += gaugeValue.getWeight();
+            }
+            return ImmutableGaugeWindow.builder()
+                    .totalWeightedValue(totalWeightedValue)
+                    .totalWeight(totalWeight)
+                    .build();
+        }
+    }
+
+    @VisibleForTesting
+    int getAgentCount() {
+        return agentStreams.size();
+    }
+
+    // removes the series that have not been read recently (e.g. alert config was deleted, or agent
+    // no longer exists), including those that never received any data, and then removes the agent
+    // streams that no longer have any series
+    private void evictIdleIfNeeded(long currentTime) {
+        long lastEvictionTime = this.lastEvictionTime.get();
+        if (currentTime - lastEvictionTime < EVICTION_INTERVAL_MILLIS
+                || !this.lastEvictionTime.compareAndSet(lastEvictionTime, currentTime)) {
+            return;
+        }
+        for (Map.Entry<String, AgentStreams> entry : agentStreams.entrySet()) {
+            AgentStreams streams = entry.getValue();
+            synchronized (streams) {
+                streams.transactionStream.removeExpiredSeries(currentTime);
+                streams.gaugeStream.removeExpiredSeries(currentTime);
+                if (streams.transactionStream.series.isEmpty()
+                        && streams.gaugeStream.series.isEmpty()) {
+                    agentStreams.remove(entry.getKey(), streams);
+                }
+            }
+        }
+    }
+
+    private AgentStreams getOrCreateAgentStreams(String agentId) {
+        AgentStreams streams = agentStreams.get(agentId);
+        if (streams == null) {
+            streams = new AgentStreams();
+            AgentStreams existing = agentStreams.putIfAbsent(agentId, streams);
+            if (existing != null) {
+                streams = existing;
+            }
+        }
+        return streams;
+    }
+
+    @Value.Immutable
+    public interface TransactionWindow {
+        long transactionCount();
+        LazyHistogram durationNanosHistogram();
+    }
+
+    @Value.Immutable
+    public interface GaugeWindow {
+        double totalWeightedValue();
+        long totalWeight();
+    }
+
+    // all access is synchronized on the AgentStreams instance
+    private static class AgentStreams {
+        private final Stream<TransactionBucket> transactionStream = new Stream<TransactionBucket>();
+        private final Stream<GaugeValue> gaugeStream = new Stream<GaugeValue>();
+    }
+
+    private static class Stream<T> {
+
+        private final Map<String, Series<T>> series = Maps.newHashMap();
+
+        private long lastCaptureTime = Long.MIN_VALUE;
+
+        private void onCollect(long minCaptureTime, long maxCaptureTime) {
+            boolean gap = lastCaptureTime != Long.MIN_VALUE
+                    && minCaptureTime - lastCaptureTime > MAX_CAPTURE_TIME_GAP_MILLIS;
+            removeExpiredSeries(maxCaptureTime);
+            for (Series<T> s : series.values()) {
+                if (gap) {
+                    s.buckets.clear();
+                    s.trackedSince = Long.MIN_VALUE;
+                }
+                if (s.trackedSince == Long.MIN_VALUE) {
+                    s.trackedSince = minCaptureTime;
+                }
+            }
+            lastCaptureTime = Math.max(lastCaptureTime, maxCaptureTime);
+        }
+
+        private void removeExpiredSeries(long currentTime) {
+            Iterator<Series<T>> i = series.values().iterator();
+            while (i.hasNext()) {
+                if (currentTime - i.next().lastReadTime > SERIES_EXPIRATION_MILLIS) {
+                    i.remove();
+                }
+            }
+        }
+
+        private Series<T> getOrCreateSeries(String name, long startTime, long endTime) {
+            Series<T> s = series.get(name);
+            if (s == null) {
+                s = new Series<T>();
+                series.put(name, s);
+            }
+            s.retentionMillis = Math.max(s.retentionMillis, endTime - startTime);
+            s.lastReadTime = Math.max(s.lastReadTime, endTime);
+            return s;
+        }
+
+        private boolean isComplete(Series<T> s, long startTime, long endTime) {
+            // everything that was captured before trackedSince was missed, and the window
+            // starts just after startTime
+            return s.trackedSince != Long.MIN_VALUE && s.trackedSince <= startTime + 1
+                    && s.prunedThrough <= startTime
+                    && endTime - lastCaptureTime <= MAX_STALENESS_MILLIS;
+        }
+
+        private void prune() {
+            for (Series<T> s : series.values()) {
+                long pruneThrough = lastCaptureTime - s.retentionMillis;
+                s.buckets.headMap(pruneThrough, true).clear();
+                // retention can grow later on if an alert with a longer time period is checked
+                s.prunedThrough = Math.max(s.prunedThrough, pruneThrough);
+            }
+        }
+    }
+
+    private static class Series<T> {
+
+        private final NavigableMap<Long, T> buckets = Maps.newTreeMap();
+
+        private long trackedSince = Long.MIN_VALUE;
+        private long retentionMillis;
+        private long prunedThrough = Long.MIN_VALUE;
+        private long lastReadTime = Long.MIN_VALUE;
+
+        private Iterable<T> read(long startTime, long endTime) {
+            return buckets.subMap(startTime, false, endTime, true).values();
+        }
+    }
+
+    private static class TransactionBucket {
+
+        private final long transactionCount;
+        private final LazyHistogram durationNanosHistogram;
+
+        private TransactionBucket(long transactionCount, LazyHistogram durationNanosHistogram) {
+            this.transactionCount = transactionCount;
+            this.durationNanosHistogram = durationNanosHistogram;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactHistogramTest {
+
+    @Test
+    public void shouldTestPercentiles() {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestPercentiles(i);
+        }
+        shouldTestPercentiles(10000000);
+        shouldTestPercentiles(100000000);
+    }
+
+    @Test
+    public void shouldTestEncodeDecode() {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestEncodeDecode(i);
+        }
+        shouldTestEncodeDecode(10000000);
+        shouldTestEncodeDecode(100000000);
+    }
+
+    @Test
+    public void shouldTestEncodeDecodeAndAddMore() {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestEncodeDecodeAndAddMore(i);
+        }
+        shouldTestEncodeDecodeAndAddMore(10000000);
+        shouldTestEncodeDecodeAndAddMore(100000000);
+    }
+
+    @Test
+    public void shouldTestDecodeOnTopOfExisting() {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldDecodeOnTopOfExisting(i, i);
+            shouldDecodeOnTopOfExisting(2 * i, i);
+            shouldDecodeOnTopOfExisting(i, 2 * i);
+        }
+        shouldDecodeOnTopOfExisting(100000000, 100000000);
+        shouldDecodeOnTopOfExisting(200000000, 100000000);
+        shouldDecodeOnTopOfExisting(100000000, 200000000);
+    }
+
+    @Test
+    public void shouldTestMergeHistogram() {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        CompactHistogram toBeMergedHistogram = new CompactHistogram();
+        for (int i = 1000000; i > 0; i -= 1000) {
+            histogram.add(i);
+            toBeMergedHistogram.add(i + 1000000);
+        }
+        // when
+        histogram.merge(toBeMergedHistogram);
+        // then
+        assertThat(histogram.getTotalCount()).isEqualTo(2000);
+        assertPercentile(histogram, 2000000, 50);
+        assertPercentile(histogram, 2000000, 95);
+        assertPercentile(histogram, 2000000, 99.9);
+    }
+
+    @Test
+    public void shouldTrackSmallValuesExactly() {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        // when
+        for (int i = 1; i <= 200; i++) {
+            histogram.add(i);
+        }
+        // then
+        assertThat(histogram.getValueAtPercentile(0)).isEqualTo(1);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(100);
+        assertThat(histogram.getValueAtPercentile(99)).isEqualTo(198);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(200);
+    }
+
+    @Test
+    public void shouldTrackExtremeValues() {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        // when
+        histogram.add(0);
+        histogram.add(Long.MAX_VALUE);
+        // then
+        long low = Long.MAX_VALUE / 256 * 255;
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(100)).isBetween(low, Long.MAX_VALUE);
+        assertThat(encodeDecode(histogram).getValueAtPercentile(100))
+                .isBetween(low, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void shouldTestEmpty() {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        // when
+        CompactHistogram decodedHistogram = encodeDecode(histogram);
+        // then
+        assertThat(decodedHistogram.getTotalCount()).isEqualTo(0);
+        assertThat(decodedHistogram.getValueAtPercentile(50)).isEqualTo(0);
+    }
+
+    private void shouldTestPercentiles(int num) {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        // when
+        for (int i = num; i > 0; i -= 1000) {
+            histogram.add(i);
+        }
+        // then
+        assertPercentiles(histogram, num);
+    }
+
+    private void shouldTestEncodeDecode(int num) {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        for (int i = num; i > 0; i -= 1000) {
+            histogram.add(i);
+        }
+        // when
+        histogram = encodeDecode(histogram);
+        // then
+        assertPercentiles(histogram, num);
+    }
+
+    private void shouldTestEncodeDecodeAndAddMore(int num) {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        for (int i = num; i > 0; i -= 1000) {
+            histogram.add(i);
+        }
+        histogram = encodeDecode(histogram);
+        // when
+        for (int i = 2 * num; i > num; i -= 1000) {
+            histogram.add(i);
+        }
+        // then
+        assertPercentiles(histogram, num * 2);
+    }
+
+    private void shouldDecodeOnTopOfExisting(int encodedSize, int nonEncodedSize) {
+        // given
+        CompactHistogram histogram = new CompactHistogram();
+        for (int i = encodedSize; i > 0; i -= 1000) {
+            histogram.add(i);
+        }
+        ByteBuffer buffer = encode(histogram);
+        histogram = new CompactHistogram();
+        // when
+        for (int i = nonEncodedSize + encodedSize; i > encodedSize; i -= 1000) {
+            histogram.add(i);
+        }
+        histogram.merge(buffer);
+        // then
+        assertThat(buffer.remaining()).isEqualTo(0);
+        assertPercentiles(histogram, encodedSize + nonEncodedSize);
+    }
+
+    private static CompactHistogram encodeDecode(CompactHistogram histogram) {
+        ByteBuffer buffer = encode(histogram);
+        CompactHistogram decodedHistogram = new CompactHistogram(buffer);
+        assertThat(buffer.remaining()).isEqualTo(0);
+        assertThat(decodedHistogram.getTotalCount()).isEqualTo(histogram.getTotalCount());
+        return decodedHistogram;
+    }
+
+    private static ByteBuffer encode(CompactHistogram histogram) {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoByteBuffer(buffer);
+        assertThat(buffer.remaining()).isEqualTo(0);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertPercentiles(CompactHistogram histogram, int num) {
+        assertPercentile(histogram, num, 50);
+        assertPercentile(histogram, num, 95);
+        assertPercentile(histogram, num, 99);
+        assertPercentile(histogram, num, 99.9);
+        assertPercentile(histogram, num, 99.99);
+    }
+
+    private static void assertPercentile(CompactHistogram histogram, int num,
+            double percentile) {
+        long low = (long) Math.floor(num * percentile * 0.99 / (100 * 1000)) * 1000;
+        long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
+        assertThat(histogram.getValueAtPercentile(percentile)).isBetween(low, high);
+    }
+}
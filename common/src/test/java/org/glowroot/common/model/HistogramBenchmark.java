@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// compares LazyHistogram and CompactHistogram for one hour of 1-minute transaction duration
+// histograms (each one large enough that LazyHistogram has switched over to HdrHistogram)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistogramBenchmark {
+
+    private static final int INTERVAL_COUNT = 60;
+    private static final int VALUES_PER_INTERVAL = 2000;
+
+    private long[] values;
+
+    private LazyHistogram lazyHistogram;
+    private CompactHistogram compactHistogram;
+
+    private Aggregate.Histogram[] lazyEncoded;
+    private ByteBuffer[] compactEncoded;
+
+    private ScratchBuffer scratchBuffer;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        values = new long[INTERVAL_COUNT * VALUES_PER_INTERVAL];
+        for (int i = 0; i < values.length; i++) {
+            // log-normal durations with a median of 5 milliseconds
+            values[i] = (long) (5000000 * Math.exp(random.nextGaussian()));
+        }
+        lazyEncoded = new Aggregate.Histogram[INTERVAL_COUNT];
+        compactEncoded = new ByteBuffer[INTERVAL_COUNT];
+        scratchBuffer = new ScratchBuffer();
+        for (int i = 0; i < INTERVAL_COUNT; i++) {
+            LazyHistogram lazy = new LazyHistogram();
+            CompactHistogram compact = new CompactHistogram();
+            for (int j = i * VALUES_PER_INTERVAL; j < (i + 1) * VALUES_PER_INTERVAL; j++) {
+                lazy.add(values[j]);
+                compact.add(values[j]);
+            }
+            lazyEncoded[i] = lazy.toProto(scratchBuffer);
+            ByteBuffer encoded = ByteBuffer.allocate(compact.getNeededByteBufferCapacity());
+            compact.encodeIntoByteBuffer(encoded);
+            encoded.flip();
+            compactEncoded[i] = encoded;
+        }
+        lazyHistogram = addLazy();
+        compactHistogram = addCompact();
+        buffer = ByteBuffer.allocate(compactHistogram.getNeededByteBufferCapacity());
+    }
+
+    @Benchmark
+    public LazyHistogram addLazy() {
+        LazyHistogram histogram = new LazyHistogram();
+        for (long value : values) {
+            histogram.add(value);
+        }
+        return histogram;
+    }
+
+    @Benchmark
+    public CompactHistogram addCompact() {
+        CompactHistogram histogram = new CompactHistogram();
+        for (long value : values) {
+            histogram.add(value);
+        }
+        return histogram;
+    }
+
+    @Benchmark
+    public LazyHistogram mergeLazy() throws DataFormatException {
+        LazyHistogram histogram = new LazyHistogram();
+        for (Aggregate.Histogram encoded : lazyEncoded) {
+            histogram.merge(encoded);
+        }
+        return histogram;
+    }
+
+    @Benchmark
+    public CompactHistogram mergeCompact() {
+        CompactHistogram histogram = new CompactHistogram();
+        for (ByteBuffer encoded : compactEncoded) {
+            histogram.merge(encoded.duplicate());
+        }
+        return histogram;
+    }
+
+    @Benchmark
+    public long percentilesLazy() {
+        return lazyHistogram.getValueAtPercentile(50) + lazyHistogram.getValueAtPercentile(95)
+                + lazyHistogram.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public long percentilesCompact() {
+        return compactHistogram.getValueAtPercentile(50)
+                + compactHistogram.getValueAtPercentile(95)
+                + compactHistogram.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public Aggregate.Histogram encodeLazy() {
+        return lazyHistogram.toProto(scratchBuffer);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCompact() {
+        buffer.clear();
+        compactHistogram.encodeIntoByteBuffer(buffer);
+        return buffer;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(HistogramBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProfileTreeTest {
+
+    private static final StackTraceElement[] STACK_TRACE_1 = new StackTraceElement[] {
+            new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+            new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456),
+            new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+
+    private static final StackTraceElement[] STACK_TRACE_2 = new StackTraceElement[] {
+            new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+            new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 456),
+            new StackTraceElement("xx.yy.zz.Main", "main2", "Main.java", 789)};
+
+    @Test
+    public void shouldMatchListBasedMerge() throws IOException {
+        // given
+        ProfileTree profileTree = new ProfileTree(new FrameDictionary());
+        MutableProfile expected = new MutableProfile();
+        // when
+        profileTree.add(STACK_TRACE_1, Thread.State.RUNNABLE);
+        profileTree.add(STACK_TRACE_1, Thread.State.BLOCKED);
+        profileTree.add(STACK_TRACE_2, Thread.State.RUNNABLE);
+        profileTree.add(STACK_TRACE_1, Thread.State.RUNNABLE);
+        expected.merge(Arrays.asList(STACK_TRACE_1), Thread.State.RUNNABLE);
+        expected.merge(Arrays.asList(STACK_TRACE_1), Thread.State.BLOCKED);
+        expected.merge(Arrays.asList(STACK_TRACE_2), Thread.State.RUNNABLE);
+        expected.merge(Arrays.asList(STACK_TRACE_1), Thread.State.RUNNABLE);
+        MutableProfile profile = new MutableProfile();
+        profile.merge(profileTree);
+        // then
+        assertThat(profileTree.getSampleCount()).isEqualTo(4);
+        assertThat(profile.toJson()).isEqualTo(expected.toJson());
+        assertThat(profileTree.toProto()).isEqualTo(expected.toProto());
+    }
+
+    @Test
+    public void shouldShareFramesAcrossTrees() {
+        // given
+        FrameDictionary frameDictionary = new FrameDictionary();
+        ProfileTree profileTree1 = new ProfileTree(frameDictionary);
+        ProfileTree profileTree2 = new ProfileTree(frameDictionary);
+        // when
+        profileTree1.add(STACK_TRACE_1, Thread.State.RUNNABLE);
+        profileTree2.add(STACK_TRACE_1.clone(), Thread.State.RUNNABLE);
+        // then
+        assertThat(frameDictionary.getFrameIds(STACK_TRACE_1)).containsExactly(0, 1, 2);
+        assertThat(frameDictionary.getFrame(0).getClassName())
+                .isSameAs(frameDictionary.getFrame(1).getClassName());
+    }
+
+    @Test
+    public void shouldStartNewSharedInstanceWhenFull() {
+        // given
+        FrameDictionary frameDictionary = FrameDictionary.getSharedInstance();
+        StackTraceElement[] stackTrace = new StackTraceElement[FrameDictionary.MAX_SHARED_FRAMES];
+        for (int i = 0; i < stackTrace.length; i++) {
+            stackTrace[i] = new StackTraceElement("aa.bb.cc.Generated" + i, "ghi", null, -1);
+        }
+        // when
+        frameDictionary.getFrameIds(stackTrace);
+        // then
+        assertThat(FrameDictionary.getSharedInstance()).isNotSameAs(frameDictionary);
+    }
+}
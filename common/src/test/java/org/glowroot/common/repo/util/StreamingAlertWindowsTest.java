@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.common.repo.util.StreamingAlertWindows.GaugeWindow;
+import org.glowroot.common.repo.util.StreamingAlertWindows.TransactionWindow;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StreamingAlertWindowsTest {
+
+    private static final String AGENT_ID = "xyz";
+
+    @Test
+    public void shouldNotReturnTransactionWindowUntilComplete() {
+        // given
+        StreamingAlertWindows windows = new StreamingAlertWindows();
+        // when
+        TransactionWindow beforeRegistration =
+                windows.readTransactionWindow(AGENT_ID, "Web", 0, 180000);
+        windows.addAggregates(AGENT_ID, 240000, aggregates("Web", 10, 1000));
+        TransactionWindow incomplete =
+                windows.readTransactionWindow(AGENT_ID, "Web", 60000, 240000);
+        windows.addAggregates(AGENT_ID, 300000, aggregates("Web", 20, 2000));
+        windows.addAggregates(AGENT_ID, 360000, aggregates("Web", 30, 3000));
+        windows.addAggregates(AGENT_ID, 420000, aggregates("Web", 40, 4000));
+        TransactionWindow complete =
+                windows.readTransactionWindow(AGENT_ID, "Web", 240000, 420000);
+        // then
+        assertThat(beforeRegistration).isNull();
+        assertThat(incomplete).isNull();
+        assertThat(complete).isNotNull();
+        assertThat(complete.transactionCount()).isEqualTo(90);
+        assertThat(complete.durationNanosHistogram().getValueAtPercentile(100)).isEqualTo(4000);
+    }
+
+    @Test
+    public void shouldStartOverAfterGap() {
+        // given
+        StreamingAlertWindows windows = new StreamingAlertWindows();
+        windows.readTransactionWindow(AGENT_ID, "Web", 0, 60000);
+        windows.addAggregates(AGENT_ID, 60000, aggregates("Web", 10, 1000));
+        windows.addAggregates(AGENT_ID, 120000, aggregates("Web", 10, 1000));
+        // when
+        windows.addAggregates(AGENT_ID, 240000, aggregates("Web", 10, 1000));
+        TransactionWindow window = windows.readTransactionWindow(AGENT_ID, "Web", 60000, 240000);
+        // then
+        assertThat(window).isNull();
+    }
+
+    @Test
+    public void shouldAverageGaugeValues() {
+        // given
+        StreamingAlertWindows windows = new StreamingAlertWindows();
+        windows.readGaugeWindow(AGENT_ID, "abc", -5000, 5000);
+        // when
+        windows.addGaugeValues(AGENT_ID,
+                ImmutableList.of(gaugeValue("abc", 5000, 1), gaugeValue("def", 5000, 100)));
+        windows.addGaugeValues(AGENT_ID, ImmutableList.of(gaugeValue("abc", 10000, 2)));
+        windows.addGaugeValues(AGENT_ID, ImmutableList.of(gaugeValue("abc", 15000, 3)));
+        GaugeWindow window = windows.readGaugeWindow(AGENT_ID, "abc", 5000, 15000);
+        // then
+        assertThat(window).isNotNull();
+        assertThat(window.totalWeightedValue()).isEqualTo(5);
+        assertThat(window.totalWeight()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotTrackLongWindows() {
+        // given
+        StreamingAlertWindows windows = new StreamingAlertWindows();
+        // when
+        windows.readTransactionWindow(AGENT_ID, "Web", 0, HOURS.toMillis(2));
+        windows.readGaugeWindow(AGENT_ID, "abc", 0, HOURS.toMillis(2));
+        // then
+        assertThat(windows.getAgentCount()).isZero();
+    }
+
+    @Test
+    public void shouldEvictIdleAgents() {
+        // given
+        StreamingAlertWindows windows = new StreamingAlertWindows();
+        windows.readTransactionWindow(AGENT_ID, "Web", 0, 60000);
+        windows.readGaugeWindow(AGENT_ID, "abc", 0, 60000);
+        // when
+        windows.readTransactionWindow("other", "Web", HOURS.toMillis(2),
+                HOURS.toMillis(2) + 60000);
+        // then
+        assertThat(windows.getAgentCount()).isEqualTo(1);
+    }
+
+    private static List<OldAggregatesByType> aggregates(String transactionType,
+            long transactionCount, long durationNanos) {
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType(transactionType)
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTransactionCount(transactionCount)
+                        .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                                .addOrderedRawValue(durationNanos)))
+                .build());
+    }
+
+    private static GaugeValue gaugeValue(String gaugeName, long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+}
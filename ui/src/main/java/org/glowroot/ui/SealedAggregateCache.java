@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches aggregates read from the repository in fixed time buckets, but only for buckets that are
+// old enough that they are not expected to change anymore ("sealed"), so that auto-refreshing
+// charts only need to read the trailing (unsealed) time range from the repository
+//
+// the cache is shared across all users of the ui, and is only used by central (the embedded ui
+// reads from the local h2 database, and should not add to the heap of the monitored jvm)
+class SealedAggregateCache implements SealedAggregateCacheMXBean {
+
+    // number of rollup intervals per bucket, e.g. one hour buckets for 1-minute aggregates
+    private static final int INTERVALS_PER_BUCKET = 60;
+
+    // rollups are performed asynchronously (and agents can report late after a network
+    // interruption), so a bucket is not considered sealed until this long after its end
+    private static final long SEAL_DELAY_MILLIS = MINUTES.toMillis(10);
+
+    // buckets are invalidated when aggregates that belong to them are stored or rolled up late
+    // (see invalidate() below), but this only applies to the central node performing the write, so
+    // this bounds how long other central nodes can serve a stale bucket
+    private static final long EXPIRATION_MINUTES = 10;
+
+    // percentile aggregates contain histograms, so the bound is on the number of aggregates
+    // instead of the number of buckets
+    private static final long MAX_AGGREGATES =
+            Long.getLong("glowroot.ui.sealedAggregateCache.maxAggregates", 20000);
+
+    private final Clock clock;
+    private final long maxAggregates;
+
+    private final Cache<BucketKey, List<?>> cache;
+
+    SealedAggregateCache(Clock clock) {
+        this(clock, MAX_AGGREGATES);
+    }
+
+    SealedAggregateCache(Clock clock, long maxAggregates) {
+        this.clock = clock;
+        this.maxAggregates = maxAggregates;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxAggregates)
+                .weigher(new Weigher<BucketKey, List<?>>() {
+                    @Override
+                    public int weigh(BucketKey key, List<?> value) {
+                        // empty buckets still take up some space
+                        return Math.max(value.size(), 1);
+                    }
+                })
+                .expireAfterWrite(EXPIRATION_MINUTES, MINUTES)
+                .recordStats()
+                .build();
+    }
+
+    // query.from() is INCLUSIVE
+    <T> List<T> read(String agentRollupId, TransactionQuery query, AggregateKind kind,
+            long intervalMillis, AggregateReader<T> reader) throws Exception {
+        long bucketMillis = intervalMillis * INTERVALS_PER_BUCKET;
+        long sealedThrough = (clock.currentTimeMillis() - intervalMillis - SEAL_DELAY_MILLIS)
+                / bucketMillis * bucketMillis;
+        long firstBucketCaptureTime = Utils.getRollupCaptureTime(query.from(), bucketMillis);
+        long lastSealedBucketCaptureTime =
+                Math.min(Utils.getRollupCaptureTime(query.to(), bucketMillis), sealedThrough);
+        if (firstBucketCaptureTime > lastSealedBucketCaptureTime) {
+            return reader.read(query);
+        }
+        List<T> aggregates = Lists.newArrayList();
+        long missingFrom = -1;
+        for (long bucketCaptureTime = firstBucketCaptureTime;
+                bucketCaptureTime <= lastSealedBucketCaptureTime;
+                bucketCaptureTime += bucketMillis) {
+            BucketKey key = ImmutableBucketKey.builder()
+                    .agentRollupId(agentRollupId)
+                    .transactionType(query.transactionType())
+                    .transactionName(query.transactionName())
+                    .rollupLevel(query.rollupLevel())
+                    .kind(kind)
+                    .captureTime(bucketCaptureTime)
+                    .build();
+            @SuppressWarnings("unchecked")
+            List<T> bucket = (List<T>) cache.getIfPresent(key);
+            if (bucket == null) {
+                if (missingFrom == -1) {
+                    missingFrom = bucketCaptureTime - bucketMillis;
+                }
+                continue;
+            }
+            if (missingFrom != -1) {
+                aggregates.addAll(loadBuckets(agentRollupId, query, kind, bucketMillis,
+                        missingFrom, bucketCaptureTime - bucketMillis, reader));
+                missingFrom = -1;
+            }
+            aggregates.addAll(filter(bucket, query, reader));
+        }
+        if (missingFrom != -1) {
+            aggregates.addAll(loadBuckets(agentRollupId, query, kind, bucketMillis, missingFrom,
+                    lastSealedBucketCaptureTime, reader));
+        }
+        if (query.to() > lastSealedBucketCaptureTime) {
+            aggregates.addAll(reader.read(ImmutableTransactionQuery.builder()
+                    .copyFrom(query)
+                    .from(lastSealedBucketCaptureTime + 1)
+                    .build()));
+        }
+        return aggregates;
+    }
+
+    // called whenever aggregates are stored or rolled up, so that aggregates arriving after their
+    // bucket was sealed (e.g. an agent reporting late after a network interruption) are not hidden
+    // by the cached bucket
+    void invalidate(String agentRollupId, int rollupLevel, long intervalMillis,
+            long captureTime) {
+        if (captureTime > clock.currentTimeMillis() - SEAL_DELAY_MILLIS) {
+            // the bucket containing the capture time cannot have been sealed yet, which is the
+            // case for all writes that are not late, so these don't need to scan the cache
+            return;
+        }
+        long bucketCaptureTime =
+                Utils.getRollupCaptureTime(captureTime, intervalMillis * INTERVALS_PER_BUCKET);
+        Iterator<BucketKey> i = cache.asMap().keySet().iterator();
+        while (i.hasNext()) {
+            BucketKey key = i.next();
+            if (key.captureTime() == bucketCaptureTime && key.rollupLevel() == rollupLevel
+                    && key.agentRollupId().equals(agentRollupId)) {
+                i.remove();
+            }
+        }
+    }
+
+    @Override
+    public long getMaxAggregates() {
+        return maxAggregates;
+    }
+
+    @Override
+    public long getBucketCount() {
+        return cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        CacheStats stats = cache.stats();
+        return stats.requestCount() == 0 ? 0 : stats.hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    // reads the full time range of the buckets (from, to], caches each bucket, and returns the
+    // aggregates that fall inside of the query's time range
+    private <T> List<T> loadBuckets(String agentRollupId, TransactionQuery query,
+            AggregateKind kind, long bucketMillis, long from, long to, AggregateReader<T> reader)
+            throws Exception {
+        List<T> aggregates = reader.read(ImmutableTransactionQuery.builder()
+                .copyFrom(query)
+                .from(from + 1)
+                .to(to)
+                .build());
+        int i = 0;
+        for (long bucketCaptureTime = from + bucketMillis; bucketCaptureTime <= to;
+                bucketCaptureTime += bucketMillis) {
+            List<T> bucket = Lists.newArrayList();
+            while (i < aggregates.size()
+                    && reader.captureTime(aggregates.get(i)) <= bucketCaptureTime) {
+                bucket.add(aggregates.get(i++));
+            }
+            cache.put(ImmutableBucketKey.builder()
+                    .agentRollupId(agentRollupId)
+                    .transactionType(query.transactionType())
+                    .transactionName(query.transactionName())
+                    .rollupLevel(query.rollupLevel())
+                    .kind(kind)
+                    .captureTime(bucketCaptureTime)
+                    .build(), ImmutableList.copyOf(bucket));
+        }
+        return filter(aggregates, query, reader);
+    }
+
+    private static <T> List<T> filter(List<T> aggregates, TransactionQuery query,
+            AggregateReader<T> reader) {
+        List<T> filtered = Lists.newArrayList();
+        for (T aggregate : aggregates) {
+            long captureTime = reader.captureTime(aggregate);
+            if (captureTime >= query.from() && captureTime <= query.to()) {
+                filtered.add(aggregate);
+            }
+        }
+        return filtered;
+    }
+
+    enum AggregateKind {
+        OVERVIEW, PERCENTILE, THROUGHPUT
+    }
+
+    interface AggregateReader<T> {
+
+        // query.from() is INCLUSIVE, and results must be ordered by capture time
+        List<T> read(TransactionQuery query) throws Exception;
+
+        long captureTime(T aggregate);
+    }
+
+    @Value.Immutable
+    interface BucketKey {
+        String agentRollupId();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+        AggregateKind kind();
+        long captureTime();
+    }
+}
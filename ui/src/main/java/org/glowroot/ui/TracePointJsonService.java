@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -118,7 +118,7 @@ class TracePointJsonService {
                 .from(request.from())
                 .to(request.to())
                 .build();
-        TracePointFilter filter = ImmutableTracePointFilter.builder()
+        ImmutableTracePointFilter.Builder filterBuilder = ImmutableTracePointFilter.builder()
                 .headlineComparator(request.headlineComparator())
                 .headline(request.headline())
                 .errorMessageComparator(request.errorMessageComparator())
@@ -127,8 +127,18 @@ class TracePointJsonService {
                 .user(request.user())
                 .attributeName(request.attributeName())
                 .attributeValueComparator(request.attributeValueComparator())
-                .attributeValue(request.attributeValue())
-                .build();
+                .attributeValue(request.attributeValue());
+        Double durationMillisLow = request.durationMillisLow();
+        if (durationMillisLow != null) {
+            filterBuilder.durationNanosLow(
+                    (long) Math.ceil(durationMillisLow * NANOSECONDS_PER_MILLISECOND));
+        }
+        Double durationMillisHigh = request.durationMillisHigh();
+        if (durationMillisHigh != null) {
+            filterBuilder.durationNanosHigh(
+                    (long) Math.floor(durationMillisHigh * NANOSECONDS_PER_MILLISECOND));
+        }
+        TracePointFilter filter = filterBuilder.build();
         return new Handler(traceKind, agentRollupId, query, filter, request.limit()).handle();
     }
 
@@ -318,6 +328,8 @@ class TracePointJsonService {
         public abstract @Nullable String transactionName();
         public abstract long from();
         public abstract long to();
+        public abstract @Nullable Double durationMillisLow();
+        public abstract @Nullable Double durationMillisHigh();
         public abstract @Nullable StringComparator headlineComparator();
         public abstract @Nullable String headline();
         public abstract @Nullable StringComparator errorMessageComparator();
@@ -18,11 +18,17 @@ package org.glowroot.ui;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.live.ImmutableOverallQuery;
@@ -48,25 +54,36 @@ import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
 import org.glowroot.common.repo.AggregateRepository;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.MutableAggregate;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
+import org.glowroot.ui.SealedAggregateCache.AggregateKind;
+import org.glowroot.ui.SealedAggregateCache.AggregateReader;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 class TransactionCommonService {
 
     private final AggregateRepository aggregateRepository;
     private final LiveAggregateRepository liveAggregateRepository;
     private final ConfigRepository configRepository;
+    // null for the embedded ui
+    private final @Nullable SealedAggregateCache sealedAggregateCache;
+    private final ExecutorService readExecutor;
     private final Clock clock;
 
     TransactionCommonService(AggregateRepository aggregateRepository,
             LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
+            @Nullable SealedAggregateCache sealedAggregateCache, ExecutorService readExecutor,
             Clock clock) {
         this.aggregateRepository = aggregateRepository;
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
+        this.sealedAggregateCache = sealedAggregateCache;
+        this.readExecutor = readExecutor;
         this.clock = clock;
     }
 
@@ -82,20 +99,32 @@ class TransactionCommonService {
             revisedTo =
                     liveAggregateRepository.mergeInOverallSummary(agentRollupId, query, collector);
         }
+        // the lower rollup levels are read concurrently, assuming that each rollup level is caught
+        // up, and then the assumption is verified level by level as the results are merged
+        long[] speculativeFroms = getSpeculativeFroms(query.rollupLevel(), revisedFrom, revisedTo);
+        Map<Integer, Future<OverallSummaryCollector>> futures = Maps.newHashMap();
+        for (int rollupLevel = query.rollupLevel() - 1; rollupLevel >= 0; rollupLevel--) {
+            futures.put(rollupLevel, readExecutor.submit(overallSummaryReader(agentRollupId,
+                    query, speculativeFroms[rollupLevel], revisedTo, rollupLevel)));
+        }
         for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .to(revisedTo)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            aggregateRepository.mergeOverallSummaryInto(agentRollupId, revisedQuery, collector);
+            Future<OverallSummaryCollector> future = futures.remove(rollupLevel);
+            OverallSummaryCollector levelCollector;
+            if (future != null && revisedFrom == speculativeFroms[rollupLevel]) {
+                levelCollector = getResult(future);
+            } else {
+                // the rollup level above is behind, so the speculative read does not line up
+                levelCollector = overallSummaryReader(agentRollupId, query, revisedFrom, revisedTo,
+                        rollupLevel).call();
+            }
+            collector.merge(levelCollector);
             long lastRolledUpTime = collector.getLastCaptureTime();
             revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
             if (revisedFrom > revisedTo) {
                 break;
             }
         }
+        cancel(futures.values());
         return collector.getOverallSummary();
     }
 
@@ -111,21 +140,31 @@ class TransactionCommonService {
             revisedTo = liveAggregateRepository.mergeInTransactionSummaries(agentRollupId, query,
                     collector);
         }
+        // the lower rollup levels are read concurrently, see readOverallSummary() above
+        long[] speculativeFroms = getSpeculativeFroms(query.rollupLevel(), revisedFrom, revisedTo);
+        Map<Integer, Future<TransactionSummaryCollector>> futures = Maps.newHashMap();
+        for (int rollupLevel = query.rollupLevel() - 1; rollupLevel >= 0; rollupLevel--) {
+            futures.put(rollupLevel, readExecutor.submit(transactionSummariesReader(agentRollupId,
+                    query, speculativeFroms[rollupLevel], revisedTo, rollupLevel, sortOrder,
+                    limit)));
+        }
         for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            OverallQuery revisedQuery = ImmutableOverallQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .to(revisedTo)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            aggregateRepository.mergeTransactionSummariesInto(agentRollupId, revisedQuery,
-                    sortOrder, limit, collector);
+            Future<TransactionSummaryCollector> future = futures.remove(rollupLevel);
+            TransactionSummaryCollector levelCollector;
+            if (future != null && revisedFrom == speculativeFroms[rollupLevel]) {
+                levelCollector = getResult(future);
+            } else {
+                levelCollector = transactionSummariesReader(agentRollupId, query, revisedFrom,
+                        revisedTo, rollupLevel, sortOrder, limit).call();
+            }
+            collector.merge(levelCollector);
             long lastRolledUpTime = collector.getLastCaptureTime();
             revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
             if (revisedFrom > revisedTo) {
                 break;
             }
         }
+        cancel(futures.values());
         return collector.getResult(sortOrder, limit);
     }
 
@@ -145,8 +184,12 @@ class TransactionCommonService {
                 .copyFrom(query)
                 .to(revisedTo)
                 .build();
-        List<OverviewAggregate> aggregates =
-                aggregateRepository.readOverviewAggregates(agentRollupId, revisedQuery);
+        NonRolledUpRead<OverviewAggregate> nonRolledUpRead = null;
+        if (revisedQuery.rollupLevel() != 0) {
+            nonRolledUpRead = new NonRolledUpRead<OverviewAggregate>(revisedQuery,
+                    overviewAggregateReader(agentRollupId));
+        }
+        List<OverviewAggregate> aggregates = readOverviewAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -159,16 +202,8 @@ class TransactionCommonService {
             long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
             nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
         }
-        List<OverviewAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
-        if (nonRolledUpFrom <= revisedTo) {
-            orderedNonRolledUpAggregates.addAll(
-                    aggregateRepository.readOverviewAggregates(agentRollupId,
-                            ImmutableTransactionQuery.builder()
-                                    .copyFrom(revisedQuery)
-                                    .from(nonRolledUpFrom)
-                                    .rollupLevel(0)
-                                    .build()));
-        }
+        List<OverviewAggregate> orderedNonRolledUpAggregates =
+                Lists.newArrayList(checkNotNull(nonRolledUpRead).get(nonRolledUpFrom));
         if (liveResult != null) {
             orderedNonRolledUpAggregates.addAll(liveResult.get());
         }
@@ -203,8 +238,13 @@ class TransactionCommonService {
                 .copyFrom(query)
                 .to(revisedTo)
                 .build();
+        NonRolledUpRead<PercentileAggregate> nonRolledUpRead = null;
+        if (revisedQuery.rollupLevel() != 0) {
+            nonRolledUpRead = new NonRolledUpRead<PercentileAggregate>(revisedQuery,
+                    percentileAggregateReader(agentRollupId));
+        }
         List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId, revisedQuery);
+                readPercentileAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -217,16 +257,8 @@ class TransactionCommonService {
             long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
             nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
         }
-        List<PercentileAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
-        if (nonRolledUpFrom <= revisedTo) {
-            orderedNonRolledUpAggregates.addAll(
-                    aggregateRepository.readPercentileAggregates(agentRollupId,
-                            ImmutableTransactionQuery.builder()
-                                    .copyFrom(revisedQuery)
-                                    .from(nonRolledUpFrom)
-                                    .rollupLevel(0)
-                                    .build()));
-        }
+        List<PercentileAggregate> orderedNonRolledUpAggregates =
+                Lists.newArrayList(checkNotNull(nonRolledUpRead).get(nonRolledUpFrom));
         if (liveResult != null) {
             orderedNonRolledUpAggregates.addAll(liveResult.get());
         }
@@ -261,8 +293,13 @@ class TransactionCommonService {
                 .copyFrom(query)
                 .to(revisedTo)
                 .build();
+        NonRolledUpRead<ThroughputAggregate> nonRolledUpRead = null;
+        if (revisedQuery.rollupLevel() != 0) {
+            nonRolledUpRead = new NonRolledUpRead<ThroughputAggregate>(revisedQuery,
+                    throughputAggregateReader(agentRollupId));
+        }
         List<ThroughputAggregate> aggregates =
-                aggregateRepository.readThroughputAggregates(agentRollupId, revisedQuery);
+                readThroughputAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -275,16 +312,8 @@ class TransactionCommonService {
             long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
             nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
         }
-        List<ThroughputAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
-        if (nonRolledUpFrom <= revisedTo) {
-            orderedNonRolledUpAggregates.addAll(aggregateRepository
-                    .readThroughputAggregates(agentRollupId,
-                            ImmutableTransactionQuery.builder()
-                                    .copyFrom(revisedQuery)
-                                    .from(nonRolledUpFrom)
-                                    .rollupLevel(0)
-                                    .build()));
-        }
+        List<ThroughputAggregate> orderedNonRolledUpAggregates =
+                Lists.newArrayList(checkNotNull(nonRolledUpRead).get(nonRolledUpFrom));
         if (liveResult != null) {
             orderedNonRolledUpAggregates.addAll(liveResult.get());
         }
@@ -543,6 +572,136 @@ class TransactionCommonService {
         return collector.getProfile();
     }
 
+    // query.from() is INCLUSIVE
+    private <T> List<T> readAggregates(String agentRollupId, TransactionQuery query,
+            AggregateKind kind, AggregateReader<T> reader) throws Exception {
+        if (sealedAggregateCache == null) {
+            return reader.read(query);
+        }
+        return sealedAggregateCache.read(agentRollupId, query, kind, getIntervalMillis(query),
+                reader);
+    }
+
+    // query.from() is INCLUSIVE
+    private List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readAggregates(agentRollupId, query, AggregateKind.OVERVIEW,
+                overviewAggregateReader(agentRollupId));
+    }
+
+    private AggregateReader<OverviewAggregate> overviewAggregateReader(final String agentRollupId) {
+        return new AggregateReader<OverviewAggregate>() {
+            @Override
+            public List<OverviewAggregate> read(TransactionQuery query) throws Exception {
+                return aggregateRepository.readOverviewAggregates(agentRollupId, query);
+            }
+            @Override
+            public long captureTime(OverviewAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        };
+    }
+
+    // query.from() is INCLUSIVE
+    private List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readAggregates(agentRollupId, query, AggregateKind.PERCENTILE,
+                percentileAggregateReader(agentRollupId));
+    }
+
+    private AggregateReader<PercentileAggregate> percentileAggregateReader(
+            final String agentRollupId) {
+        return new AggregateReader<PercentileAggregate>() {
+            @Override
+            public List<PercentileAggregate> read(TransactionQuery query) throws Exception {
+                return aggregateRepository.readPercentileAggregates(agentRollupId, query);
+            }
+            @Override
+            public long captureTime(PercentileAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        };
+    }
+
+    // query.from() is INCLUSIVE
+    private List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readAggregates(agentRollupId, query, AggregateKind.THROUGHPUT,
+                throughputAggregateReader(agentRollupId));
+    }
+
+    private AggregateReader<ThroughputAggregate> throughputAggregateReader(
+            final String agentRollupId) {
+        return new AggregateReader<ThroughputAggregate>() {
+            @Override
+            public List<ThroughputAggregate> read(TransactionQuery query) throws Exception {
+                return aggregateRepository.readThroughputAggregates(agentRollupId, query);
+            }
+            @Override
+            public long captureTime(ThroughputAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        };
+    }
+
+    private Callable<OverallSummaryCollector> overallSummaryReader(final String agentRollupId,
+            OverallQuery query, long from, long to, int rollupLevel) {
+        final OverallQuery revisedQuery = ImmutableOverallQuery.builder()
+                .copyFrom(query)
+                .from(from)
+                .to(to)
+                .rollupLevel(rollupLevel)
+                .build();
+        return new Callable<OverallSummaryCollector>() {
+            @Override
+            public OverallSummaryCollector call() throws Exception {
+                OverallSummaryCollector collector = new OverallSummaryCollector();
+                aggregateRepository.mergeOverallSummaryInto(agentRollupId, revisedQuery,
+                        collector);
+                return collector;
+            }
+        };
+    }
+
+    private Callable<TransactionSummaryCollector> transactionSummariesReader(
+            final String agentRollupId, OverallQuery query, long from, long to, int rollupLevel,
+            final SummarySortOrder sortOrder, final int limit) {
+        final OverallQuery revisedQuery = ImmutableOverallQuery.builder()
+                .copyFrom(query)
+                .from(from)
+                .to(to)
+                .rollupLevel(rollupLevel)
+                .build();
+        return new Callable<TransactionSummaryCollector>() {
+            @Override
+            public TransactionSummaryCollector call() throws Exception {
+                TransactionSummaryCollector collector = new TransactionSummaryCollector();
+                aggregateRepository.mergeTransactionSummariesInto(agentRollupId, revisedQuery,
+                        sortOrder, limit, collector);
+                return collector;
+            }
+        };
+    }
+
+    // returns the (non-inclusive) from for each rollup level, indexed by rollup level, that the
+    // sequential algorithm would end up using if every rollup level is caught up through the end
+    // of its last complete interval (which is the normal case)
+    private long[] getSpeculativeFroms(int rollupLevel, long from, long to) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long[] speculativeFroms = new long[rollupLevel + 1];
+        speculativeFroms[rollupLevel] = from;
+        for (int i = rollupLevel; i > 0; i--) {
+            long intervalMillis = rollupConfigs.get(i).intervalMillis();
+            long lastRolledUpTime = to / intervalMillis * intervalMillis;
+            speculativeFroms[i - 1] = Math.max(speculativeFroms[i], lastRolledUpTime + 1);
+        }
+        return speculativeFroms;
+    }
+
+    private long getIntervalMillis(TransactionQuery query) {
+        return configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
+    }
+
     private int getMaxAggregateQueriesPerType(String agentRollupId) throws IOException {
         AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(agentRollupId);
         if (advancedConfig != null && advancedConfig.hasMaxAggregateQueriesPerType()) {
@@ -561,6 +720,74 @@ class TransactionCommonService {
         }
     }
 
+    private static <V> V getResult(Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static void cancel(Iterable<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    // reads the non-rolled up aggregates following the last rolled up aggregate, speculatively
+    // starting the read concurrently with the rolled up read
+    private class NonRolledUpRead<T> {
+
+        private final TransactionQuery rolledUpQuery;
+        private final AggregateReader<T> reader;
+        private final long speculativeFrom;
+        private final @Nullable Future<List<T>> future;
+
+        private NonRolledUpRead(TransactionQuery rolledUpQuery, AggregateReader<T> reader) {
+            this.rolledUpQuery = rolledUpQuery;
+            this.reader = reader;
+            long intervalMillis = getIntervalMillis(rolledUpQuery);
+            long lastRolledUpTime = rolledUpQuery.to() / intervalMillis * intervalMillis;
+            speculativeFrom = Math.max(rolledUpQuery.from(), lastRolledUpTime + 1);
+            if (speculativeFrom <= rolledUpQuery.to()) {
+                future = readExecutor.submit(new Callable<List<T>>() {
+                    @Override
+                    public List<T> call() throws Exception {
+                        return read(speculativeFrom);
+                    }
+                });
+            } else {
+                future = null;
+            }
+        }
+
+        // nonRolledUpFrom is INCLUSIVE
+        private List<T> get(long nonRolledUpFrom) throws Exception {
+            if (future != null && nonRolledUpFrom == speculativeFrom) {
+                return getResult(future);
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+            if (nonRolledUpFrom > rolledUpQuery.to()) {
+                return ImmutableList.of();
+            }
+            return read(nonRolledUpFrom);
+        }
+
+        private List<T> read(long from) throws Exception {
+            return reader.read(ImmutableTransactionQuery.builder()
+                    .copyFrom(rolledUpQuery)
+                    .from(from)
+                    .rollupLevel(0)
+                    .build());
+        }
+    }
+
     private static class RollupCaptureTimeFn implements Function<Long, Long> {
 
         private final long fixedIntervalMillis;
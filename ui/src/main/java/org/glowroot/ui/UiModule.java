@@ -17,11 +17,15 @@ package org.glowroot.ui;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.immutables.builder.Builder;
 
 import org.glowroot.common.live.LiveAggregateRepository;
@@ -40,9 +44,13 @@ import org.glowroot.common.repo.util.MailService;
 import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class UiModule {
 
     private final LazyHttpServer lazyHttpServer;
+    private final @Nullable SealedAggregateCache sealedAggregateCache;
+    private final ExecutorService repositoryReadExecutor;
 
     @Builder.Factory
     public static UiModule createUiModule(
@@ -75,8 +83,22 @@ public class UiModule {
                 new HttpSessionManager(central, offline, configRepository, clock, layoutService);
         IndexHtmlHttpService indexHtmlHttpService =
                 new IndexHtmlHttpService(layoutService, configRepository);
-        TransactionCommonService transactionCommonService = new TransactionCommonService(
-                aggregateRepository, liveAggregateRepository, configRepository, clock);
+        // only central caches sealed aggregates, see comment in SealedAggregateCache
+        SealedAggregateCache sealedAggregateCache = null;
+        if (central) {
+            sealedAggregateCache = new SealedAggregateCache(clock);
+        }
+        // used to read multiple rollup levels concurrently, falls back to reading in the http
+        // worker thread when all repository read threads are busy
+        ExecutorService repositoryReadExecutor = new ThreadPoolExecutor(0, numWorkerThreads, 60,
+                SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Repository-Read-%d")
+                        .build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        TransactionCommonService transactionCommonService =
+                new TransactionCommonService(aggregateRepository, liveAggregateRepository,
+                        configRepository, sealedAggregateCache, repositoryReadExecutor, clock);
         TraceCommonService traceCommonService =
                 new TraceCommonService(traceRepository, liveTraceRepository, agentRepository);
         TransactionJsonService transactionJsonService =
@@ -130,11 +152,29 @@ public class UiModule {
                 numWorkerThreads);
 
         lazyHttpServer.init(adminJsonService);
-        return new UiModule(lazyHttpServer);
+        return new UiModule(lazyHttpServer, sealedAggregateCache, repositoryReadExecutor);
     }
 
-    private UiModule(LazyHttpServer lazyHttpServer) {
+    private UiModule(LazyHttpServer lazyHttpServer,
+            @Nullable SealedAggregateCache sealedAggregateCache,
+            ExecutorService repositoryReadExecutor) {
         this.lazyHttpServer = lazyHttpServer;
+        this.sealedAggregateCache = sealedAggregateCache;
+        this.repositoryReadExecutor = repositoryReadExecutor;
+    }
+
+    // exposed so that it can be registered as an mbean, this is only non-null for central
+    public @Nullable SealedAggregateCacheMXBean getSealedAggregateCache() {
+        return sealedAggregateCache;
+    }
+
+    // used by central ui, which calls this whenever aggregates are stored or rolled up
+    public void invalidateSealedAggregates(String agentRollupId, int rollupLevel,
+            long intervalMillis, long captureTime) {
+        if (sealedAggregateCache != null) {
+            sealedAggregateCache.invalidate(agentRollupId, rollupLevel, intervalMillis,
+                    captureTime);
+        }
     }
 
     public int getPort() throws InterruptedException {
@@ -147,6 +187,7 @@ public class UiModule {
         if (httpServer != null) {
             httpServer.close(waitForChannelClose);
         }
+        repositoryReadExecutor.shutdown();
     }
 
     private static int getPort(@Nullable HttpServer httpServer) {
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.ui.SealedAggregateCache.AggregateKind;
+import org.glowroot.ui.SealedAggregateCache.AggregateReader;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SealedAggregateCacheTest {
+
+    private static final long INTERVAL_MILLIS = MINUTES.toMillis(1);
+
+    private Clock clock;
+    private SealedAggregateCache cache;
+    private CountingReader reader;
+
+    @Before
+    public void beforeEachTest() {
+        clock = mock(Clock.class);
+        cache = new SealedAggregateCache(clock);
+        reader = new CountingReader();
+    }
+
+    @Test
+    public void shouldOnlyReadUnsealedTailOnRefresh() throws Exception {
+        // given
+        long now = HOURS.toMillis(10) + MINUTES.toMillis(30);
+        when(clock.currentTimeMillis()).thenReturn(now);
+        TransactionQuery query = query(HOURS.toMillis(4) + 1, now);
+        // when
+        List<ThroughputAggregate> first = read(query);
+        List<String> firstReads = Lists.newArrayList(reader.reads);
+        reader.reads.clear();
+        List<ThroughputAggregate> second = read(query);
+        // then
+        assertThat(first).hasSize(390);
+        assertThat(first.get(0).captureTime()).isEqualTo(HOURS.toMillis(4) + INTERVAL_MILLIS);
+        assertThat(first.get(389).captureTime()).isEqualTo(now);
+        assertThat(second).isEqualTo(first);
+        // the bucket ending at hour 10 is sealed, the bucket ending at hour 11 is not
+        assertThat(firstReads).containsExactly(range(HOURS.toMillis(4) + 1, HOURS.toMillis(10)),
+                range(HOURS.toMillis(10) + 1, now));
+        assertThat(reader.reads).containsExactly(range(HOURS.toMillis(10) + 1, now));
+        assertThat(cache.getHitCount()).isEqualTo(6);
+        assertThat(cache.getMissCount()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldFilterCachedBucketsToQueryRange() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(HOURS.toMillis(10));
+        read(query(1, HOURS.toMillis(3)));
+        reader.reads.clear();
+        // when
+        List<ThroughputAggregate> aggregates =
+                read(query(MINUTES.toMillis(90), MINUTES.toMillis(100)));
+        // then
+        assertThat(reader.reads).isEmpty();
+        assertThat(aggregates).hasSize(11);
+        assertThat(aggregates.get(0).captureTime()).isEqualTo(MINUTES.toMillis(90));
+        assertThat(aggregates.get(10).captureTime()).isEqualTo(MINUTES.toMillis(100));
+    }
+
+    @Test
+    public void shouldNotCacheAnythingWhenNothingIsSealed() throws Exception {
+        // given
+        long now = HOURS.toMillis(10);
+        when(clock.currentTimeMillis()).thenReturn(now);
+        // when
+        read(query(now - MINUTES.toMillis(30) + 1, now));
+        read(query(now - MINUTES.toMillis(30) + 1, now));
+        // then
+        assertThat(reader.reads).hasSize(2);
+        assertThat(cache.getBucketCount()).isZero();
+    }
+
+    @Test
+    public void shouldInvalidateBucketOnLateStore() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(HOURS.toMillis(10));
+        read(query(1, HOURS.toMillis(3)));
+        reader.reads.clear();
+        // when
+        cache.invalidate("other", 0, INTERVAL_MILLIS, MINUTES.toMillis(90));
+        cache.invalidate("agent", 1, INTERVAL_MILLIS, MINUTES.toMillis(90));
+        cache.invalidate("agent", 0, INTERVAL_MILLIS, MINUTES.toMillis(90));
+        read(query(1, HOURS.toMillis(3)));
+        // then
+        assertThat(reader.reads)
+                .containsExactly(range(HOURS.toMillis(1) + 1, HOURS.toMillis(2)));
+        assertThat(cache.getBucketCount()).isEqualTo(3);
+    }
+
+    private List<ThroughputAggregate> read(TransactionQuery query) throws Exception {
+        return cache.read("agent", query, AggregateKind.THROUGHPUT, INTERVAL_MILLIS, reader);
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+
+    private static String range(long from, long to) {
+        return from + "-" + to;
+    }
+
+    // returns one aggregate per interval
+    private static class CountingReader implements AggregateReader<ThroughputAggregate> {
+
+        private final List<String> reads = Lists.newArrayList();
+
+        @Override
+        public List<ThroughputAggregate> read(TransactionQuery query) {
+            reads.add(range(query.from(), query.to()));
+            List<ThroughputAggregate> aggregates = Lists.newArrayList();
+            long captureTime = (query.from() + INTERVAL_MILLIS - 1) / INTERVAL_MILLIS
+                    * INTERVAL_MILLIS;
+            for (; captureTime <= query.to(); captureTime += INTERVAL_MILLIS) {
+                aggregates.add(ImmutableThroughputAggregate.builder()
+                        .captureTime(captureTime)
+                        .transactionCount(1)
+                        .build());
+            }
+            return aggregates;
+        }
+
+        @Override
+        public long captureTime(ThroughputAggregate aggregate) {
+            return aggregate.captureTime();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.common.live.ImmutableOverallQuery;
+import org.glowroot.common.live.LiveAggregateRepository;
+import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionCommonServiceTest {
+
+    private static final long TO = HOURS.toMillis(10) + MINUTES.toMillis(7);
+
+    private AggregateRepository aggregateRepository;
+    private ExecutorService readExecutor;
+    private TransactionCommonService transactionCommonService;
+
+    private final List<String> reads = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    @Before
+    public void beforeEachTest() {
+        aggregateRepository = mock(AggregateRepository.class);
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        readExecutor = Executors.newCachedThreadPool();
+        Clock clock = mock(Clock.class);
+        transactionCommonService = new TransactionCommonService(aggregateRepository,
+                mock(LiveAggregateRepository.class), configRepository,
+                new SealedAggregateCache(clock), readExecutor, clock);
+    }
+
+    @After
+    public void afterEachTest() {
+        readExecutor.shutdown();
+    }
+
+    @Test
+    public void shouldUseSpeculativeReadsWhenRollupsAreCaughtUp() throws Exception {
+        // given
+        mockOverallSummaries(-1);
+        // when
+        OverallSummary overallSummary =
+                transactionCommonService.readOverallSummary("agent", query(), true);
+        // then
+        assertThat(overallSummary.transactionCount()).isEqualTo(3);
+        assertThat(reads).containsOnly(read(2, 0), read(1, HOURS.toMillis(10) + 1),
+                read(0, HOURS.toMillis(10) + MINUTES.toMillis(5) + 1));
+    }
+
+    @Test
+    public void shouldReReadWhenRollupIsBehind() throws Exception {
+        // given
+        mockOverallSummaries(HOURS.toMillis(9) + MINUTES.toMillis(30));
+        // when
+        OverallSummary overallSummary =
+                transactionCommonService.readOverallSummary("agent", query(), true);
+        // then
+        assertThat(overallSummary.transactionCount()).isEqualTo(3);
+        // the speculative read of rollup level 1 is discarded, but the speculative read of
+        // rollup level 0 still lines up after re-reading rollup level 1
+        assertThat(reads).hasSize(4);
+        assertThat(reads).contains(read(2, 0), read(1, HOURS.toMillis(10) + 1),
+                read(1, HOURS.toMillis(9) + MINUTES.toMillis(30) + 1),
+                read(0, HOURS.toMillis(10) + MINUTES.toMillis(5) + 1));
+    }
+
+    // merges one transaction at the last complete interval of each rollup level, except that
+    // rollup level 2 is only rolled up through level2RolledUpThrough (unless -1)
+    private void mockOverallSummaries(final long level2RolledUpThrough) throws Exception {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                OverallQuery query = (OverallQuery) invocation.getArguments()[1];
+                OverallSummaryCollector collector =
+                        (OverallSummaryCollector) invocation.getArguments()[2];
+                reads.add(read(query.rollupLevel(), query.from()));
+                long intervalMillis = RollupConfig.buildRollupConfigs()
+                        .get(query.rollupLevel()).intervalMillis();
+                long captureTime = query.to() / intervalMillis * intervalMillis;
+                if (query.rollupLevel() == 0) {
+                    captureTime = query.to();
+                } else if (query.rollupLevel() == 2 && level2RolledUpThrough != -1) {
+                    captureTime = level2RolledUpThrough;
+                }
+                if (captureTime > query.from()) {
+                    collector.mergeSummary(1000, 1, captureTime);
+                }
+                return null;
+            }
+        }).when(aggregateRepository).mergeOverallSummaryInto(anyString(), any(OverallQuery.class),
+                any(OverallSummaryCollector.class));
+    }
+
+    private static OverallQuery query() {
+        return ImmutableOverallQuery.builder()
+                .transactionType("Web")
+                .from(0)
+                .to(TO)
+                .rollupLevel(2)
+                .build();
+    }
+
+    private static String read(int rollupLevel, long from) {
+        return rollupLevel + ":" + from;
+    }
+}